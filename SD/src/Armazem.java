@@ -0,0 +1,618 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32;
+
+// Armazém durável das mensagens: um log só de acréscimos em segmentos de tamanho fixo, pré-alocados
+// e mapeados em memória, em -Dchat.armazem.dir. Cada registro é
+//
+//   [tamanho do corpo:4][crc32:4][tipo:1][instante:8][anterior na conversa:8][anterior na caixa:8]
+//   [remetente][destino][texto]
+//
+// com textos como [bytes:4][UTF-8] e posições globais no log (segmento × tamanho + deslocamento).
+// Cada mensagem aponta para a anterior da mesma conversa (par de usuários ou grupo), e as diretas
+// guardadas para um destinatário desconectado apontam também para a anterior da caixa dele; a
+// memória só guarda a última posição de cada cadeia, e o resto é lido do mapeamento. Na abertura o
+// log é percorrido para refazer essas cabeças e o fim válido (o primeiro registro com CRC errado).
+//
+// Quem grava só reserva a posição e enfileira os bytes; uma thread própria copia tudo o que
+// acumulou para o mapeamento e sincroniza com o disco no máximo a cada
+// -Dchat.armazem.sincronizacao ms (commit em grupo). Mensagens são entregues sem esperar o disco:
+// uma queda perde no máximo o que chegou desde a última sincronização.
+final class Armazem {
+    // Tipos de registro
+    static final byte DIRETA = 1;
+    static final byte GRUPO = 2;
+    // A caixa do usuário (remetente) foi entregue
+    private static final byte ENTREGUE = 3;
+    private static final byte ENTRADA = 4;
+    private static final byte SAIDA = 5;
+
+    static final int MAX_HISTORICO = 500;
+    private static final int CABECALHO = 8;
+    private static final long NENHUM = -1;
+    // "Anterior na caixa" de uma direta que foi entregue na hora e não entrou em caixa nenhuma
+    private static final long FORA_DA_CAIXA = -2;
+    private static final int LOTE = 4096;
+    private static final long ESPERA_LOTE = 1_000_000L;
+    private static final Pattern SEGMENTO = Pattern.compile("\\d{20}\\.seg");
+    // No login: mensagens reenviadas por grupo; o resto fica no /historico
+    private static final int PENDENTES = Integer.getInteger("chat.armazem.pendentes", 1000);
+    // Mensagens guardadas por destinatário desconectado; além disso a /msg é recusada
+    private static final int CAIXA = Integer.getInteger("chat.armazem.caixa", 1000);
+    // Mensagens por escrita na sessão durante o reenvio do login
+    private static final int LOTE_REENVIO = 64;
+    // Intervalo máximo entre sincronizações com o disco; 0 sincroniza cada lote e -1 deixa para o SO
+    private static final long INTERVALO_SINCRONIZACAO = Long.getLong("chat.armazem.sincronizacao", 10) * 1_000_000L;
+
+    private static volatile Armazem ativo;
+
+    static final LongAdder registros = new LongAdder();
+    static final LongAdder caixasCheias = new LongAdder();
+    static final LongAdder bytes = new LongAdder();
+    // Cópias para o mapeamento, cada uma com tudo o que estava na fila
+    static final LongAdder lotes = new LongAdder();
+    // Duração de cada force() do mapeamento, em ns
+    static final Histograma sincronizacao = new Histograma();
+
+    // Registro lido do log
+    static final class Mensagem {
+        long posicao;
+        int tamanho;
+        byte tipo;
+        long instante;
+        long anteriorConversa;
+        long anteriorCaixa;
+        String remetente;
+        String destino;
+        String texto;
+
+        boolean grupo() {
+            return tipo == GRUPO;
+        }
+
+        String conversa() {
+            return tipo == DIRETA ? Armazem.conversa(remetente, destino) : tipo == GRUPO ? "#" + destino : null;
+        }
+    }
+
+    private record Pendente(long posicao, byte[] bytes) {
+    }
+
+    enum Guarda {
+        GUARDADA, DESCONHECIDO, CAIXA_CHEIA
+    }
+
+    private final Path diretorio;
+    private final long tamanhoSegmento;
+    // Só o escritor cria segmentos; quem lê pega o array atual
+    private volatile MappedByteBuffer[] segmentos;
+    private final Queue<Pendente> fila = new ConcurrentLinkedQueue<>();
+    private final Thread escritor;
+    private volatile boolean encerrando;
+    private volatile boolean escritorDormindo;
+    // Tudo antes de limite já está no mapeamento (visível para leitura, não necessariamente no disco)
+    private volatile long limite;
+    private final Object escrito = new Object();
+    // Trecho ainda não sincronizado, [sujoInicio, sujoFim) do segmento sujoSegmento (só o escritor usa)
+    private int sujoSegmento = -1;
+    private int sujoInicio;
+    private int sujoFim;
+
+    // Cabeças das cadeias e próxima posição livre, protegidas pelo monitor do armazém
+    private long proxima;
+    private final Map<String, Long> conversas = new HashMap<>();
+    private final Map<String, Long> caixas = new HashMap<>();
+    private final Map<String, Integer> tamanhosCaixas = new HashMap<>();
+    // Posição da última saída de cada usuário: grupos são entregues a partir dela no login
+    private final Map<String, Long> saidas = new HashMap<>();
+    private final Set<String> conhecidos = ConcurrentHashMap.newKeySet();
+    // Ordenam o guardar para depois contra a entrega da caixa no login, por destinatário
+    private final Object[] travas = new Object[64];
+
+    private Armazem(Path diretorio, long tamanhoSegmento) throws IOException {
+        this.diretorio = diretorio;
+        Arrays.setAll(travas, i -> new Object());
+        long tamanho = tamanhoSegmento;
+        TreeMap<Long, Path> arquivos = new TreeMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(diretorio)) {
+            for (Path p : ds) {
+                String nome = p.getFileName().toString();
+                if (SEGMENTO.matcher(nome).matches())
+                    arquivos.put(Long.parseLong(nome.substring(0, 20)), p);
+            }
+        }
+        // O tamanho dos segmentos existentes vale sobre o configurado, senão as posições mudariam
+        if (!arquivos.isEmpty()) {
+            long existente = Files.size(arquivos.firstEntry().getValue());
+            if (existente != tamanho)
+                Registro.aviso("Armazém: segmentos existentes têm " + existente + " bytes; ignorando "
+                        + "chat.armazem.segmento=" + tamanho);
+            tamanho = existente;
+        }
+        this.tamanhoSegmento = tamanho;
+        this.segmentos = new MappedByteBuffer[arquivos.isEmpty() ? 0 : indice(arquivos.lastKey()) + 1];
+        Set<String> conectadosNaQueda = new HashSet<>();
+        for (Map.Entry<Long, Path> a : arquivos.entrySet()) {
+            long base = a.getKey();
+            MappedByteBuffer m = mapear(a.getValue());
+            segmentos[indice(base)] = m;
+            int off = 0;
+            Mensagem r;
+            while ((r = decodificar(m, off)) != null) {
+                r.posicao = base + off;
+                reaplicar(r, conectadosNaQueda);
+                off += r.tamanho;
+            }
+            proxima = base + off;
+            // Cauda rasgada por uma queda: zera o resto para que um registro antigo não reapareça
+            // depois de o log crescer por cima dela
+            if (off + CABECALHO <= tamanhoSegmento && m.getInt(off) != 0) {
+                for (int i = off; i < tamanhoSegmento; i++)
+                    m.put(i, (byte) 0);
+                Registro.aviso("Armazém: cauda inválida descartada em " + a.getValue().getFileName() + " a partir de "
+                        + off);
+            }
+        }
+        // Quem estava conectado quando o servidor caiu recebeu os grupos até o fim do log
+        for (String usuario : conectadosNaQueda)
+            saidas.put(usuario, proxima);
+        limite = proxima;
+        escritor = Thread.ofPlatform().daemon().name("armazem").start(this::escrever);
+    }
+
+    // Abre (ou cria) o armazém; sem isto as chamadas abaixo não fazem nada, como nos benchmarks
+    static void abrir() throws IOException {
+        Path dir = Paths.get(System.getProperty("chat.armazem.dir", "dados"));
+        long segmento = Math.max(4L << 20, Long.getLong("chat.armazem.segmento", 64L << 20));
+        Files.createDirectories(dir);
+        long inicio = System.nanoTime();
+        Armazem a = new Armazem(dir, segmento);
+        ativo = a;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            a.encerrando = true;
+            LockSupport.unpark(a.escritor);
+            try {
+                a.escritor.join(2000);
+            } catch (InterruptedException e) {
+            }
+        }));
+        ChatServer.log("Armazém aberto em " + dir.toAbsolutePath() + ": " + a.proxima + " bytes, "
+                + a.conversas.size() + " conversas, " + a.caixas.size() + " caixas com pendências ("
+                + (System.nanoTime() - inicio) / 1_000_000 + " ms)");
+    }
+
+    static boolean ativo() {
+        return ativo != null;
+    }
+
+    static String conversa(String usuario, String outro) {
+        return usuario.compareTo(outro) <= 0 ? usuario + "\0" + outro : outro + "\0" + usuario;
+    }
+
+    // ---- chamadas das sessões ----
+
+    // Mensagem direta já entregue a um destinatário conectado
+    static void direta(String remetente, String destino, String texto) {
+        Armazem a = ativo;
+        if (a != null)
+            a.gravar(DIRETA, remetente, destino, texto, false);
+    }
+
+    // Retorna a posição da mensagem no log, ou -1 se não foi gravada
+    static long grupo(String remetente, String grupo, String texto) {
+        Armazem a = ativo;
+        return a == null ? NENHUM : a.gravar(GRUPO, remetente, grupo, texto, false);
+    }
+
+    // Destinatário não estava conectado: guarda na caixa dele se já o conhecemos e ela tem espaço. Se
+    // ele acabou de entrar, entrega na hora. DESCONHECIDO se não há armazém ou o usuário nunca entrou.
+    static Guarda guardarParaDepois(String remetente, String destino, String texto) {
+        Armazem a = ativo;
+        if (a == null || !a.conhecidos.contains(destino))
+            return Guarda.DESCONHECIDO;
+        synchronized (a.trava(destino)) {
+            Sessao ch = ChatServer.usuariosConectados.get(destino);
+            if (ch != null) {
+                ch.entregarMensagem(remetente, texto);
+            } else if (a.tamanhoCaixa(destino) >= CAIXA) {
+                caixasCheias.increment();
+                return Guarda.CAIXA_CHEIA;
+            }
+            a.gravar(DIRETA, remetente, destino, texto, ch == null);
+        }
+        return Guarda.GUARDADA;
+    }
+
+    // Login: entrega a caixa e as mensagens dos grupos do usuário desde a última saída, em ordem. Aqui
+    // só se fixa o que será reenviado; a leitura do log e a entrega correm numa thread virtual, fora
+    // do laço NIO, enquanto a sessão retém o que chega ao vivo.
+    static void aoEntrar(Sessao sessao, List<String> grupos) {
+        Armazem a = ativo;
+        if (a == null)
+            return;
+        String usuario = sessao.getUsuario();
+        a.conhecidos.add(usuario);
+        long caixa, saida, corte;
+        // O que já está na caixa sai no reenvio; o que o guardar para depois vir em seguida já encontra
+        // a sessão. O corte é tomado depois de a sessão entrar nas rotas: uma mensagem de grupo gravada a
+        // partir dele é difundida a ela ao vivo.
+        synchronized (a.trava(usuario)) {
+            synchronized (a) {
+                caixa = a.caixas.getOrDefault(usuario, NENHUM);
+                saida = a.saidas.getOrDefault(usuario, NENHUM);
+                corte = a.proxima;
+            }
+            a.gravar(ENTRADA, usuario, "", "", false);
+            if (caixa >= 0)
+                a.gravar(ENTREGUE, usuario, "", "", false);
+        }
+        Thread.ofVirtual().name("armazem-" + usuario)
+                .start(() -> a.reenviar(sessao, grupos, caixa, saida, corte));
+    }
+
+    private void reenviar(Sessao sessao, List<String> grupos, long caixa, long saida, long corte) {
+        String usuario = sessao.getUsuario();
+        long[] posicoes = new long[0];
+        try {
+            // Primeiro só as posições; as mensagens são lidas de novo, lote a lote, na entrega.
+            // A caixa cabe inteira: CAIXA é também o limite de guardarParaDepois. Só um log de antes do
+            // limite pode ter mais, e o excedente, o mais antigo, continua no /historico.
+            LongStream.Builder reenvio = LongStream.builder();
+            List<String> cortados = new ArrayList<>();
+            long p = caixa;
+            int n = 0;
+            for (; p >= 0 && n < CAIXA; n++) {
+                Mensagem m = ler(p);
+                if (m == null || m.tipo != DIRETA || !m.destino.equals(usuario))
+                    break;
+                reenvio.add(p);
+                p = m.anteriorCaixa;
+            }
+            if (p >= 0 && n == CAIXA)
+                cortados.add("conversas diretas");
+            if (saida >= 0) {
+                for (String grupo : grupos) {
+                    n = 0;
+                    for (p = cabeca("#" + grupo); p > saida;) {
+                        Mensagem m = ler(p);
+                        if (m == null || m.tipo != GRUPO)
+                            break;
+                        if (p < corte) {
+                            if (n++ == PENDENTES) {
+                                cortados.add(grupo);
+                                break;
+                            }
+                            if (!m.remetente.equals(usuario))
+                                reenvio.add(p);
+                        }
+                        p = m.anteriorConversa;
+                    }
+                }
+            }
+            posicoes = reenvio.build().sorted().toArray();
+            List<Mensagem> lote = new ArrayList<>(LOTE_REENVIO);
+            for (int i = 0; i < posicoes.length; i += LOTE_REENVIO) {
+                if (ChatServer.usuariosConectados.get(usuario) != sessao)
+                    return;
+                lote.clear();
+                for (int k = i; k < Math.min(i + LOTE_REENVIO, posicoes.length); k++) {
+                    Mensagem m = ler(posicoes[k]);
+                    if (m != null)
+                        lote.add(m);
+                }
+                sessao.reproduzir(lote);
+            }
+            for (String conversa : cortados)
+                sessao.entregarErro("Mensagens mais antigas em " + conversa + " não reenviadas; veja /historico.");
+            if (posicoes.length > 0)
+                ChatServer.log("Entregues " + posicoes.length + " mensagens guardadas para " + usuario);
+        } catch (RuntimeException e) {
+            Registro.erro("Armazém: falha no reenvio para " + usuario, e);
+        } finally {
+            sessao.terminarReproducao(posicoes);
+        }
+    }
+
+    static void aoSair(String usuario) {
+        Armazem a = ativo;
+        if (a != null)
+            a.gravar(SAIDA, usuario, "", "", false);
+    }
+
+    // Até n mensagens da conversa, da mais antiga para a mais recente, terminando antes de "antes"
+    // (-1: no fim). Retorna a posição para pedir a página anterior, ou -1 se não há mais.
+    static long historico(String conversa, int n, long antes, List<Mensagem> saida) {
+        Armazem a = ativo;
+        if (a == null)
+            return NENHUM;
+        long p = antes < 0 ? a.cabeca(conversa) : antes;
+        int inicio = saida.size();
+        while (p >= 0 && saida.size() - inicio < n) {
+            Mensagem m = a.ler(p);
+            // Uma posição vinda do cliente tem de ser o começo de um registro desta conversa
+            if (m == null || !conversa.equals(m.conversa())) {
+                p = NENHUM;
+                break;
+            }
+            saida.add(m);
+            p = m.anteriorConversa;
+        }
+        Collections.reverse(saida.subList(inicio, saida.size()));
+        return p;
+    }
+
+    static long posicao() {
+        Armazem a = ativo;
+        return a == null ? 0 : a.limite;
+    }
+
+    // ---- log ----
+
+    private synchronized long cabeca(String conversa) {
+        return conversas.getOrDefault(conversa, NENHUM);
+    }
+
+    private Object trava(String usuario) {
+        return travas[Math.floorMod(usuario.hashCode(), travas.length)];
+    }
+
+    private synchronized int tamanhoCaixa(String usuario) {
+        return tamanhosCaixas.getOrDefault(usuario, 0);
+    }
+
+    // Reserva a posição e encadeia o registro; os bytes vão para a fila do escritor na mesma ordem
+    private synchronized long gravar(byte tipo, String remetente, String destino, String texto, boolean naCaixa) {
+        String conversa = tipo == DIRETA ? conversa(remetente, destino) : tipo == GRUPO ? "#" + destino : null;
+        long anteriorConversa = conversa == null ? NENHUM : conversas.getOrDefault(conversa, NENHUM);
+        long anteriorCaixa = tipo != DIRETA ? NENHUM : naCaixa ? caixas.getOrDefault(destino, NENHUM) : FORA_DA_CAIXA;
+        byte[] r = codificar(tipo, System.currentTimeMillis(), anteriorConversa, anteriorCaixa, remetente, destino,
+                texto);
+        if (r.length > tamanhoSegmento) {
+            Registro.aviso("Armazém: registro de " + r.length + " bytes maior que o segmento, não gravado");
+            return NENHUM;
+        }
+        long pos = proxima;
+        if (pos % tamanhoSegmento + r.length > tamanhoSegmento)
+            pos = (pos / tamanhoSegmento + 1) * tamanhoSegmento;
+        proxima = pos + r.length;
+        if (conversa != null)
+            conversas.put(conversa, pos);
+        switch (tipo) {
+            case DIRETA -> {
+                if (naCaixa) {
+                    caixas.put(destino, pos);
+                    tamanhosCaixas.merge(destino, 1, Integer::sum);
+                }
+            }
+            case ENTREGUE -> {
+                caixas.remove(remetente);
+                tamanhosCaixas.remove(remetente);
+            }
+            case SAIDA -> saidas.put(remetente, pos);
+            default -> {
+            }
+        }
+        fila.add(new Pendente(pos, r));
+        if (escritorDormindo)
+            LockSupport.unpark(escritor);
+        return pos;
+    }
+
+    private void reaplicar(Mensagem r, Set<String> conectados) {
+        switch (r.tipo) {
+            case DIRETA -> {
+                conversas.put(r.conversa(), r.posicao);
+                if (r.anteriorCaixa != FORA_DA_CAIXA) {
+                    caixas.put(r.destino, r.posicao);
+                    tamanhosCaixas.merge(r.destino, 1, Integer::sum);
+                }
+            }
+            case GRUPO -> conversas.put(r.conversa(), r.posicao);
+            case ENTREGUE -> {
+                caixas.remove(r.remetente);
+                tamanhosCaixas.remove(r.remetente);
+            }
+            case ENTRADA -> {
+                conhecidos.add(r.remetente);
+                conectados.add(r.remetente);
+            }
+            case SAIDA -> {
+                saidas.put(r.remetente, r.posicao);
+                conectados.remove(r.remetente);
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void escrever() {
+        List<Pendente> lote = new ArrayList<>();
+        long proximaSincronizacao = 0;
+        while (true) {
+            Pendente p;
+            while (lote.size() < LOTE && (p = fila.poll()) != null)
+                lote.add(p);
+            try {
+                if (!lote.isEmpty())
+                    copiar(lote);
+                if (sujoSegmento >= 0 && System.nanoTime() >= proximaSincronizacao) {
+                    sincronizar();
+                    proximaSincronizacao = System.nanoTime() + INTERVALO_SINCRONIZACAO;
+                }
+            } catch (IOException | RuntimeException e) {
+                Registro.erro("Falha ao gravar " + lote.size() + " registros no armazém", e);
+            }
+            boolean copiou = !lote.isEmpty();
+            lote.clear();
+            if (copiou) {
+                // Sob carga, junta o que chegar na próxima janela sem que cada gravar acorde o escritor
+                LockSupport.parkNanos(ESPERA_LOTE);
+                continue;
+            }
+            if (encerrando) {
+                sincronizar();
+                return;
+            }
+            escritorDormindo = true;
+            if (fila.isEmpty())
+                LockSupport.parkNanos(sujoSegmento >= 0
+                        ? Math.max(1, proximaSincronizacao - System.nanoTime())
+                        : 100_000_000L);
+            escritorDormindo = false;
+        }
+    }
+
+    // Copia o lote para o mapeamento e o libera para leitura; o disco fica para sincronizar()
+    private void copiar(List<Pendente> lote) throws IOException {
+        long total = 0;
+        for (Pendente p : lote) {
+            int i = indice(p.posicao());
+            int off = (int) (p.posicao() % tamanhoSegmento);
+            if (i != sujoSegmento) {
+                sincronizar();
+                sujoSegmento = i;
+                sujoInicio = off;
+            }
+            segmento(i).put(off, p.bytes());
+            sujoFim = off + p.bytes().length;
+            total += p.bytes().length;
+        }
+        Pendente ultimo = lote.get(lote.size() - 1);
+        limite = ultimo.posicao() + ultimo.bytes().length;
+        synchronized (escrito) {
+            escrito.notifyAll();
+        }
+        registros.add(lote.size());
+        bytes.add(total);
+        lotes.increment();
+    }
+
+    private void sincronizar() {
+        if (sujoSegmento < 0)
+            return;
+        if (INTERVALO_SINCRONIZACAO >= 0) {
+            long t = System.nanoTime();
+            segmentos[sujoSegmento].force(sujoInicio, sujoFim - sujoInicio);
+            sincronizacao.registrar(System.nanoTime() - t);
+        }
+        sujoSegmento = -1;
+    }
+
+    // Só o escritor chama
+    private MappedByteBuffer segmento(int i) throws IOException {
+        MappedByteBuffer[] s = segmentos;
+        if (i < s.length && s[i] != null)
+            return s[i];
+        Path p = diretorio.resolve(String.format("%020d.seg", i * tamanhoSegmento));
+        MappedByteBuffer m = mapear(p);
+        s = Arrays.copyOf(s, Math.max(s.length, i + 1));
+        s[i] = m;
+        segmentos = s;
+        return m;
+    }
+
+    private MappedByteBuffer mapear(Path p) throws IOException {
+        try (FileChannel canal = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return canal.map(FileChannel.MapMode.READ_WRITE, 0, tamanhoSegmento);
+        }
+    }
+
+    private int indice(long posicao) {
+        return (int) (posicao / tamanhoSegmento);
+    }
+
+    // Lê o registro em posicao, esperando o escritor se ele ainda estiver só reservado
+    private Mensagem ler(long posicao) {
+        if (posicao >= limite) {
+            long fim = System.nanoTime() + 1_000_000_000L;
+            synchronized (escrito) {
+                while (posicao >= limite && posicao < proximaReservada()) {
+                    long resta = (fim - System.nanoTime()) / 1_000_000;
+                    if (resta <= 0)
+                        return null;
+                    try {
+                        escrito.wait(resta);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+            }
+            if (posicao >= limite)
+                return null;
+        }
+        MappedByteBuffer[] s = segmentos;
+        int i = indice(posicao);
+        if (i >= s.length || s[i] == null)
+            return null;
+        Mensagem m = decodificar(s[i], (int) (posicao % tamanhoSegmento));
+        if (m != null)
+            m.posicao = posicao;
+        return m;
+    }
+
+    private synchronized long proximaReservada() {
+        return proxima;
+    }
+
+    private static byte[] codificar(byte tipo, long instante, long anteriorConversa, long anteriorCaixa,
+            String remetente, String destino, String texto) {
+        byte[] r = remetente.getBytes(StandardCharsets.UTF_8);
+        byte[] d = destino.getBytes(StandardCharsets.UTF_8);
+        byte[] t = texto.getBytes(StandardCharsets.UTF_8);
+        int corpo = 1 + 8 + 8 + 8 + 4 + r.length + 4 + d.length + 4 + t.length;
+        ByteBuffer b = ByteBuffer.allocate(CABECALHO + corpo);
+        b.putInt(corpo).putInt(0).put(tipo).putLong(instante).putLong(anteriorConversa).putLong(anteriorCaixa);
+        b.putInt(r.length).put(r).putInt(d.length).put(d).putInt(t.length).put(t);
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), CABECALHO, corpo);
+        b.putInt(4, (int) crc.getValue());
+        return b.array();
+    }
+
+    // null no fim do segmento, num trecho zerado ou num registro corrompido
+    private Mensagem decodificar(ByteBuffer segmento, int off) {
+        if (off < 0 || off + CABECALHO > tamanhoSegmento)
+            return null;
+        int corpo = segmento.getInt(off);
+        if (corpo < 1 + 8 + 8 + 8 + 12 || corpo > tamanhoSegmento - off - CABECALHO)
+            return null;
+        ByteBuffer b = segmento.slice(off + CABECALHO, corpo);
+        CRC32 crc = new CRC32();
+        crc.update(b.duplicate());
+        if ((int) crc.getValue() != segmento.getInt(off + 4))
+            return null;
+        Mensagem m = new Mensagem();
+        m.tamanho = CABECALHO + corpo;
+        m.tipo = b.get();
+        m.instante = b.getLong();
+        m.anteriorConversa = b.getLong();
+        m.anteriorCaixa = b.getLong();
+        m.remetente = texto(b);
+        m.destino = texto(b);
+        m.texto = texto(b);
+        return m.remetente == null || m.destino == null || m.texto == null ? null : m;
+    }
+
+    private static String texto(ByteBuffer b) {
+        if (b.remaining() < 4)
+            return null;
+        int n = b.getInt();
+        if (n < 0 || n > b.remaining())
+            return null;
+        byte[] t = new byte[n];
+        b.get(t);
+        return new String(t, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Depósito de arquivos por conteúdo: cada arquivo retomável recebido por inteiro, com o SHA-256
+// conferido, fica em disco com o hash como nome. Quem anunciar depois o mesmo hash e tamanho
+// (TRANSF_INICIO) e provar que tem o arquivo não envia nada: a transferência nasce completa a partir
+// do depósito e os destinatários são servidos dele. O hash sozinho não basta, senão quem o soubesse
+// receberia o arquivo; a prova é o SHA-256 de um nonce e de PROVA_BLOCOS blocos sorteados pelo
+// servidor (TRANSF_DESAFIO/TRANSF_PROVA, capacidade "deposito"). O desafio vai a todo anúncio novo,
+// esteja o arquivo aqui ou não, para que a resposta não diga o que o depósito guarda.
+//
+// O total é limitado a CAPACIDADE bytes, despejando os menos usados; um arquivo despejado enquanto
+// serve alguma transferência só é apagado quando ela termina.
+final class Blobs {
+    static final String CAPACIDADE_PROTOCOLO = "deposito";
+    static final long CAPACIDADE = Long.getLong("chat.blobs.capacidade", 1L << 30);
+    static final int PROVA_BLOCOS = 4;
+
+    // Totais do processo, expostos por Metricas
+    static final LongAdder acertos = new LongAdder(), faltas = new LongAdder();
+    static final LongAdder bytesEvitados = new LongAdder(), downloadsEvitados = new LongAdder();
+    static final LongAdder despejados = new LongAdder(), provasRecusadas = new LongAdder();
+    private static final SecureRandom sorteio = new SecureRandom();
+
+    // Em ordem de uso, do menos para o mais recente; protegido pelo próprio mapa
+    private static final LinkedHashMap<String, Blob> indice = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+    private static volatile Path diretorio;
+
+    private Blobs() {
+    }
+
+    static final class Blob {
+        final String hash;
+        final Path caminho;
+        final long tamanho;
+        // Transferências servidas por este arquivo; protegido por indice
+        private int usos;
+        private boolean despejado;
+
+        private Blob(String hash, Path caminho, long tamanho) {
+            this.hash = hash;
+            this.caminho = caminho;
+            this.tamanho = tamanho;
+        }
+    }
+
+    static boolean ativo() {
+        return CAPACIDADE > 0;
+    }
+
+    static byte[] nonce() {
+        byte[] nonce = new byte[ProtocoloV2.TAMANHO_NONCE];
+        sorteio.nextBytes(nonce);
+        return nonce;
+    }
+
+    // Até PROVA_BLOCOS blocos distintos do arquivo, ao acaso, sempre incluindo o último, que pode ser
+    // parcial
+    static int[] sortearBlocos(long tamanho) {
+        int blocos = ProtocoloV2.blocos(tamanho);
+        int n = Math.min(PROVA_BLOCOS, blocos);
+        int[] sorteados = new int[n];
+        sorteados[0] = blocos - 1;
+        for (int i = 1; i < n;) {
+            int b = sorteio.nextInt(blocos - 1);
+            boolean repetido = false;
+            for (int j = 1; j < i; j++)
+                repetido |= sorteados[j] == b;
+            if (!repetido)
+                sorteados[i++] = b;
+        }
+        return sorteados;
+    }
+
+    // O arquivo com este conteúdo, reservado até liberar(), ou null se não está no depósito ou se a
+    // prova não confere com os blocos pedidos no desafio
+    static Blob abrir(byte[] digest, long tamanho, byte[] nonce, int[] blocos, byte[] prova) {
+        if (!ativo() || tamanho <= 0)
+            return null;
+        String hash = HexFormat.of().formatHex(digest);
+        Blob blob;
+        try {
+            carregar();
+        } catch (IOException e) {
+            Registro.aviso("Depósito de arquivos indisponível: " + e.getMessage());
+            return null;
+        }
+        synchronized (indice) {
+            blob = indice.get(hash);
+            if (blob == null || blob.tamanho != tamanho) {
+                faltas.increment();
+                return null;
+            }
+            blob.usos++;
+        }
+        try (FileChannel canal = FileChannel.open(blob.caminho, StandardOpenOption.READ)) {
+            if (!MessageDigest.isEqual(prova, ProtocoloV2.prova(canal, tamanho, nonce, blocos))) {
+                provasRecusadas.increment();
+                liberar(blob);
+                return null;
+            }
+        } catch (IOException e) {
+            Registro.aviso("Arquivo do depósito ilegível, recebendo de novo: " + e.getMessage());
+            esquecer(blob);
+            return null;
+        }
+        acertos.increment();
+        bytesEvitados.add(tamanho);
+        // Para a ordem de uso valer também depois de reiniciar o servidor
+        try {
+            Files.setLastModifiedTime(blob.caminho, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+        }
+        return blob;
+    }
+
+    static void liberar(Blob blob) {
+        synchronized (indice) {
+            // O mesmo conteúdo pode ter voltado ao depósito, no mesmo caminho, depois do despejo
+            if (--blob.usos == 0 && blob.despejado && !indice.containsKey(blob.hash))
+                apagar(blob.caminho);
+        }
+    }
+
+    // O arquivo no disco não é o que o índice diz (apagado por fora, por exemplo): sai do depósito
+    static void esquecer(Blob blob) {
+        synchronized (indice) {
+            if (indice.remove(blob.hash, blob))
+                bytes -= blob.tamanho;
+            blob.despejado = true;
+        }
+        liberar(blob);
+    }
+
+    // Guarda o arquivo de uma transferência recém-verificada. Um link para o mesmo arquivo, sem cópia,
+    // se o depósito estiver no mesmo sistema de arquivos; senão a cópia é feita por uma thread virtual,
+    // a partir de um canal aberto aqui, que segue válido mesmo que a transferência apague o original.
+    static void guardar(byte[] digest, Path origem, long tamanho) {
+        if (!ativo() || tamanho <= 0 || tamanho > CAPACIDADE)
+            return;
+        String hash = HexFormat.of().formatHex(digest);
+        try {
+            Path dir = carregar();
+            synchronized (indice) {
+                if (indice.containsKey(hash))
+                    return;
+            }
+            Path temporario = dir.resolve(hash + "." + Thread.currentThread().threadId() + ".tmp");
+            try {
+                Files.deleteIfExists(temporario);
+                Files.createLink(temporario, origem);
+                registrar(hash, temporario, tamanho);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.deleteIfExists(temporario);
+            }
+            FileChannel canal = FileChannel.open(origem, StandardOpenOption.READ);
+            Thread.ofVirtual().name("blob-" + hash.substring(0, 8)).start(() -> copiar(canal, hash, temporario,
+                    tamanho));
+        } catch (IOException e) {
+            Registro.aviso("Falha ao guardar arquivo no depósito: " + e.getMessage());
+        }
+    }
+
+    private static void copiar(FileChannel origem, String hash, Path temporario, long tamanho) {
+        try (origem; FileChannel destino = FileChannel.open(temporario, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (long feito = 0; feito < tamanho;)
+                feito += origem.transferTo(feito, tamanho - feito, destino);
+        } catch (IOException e) {
+            apagar(temporario);
+            Registro.aviso("Falha ao copiar arquivo para o depósito: " + e.getMessage());
+            return;
+        }
+        try {
+            registrar(hash, temporario, tamanho);
+        } catch (IOException e) {
+            apagar(temporario);
+            Registro.aviso("Falha ao guardar arquivo no depósito: " + e.getMessage());
+        }
+    }
+
+    private static void registrar(String hash, Path temporario, long tamanho) throws IOException {
+        synchronized (indice) {
+            // Duas transferências com o mesmo conteúdo terminaram juntas: fica a primeira
+            if (indice.containsKey(hash)) {
+                apagar(temporario);
+                return;
+            }
+            Path caminho = Files.move(temporario, temporario.resolveSibling(hash), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            indice.put(hash, new Blob(hash, caminho, tamanho));
+            bytes += tamanho;
+            despejar();
+        }
+        Registro.debug("Arquivo guardado no depósito: " + hash + " (" + tamanho + " bytes)");
+    }
+
+    // Sob indice (apagar também, para não levar junto um arquivo que volte ao mesmo caminho): tira os
+    // menos usados até caber
+    private static void despejar() {
+        Iterator<Blob> it = indice.values().iterator();
+        while (bytes > CAPACIDADE && it.hasNext()) {
+            Blob blob = it.next();
+            it.remove();
+            bytes -= blob.tamanho;
+            blob.despejado = true;
+            despejados.increment();
+            if (blob.usos == 0)
+                apagar(blob.caminho);
+        }
+    }
+
+    static long bytes() {
+        synchronized (indice) {
+            return bytes;
+        }
+    }
+
+    static int quantidade() {
+        synchronized (indice) {
+            return indice.size();
+        }
+    }
+
+    // Na primeira vez, cria o diretório ou refaz o índice com o que ficou de uma execução anterior, na
+    // ordem da última modificação
+    private static Path carregar() throws IOException {
+        if (diretorio == null) {
+            synchronized (Blobs.class) {
+                if (diretorio == null) {
+                    String configurado = System.getProperty("chat.blobs.dir");
+                    Path dir = Files.createDirectories(configurado != null ? Path.of(configurado)
+                            : Transferencia.diretorio().resolve("blobs"));
+                    List<Path> existentes = new ArrayList<>();
+                    try (DirectoryStream<Path> arquivos = Files.newDirectoryStream(dir)) {
+                        for (Path p : arquivos) {
+                            if (p.getFileName().toString().endsWith(".tmp"))
+                                apagar(p);
+                            else if (p.getFileName().toString().matches("[0-9a-f]{64}"))
+                                existentes.add(p);
+                        }
+                    }
+                    existentes.sort(Comparator.comparing(p -> p.toFile().lastModified()));
+                    synchronized (indice) {
+                        for (Path p : existentes) {
+                            long tamanho = Files.size(p);
+                            indice.put(p.getFileName().toString(), new Blob(p.getFileName().toString(), p, tamanho));
+                            bytes += tamanho;
+                        }
+                        despejar();
+                    }
+                    if (!existentes.isEmpty())
+                        ChatServer.log("Depósito de arquivos: " + existentes.size() + " arquivos, " + bytes()
+                                + " bytes");
+                    diretorio = dir;
+                }
+            }
+        }
+        return diretorio;
+    }
+
+    private static void apagar(Path caminho) {
+        try {
+            Files.deleteIfExists(caminho);
+        } catch (IOException e) {
+        }
+    }
+}
@@ -1,53 +1,79 @@
 import javax.swing.*;
+import javax.swing.Timer;
 import java.awt.*;
+import java.awt.event.MouseEvent;
 import java.io.*;
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
 
-public class ChatClient {
-  private Socket socket;
-  private InputStream inStream;
-  private OutputStream outStream;
+// Interface Swing sobre o ClienteChat: os eventos chegam pela thread de leitura e são repassados à
+// thread da interface, e o que vai para o servidor sai por uma thread própria, para a interface não
+// travar enquanto um arquivo ocupa a conexão.
+//
+//   java ChatClient [host] [porta]
+public class ChatClient implements ClienteChat.Ouvinte {
+  // Linhas do chat mantidas na memória, e quantas vezes por segundo as que chegaram vão para a tela
+  private static final int HISTORICO = Integer.getInteger("chat.cliente.historico", 2000);
+  private static final int QUADROS = Integer.getInteger("chat.cliente.quadros", 30);
+  private static final int PAGINA = 200;
+  // Transferências já terminadas que continuam na lista
+  private static final int TERMINADAS = 20;
+  // Mensagens do servidor por clique em "Histórico"
+  private static final int PAGINA_SERVIDOR = 50;
+  private static final DateTimeFormatter DATA = DateTimeFormatter.ofPattern("dd/MM HH:mm")
+      .withZone(ZoneId.systemDefault());
+  private final String host;
+  private final int porta;
+  private ClienteChat cliente;
   private JFrame frame;
-  private JTextArea chatArea;
+  private JList<String> chatList;
+  private JScrollPane chatScroll;
+  private Historico historico;
+  // Linhas vindas da thread de leitura, aplicadas em lote pelo timer da interface
+  private final Queue<String> pendentes = new ConcurrentLinkedQueue<>();
   private JTextField messageField;
-  private JButton sendButton, sendFileButton, createGroupButton, addMemberButton, exitButton;
+  private JButton sendButton, sendFileButton, historyButton, createGroupButton, addMemberButton, exitButton;
   private JList<String> userList, groupList;
   private DefaultListModel<String> userListModel, groupListModel;
+  private JList<ClienteChat.TransferenciaArquivo> transferList;
+  private DefaultListModel<ClienteChat.TransferenciaArquivo> transferListModel;
+  private JButton cancelTransferButton;
+  private final ExecutorService acoes = Executors.newSingleThreadExecutor();
   private String username;
   private String selectedTarget;
+  // Onde continua o próximo pedido de histórico de cada conversa; sem entrada, das mais recentes
+  private final Map<String, Long> anteriores = new ConcurrentHashMap<>();
 
-  public ChatClient() {
+  public ChatClient(String host, int porta) {
+    this.host = host;
+    this.porta = porta;
+  }
+
+  // Separado do construtor para a janela só passar a receber eventos depois de inteiramente construída
+  public void iniciar() {
+    cliente = new ClienteChat(host, porta, this);
+    cliente.setDiretorio(new File(System.getProperty("chat.cliente.downloads", ".")));
     connectToServer();
     buildGUI();
-    new Thread(this::listenFromServer).start();
   }
 
   private void connectToServer() {
     while (true) {
       try {
-        socket = new Socket("localhost", 8080);
-        inStream = socket.getInputStream();
-        outStream = socket.getOutputStream();
-        String prompt = readLine(inStream);
-        if (!"NOME?".equals(prompt)) {
-          JOptionPane.showMessageDialog(null, "Protocolo inesperado do servidor.", "Erro", JOptionPane.ERROR_MESSAGE);
-          socket.close();
-          System.exit(1);
-        }
         username = askUsername();
-        writeLine(outStream, username);
-        String response = readLine(inStream);
-        if (response == null) {
-          JOptionPane.showMessageDialog(null, "Conexão encerrada pelo servidor.", "Erro", JOptionPane.ERROR_MESSAGE);
-          socket.close();
-          System.exit(1);
-        }
-        if (!response.startsWith("ERRO")) {
+        if (username == null)
+          System.exit(0);
+        if (cliente.conectar(username))
           break;
-        } else {
-          JOptionPane.showMessageDialog(null, "Nome de usuário inválido ou já em uso.", "Erro",
-              JOptionPane.ERROR_MESSAGE);
-        }
+        JOptionPane.showMessageDialog(null, "Nome de usuário inválido ou já em uso.", "Erro",
+            JOptionPane.ERROR_MESSAGE);
       } catch (IOException e) {
         JOptionPane.showMessageDialog(null, "Não foi possível conectar ao servidor.", "Erro",
             JOptionPane.ERROR_MESSAGE);
@@ -67,13 +93,34 @@ public class ChatClient {
     frame.setLayout(new BorderLayout());
 
     // Chat area
-    chatArea = new JTextArea();
-    chatArea.setEditable(false);
-    JScrollPane chatScroll = new JScrollPane(chatArea);
+    try {
+      historico = new Historico(HISTORICO);
+    } catch (IOException e) {
+      JOptionPane.showMessageDialog(null, "Não foi possível criar o histórico local.", "Erro",
+          JOptionPane.ERROR_MESSAGE);
+      System.exit(1);
+    }
+    // A lista acompanha a largura da janela e só desenha as linhas visíveis; a linha inteira fica na dica
+    chatList = new JList<>(historico) {
+      public boolean getScrollableTracksViewportWidth() {
+        return true;
+      }
+
+      public String getToolTipText(MouseEvent e) {
+        int i = locationToIndex(e.getPoint());
+        return i < 0 ? null : getModel().getElementAt(i);
+      }
+    };
+    chatList.setPrototypeCellValue("Xg");
+    chatList.setFixedCellWidth(1);
+    chatList.setToolTipText("");
+    chatScroll = new JScrollPane(chatList, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
+        ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+    chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> paginar());
     frame.add(chatScroll, BorderLayout.CENTER);
 
     // Lateral lists
-    JPanel sidePanel = new JPanel(new GridLayout(2, 1));
+    JPanel sidePanel = new JPanel(new GridLayout(3, 1));
     userListModel = new DefaultListModel<>();
     userList = new JList<>(userListModel);
     userList.setBorder(BorderFactory.createTitledBorder("Usuários"));
@@ -82,7 +129,17 @@ public class ChatClient {
     groupList.setBorder(BorderFactory.createTitledBorder("Grupos"));
     sidePanel.add(new JScrollPane(userList));
     sidePanel.add(new JScrollPane(groupList));
-    sidePanel.setPreferredSize(new Dimension(180, 0));
+    transferListModel = new DefaultListModel<>();
+    transferList = new JList<>(transferListModel);
+    transferList.setCellRenderer(new RenderizadorTransferencia());
+    JPanel transferPanel = new JPanel(new BorderLayout());
+    transferPanel.setBorder(BorderFactory.createTitledBorder("Transferências"));
+    transferPanel.add(new JScrollPane(transferList), BorderLayout.CENTER);
+    cancelTransferButton = new JButton("Cancelar");
+    cancelTransferButton.setEnabled(false);
+    transferPanel.add(cancelTransferButton, BorderLayout.SOUTH);
+    sidePanel.add(transferPanel);
+    sidePanel.setPreferredSize(new Dimension(220, 0));
     frame.add(sidePanel, BorderLayout.WEST);
 
     // Bottom panel
@@ -92,12 +149,14 @@ public class ChatClient {
     JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
     sendButton = new JButton("Enviar mensagem");
     sendFileButton = new JButton("Enviar arquivo");
+    historyButton = new JButton("Histórico");
     createGroupButton = new JButton("Criar grupo");
     addMemberButton = new JButton("Adicionar membro");
     exitButton = new JButton("Sair");
     exitButton.setForeground(Color.RED);
     buttonPanel.add(sendButton);
     buttonPanel.add(sendFileButton);
+    buttonPanel.add(historyButton);
     buttonPanel.add(createGroupButton);
     buttonPanel.add(addMemberButton);
     buttonPanel.add(Box.createHorizontalStrut(30));
@@ -124,22 +183,83 @@ public class ChatClient {
     // Button actions
     sendButton.addActionListener(e -> sendMessage());
     sendFileButton.addActionListener(e -> sendFile());
+    historyButton.addActionListener(e -> pedirHistorico());
     createGroupButton.addActionListener(e -> createGroup());
     addMemberButton.addActionListener(e -> addMember());
     exitButton.addActionListener(e -> exitChat());
     messageField.addActionListener(e -> sendMessage());
+    transferList.addListSelectionListener(e -> atualizarCancelar());
+    cancelTransferButton.addActionListener(e -> {
+      ClienteChat.TransferenciaArquivo t = transferList.getSelectedValue();
+      if (t != null)
+        acoes.execute(t::cancelar);
+    });
 
+    new Timer(1000 / QUADROS, e -> aplicarPendentes()).start();
     frame.setVisible(true);
   }
 
+  // No timer da interface: tudo o que chegou desde o último quadro entra no histórico de uma vez.
+  // Quem estava no fim continua acompanhando; quem estava lendo mais acima não sai do lugar
+  private void aplicarPendentes() {
+    if (pendentes.isEmpty())
+      return;
+    List<String> lote = new ArrayList<>();
+    String linha;
+    while ((linha = pendentes.poll()) != null)
+      lote.add(linha);
+    JScrollBar barra = chatScroll.getVerticalScrollBar();
+    boolean acompanhando = historico.noFim() && barra.getValue() + barra.getVisibleAmount() >= barra.getMaximum();
+    int removidas;
+    try {
+      removidas = historico.acrescentar(lote);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    chatScroll.validate();
+    if (acompanhando)
+      chatList.ensureIndexIsVisible(historico.getSize() - 1);
+    else if (removidas > 0)
+      barra.setValue(barra.getValue() - removidas * chatList.getFixedCellHeight());
+  }
+
+  // Rolagem numa das pontas da janela em memória: relê uma página do arquivo e mantém na tela as
+  // mesmas linhas
+  private void paginar() {
+    JScrollBar barra = chatScroll.getVerticalScrollBar();
+    int altura = chatList.getFixedCellHeight();
+    try {
+      if (barra.getValue() == barra.getMinimum() && historico.getSize() > 0) {
+        int lidas = historico.voltar(PAGINA);
+        if (lidas > 0) {
+          chatScroll.validate();
+          barra.setValue(barra.getValue() + lidas * altura);
+        }
+      } else if (barra.getValue() + barra.getVisibleAmount() >= barra.getMaximum() && !historico.noFim()) {
+        int removidas = historico.avancar(PAGINA);
+        if (removidas > 0) {
+          chatScroll.validate();
+          barra.setValue(barra.getValue() - removidas * altura);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   private void sendMessage() {
     String msg = messageField.getText().trim();
     if (msg.isEmpty() || selectedTarget == null)
       return;
-    writeLine(outStream, "/msg " + selectedTarget + " " + msg);
-    chatArea.append("(Você → " + selectedTarget + "): " + msg + "\n");
-    System.out.println("Enviado para " + selectedTarget + ": " + msg);
+    String target = selectedTarget;
     messageField.setText("");
+    acoes.execute(() -> {
+      if (!cliente.enviarMensagem(target, msg))
+        return;
+      mostrar("(Você → " + target + "): " + msg);
+      System.out.println("Enviado para " + target + ": " + msg);
+    });
   }
 
   private void sendFile() {
@@ -151,177 +271,315 @@ public class ChatClient {
     int result = fileChooser.showOpenDialog(frame);
     if (result == JFileChooser.APPROVE_OPTION) {
       File file = fileChooser.getSelectedFile();
-      try {
-        String comando = "/arquivo " + selectedTarget + " " + file.getName() + " " + file.length();
-        System.out.println("Enviando comando para o servidor: " + comando);
-        writeLine(outStream, comando);
-        FileInputStream fis = new FileInputStream(file);
-        byte[] buffer = new byte[4096];
-        int count;
-        long total = 0;
-        while ((count = fis.read(buffer)) > 0) {
-          outStream.write(buffer, 0, count);
-          total += count;
-        }
-        outStream.flush();
-        fis.close();
-        System.out.println("Total de bytes enviados: " + total + "/" + file.length());
-        String msg = "Arquivo enviado para " + selectedTarget + ": " + file.getName();
-        chatArea.append(msg + "\n");
-        System.out.println(msg);
-      } catch (IOException ex) {
-        ex.printStackTrace();
-        JOptionPane.showMessageDialog(frame, "Erro ao enviar arquivo.", "Erro", JOptionPane.ERROR_MESSAGE);
-      }
+      cliente.enviarArquivo(selectedTarget, file);
+      mostrar("Enviando arquivo para " + selectedTarget + ": " + file.getName());
     }
   }
 
+  // Cada clique traz a página anterior à última mostrada; depois da mais antiga, volta às recentes
+  private void pedirHistorico() {
+    if (selectedTarget == null)
+      return;
+    String alvo = selectedTarget;
+    Long antes = anteriores.remove(alvo);
+    acoes.execute(() -> {
+      if (!cliente.pedirHistorico(alvo, PAGINA_SERVIDOR, antes == null ? -1 : antes))
+        mostrar("Histórico indisponível para " + alvo + ".");
+    });
+  }
+
   private void createGroup() {
     String groupName = JOptionPane.showInputDialog(frame, "Nome do grupo:");
-    if (groupName != null && !groupName.trim().isEmpty()) {
-      writeLine(outStream, "/grupo_criar " + groupName.trim());
-    }
+    if (groupName != null && !groupName.trim().isEmpty())
+      acoes.execute(() -> cliente.criarGrupo(groupName.trim()));
   }
 
   private void addMember() {
     if (selectedTarget == null || groupList.getSelectedValue() == null)
       return;
     String member = JOptionPane.showInputDialog(frame, "Nome do usuário para adicionar ao grupo:");
+    String group = groupList.getSelectedValue();
     if (member != null && !member.trim().isEmpty()) {
-      writeLine(outStream, "/grupo_add " + groupList.getSelectedValue() + " " + member.trim());
+      acoes.execute(() -> {
+        if (!cliente.adicionarMembro(group, member.trim()))
+          SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame, "Usuário não encontrado.", "Erro",
+              JOptionPane.ERROR_MESSAGE));
+      });
     }
   }
 
   private void exitChat() {
-    writeLine(outStream, "close");
-    try {
-      socket.close();
-    } catch (IOException e) {
-    }
+    cliente.sair();
     frame.dispose();
     System.exit(0);
   }
 
-  private void listenFromServer() {
-    try {
-      String line;
-      while ((line = readLine(inStream)) != null) {
-        System.out.println("[DEBUG] Linha recebida do servidor: " + line);
-        if (line.startsWith("USERLIST|")) {
-          updateUserList(line.substring(9));
-        } else if (line.startsWith("GROUPLIST|")) {
-          updateGroupList(line.substring(10));
-        } else if (line.startsWith("GRUPO:")) {
-          String[] partsGrupo = line.split(":", 3);
-          if (partsGrupo.length == 3) {
-            String groupName = partsGrupo[1];
-            String[] members = partsGrupo[2].split(",");
-            for (String member : members) {
-              if (member.equals(username)) {
-                SwingUtilities.invokeLater(() -> {
-                  if (groupListModel.indexOf(groupName) == -1) {
-                    groupListModel.addElement(groupName);
-                  }
-                });
-                break;
-              }
-            }
-          }
-        } else if (line.startsWith("MSG:")) {
-          String[] partsMsg = line.split(":", 3);
-          if (partsMsg.length == 3) {
-            chatArea.append(partsMsg[1] + ": " + partsMsg[2] + "\n");
-          }
-        } else if (line.startsWith("GRUPO_MSG:")) {
-          String[] partsGrupoMsg = line.split(":", 4);
-          if (partsGrupoMsg.length == 4) {
-            chatArea.append(partsGrupoMsg[1] + " - " + partsGrupoMsg[2] + ": " + partsGrupoMsg[3] + "\n");
-          }
-        } else if (line.startsWith("ARQUIVO:")) {
-          String[] partsArq = line.split(":", 4);
-          if (partsArq.length == 4) {
-            receiveFile(partsArq[1], null, partsArq[2], Long.parseLong(partsArq[3]));
-          }
-        } else if (line.startsWith("GRUPO_ARQUIVO:")) {
-          String[] partsGrupoArq = line.split(":", 5);
-          if (partsGrupoArq.length == 5) {
-            receiveFile(partsGrupoArq[2], partsGrupoArq[1], partsGrupoArq[3], Long.parseLong(partsGrupoArq[4]));
-          }
-        }
-      }
-    } catch (IOException e) {
-      chatArea.append("Conexão encerrada.\n");
-    }
+  private void mostrar(String texto) {
+    pendentes.add(texto);
   }
 
-  private void writeLine(OutputStream os, String line) {
-    try {
-      os.write((line + "\n").getBytes("UTF-8"));
-      os.flush();
-    } catch (IOException e) {
-    }
+  private void atualizarCancelar() {
+    ClienteChat.TransferenciaArquivo t = transferList.getSelectedValue();
+    cancelTransferButton.setEnabled(t != null && t.podeCancelar());
   }
 
-  private String readLine(InputStream is) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    int b;
-    while ((b = is.read()) != -1) {
-      if (b == '\n')
-        break;
-      if (b != '\r')
-        baos.write(b);
+  // Uma linha por transferência: nome, contato e barra de progresso com o resultado no fim
+  private static class RenderizadorTransferencia extends JPanel
+      implements ListCellRenderer<ClienteChat.TransferenciaArquivo> {
+    private static final long serialVersionUID = 1L;
+    private final JLabel rotulo = new JLabel();
+    private final JProgressBar barra = new JProgressBar(0, 1000);
+
+    RenderizadorTransferencia() {
+      super(new BorderLayout());
+      barra.setStringPainted(true);
+      add(rotulo, BorderLayout.NORTH);
+      add(barra, BorderLayout.SOUTH);
+      setBorder(BorderFactory.createEmptyBorder(2, 2, 2, 2));
+    }
+
+    public Component getListCellRendererComponent(JList<? extends ClienteChat.TransferenciaArquivo> list,
+        ClienteChat.TransferenciaArquivo t, int index, boolean isSelected, boolean cellHasFocus) {
+      rotulo.setText((t.envio ? "→ " : "← ") + t.contato + ": " + t.nome);
+      int permil = t.tamanho == 0 ? 1000 : (int) (t.getFeito() * 1000 / t.tamanho);
+      barra.setValue(permil);
+      barra.setString(t.getResultado() != null ? t.getResultado() : permil / 10 + "%");
+      setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+      rotulo.setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+      return this;
     }
-    if (baos.size() == 0 && b == -1)
-      return null;
-    return baos.toString("UTF-8");
   }
 
-  private void updateUserList(String users) {
+  // Eventos do ClienteChat, na thread de leitura
+
+  public void usuarios(List<String> usuarios) {
     SwingUtilities.invokeLater(() -> {
       userListModel.clear();
-      for (String user : users.split(",")) {
-        if (!user.equals(username) && !user.isEmpty())
+      for (String user : usuarios) {
+        if (!user.equals(username))
           userListModel.addElement(user);
       }
     });
   }
 
-  private void updateGroupList(String groups) {
+  public void presenca(String user, boolean entrou) {
+    if (user.equals(username))
+      return;
+    SwingUtilities.invokeLater(() -> {
+      if (!entrou)
+        userListModel.removeElement(user);
+      else if (userListModel.indexOf(user) == -1)
+        userListModel.addElement(user);
+    });
+  }
+
+  public void grupos(List<String> grupos) {
     SwingUtilities.invokeLater(() -> {
       groupListModel.clear();
-      for (String group : groups.split(",")) {
-        if (!group.isEmpty())
-          groupListModel.addElement(group);
+      for (String group : grupos)
+        groupListModel.addElement(group);
+    });
+  }
+
+  public void grupo(String groupName) {
+    SwingUtilities.invokeLater(() -> {
+      if (groupListModel.indexOf(groupName) == -1)
+        groupListModel.addElement(groupName);
+    });
+  }
+
+  public void mensagem(String remetente, String texto) {
+    mostrar(remetente + ": " + texto);
+  }
+
+  public void mensagemGrupo(String grupo, String remetente, String texto) {
+    mostrar(grupo + " - " + remetente + ": " + texto);
+  }
+
+  public void historico(String alvo, long instante, String remetente, String texto) {
+    mostrar("[" + alvo + " " + DATA.format(Instant.ofEpochMilli(instante)) + "] " + remetente + ": " + texto);
+  }
+
+  public void historicoFim(String alvo, long anterior) {
+    if (anterior >= 0)
+      anteriores.put(alvo, anterior);
+    else
+      mostrar("(início do histórico com " + alvo + ")");
+  }
+
+  public void arquivoEnviado(String destino, File arquivo, boolean ok, String resultado) {
+    mostrar("Arquivo " + arquivo.getName() + " para " + destino + ": " + resultado);
+  }
+
+  public void transferencia(ClienteChat.TransferenciaArquivo t) {
+    SwingUtilities.invokeLater(() -> {
+      int i = transferListModel.indexOf(t);
+      if (i >= 0) {
+        transferListModel.set(i, t);
+      } else {
+        transferListModel.add(0, t);
+        int terminadas = 0;
+        for (int j = 0; j < transferListModel.size(); j++) {
+          if (transferListModel.get(j).getResultado() != null && ++terminadas > TERMINADAS)
+            transferListModel.remove(j--);
+        }
       }
+      atualizarCancelar();
     });
   }
 
-  private void receiveFile(String from, String group, String filename, long size) throws IOException {
-    System.out
-        .println("[DEBUG] Iniciando recebimento de arquivo: " + filename + " de " + from + " (" + size + " bytes)");
-    String msg = (group == null) ? "Arquivo recebido de " + from + ": " + filename
-        : "Arquivo recebido do grupo " + group + " - " + from + ": " + filename;
-    chatArea.append(msg + "\n");
-
-    File file = new File(filename);
-    FileOutputStream fos = new FileOutputStream(file);
-    byte[] buffer = new byte[4096];
-    long remaining = size;
-    long lidos = 0;
-    while (remaining > 0) {
-      int read = inStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
-      if (read == -1)
-        break;
-      fos.write(buffer, 0, read);
-      remaining -= read;
-      lidos += read;
+  public void aviso(String texto) {
+    mostrar(texto);
+  }
+
+  public void erro(String texto) {
+    depuracao("Erro do servidor: " + texto);
+    mostrar("Erro: " + texto);
+  }
+
+  public void conexaoPerdida() {
+    mostrar("Conexão perdida, reconectando...");
+  }
+
+  public void reconectado() {
+    mostrar("Reconectado.");
+  }
+
+  public void desconectado() {
+    mostrar("Conexão encerrada.");
+  }
+
+  public void depuracao(String texto) {
+    System.out.println("[DEBUG] " + texto);
+  }
+
+  // Modelo da lista do chat: só uma janela de até capacidade linhas fica na memória, num anel. Todas
+  // as linhas vão para um arquivo temporário, com a posição de cada uma, de onde são relidas em
+  // páginas quando a rolagem chega a uma ponta da janela. Só a thread da interface usa.
+  private static class Historico extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    private final String[] anel;
+    private final transient FileChannel arquivo;
+    // Início de cada linha no arquivo; posicoes[total] é o fim
+    private long[] posicoes = new long[1024];
+    private int total;
+    // Índice da primeira linha da janela, sua posição no anel e quantas linhas a janela tem
+    private int primeira;
+    private int cabeca;
+    private int tamanho;
+
+    Historico(int capacidade) throws IOException {
+      anel = new String[capacidade];
+      File f = File.createTempFile("chat-historico", ".txt");
+      f.deleteOnExit();
+      arquivo = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    public int getSize() {
+      return tamanho;
+    }
+
+    public String getElementAt(int i) {
+      return anel[(cabeca + i) % anel.length];
+    }
+
+    boolean noFim() {
+      return primeira + tamanho == total;
+    }
+
+    // Grava o lote no arquivo e, se a janela está no fim, o põe nela, tirando do começo o que não
+    // couber. Retorna quantas linhas saíram do começo da janela
+    int acrescentar(List<String> linhas) throws IOException {
+      boolean fim = noFim();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      long inicio = posicoes[total];
+      for (String linha : linhas) {
+        bytes.write((linha.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8));
+        if (total + 1 == posicoes.length)
+          posicoes = Arrays.copyOf(posicoes, posicoes.length * 2);
+        posicoes[++total] = inicio + bytes.size();
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+      while (buffer.hasRemaining())
+        arquivo.write(buffer, inicio + buffer.position());
+      if (!fim)
+        return 0;
+      // Um lote maior que o anel: só as últimas linhas entram
+      int pular = Math.max(0, linhas.size() - anel.length);
+      int removidas = descartarInicio(tamanho + linhas.size() - pular - anel.length);
+      primeira += pular;
+      for (int i = pular; i < linhas.size(); i++)
+        anel[(cabeca + tamanho++) % anel.length] = linhas.get(i);
+      fireIntervalAdded(this, tamanho - (linhas.size() - pular), tamanho - 1);
+      return removidas;
+    }
+
+    // Traz até n linhas anteriores à janela para o começo dela, tirando do fim o que não couber.
+    // Retorna quantas trouxe
+    int voltar(int n) throws IOException {
+      n = Math.min(Math.min(n, primeira), anel.length);
+      if (n == 0)
+        return 0;
+      List<String> linhas = ler(primeira - n, primeira);
+      int excesso = tamanho + n - anel.length;
+      if (excesso > 0) {
+        tamanho -= excesso;
+        fireIntervalRemoved(this, tamanho, tamanho + excesso - 1);
+      }
+      cabeca = (cabeca - n + anel.length) % anel.length;
+      primeira -= n;
+      tamanho += n;
+      for (int i = 0; i < n; i++)
+        anel[(cabeca + i) % anel.length] = linhas.get(i);
+      fireIntervalAdded(this, 0, n - 1);
+      return n;
+    }
+
+    // Traz até n linhas seguintes à janela para o fim dela. Retorna quantas saíram do começo
+    int avancar(int n) throws IOException {
+      int fim = primeira + tamanho;
+      n = Math.min(Math.min(n, total - fim), anel.length);
+      if (n == 0)
+        return 0;
+      List<String> linhas = ler(fim, fim + n);
+      int removidas = descartarInicio(tamanho + n - anel.length);
+      for (String linha : linhas)
+        anel[(cabeca + tamanho++) % anel.length] = linha;
+      fireIntervalAdded(this, tamanho - n, tamanho - 1);
+      return removidas;
+    }
+
+    private int descartarInicio(int n) {
+      if (n <= 0)
+        return 0;
+      for (int i = 0; i < n; i++)
+        anel[(cabeca + i) % anel.length] = null;
+      cabeca = (cabeca + n) % anel.length;
+      primeira += n;
+      tamanho -= n;
+      fireIntervalRemoved(this, 0, n - 1);
+      return n;
+    }
+
+    private List<String> ler(int de, int ate) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate((int) (posicoes[ate] - posicoes[de]));
+      while (buffer.hasRemaining() && arquivo.read(buffer, posicoes[de] + buffer.position()) > 0)
+        ;
+      List<String> linhas = new ArrayList<>(ate - de);
+      byte[] bytes = buffer.array();
+      for (int i = de; i < ate; i++) {
+        int inicio = (int) (posicoes[i] - posicoes[de]);
+        int fim = (int) (posicoes[i + 1] - posicoes[de]) - 1;
+        linhas.add(new String(bytes, inicio, fim - inicio, StandardCharsets.UTF_8));
+      }
+      return linhas;
     }
-    fos.close();
-    System.out.println("[DEBUG] Arquivo salvo automaticamente: " + file.getAbsolutePath());
-    System.out.println("[DEBUG] Fim do recebimento de arquivo: " + filename + ", bytes lidos: " + lidos + "/" + size);
   }
 
   public static void main(String[] args) {
-    SwingUtilities.invokeLater(ChatClient::new);
+    String host = args.length > 0 ? args[0] : "localhost";
+    int porta = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+    SwingUtilities.invokeLater(() -> new ChatClient(host, porta).iniciar());
   }
 }
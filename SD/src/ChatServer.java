@@ -1,27 +1,76 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.regex.*;
 
 public class ChatServer {
-    private static final int PORT = 8080;
+    private static final int PORT = Integer.getInteger("chat.porta", 8080);
     private static final Pattern VALID_NAME = Pattern.compile("^[A-Za-z0-9_]{3,}$");
-    private static final Map<String, ClientHandler> usuariosConectados = new ConcurrentHashMap<>();
-    private static final Map<String, Set<String>> grupos = new ConcurrentHashMap<>();
-    private static final Object logLock = new Object();
+    static final Map<String, Sessao> usuariosConectados = new ConcurrentHashMap<>();
+    static final Map<String, Set<String>> grupos = new ConcurrentHashMap<>();
+    static final RegistroIds idsUsuarios = new RegistroIds();
+    static final RegistroIds idsGrupos = new RegistroIds();
+    private static final AtomicInteger transferencias = new AtomicInteger();
+    // Fila de saída por conexão: capacidade em bytes e o que fazer quando um cliente lento a enche
+    static final long capacidadeFila = Long.getLong("chat.fila.capacidade", 4 * 1024 * 1024);
+    static final FilaSaida.Politica politicaFila = FilaSaida.Politica
+            .valueOf(System.getProperty("chat.fila.politica", "descartar").toUpperCase());
+    // Corpos de /arquivo 1:1 vão do socket de origem ao de destino em buffers diretos, sem cópia para o
+    // heap; -Dchat.repasse=copia volta ao laço antigo com byte[] (útil para comparar no BenchmarkRepasse,
+    // do módulo bench)
+    static final boolean repasseDireto = !System.getProperty("chat.repasse", "direto").equalsIgnoreCase("copia");
+    // SO_SNDBUF das conexões de clientes; 0 deixa o kernel ajustar. Um buffer de kernel grande segura o
+    // chat atrás dos dados de arquivo que já saíram da FilaSaida, anulando o escalonamento dela
+    static final int bufferEnvio = Integer.getInteger("chat.socket.envio", 0);
+    private static ThreadFactory fabricaEscritores = Thread.ofPlatform().factory();
+
+    static void ajustarSocket(SocketChannel canal) throws IOException {
+        if (bufferEnvio > 0)
+            canal.setOption(StandardSocketOptions.SO_SNDBUF, bufferEnvio);
+    }
 
+    // Uso: java ChatServer [threads|virtual|nio] [loops]
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        log("Servidor iniciado na porta " + PORT);
+        String motor = args.length > 0 ? args[0] : "threads";
+        Metricas.iniciarAdmin();
+        DiarioGrupos.abrir();
+        Rotas.carregar();
+        Armazem.abrir();
+        Cluster.abrir();
+        if (motor.equalsIgnoreCase("nio")) {
+            int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            new NioChatServer(PORT, loops).executar();
+            return;
+        }
+
+        boolean virtual = motor.equalsIgnoreCase("virtual");
+        ExecutorService executor = virtual ? Executors.newVirtualThreadPerTaskExecutor() : null;
+        if (virtual)
+            fabricaEscritores = Thread.ofVirtual().factory();
+        // Canais em modo bloqueante: o socket continua sendo lido por InputStream, mas o repasse de
+        // arquivos e o escritor usam o SocketChannel
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(PORT));
+        log("Servidor iniciado na porta " + PORT + (virtual ? " (threads virtuais)" : ""));
 
         try {
             while (true) {
-                Socket socket = serverSocket.accept();
-                new Thread(new ClientHandler(socket)).start();
+                SocketChannel socket = serverSocket.accept();
+                ajustarSocket(socket);
+                if (virtual)
+                    executor.execute(new ClientHandler(socket));
+                else
+                    new Thread(new ClientHandler(socket)).start();
             }
         } finally {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            if (executor != null)
+                executor.shutdownNow();
+            if (serverSocket != null && serverSocket.isOpen()) {
                 try {
                     serverSocket.close();
                     System.out.println("ServerSocket fechado com sucesso.");
@@ -32,243 +81,157 @@ public class ChatServer {
         }
     }
 
-    private static boolean nomeValido(String nome) {
+    // Conectado a este nó ou a outro do cluster
+    static boolean online(String usuario) {
+        return usuariosConectados.containsKey(usuario) || Cluster.no(usuario) != null;
+    }
+
+    static boolean nomeValido(String nome) {
         return VALID_NAME.matcher(nome).matches();
     }
 
+    // Eventos de rotina; o texto é só enfileirado para a thread do Registro
     public static void log(String msg) {
-        synchronized (logLock) {
-            System.out.println("[" + new Date() + "] " + msg);
-        }
+        Registro.info(msg);
     }
 
-    private static void atualizarUsuarios() {
-        String lista = "USERLIST|" + String.join(",", usuariosConectados.keySet());
-        for (ClientHandler ch : usuariosConectados.values()) {
-            ch.enviar(lista);
-        }
+    // Cria o grupo com o criador como primeiro membro; false se o nome já existe
+    static boolean criarGrupo(String grupo, String criador) {
+        Set<String> membros = ConcurrentHashMap.newKeySet();
+        membros.add(criador);
+        if (grupos.putIfAbsent(grupo, membros) != null)
+            return false;
+        Rotas.adicionar(grupo, criador);
+        return true;
+    }
+
+    // Cria o grupo se preciso; false se já era membro
+    static boolean adicionarMembro(String grupo, String membro) {
+        if (!grupos.computeIfAbsent(grupo, g -> ConcurrentHashMap.newKeySet()).add(membro))
+            return false;
+        Rotas.adicionar(grupo, membro);
+        return true;
     }
 
-    private static void atualizarGrupos(String grupo) {
+    static void atualizarGrupos(String grupo) {
         Set<String> membros = grupos.get(grupo);
-        if (membros != null) {
-            String lista = "GRUPO:" + grupo + ":" + String.join(",", membros);
-            for (String membro : membros) {
-                ClientHandler ch = usuariosConectados.get(membro);
-                if (ch != null)
-                    ch.enviar(lista);
-            }
+        Rotas.Grupo rota = Rotas.grupo(grupo);
+        if (membros != null && rota != null) {
+            for (Sessao ch : rota.conectadas)
+                ch.entregarGrupo(grupo, membros);
         }
     }
 
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-        private String usuario;
-        private InputStream inStream;
-        private OutputStream outStream;
-        private PrintWriter out;
+    // ID de transferência visto pelo destinatário de um arquivo no protocolo v2
+    static int novaTransferencia() {
+        return transferencias.incrementAndGet();
+    }
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+    static class ClientHandler extends Sessao implements Runnable {
+        private SocketChannel canal;
+        private Socket socket;
+        private LineReader entrada;
+        // Única thread que escreve no socket, drenando a fila de saída
+        private Thread escritor;
+        private volatile boolean escritorDormindo;
+        private volatile boolean encerrando;
+
+        public ClientHandler(SocketChannel canal) {
+            this.canal = canal;
+            this.socket = canal.socket();
         }
 
-        public void enviar(String msg) {
-            out.println(msg);
-            out.flush();
+        void despertarEscritor() {
+            if (escritorDormindo)
+                LockSupport.unpark(escritor);
         }
 
-        public void run() {
+        void fechar() {
             try {
-                inStream = socket.getInputStream();
-                outStream = socket.getOutputStream();
-                out = new PrintWriter(outStream, true);
-
-                // Solicita nome do usuário
-                out.println("NOME?");
-                String nome = readLine(inStream);
-                if (nome == null || nome.trim().isEmpty() || nome.equalsIgnoreCase("null") || !nomeValido(nome)
-                        || usuariosConectados.containsKey(nome)) {
-                    log("Tentativa de conexão falha: " + nome);
-                    out.println("ERRO:Nome inválido ou já em uso.");
-                    socket.close();
-                    return;
-                }
-                usuario = nome;
-                usuariosConectados.put(usuario, this);
-                log("Usuário conectado: " + usuario);
-                // Envia a lista de usuários apenas para o novo usuário
-                enviar("USERLIST|" + String.join(",", usuariosConectados.keySet()));
-                // Atualiza a lista para todos os outros
-                atualizarUsuarios();
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
 
-                String linha;
-                while ((linha = readLine(inStream)) != null) {
-                    if (linha.equalsIgnoreCase("close"))
+        private void escrever() {
+            try {
+                while (true) {
+                    if (!fila.escreverEm(canal))
+                        continue;
+                    if (encerrando)
                         break;
-                    processarMensagem(linha);
+                    escritorDormindo = true;
+                    if (fila.vazia() && !encerrando)
+                        LockSupport.park(this);
+                    escritorDormindo = false;
                 }
-
             } catch (IOException e) {
                 // ignorar
             } finally {
-                if (usuario != null) {
-                    usuariosConectados.remove(usuario);
-                    log("Usuário desconectado: " + usuario);
-                    atualizarUsuarios();
-                }
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                }
+                fechar();
             }
         }
 
-        private void processarMensagem(String linha) {
+        public void run() {
             try {
-                if (linha.startsWith("/grupo_criar ")) {
-                    String nomeGrupo = linha.substring(13).trim();
-                    if (!nomeValido(nomeGrupo) || grupos.containsKey(nomeGrupo)) {
-                        out.println("ERRO:Nome de grupo inválido ou já existe.");
-                        return;
-                    }
-                    grupos.put(nomeGrupo, ConcurrentHashMap.newKeySet());
-                    grupos.get(nomeGrupo).add(usuario);
-                    log("Grupo criado: " + nomeGrupo + " por " + usuario);
-                    atualizarGrupos(nomeGrupo);
-
-                } else if (linha.startsWith("/grupo_add ")) {
-                    String[] partes = linha.substring(11).split(" ");
-                    if (partes.length != 2) {
-                        out.println("ERRO:Uso: /grupo_add grupo usuario");
-                        return;
-                    }
-                    String grupo = partes[0], membro = partes[1];
-                    if (!grupos.containsKey(grupo) || !usuariosConectados.containsKey(membro)) {
-                        out.println("ERRO:Grupo ou usuário não existe.");
-                        return;
-                    }
-                    grupos.get(grupo).add(membro);
-                    log("Membro adicionado: " + membro + " ao grupo " + grupo + " por " + usuario);
-                    atualizarGrupos(grupo);
-
-                } else if (linha.startsWith("/msg ")) {
-                    String[] partes = linha.substring(5).split(" ", 2);
-                    if (partes.length != 2) {
-                        out.println("ERRO:Uso: /msg destino mensagem");
-                        return;
-                    }
-                    String destino = partes[0], mensagem = partes[1];
-                    if (usuariosConectados.containsKey(destino)) {
-                        usuariosConectados.get(destino).enviar("MSG:" + usuario + ":" + mensagem);
-                        log("Mensagem: " + usuario + " → " + destino + ": " + mensagem);
-                    } else if (grupos.containsKey(destino) && grupos.get(destino).contains(usuario)) {
-                        for (String membro : grupos.get(destino)) {
-                            if (!membro.equals(usuario)) {
-                                ClientHandler ch = usuariosConectados.get(membro);
-                                if (ch != null)
-                                    ch.enviar("GRUPO_MSG:" + destino + ":" + usuario + ":" + mensagem);
-                            }
-                        }
-                        log("Mensagem grupo: " + usuario + " → " + destino + ": " + mensagem);
-                    } else {
-                        out.println("ERRO:Destino não encontrado ou sem permissão.");
-                    }
-
-                } else if (linha.startsWith("/arquivo ")) {
-                    log("Recebido comando /arquivo: " + linha);
+                entrada = new LineReader(socket.getInputStream());
+                escritor = fabricaEscritores.newThread(this::escrever);
+                escritor.start();
 
-                    String[] partes = linha.split(" ");
-                    if (partes.length < 4) {
-                        out.println("ERRO:Uso: /arquivo destino nomeArquivo tamanho");
-                        return;
-                    }
+                // Solicita nome do usuário
+                enviar("NOME?");
+                vigiar();
+                if (!autenticar(entrada.readLine()))
+                    return;
 
-                    String destino = partes[1];
-                    long tamanho = Long.parseLong(partes[partes.length - 1]);
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 2; i < partes.length - 1; i++) {
-                        if (i > 2)
-                            sb.append(" ");
-                        sb.append(partes[i]);
+                byte[] buffer = new byte[4096];
+                String linha;
+                while (true) {
+                    if (v2) {
+                        int tipo = entrada.lerQuadro(quadro);
+                        if (tipo == -1 || tipo == ProtocoloV2.FECHAR)
+                            break;
+                        processarQuadro(tipo, quadro);
+                        continue;
                     }
-                    String nomeArquivo = sb.toString();
-
-                    byte[] buffer = new byte[4096];
-                    long total = 0;
-
-                    if (usuariosConectados.containsKey(destino)) {
-                        ClientHandler ch = usuariosConectados.get(destino);
-                        OutputStream destinoOut = ch.socket.getOutputStream();
-                        ch.enviar("ARQUIVO:" + usuario + ":" + nomeArquivo + ":" + tamanho);
-
-                        while (total < tamanho) {
-                            int lidos = inStream.read(buffer, 0, (int) Math.min(buffer.length, tamanho - total));
-                            if (lidos == -1)
-                                return;
-                            destinoOut.write(buffer, 0, lidos);
-                            total += lidos;
-                        }
-                        destinoOut.flush();
-                        log("[OK] Arquivo enviado para " + destino + " (" + total + " bytes)");
-
-                    } else if (grupos.containsKey(destino) && grupos.get(destino).contains(usuario)) {
-                        ByteArrayOutputStream temp = new ByteArrayOutputStream();
-                        while (total < tamanho) {
-                            int lidos = inStream.read(buffer, 0, (int) Math.min(buffer.length, tamanho - total));
-                            if (lidos == -1)
+                    if ((linha = entrada.readLine()) == null || linha.equalsIgnoreCase("close"))
+                        break;
+                    processarMensagem(linha);
+                    while (recebendoArquivo()) {
+                        if (repasseDireto && entrada.disponiveis() == 0) {
+                            ByteBuffer dados = ReservaBuffers.obter();
+                            dados.limit((int) Math.min(dados.capacity(), bytesArquivoPendentes()));
+                            if (canal.read(dados) == -1) {
+                                ReservaBuffers.devolver(dados);
                                 return;
-                            temp.write(buffer, 0, lidos);
-                            total += lidos;
-                        }
-                        byte[] dados = temp.toByteArray();
-
-                        for (String membro : grupos.get(destino)) {
-                            if (!membro.equals(usuario)) {
-                                ClientHandler ch = usuariosConectados.get(membro);
-                                if (ch != null) {
-                                    OutputStream destinoOut = ch.socket.getOutputStream();
-                                    ch.enviar("GRUPO_ARQUIVO:" + destino + ":" + usuario + ":" + nomeArquivo + ":"
-                                            + dados.length);
-                                    destinoOut.write(dados);
-                                    destinoOut.flush();
-                                    log("[OK] Arquivo entregue a " + membro);
-                                }
                             }
+                            receberArquivo(dados.flip());
+                            continue;
                         }
-                        log("[OK] Arquivo grupo: " + usuario + " → " + destino + ": " + nomeArquivo);
-
-                    } else {
-                        while (total < tamanho) {
-                            int lidos = inStream.read(buffer, 0, (int) Math.min(buffer.length, tamanho - total));
-                            if (lidos == -1)
-                                break;
-                            total += lidos;
-                        }
-                        out.println("ERRO:Destino não encontrado ou sem permissão.");
-                        log("ERRO: Destino não encontrado ou sem permissão para arquivo");
+                        int lidos = entrada.read(buffer, 0, (int) Math.min(buffer.length, bytesArquivoPendentes()));
+                        if (lidos == -1)
+                            return;
+                        receberArquivo(buffer, 0, lidos);
                     }
-
-                } else {
-                    out.println("ERRO:Comando desconhecido.");
                 }
-            } catch (Exception e) {
-                out.println("ERRO:Falha ao processar comando.");
-                e.printStackTrace();
-            }
-        }
 
-        private String readLine(InputStream is) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int b;
-            while ((b = is.read()) != -1) {
-                if (b == '\n')
-                    break;
-                if (b != '\r')
-                    baos.write(b);
+            } catch (IOException e) {
+                // ignorar
+            } finally {
+                encerrar();
+                // Dá ao escritor a chance de entregar o que já estava na fila (ex.: ERRO do login)
+                encerrando = true;
+                if (escritor != null) {
+                    LockSupport.unpark(escritor);
+                    try {
+                        escritor.join(2000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                fechar();
+                fecharFila();
             }
-            if (baos.size() == 0 && b == -1)
-                return null;
-            return baos.toString("UTF-8");
         }
     }
 }
@@ -0,0 +1,1335 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Cliente do chat sem interface: faz o login, negocia as capacidades, interpreta o v1 e o v2,
+// recebe arquivos, mantém os envios retomáveis e reconecta depois de uma queda. O que chega do
+// servidor vira chamadas ao Ouvinte, feitas pela thread de leitura (as de arquivos também pelas
+// threads das transferências); quem desenha uma interface é que passa os eventos para a sua própria
+// thread. Envios e recebimentos de arquivos correm em segundo plano, com progresso e cancelamento,
+// sem segurar as mensagens.
+public class ClienteChat {
+  static final String CAPACIDADES = ProtocoloV2.CAPACIDADE + "," + ProtocoloV2.CAPACIDADE_RETOMAR + ",delta,"
+      + Compressao.CAPACIDADE + "," + Inatividade.CAPACIDADE + "," + Blobs.CAPACIDADE_PROTOCOLO;
+
+  // Todos os métodos têm implementação vazia; basta sobrescrever os que interessam
+  public interface Ouvinte {
+    // Lista completa dos conectados, inclusive o próprio usuário
+    default void usuarios(List<String> usuarios) {
+    }
+
+    default void presenca(String usuario, boolean entrou) {
+    }
+
+    default void grupos(List<String> grupos) {
+    }
+
+    // O usuário passou a fazer parte do grupo
+    default void grupo(String grupo) {
+    }
+
+    default void mensagem(String remetente, String texto) {
+    }
+
+    default void mensagemGrupo(String grupo, String remetente, String texto) {
+    }
+
+    // Uma mensagem de uma página pedida com pedirHistorico; alvo é o grupo ou o outro usuário
+    default void historico(String alvo, long instante, String remetente, String texto) {
+    }
+
+    // Fim da página; anterior pede a página de antes, ou é -1 se não há mais
+    default void historicoFim(String alvo, long anterior) {
+    }
+
+    // grupo é null para arquivos diretos
+    default void arquivoRecebido(String remetente, String grupo, File arquivo) {
+    }
+
+    // Resultado de um envio, feito em segundo plano
+    default void arquivoEnviado(String destino, File arquivo, boolean ok, String resultado) {
+    }
+
+    // Transferência começou, avançou (no máximo a cada AVISO_PROGRESSO_MS) ou terminou
+    default void transferencia(TransferenciaArquivo t) {
+    }
+
+    // Texto de acompanhamento para mostrar ao usuário (arquivos recebidos, cancelados, corrompidos)
+    default void aviso(String texto) {
+    }
+
+    default void erro(String texto) {
+    }
+
+    default void conexaoPerdida() {
+    }
+
+    default void reconectado() {
+    }
+
+    // A conexão caiu e não foi refeita, ou o usuário saiu
+    default void desconectado() {
+    }
+
+    default void depuracao(String texto) {
+    }
+  }
+
+  private final String host;
+  private final int porta;
+  private final String capacidades;
+  private final Ouvinte ouvinte;
+  private volatile File diretorio = new File(".");
+  private Socket socket;
+  private LineReader entrada;
+  private OutputStream outStream;
+  private String username;
+  // Protocolo v2: IDs numéricos anunciados pelo servidor e arquivos em recebimento por transferência
+  private volatile boolean v2;
+  private final ProtocoloV2.Escritor escritor = new ProtocoloV2.Escritor();
+  private final Map<String, Integer> idsUsuarios = new ConcurrentHashMap<>(), idsGrupos = new ConcurrentHashMap<>();
+  private final Map<Integer, String> nomesUsuarios = new ConcurrentHashMap<>(), nomesGrupos = new ConcurrentHashMap<>();
+  private final Map<Integer, Recebimento> recebimentos = new HashMap<>();
+  private int proximaTransferencia;
+  // Capacidade "retomar": arquivos em blocos confirmados, que continuam depois de uma reconexão
+  private volatile boolean retomar;
+  // Capacidade "deflate": contexto de saída (protegido por this) e de entrada (thread de leitura),
+  // refeitos a cada conexão
+  private volatile boolean deflate;
+  private Compressao.Fluxo compressor;
+  private Compressao.Descompressor descompressor;
+  private final ProtocoloV2.Leitor quadroComprimido = new ProtocoloV2.Leitor();
+  private volatile boolean saindo;
+  // Capacidade "delta": último evento de presença aplicado; -1 enquanto espera uma lista completa
+  private long sequenciaPresenca = -1;
+  private final ProtocoloV2.Escritor escritorLeitura = new ProtocoloV2.Escritor();
+  private final Map<Integer, Envio> envios = new ConcurrentHashMap<>();
+  private final Map<Integer, Envio> enviosPorTransferencia = new ConcurrentHashMap<>();
+  private final Map<Integer, Download> downloads = new ConcurrentHashMap<>();
+  // Arquivos inteiros que este cliente enviou ou recebeu, pelo SHA-256 em hexadecimal: uma oferta do
+  // mesmo conteúdo é atendida daqui, sem baixar
+  private final Map<String, File> conhecidos = new ConcurrentHashMap<>();
+  // Conferência do SHA-256 dos downloads, fora da thread de leitura
+  private final ExecutorService disco = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("disco").factory());
+  private final ProtocoloV2.Escritor escritorDisco = new ProtocoloV2.Escritor();
+  static final int AVISO_PROGRESSO_MS = 250;
+  // Tamanho das escritas dos arquivos recebidos pelo caminho antigo
+  private static final int BUFFER_DISCO = 256 * 1024;
+
+  public ClienteChat(String host, int porta, Ouvinte ouvinte) {
+    this(host, porta, CAPACIDADES, ouvinte);
+  }
+
+  // capacidades vai no login como pedida (ex.: "" para o v1 puro); o servidor responde quais aceita
+  public ClienteChat(String host, int porta, String capacidades, Ouvinte ouvinte) {
+    this.host = host;
+    this.porta = porta;
+    this.capacidades = capacidades;
+    this.ouvinte = ouvinte;
+  }
+
+  // Onde os arquivos recebidos são gravados (padrão: diretório atual)
+  public void setDiretorio(File diretorio) {
+    this.diretorio = diretorio;
+  }
+
+  public String getUsuario() {
+    return username;
+  }
+
+  public boolean isV2() {
+    return v2;
+  }
+
+  public boolean isRetomar() {
+    return retomar;
+  }
+
+  // Retorna false se o servidor recusou o nome; com o login aceito, a thread de leitura começa e os
+  // eventos passam a chegar ao ouvinte
+  public boolean conectar(String nome) throws IOException {
+    Socket novo = new Socket(host, porta);
+    try {
+      LineReader novaEntrada = new LineReader(novo.getInputStream());
+      OutputStream novaSaida = novo.getOutputStream();
+      if (!"NOME?".equals(novaEntrada.readLine()))
+        throw new IOException("Protocolo inesperado do servidor.");
+      writeLine(novaSaida, "NOME:" + nome + ":" + capacidades);
+      String response = novaEntrada.readLine();
+      if (response == null)
+        throw new EOFException("Conexão encerrada pelo servidor.");
+      if (response.startsWith("ERRO")) {
+        novo.close();
+        return false;
+      }
+      synchronized (this) {
+        socket = novo;
+        entrada = novaEntrada;
+        outStream = novaSaida;
+        username = nome;
+        aceitarCapacidades(response);
+      }
+    } catch (IOException e) {
+      novo.close();
+      throw e;
+    }
+    Thread leitura = new Thread(this::listenFromServer, "leitura-" + nome);
+    leitura.setDaemon(true);
+    leitura.start();
+    return true;
+  }
+
+  // Chamado com a trava, junto com a troca do socket: nenhum quadro sai no contexto da conexão anterior
+  private void aceitarCapacidades(String response) {
+    String caps = response.startsWith("OK:") ? response.substring(3) : "";
+    v2 = ProtocoloV2.temCapacidade(caps, ProtocoloV2.CAPACIDADE);
+    retomar = v2 && ProtocoloV2.temCapacidade(caps, ProtocoloV2.CAPACIDADE_RETOMAR);
+    deflate = v2 && ProtocoloV2.temCapacidade(caps, Compressao.CAPACIDADE);
+    if (compressor != null)
+      compressor.fim();
+    compressor = null;
+    descompressor = null;
+    sequenciaPresenca = -1;
+  }
+
+  public boolean isDeflate() {
+    return deflate;
+  }
+
+  // Refaz a conexão com o mesmo nome depois de uma queda; o servidor pode demorar a notar a sessão
+  // antiga, então "nome em uso" também é tentado de novo
+  private boolean reconectar() {
+    long espera = 1000;
+    for (int tentativa = 0; tentativa < 20 && !saindo; tentativa++) {
+      try {
+        Thread.sleep(espera);
+        Socket novo = new Socket(host, porta);
+        LineReader novaEntrada = new LineReader(novo.getInputStream());
+        OutputStream novaSaida = novo.getOutputStream();
+        if ("NOME?".equals(novaEntrada.readLine())) {
+          writeLine(novaSaida, "NOME:" + username + ":" + capacidades);
+          String response = novaEntrada.readLine();
+          if (response != null && !response.startsWith("ERRO")) {
+            synchronized (this) {
+              socket = novo;
+              entrada = novaEntrada;
+              outStream = novaSaida;
+              aceitarCapacidades(response);
+            }
+            return true;
+          }
+        }
+        novo.close();
+      } catch (IOException e) {
+      } catch (InterruptedException e) {
+        return false;
+      }
+      espera = Math.min(espera * 2, 30000);
+    }
+    return false;
+  }
+
+  // destino é um usuário ou um grupo; retorna false se o v2 ainda não conhece o ID do destino
+  public synchronized boolean enviarMensagem(String destino, String texto) {
+    if (!v2)
+      return writeLine(outStream, "/msg " + destino + " " + texto);
+    Integer id = idsUsuarios.get(destino);
+    if (id != null) {
+      escritor.inicio(ProtocoloV2.MSG).i32(id).texto(texto);
+    } else if ((id = idsGrupos.get(destino)) != null) {
+      escritor.inicio(ProtocoloV2.MSG_GRUPO).i32(id).texto(texto);
+    } else {
+      return false;
+    }
+    return writeFrame(escritor);
+  }
+
+  // Até quantidade mensagens da conversa com um grupo ou usuário, antes da posição antes (-1: as mais
+  // recentes). No v2 retorna false se o alvo ainda não tem ID conhecido.
+  public synchronized boolean pedirHistorico(String alvo, int quantidade, long antes) {
+    if (!v2)
+      return writeLine(outStream, "/historico " + alvo + " " + quantidade + " " + antes);
+    Integer idGrupo = idsGrupos.get(alvo);
+    Integer idUsuario = idGrupo == null ? idsUsuarios.get(alvo) : null;
+    if (idGrupo == null && idUsuario == null)
+      return false;
+    escritor.inicio(ProtocoloV2.HISTORICO_PEDIR).i32(idUsuario == null ? -1 : idUsuario)
+        .i32(idGrupo == null ? -1 : idGrupo).i32(quantidade).i64(antes);
+    return writeFrame(escritor);
+  }
+
+  // Envio ou recebimento de arquivo em segundo plano
+  public final class TransferenciaArquivo {
+    public final boolean envio;
+    // Destino do envio, ou remetente do recebimento ("grupo - remetente" se veio por um grupo)
+    public final String contato;
+    public final String nome;
+    public final long tamanho;
+    private volatile long feito;
+    private volatile String resultado;
+    private volatile boolean cancelada;
+    // null quando o caminho usado não tem como cancelar (v1 e v2 sem "retomar", no envio)
+    private volatile Runnable cancelamento;
+    private long ultimoAviso;
+
+    TransferenciaArquivo(boolean envio, String contato, String nome, long tamanho) {
+      this.envio = envio;
+      this.contato = contato;
+      this.nome = nome;
+      this.tamanho = tamanho;
+    }
+
+    public long getFeito() {
+      return feito;
+    }
+
+    // null enquanto em andamento
+    public String getResultado() {
+      return resultado;
+    }
+
+    public boolean podeCancelar() {
+      return resultado == null && !cancelada && cancelamento != null;
+    }
+
+    public void cancelar() {
+      Runnable r = cancelamento;
+      if (!podeCancelar())
+        return;
+      cancelada = true;
+      r.run();
+    }
+
+    boolean isCancelada() {
+      return cancelada;
+    }
+
+    // Uma thread por vez: a da transferência, ou a de leitura para o que chega do servidor
+    void progresso(long feito) {
+      this.feito = feito;
+      long agora = System.nanoTime();
+      if (agora - ultimoAviso >= AVISO_PROGRESSO_MS * 1_000_000L) {
+        ultimoAviso = agora;
+        ouvinte.transferencia(this);
+      }
+    }
+
+    void terminar(String resultado) {
+      if (this.resultado != null)
+        return;
+      this.resultado = resultado;
+      ouvinte.transferencia(this);
+    }
+  }
+
+  // O envio segue numa thread própria; o resultado chega em Ouvinte.arquivoEnviado. Só os envios com
+  // "retomar" podem ser cancelados: nos outros caminhos o servidor espera o corpo inteiro
+  public TransferenciaArquivo enviarArquivo(String destino, File file) {
+    int transferencia;
+    synchronized (this) {
+      transferencia = ++proximaTransferencia;
+    }
+    TransferenciaArquivo t = new TransferenciaArquivo(true, destino, file.getName(), file.length());
+    Runnable tarefa;
+    if (retomar) {
+      boolean grupo = !idsUsuarios.containsKey(destino);
+      Envio envio = new Envio(transferencia, file, destino, grupo, t);
+      envios.put(envio.local, envio);
+      t.cancelamento = envio::cancelarLocal;
+      tarefa = envio;
+    } else {
+      tarefa = () -> {
+        String resultado;
+        boolean ok = false;
+        try {
+          enviarSemRetomar(transferencia, destino, file, t);
+          resultado = "enviado";
+          ok = true;
+        } catch (IOException e) {
+          resultado = "erro ao enviar (" + e.getMessage() + ")";
+        }
+        t.terminar(resultado);
+        ouvinte.arquivoEnviado(destino, file, ok, resultado);
+      };
+    }
+    ouvinte.transferencia(t);
+    new Thread(tarefa, "envio-" + file.getName()).start();
+    return t;
+  }
+
+  private void enviarSemRetomar(int transferencia, String destino, File file, TransferenciaArquivo t)
+      throws IOException {
+    try (FileInputStream fis = new FileInputStream(file)) {
+      long total = 0;
+      if (v2) {
+        // Escritor próprio: quadros de outras threads podem se intercalar entre os blocos
+        ProtocoloV2.Escritor e = new ProtocoloV2.Escritor();
+        Integer idUsuario = idsUsuarios.get(destino);
+        Integer idGrupo = idUsuario == null ? idsGrupos.get(destino) : null;
+        e.inicio(ProtocoloV2.ARQUIVO).i32(transferencia).i32(idUsuario == null ? -1 : idUsuario)
+            .i32(idGrupo == null ? -1 : idGrupo).texto(file.getName()).i64(file.length());
+        if (!writeFrame(e))
+          throw new IOException("Conexão encerrada");
+        byte[] buffer = new byte[ProtocoloV2.TAMANHO_DADOS_ARQUIVO];
+        Compressao.Blocos blocos = deflate ? new Compressao.Blocos() : null;
+        try {
+          int count;
+          while ((count = fis.read(buffer)) > 0) {
+            // Cada bloco vai comprimido só se ficar menor
+            int z = blocos == null ? -1 : blocos.comprimir(buffer, 0, count);
+            if (z > 0)
+              e.inicio(ProtocoloV2.ARQUIVO_DADOS_Z).i32(transferencia).i32(count).bytes(blocos.saida(), 0, z);
+            else
+              e.inicio(ProtocoloV2.ARQUIVO_DADOS).i32(transferencia).bytes(buffer, 0, count);
+            if (!writeFrame(e))
+              throw new IOException("Conexão encerrada");
+            total += count;
+            t.progresso(total);
+          }
+        } finally {
+          if (blocos != null)
+            blocos.fim();
+        }
+      } else {
+        // No v1 o corpo vai logo depois do comando, sem nada de outras threads no meio: as mensagens
+        // enviadas durante o arquivo esperam ele terminar
+        synchronized (this) {
+          String comando = "/arquivo " + destino + " " + file.getName() + " " + file.length();
+          ouvinte.depuracao("Enviando comando para o servidor: " + comando);
+          outStream.write((comando + "\n").getBytes("UTF-8"));
+          byte[] buffer = new byte[ProtocoloV2.TAMANHO_DADOS_ARQUIVO];
+          int count;
+          while ((count = fis.read(buffer)) > 0) {
+            outStream.write(buffer, 0, count);
+            total += count;
+            t.progresso(total);
+          }
+          outStream.flush();
+        }
+      }
+      ouvinte.depuracao("Total de bytes enviados: " + total + "/" + file.length());
+    }
+  }
+
+  public synchronized void criarGrupo(String grupo) {
+    if (v2) {
+      escritor.inicio(ProtocoloV2.GRUPO_CRIAR).texto(grupo);
+      writeFrame(escritor);
+    } else {
+      writeLine(outStream, "/grupo_criar " + grupo);
+    }
+  }
+
+  // Retorna false se o v2 ainda não conhece o grupo ou o usuário
+  public synchronized boolean adicionarMembro(String grupo, String membro) {
+    if (!v2)
+      return writeLine(outStream, "/grupo_add " + grupo + " " + membro);
+    Integer idGrupo = idsGrupos.get(grupo);
+    Integer idMembro = idsUsuarios.get(membro);
+    if (idGrupo == null || idMembro == null)
+      return false;
+    escritor.inicio(ProtocoloV2.GRUPO_ADD).i32(idGrupo).i32(idMembro);
+    return writeFrame(escritor);
+  }
+
+  public void sair() {
+    saindo = true;
+    synchronized (this) {
+      if (v2) {
+        escritor.inicio(ProtocoloV2.FECHAR);
+        writeFrame(escritor);
+      } else {
+        writeLine(outStream, "close");
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private void listenFromServer() {
+    while (true) {
+      try {
+        if (v2)
+          listenFramesV2();
+        else
+          listenLines();
+      } catch (IOException e) {
+      }
+      descartarRecebimentos();
+      if (saindo) {
+        ouvinte.desconectado();
+        return;
+      }
+      ouvinte.conexaoPerdida();
+      if (!reconectar()) {
+        ouvinte.desconectado();
+        return;
+      }
+      ouvinte.reconectado();
+      // Envios retomáveis continuam do último bloco confirmado pelo servidor
+      for (Envio envio : envios.values())
+        envio.reconectou();
+    }
+  }
+
+  private void listenLines() throws IOException {
+    String line;
+    while ((line = entrada.readLine()) != null) {
+      ouvinte.depuracao("Linha recebida do servidor: " + line);
+      if (line.startsWith("USERLIST|")) {
+        ouvinte.usuarios(lista(line.substring(9)));
+      } else if (line.startsWith("PRESENCA|")) {
+        int sep = line.indexOf('|', 9);
+        if (sep > 0)
+          aplicarPresencas(Long.parseLong(line, 9, sep, 10), lista(line.substring(sep + 1)));
+      } else if (line.startsWith("JOIN|") || line.startsWith("LEAVE|")) {
+        boolean entrou = line.charAt(0) == 'J';
+        int inicio = entrou ? 5 : 6;
+        int sep = line.indexOf('|', inicio);
+        if (sep > 0)
+          aplicarDelta(Long.parseLong(line, inicio, sep, 10), line.substring(sep + 1), entrou);
+      } else if (line.startsWith("GROUPLIST|")) {
+        ouvinte.grupos(lista(line.substring(10)));
+      } else if (line.startsWith("GRUPO:")) {
+        int fimGrupo = line.indexOf(':', 6);
+        if (fimGrupo > 0 && contemMembro(line, fimGrupo + 1, username))
+          ouvinte.grupo(line.substring(6, fimGrupo));
+      } else if (line.startsWith("MSG:")) {
+        int sep = line.indexOf(':', 4);
+        if (sep > 0)
+          ouvinte.mensagem(line.substring(4, sep), line.substring(sep + 1));
+      } else if (line.startsWith("GRUPO_MSG:")) {
+        int sep1 = line.indexOf(':', 10);
+        int sep2 = sep1 < 0 ? -1 : line.indexOf(':', sep1 + 1);
+        if (sep2 > 0)
+          ouvinte.mensagemGrupo(line.substring(10, sep1), line.substring(sep1 + 1, sep2), line.substring(sep2 + 1));
+      } else if (line.startsWith("ARQUIVO:")) {
+        // ARQUIVO:remetente:nome:tamanho, o nome pode conter ':'
+        int sep1 = line.indexOf(':', 8);
+        int sep2 = line.lastIndexOf(':');
+        if (sep1 > 0 && sep2 > sep1) {
+          receiveFile(line.substring(8, sep1), null, line.substring(sep1 + 1, sep2),
+              Long.parseLong(line, sep2 + 1, line.length(), 10));
+        }
+      } else if (line.startsWith("GRUPO_ARQUIVO:")) {
+        int sep1 = line.indexOf(':', 14);
+        int sep2 = sep1 < 0 ? -1 : line.indexOf(':', sep1 + 1);
+        int sep3 = line.lastIndexOf(':');
+        if (sep2 > 0 && sep3 > sep2) {
+          receiveFile(line.substring(sep1 + 1, sep2), line.substring(14, sep1), line.substring(sep2 + 1, sep3),
+              Long.parseLong(line, sep3 + 1, line.length(), 10));
+        }
+      } else if (line.startsWith("HISTORICO:")) {
+        // HISTORICO:alvo:instante:remetente:texto
+        int sep1 = line.indexOf(':', 10);
+        int sep2 = sep1 < 0 ? -1 : line.indexOf(':', sep1 + 1);
+        int sep3 = sep2 < 0 ? -1 : line.indexOf(':', sep2 + 1);
+        if (sep3 > 0)
+          ouvinte.historico(line.substring(10, sep1), Long.parseLong(line, sep1 + 1, sep2, 10),
+              line.substring(sep2 + 1, sep3), line.substring(sep3 + 1));
+      } else if (line.startsWith("HISTORICO_FIM:")) {
+        int sep = line.lastIndexOf(':');
+        if (sep > 14)
+          ouvinte.historicoFim(line.substring(14, sep), Long.parseLong(line, sep + 1, line.length(), 10));
+      } else if (line.startsWith("ERRO:")) {
+        ouvinte.erro(line.substring(5));
+      } else if (line.equals("PING")) {
+        // O servidor encerra quem fica calado: responder já prova que a conexão está viva
+        writeLine(outStream, "/pong");
+      }
+    }
+  }
+
+  private void listenFramesV2() throws IOException {
+    ProtocoloV2.Leitor q = new ProtocoloV2.Leitor();
+    int tipo;
+    while ((tipo = entrada.lerQuadro(q)) != -1)
+      processarQuadro(tipo, q);
+  }
+
+  private void processarQuadro(int tipo, ProtocoloV2.Leitor q) throws IOException {
+    switch (tipo) {
+      case ProtocoloV2.COMPRIMIDO -> {
+        // Quadros que o servidor juntou no fluxo deflate: cada um como se tivesse chegado sozinho
+        if (descompressor == null)
+          descompressor = new Compressao.Descompressor();
+        descompressor.descomprimir(q.buf, q.pos, q.restantes());
+        int interno;
+        while ((interno = descompressor.proximoQuadro(quadroComprimido)) != -1)
+          processarQuadro(interno, quadroComprimido);
+      }
+      case ProtocoloV2.USUARIO_ID -> {
+        int id = q.i32();
+        String nome = q.texto();
+        idsUsuarios.put(nome, id);
+        nomesUsuarios.put(id, nome);
+      }
+      case ProtocoloV2.GRUPO_ID -> {
+        int id = q.i32();
+        String nome = q.texto();
+        idsGrupos.put(nome, id);
+        nomesGrupos.put(id, nome);
+      }
+      case ProtocoloV2.LISTA_USUARIOS -> ouvinte.usuarios(nomes(q));
+      case ProtocoloV2.PRESENCA_LISTA -> {
+        long seq = q.i64();
+        aplicarPresencas(seq, nomes(q));
+      }
+      case ProtocoloV2.PRESENCA_ENTROU, ProtocoloV2.PRESENCA_SAIU -> {
+        long seq = q.i64();
+        aplicarDelta(seq, nomesUsuarios.get(q.i32()), tipo == ProtocoloV2.PRESENCA_ENTROU);
+      }
+      case ProtocoloV2.GRUPO_MEMBROS -> {
+        String groupName = nomesGrupos.get(q.i32());
+        Integer meuId = idsUsuarios.get(username);
+        for (int i = q.i32(); i > 0; i--) {
+          if (meuId != null && q.i32() == meuId) {
+            ouvinte.grupo(groupName);
+            break;
+          }
+        }
+      }
+      case ProtocoloV2.MSG -> {
+        String from = nomesUsuarios.get(q.i32());
+        ouvinte.mensagem(from, q.texto());
+      }
+      case ProtocoloV2.MSG_GRUPO -> {
+        String group = nomesGrupos.get(q.i32());
+        String from = nomesUsuarios.get(q.i32());
+        ouvinte.mensagemGrupo(group, from, q.texto());
+      }
+      case ProtocoloV2.ARQUIVO -> {
+        int transferencia = q.i32();
+        String from = nomesUsuarios.get(q.i32());
+        String group = nomesGrupos.get(q.i32());
+        String filename = q.texto();
+        long size = q.i64();
+        String msg = (group == null) ? "Arquivo recebido de " + from + ": " + filename
+            : "Arquivo recebido do grupo " + group + " - " + from + ": " + filename;
+        ouvinte.aviso(msg);
+        Recebimento r = new Recebimento(from, group, new File(diretorio, filename), size);
+        ouvinte.transferencia(r.andamento);
+        if (size > 0)
+          recebimentos.put(transferencia, r);
+        else
+          r.fechar();
+      }
+      case ProtocoloV2.ARQUIVO_DADOS -> {
+        int transferencia = q.i32();
+        Recebimento r = recebimentos.get(transferencia);
+        if (r != null && r.escrever(q.buf, q.pos, q.restantes()))
+          recebimentos.remove(transferencia);
+      }
+      case ProtocoloV2.ARQUIVO_DADOS_Z -> {
+        int transferencia = q.i32();
+        int original = q.i32();
+        Recebimento r = recebimentos.get(transferencia);
+        if (r != null && r.escrever(Compressao.inflar(q.buf, q.pos, q.restantes(), original), 0, original))
+          recebimentos.remove(transferencia);
+      }
+      case ProtocoloV2.TRANSF_ACEITA -> {
+        Envio envio = envios.get(q.i32());
+        int transferencia = q.i32();
+        int proximo = q.i32();
+        if (envio != null) {
+          envio.aceitar(transferencia, proximo);
+        } else if (transferencia > 0) {
+          // O envio foi cancelado antes da resposta e já terminou
+          escritorLeitura.inicio(ProtocoloV2.TRANSF_CANCELAR).i32(transferencia).texto("");
+          writeFrame(escritorLeitura);
+        }
+      }
+      case ProtocoloV2.TRANSF_DESAFIO -> {
+        Envio envio = envios.get(q.i32());
+        byte[] nonce = q.bytes(ProtocoloV2.TAMANHO_NONCE);
+        int n = q.i32();
+        if (n < 0 || n > q.restantes() / 4)
+          throw new IOException("Desafio inválido");
+        int[] blocos = new int[n];
+        for (int i = 0; i < n; i++)
+          blocos[i] = q.i32();
+        if (envio != null)
+          envio.desafiar(nonce, blocos);
+      }
+      case ProtocoloV2.TRANSF_ACK -> {
+        Envio envio = enviosPorTransferencia.get(q.i32());
+        int proximo = q.i32();
+        if (envio != null)
+          envio.confirmar(proximo);
+      }
+      case ProtocoloV2.TRANSF_CANCELAR -> {
+        int transferencia = q.i32();
+        String motivo = q.texto();
+        Envio envio = enviosPorTransferencia.get(transferencia);
+        if (envio != null)
+          envio.cancelar(motivo);
+        Download d = downloads.remove(transferencia);
+        if (d != null) {
+          d.descartar();
+          d.andamento.terminar("cancelado (" + motivo + ")");
+          ouvinte.aviso("Recebimento de " + d.destino.getName() + " cancelado: " + motivo);
+        }
+      }
+      case ProtocoloV2.TRANSF_OFERTA -> {
+        int transferencia = q.i32();
+        String from = nomesUsuarios.get(q.i32());
+        String group = nomesGrupos.get(q.i32());
+        String filename = q.texto();
+        long size = q.i64();
+        byte[] digest = q.bytes(ProtocoloV2.TAMANHO_DIGEST);
+        if (downloads.containsKey(transferencia))
+          break;
+        File destino = new File(diretorio, filename);
+        File local = conhecidos.get(HexFormat.of().formatHex(digest));
+        if (local == null && destino.isFile())
+          local = destino;
+        if (size > 0 && local != null && local.length() == size)
+          aproveitarCopia(transferencia, from, group, local, destino, size, digest);
+        else
+          iniciarDownload(transferencia, from, group, destino, size, digest, escritorLeitura);
+      }
+      case ProtocoloV2.TRANSF_BLOCO -> {
+        int transferencia = q.i32();
+        int bloco = q.i32();
+        int crc = q.i32();
+        receberBloco(transferencia, bloco, crc, q.buf, q.pos, q.restantes());
+      }
+      case ProtocoloV2.TRANSF_BLOCO_Z -> {
+        int transferencia = q.i32();
+        int bloco = q.i32();
+        int crc = q.i32();
+        int original = q.i32();
+        byte[] dados;
+        try {
+          dados = Compressao.inflar(q.buf, q.pos, q.restantes(), original);
+        } catch (IOException e) {
+          // Como um CRC errado: pede o bloco de novo
+          dados = new byte[0];
+        }
+        receberBloco(transferencia, bloco, crc, dados, 0, dados.length);
+      }
+      case ProtocoloV2.HISTORICO -> {
+        String alvo = alvoHistorico(q.i32(), q.i32());
+        long instante = q.i64();
+        String from = nomesUsuarios.get(q.i32());
+        ouvinte.historico(alvo, instante, from, q.texto());
+      }
+      case ProtocoloV2.HISTORICO_FIM -> {
+        String alvo = alvoHistorico(q.i32(), q.i32());
+        ouvinte.historicoFim(alvo, q.i64());
+      }
+      case ProtocoloV2.ERRO -> ouvinte.erro(q.texto());
+      case ProtocoloV2.PING -> {
+        escritorLeitura.inicio(ProtocoloV2.PONG);
+        writeFrame(escritorLeitura);
+      }
+      case ProtocoloV2.PONG -> {
+      }
+      default -> ouvinte.depuracao("Quadro desconhecido do servidor: " + tipo);
+    }
+  }
+
+  // Começa a receber uma oferta, ou continua do .parte; e é o Escritor da thread que chama
+  private void iniciarDownload(int transferencia, String from, String group, File destino, long size, byte[] digest,
+      ProtocoloV2.Escritor e) throws IOException {
+    Download d = new Download(transferencia, from, group, destino, size, digest);
+    downloads.put(transferencia, d);
+    ouvinte.transferencia(d.andamento);
+    ouvinte.aviso((group == null ? "Recebendo arquivo de " + from : "Recebendo arquivo do grupo " + group
+        + " - " + from) + ": " + destino.getName()
+        + (d.proximo > 0 ? " (continuando do bloco " + d.proximo + ")" : ""));
+    if (d.proximo >= d.blocos) {
+      concluirDownload(transferencia, d);
+    } else {
+      e.inicio(ProtocoloV2.TRANSF_PEDIR).i32(transferencia).i32(d.proximo);
+      writeFrame(e);
+    }
+  }
+
+  // Oferta de um conteúdo que já está no disco: o SHA-256 é conferido na thread de disco e, se bater,
+  // a cópia local vai para o destino e o arquivo é confirmado inteiro sem pedir nenhum bloco; senão o
+  // download segue normalmente
+  private void aproveitarCopia(int transferencia, String remetente, String grupo, File local, File destino,
+      long tamanho, byte[] digest) {
+    String hash = HexFormat.of().formatHex(digest);
+    disco.execute(() -> {
+      try {
+        if (!Arrays.equals(sha256(local), digest)) {
+          conhecidos.remove(hash, local);
+          iniciarDownload(transferencia, remetente, grupo, destino, tamanho, digest, escritorDisco);
+          return;
+        }
+        if (!local.getCanonicalFile().equals(destino.getCanonicalFile()))
+          Files.copy(local.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        conhecidos.put(hash, destino);
+        escritorDisco.inicio(ProtocoloV2.TRANSF_ACK).i32(transferencia).i32(ProtocoloV2.blocos(tamanho));
+        writeFrame(escritorDisco);
+        ouvinte.aviso("Arquivo recebido: " + destino.getName() + " (já estava no disco, sem baixar)");
+        ouvinte.arquivoRecebido(remetente, grupo, destino);
+      } catch (IOException e) {
+        ouvinte.aviso("Falha ao receber " + destino.getName() + ": " + e.getMessage());
+      }
+    });
+  }
+
+  // Bloco de um arquivo retomável, já descomprimido se veio como TRANSF_BLOCO_Z
+  private void receberBloco(int transferencia, int bloco, int crc, byte[] buf, int off, int len)
+      throws IOException {
+    Download d = downloads.get(transferencia);
+    if (d == null || bloco < d.proximo)
+      return;
+    if (bloco == d.proximo && d.gravar(buf, off, len, crc)) {
+      d.andamento.progresso(Math.min((long) d.proximo * ProtocoloV2.TAMANHO_BLOCO, d.tamanho));
+      if (d.proximo == d.blocos) {
+        concluirDownload(transferencia, d);
+      } else if (d.proximo % Envio.JANELA == 0) {
+        escritorLeitura.inicio(ProtocoloV2.TRANSF_ACK).i32(transferencia).i32(d.proximo);
+        writeFrame(escritorLeitura);
+      }
+    } else if (!d.pediuReenvio && !d.andamento.isCancelada()) {
+      // Bloco fora de ordem ou corrompido: pede de novo a partir do que falta, uma vez
+      d.pediuReenvio = true;
+      pedirBlocos(transferencia, d.proximo);
+    }
+  }
+
+  private String alvoHistorico(int idUsuario, int idGrupo) {
+    return idGrupo >= 0 ? nomesGrupos.get(idGrupo) : nomesUsuarios.get(idUsuario);
+  }
+
+  private List<String> nomes(ProtocoloV2.Leitor q) throws IOException {
+    int n = q.i32();
+    List<String> nomes = new ArrayList<>(n);
+    for (int i = 0; i < n; i++)
+      nomes.add(nomesUsuarios.get(q.i32()));
+    return nomes;
+  }
+
+  private static List<String> lista(String nomes) {
+    List<String> lista = new ArrayList<>();
+    for (String nome : nomes.split(",")) {
+      if (!nome.isEmpty())
+        lista.add(nome);
+    }
+    return lista;
+  }
+
+  // A interface, a leitura e os envios de arquivo escrevem quadros cada um com seu Escritor; um por vez.
+  // Com "deflate", quadros de controle e chat vão pelo fluxo comprimido; blocos de arquivo nunca
+  private synchronized boolean writeFrame(ProtocoloV2.Escritor e) {
+    try {
+      e.fim();
+      if (deflate && e.tamanho() >= Compressao.MINIMO && comprimivel(e.buffer()[0])) {
+        if (compressor == null)
+          compressor = new Compressao.Fluxo();
+        outStream.write(compressor.comprimir(e.buffer(), 0, e.tamanho()));
+      } else {
+        e.escreverEm(outStream);
+      }
+      outStream.flush();
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  private static boolean comprimivel(byte tipo) {
+    return tipo != ProtocoloV2.ARQUIVO_DADOS && tipo != ProtocoloV2.ARQUIVO_DADOS_Z && tipo != ProtocoloV2.TRANSF_BLOCO
+        && tipo != ProtocoloV2.TRANSF_BLOCO_Z && tipo != ProtocoloV2.FECHAR;
+  }
+
+  private synchronized boolean writeLine(OutputStream os, String line) {
+    try {
+      os.write((line + "\n").getBytes("UTF-8"));
+      os.flush();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void pedirBlocos(int transferencia, int bloco) {
+    escritorLeitura.inicio(ProtocoloV2.TRANSF_PEDIR).i32(transferencia).i32(bloco);
+    writeFrame(escritorLeitura);
+  }
+
+  // Todos os blocos gravados: o SHA-256 é conferido na thread de disco, para a leitura seguir com as
+  // mensagens. Se não conferir, recomeça do zero uma vez
+  private void concluirDownload(int transferencia, Download d) {
+    downloads.remove(transferencia, d);
+    disco.execute(() -> {
+      try {
+        d.canal.close();
+        if (Arrays.equals(sha256(d.parte), d.digest)) {
+          Files.move(d.parte.toPath(), d.destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          conhecidos.put(HexFormat.of().formatHex(d.digest), d.destino);
+          escritorDisco.inicio(ProtocoloV2.TRANSF_ACK).i32(transferencia).i32(d.blocos);
+          writeFrame(escritorDisco);
+          d.andamento.progresso(d.tamanho);
+          d.andamento.terminar("recebido");
+          ouvinte.aviso("Arquivo recebido: " + d.destino.getName());
+          ouvinte.depuracao("Arquivo salvo automaticamente: " + d.destino.getAbsolutePath());
+          ouvinte.arquivoRecebido(d.remetente, d.grupo, d.destino);
+          return;
+        }
+        d.descartar();
+        if (d.recomecado) {
+          d.andamento.terminar("corrompido");
+          ouvinte.aviso("Arquivo " + d.destino.getName() + " corrompido, recebimento abandonado.");
+          return;
+        }
+        d.andamento.terminar("corrompido, recebendo de novo");
+        ouvinte.aviso("Arquivo " + d.destino.getName() + " corrompido, recebendo de novo.");
+        Download novo = new Download(transferencia, d.remetente, d.grupo, d.destino, d.tamanho, d.digest);
+        novo.recomecado = true;
+        downloads.put(transferencia, novo);
+        ouvinte.transferencia(novo.andamento);
+        escritorDisco.inicio(ProtocoloV2.TRANSF_PEDIR).i32(transferencia).i32(0);
+        writeFrame(escritorDisco);
+      } catch (IOException e) {
+        d.descartar();
+        d.andamento.terminar("erro ao gravar (" + e.getMessage() + ")");
+      }
+    });
+  }
+
+  // Conexão caiu: arquivos do caminho antigo ficaram truncados e são apagados; os .parte dos
+  // retomáveis ficam em disco para a próxima oferta do servidor
+  private void descartarRecebimentos() {
+    for (Recebimento r : recebimentos.values()) {
+      r.descartar();
+      r.andamento.terminar("conexão perdida");
+    }
+    recebimentos.clear();
+    for (Download d : downloads.values()) {
+      d.fechar();
+      d.andamento.terminar("interrompido, continua ao reconectar");
+    }
+    downloads.clear();
+  }
+
+  private static byte[] sha256(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      byte[] buffer = new byte[ProtocoloV2.TAMANHO_BLOCO];
+      int n;
+      while ((n = in.read(buffer)) > 0)
+        sha.update(buffer, 0, n);
+      return sha.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  // Procura nome na lista separada por vírgulas a partir de inicio, sem dividir a linha
+  private static boolean contemMembro(String lista, int inicio, String nome) {
+    int n = nome.length();
+    while (inicio <= lista.length()) {
+      int fim = lista.indexOf(',', inicio);
+      if (fim < 0)
+        fim = lista.length();
+      if (fim - inicio == n && lista.regionMatches(inicio, nome, 0, n))
+        return true;
+      inicio = fim + 1;
+    }
+    return false;
+  }
+
+  private void aplicarPresencas(long seq, List<String> users) {
+    sequenciaPresenca = seq;
+    ouvinte.usuarios(users);
+  }
+
+  // Só a thread de leitura chama: aplica o evento se for o próximo da sequência; diante de um buraco,
+  // ignora os deltas até chegar a lista completa pedida ao servidor
+  private void aplicarDelta(long seq, String user, boolean entrou) {
+    if (sequenciaPresenca < 0 || seq <= sequenciaPresenca)
+      return;
+    if (seq != sequenciaPresenca + 1) {
+      ouvinte.depuracao("Buraco na presença: esperava " + (sequenciaPresenca + 1) + ", veio " + seq);
+      sequenciaPresenca = -1;
+      if (v2) {
+        escritorLeitura.inicio(ProtocoloV2.PRESENCA_PEDIR);
+        writeFrame(escritorLeitura);
+      } else {
+        writeLine(outStream, "/presenca");
+      }
+      return;
+    }
+    sequenciaPresenca = seq;
+    ouvinte.presenca(user, entrou);
+  }
+
+  // Corpo de um arquivo do v1, que vem no meio das linhas: a leitura precisa consumi-lo inteiro, mas
+  // grava em blocos grandes. Cancelado, o resto é lido e descartado
+  private void receiveFile(String from, String group, String filename, long size) throws IOException {
+    ouvinte.depuracao("Iniciando recebimento de arquivo: " + filename + " de " + from + " (" + size + " bytes)");
+    String msg = (group == null) ? "Arquivo recebido de " + from + ": " + filename
+        : "Arquivo recebido do grupo " + group + " - " + from + ": " + filename;
+    ouvinte.aviso(msg);
+
+    Recebimento r = new Recebimento(from, group, new File(diretorio, filename), size);
+    ouvinte.transferencia(r.andamento);
+    byte[] buffer = new byte[BUFFER_DISCO];
+    long remaining = size;
+    while (remaining > 0) {
+      int read = entrada.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read == -1) {
+        // Conexão caiu no meio: não deixa um arquivo truncado passando por completo
+        r.descartar();
+        r.andamento.terminar("conexão perdida");
+        ouvinte.aviso("Arquivo incompleto descartado: " + filename);
+        throw new EOFException("Conexão encerrada durante o arquivo " + filename);
+      }
+      remaining -= read;
+      r.escrever(buffer, 0, read);
+    }
+    if (size == 0)
+      r.fechar();
+    ouvinte.depuracao("Fim do recebimento de arquivo: " + filename + ", bytes lidos: " + size);
+  }
+
+  // Arquivo recebido pelo caminho antigo (ARQUIVO_DADOS do v2 ou corpo do v1), gravado com buffer
+  // grande; cancelar só faz descartar o que ainda chegar, pois o servidor manda o corpo inteiro
+  private class Recebimento {
+    private final String remetente;
+    private final String grupo;
+    private final File file;
+    private final OutputStream fos;
+    private final long size;
+    private long remaining;
+    final TransferenciaArquivo andamento;
+
+    Recebimento(String remetente, String grupo, File file, long size) throws IOException {
+      this.remetente = remetente;
+      this.grupo = grupo;
+      this.file = file;
+      this.fos = new BufferedOutputStream(new FileOutputStream(file), BUFFER_DISCO);
+      this.size = size;
+      this.remaining = size;
+      andamento = new TransferenciaArquivo(false, grupo == null ? remetente : grupo + " - " + remetente,
+          file.getName(), size);
+      andamento.cancelamento = () -> {
+      };
+    }
+
+    // Retorna true quando o arquivo foi recebido por completo
+    boolean escrever(byte[] buffer, int off, int len) throws IOException {
+      if (!andamento.isCancelada())
+        fos.write(buffer, off, (int) Math.min(len, remaining));
+      remaining -= len;
+      andamento.progresso(size - Math.max(remaining, 0));
+      if (remaining > 0)
+        return false;
+      fechar();
+      return true;
+    }
+
+    void fechar() throws IOException {
+      if (andamento.isCancelada()) {
+        descartar();
+        andamento.terminar("cancelado");
+        return;
+      }
+      fos.close();
+      ouvinte.depuracao("Arquivo salvo automaticamente: " + file.getAbsolutePath());
+      andamento.terminar("recebido");
+      ouvinte.arquivoRecebido(remetente, grupo, file);
+    }
+
+    void descartar() {
+      try {
+        fos.close();
+      } catch (IOException e) {
+      }
+      file.delete();
+    }
+  }
+
+  // Arquivo recebido pelos quadros TRANSF_*: os blocos vão para <nome>.<digest>.parte, que sobrevive
+  // a quedas de conexão; a oferta seguinte continua do último bloco inteiro já gravado. Cancelar
+  // avisa o servidor, que para de mandar só para este destinatário
+  private class Download {
+    final int transferencia;
+    final String remetente;
+    final String grupo;
+    final File destino;
+    final File parte;
+    final long tamanho;
+    final byte[] digest;
+    final int blocos;
+    final FileChannel canal;
+    final TransferenciaArquivo andamento;
+    int proximo;
+    boolean pediuReenvio;
+    boolean recomecado;
+    private boolean fechado;
+
+    Download(int transferencia, String remetente, String grupo, File destino, long size, byte[] digest)
+        throws IOException {
+      this.transferencia = transferencia;
+      this.remetente = remetente;
+      this.grupo = grupo;
+      this.destino = destino;
+      this.parte = new File(destino.getPath() + "." + HexFormat.of().formatHex(digest, 0, 8) + ".parte");
+      this.tamanho = size;
+      this.digest = digest;
+      this.blocos = ProtocoloV2.blocos(size);
+      this.canal = FileChannel.open(parte.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      this.proximo = (int) Math.min(canal.size() / ProtocoloV2.TAMANHO_BLOCO, blocos);
+      canal.truncate((long) proximo * ProtocoloV2.TAMANHO_BLOCO);
+      andamento = new TransferenciaArquivo(false, grupo == null ? remetente : grupo + " - " + remetente,
+          destino.getName(), size);
+      andamento.feito = Math.min((long) proximo * ProtocoloV2.TAMANHO_BLOCO, size);
+      andamento.cancelamento = this::cancelar;
+    }
+
+    // Grava o próximo bloco se o tamanho e o CRC32 conferem
+    synchronized boolean gravar(byte[] buffer, int off, int len, int crc) throws IOException {
+      long inicio = (long) proximo * ProtocoloV2.TAMANHO_BLOCO;
+      if (fechado || len != Math.min(ProtocoloV2.TAMANHO_BLOCO, tamanho - inicio))
+        return false;
+      CRC32 c = new CRC32();
+      c.update(buffer, off, len);
+      if ((int) c.getValue() != crc)
+        return false;
+      ByteBuffer dados = ByteBuffer.wrap(buffer, off, len);
+      while (dados.hasRemaining())
+        canal.write(dados, inicio + dados.position() - off);
+      proximo++;
+      pediuReenvio = false;
+      return true;
+    }
+
+    // Na thread que pediu o cancelamento (a da interface, em geral)
+    private void cancelar() {
+      downloads.remove(transferencia, this);
+      ProtocoloV2.Escritor e = new ProtocoloV2.Escritor();
+      e.inicio(ProtocoloV2.TRANSF_CANCELAR).i32(transferencia).texto("recusado pelo destinatário");
+      writeFrame(e);
+      descartar();
+      andamento.terminar("cancelado");
+    }
+
+    synchronized void fechar() {
+      fechado = true;
+      try {
+        canal.close();
+      } catch (IOException e) {
+      }
+    }
+
+    void descartar() {
+      fechar();
+      parte.delete();
+    }
+  }
+
+  // Arquivo enviado pelos quadros TRANSF_*, numa thread própria: calcula o SHA-256, anuncia o arquivo
+  // e envia blocos numerados com CRC32 até JANELA blocos além do último confirmado. Uma confirmação
+  // repetida pede reenvio a partir dela; depois de uma reconexão o arquivo é anunciado de novo e o
+  // servidor diz de qual bloco continuar. Com "deposito", antes de aceitar o servidor pede a prova de
+  // que o arquivo está aqui, que a própria thread calcula lendo os blocos sorteados.
+  private class Envio implements Runnable {
+    static final int JANELA = 16;
+    final int local;
+    final File file;
+    final String destino;
+    final boolean grupo;
+    final TransferenciaArquivo andamento;
+    private final ProtocoloV2.Escritor escritorEnvio = new ProtocoloV2.Escritor();
+    // 0 enquanto o servidor não respondeu ao anúncio, -1 se recusou
+    private int transferencia;
+    private int proximo;
+    private int confirmado;
+    private int conexao;
+    private String cancelado;
+    // TRANSF_DESAFIO à espera de resposta, ou null
+    private byte[] nonce;
+    private int[] blocosDesafio;
+
+    Envio(int local, File file, String destino, boolean grupo, TransferenciaArquivo andamento) {
+      this.local = local;
+      this.file = file;
+      this.destino = destino;
+      this.grupo = grupo;
+      this.andamento = andamento;
+    }
+
+    void aceitar(int transferencia, int proximo) {
+      boolean desistiu;
+      synchronized (this) {
+        this.transferencia = transferencia;
+        this.proximo = proximo;
+        this.confirmado = proximo;
+        desistiu = cancelado != null;
+        if (transferencia > 0 && !desistiu)
+          enviosPorTransferencia.put(transferencia, this);
+        notifyAll();
+      }
+      // Cancelado entre o anúncio e a resposta
+      if (transferencia > 0 && desistiu)
+        avisarCancelamento(transferencia);
+    }
+
+    synchronized void desafiar(byte[] nonce, int[] blocos) {
+      this.nonce = nonce;
+      this.blocosDesafio = blocos;
+      notifyAll();
+    }
+
+    synchronized void confirmar(int proximo) {
+      if (proximo > confirmado) {
+        confirmado = proximo;
+        andamento.progresso(Math.min((long) proximo * ProtocoloV2.TAMANHO_BLOCO, file.length()));
+      }
+      else if (proximo == confirmado && this.proximo > proximo)
+        this.proximo = proximo;
+      notifyAll();
+    }
+
+    synchronized void cancelar(String motivo) {
+      cancelado = motivo;
+      notifyAll();
+    }
+
+    // Pedido pelo usuário: avisa o servidor, se ele já aceitou o anúncio, e para a thread
+    void cancelarLocal() {
+      int t;
+      synchronized (this) {
+        t = transferencia;
+      }
+      cancelar("pelo usuário");
+      if (t > 0)
+        avisarCancelamento(t);
+    }
+
+    private void avisarCancelamento(int t) {
+      ProtocoloV2.Escritor e = new ProtocoloV2.Escritor();
+      e.inicio(ProtocoloV2.TRANSF_CANCELAR).i32(t).texto("");
+      writeFrame(e);
+    }
+
+    synchronized void reconectou() {
+      conexao++;
+      notifyAll();
+    }
+
+    public void run() {
+      String resultado;
+      boolean ok = false;
+      try {
+        resultado = enviar();
+        ok = resultado.equals("enviado");
+      } catch (IOException | InterruptedException e) {
+        resultado = "erro ao enviar (" + e.getMessage() + ")";
+      } finally {
+        envios.remove(local);
+        synchronized (this) {
+          if (transferencia > 0)
+            enviosPorTransferencia.remove(transferencia);
+        }
+      }
+      andamento.terminar(resultado);
+      ouvinte.arquivoEnviado(destino, file, ok, resultado);
+    }
+
+    private String enviar() throws IOException, InterruptedException {
+      byte[] digest = sha256(file);
+      conhecidos.put(HexFormat.of().formatHex(digest), file);
+      long tamanho = file.length();
+      int blocos = ProtocoloV2.blocos(tamanho);
+      byte[] bloco = new byte[ProtocoloV2.TAMANHO_BLOCO];
+      CRC32 crc = new CRC32();
+      Compressao.Blocos compressao = new Compressao.Blocos();
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+        while (true) {
+          int minhaConexao;
+          synchronized (this) {
+            minhaConexao = conexao;
+            transferencia = 0;
+            nonce = null;
+          }
+          Integer id = grupo ? idsGrupos.get(destino) : idsUsuarios.get(destino);
+          if (id == null)
+            return "destino desconhecido";
+          synchronized (this) {
+            if (cancelado != null)
+              return "cancelado (" + cancelado + ")";
+          }
+          escritorEnvio.inicio(ProtocoloV2.TRANSF_INICIO).i32(local).i32(grupo ? -1 : id).i32(grupo ? id : -1)
+              .texto(file.getName()).i64(tamanho).bytes(digest, 0, digest.length);
+          boolean escrito = writeFrame(escritorEnvio);
+          while (escrito) {
+            byte[] desafio;
+            int[] pedidos;
+            synchronized (this) {
+              while (transferencia == 0 && nonce == null && cancelado == null && conexao == minhaConexao)
+                wait();
+              if (transferencia != 0 || nonce == null || cancelado != null || conexao != minhaConexao)
+                break;
+              desafio = nonce;
+              pedidos = blocosDesafio;
+              nonce = null;
+            }
+            byte[] prova = ProtocoloV2.prova(raf.getChannel(), tamanho, desafio, pedidos);
+            escritorEnvio.inicio(ProtocoloV2.TRANSF_PROVA).i32(local).bytes(prova, 0, prova.length);
+            escrito = writeFrame(escritorEnvio);
+          }
+          synchronized (this) {
+            if (cancelado != null)
+              return "cancelado (" + cancelado + ")";
+            if (transferencia == -1)
+              return "recusado pelo servidor";
+          }
+          while (escrito) {
+            int n;
+            synchronized (this) {
+              while (cancelado == null && conexao == minhaConexao && confirmado < blocos
+                  && (proximo >= blocos || proximo - confirmado >= JANELA))
+                wait();
+              if (cancelado != null)
+                return "cancelado (" + cancelado + ")";
+              if (conexao != minhaConexao)
+                break;
+              if (confirmado >= blocos)
+                return "enviado";
+              n = proximo++;
+            }
+            long inicio = (long) n * ProtocoloV2.TAMANHO_BLOCO;
+            int len = (int) Math.min(bloco.length, tamanho - inicio);
+            raf.seek(inicio);
+            raf.readFully(bloco, 0, len);
+            crc.reset();
+            crc.update(bloco, 0, len);
+            // O CRC é sempre do bloco original; a forma comprimida só vai se for menor
+            int z = deflate ? compressao.comprimir(bloco, 0, len) : -1;
+            if (z > 0)
+              escritorEnvio.inicio(ProtocoloV2.TRANSF_BLOCO_Z).i32(transferencia).i32(n).i32((int) crc.getValue())
+                  .i32(len).bytes(compressao.saida(), 0, z);
+            else
+              escritorEnvio.inicio(ProtocoloV2.TRANSF_BLOCO).i32(transferencia).i32(n).i32((int) crc.getValue())
+                  .bytes(bloco, 0, len);
+            escrito = writeFrame(escritorEnvio);
+          }
+          // Conexão caiu: espera a reconexão para anunciar de novo
+          synchronized (this) {
+            while (cancelado == null && conexao == minhaConexao)
+              wait();
+          }
+        }
+      } finally {
+        compressao.fim();
+      }
+    }
+  }
+}
@@ -0,0 +1,592 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Vários nós do servidor cooperando (-Dchat.cluster.porta e -Dchat.cluster.pares). Cada nó guarda só
+// as próprias sessões em usuariosConectados e conta aos pares quem entra e sai e cada mudança nos
+// grupos; mensagens e arquivos para um usuário de outro nó são encaminhados ao nó dele, que entrega
+// às suas sessões. Mensagens de grupo vão a todos os pares, para que cada nó entregue aos membros que
+// tem e guarde a mensagem no seu Armazem.
+//
+// Os enlaces são de mão única: cada nó disca para todos os pares e só escreve nessa conexão; o que
+// chega vem pelas conexões que os pares abriram. O enlace de saída tem uma FilaSaida própria
+// (política DISCO: nada é descartado), drenada por uma thread que junta tudo o que estiver pendente
+// numa escrita vetorizada, então rajadas para o mesmo par viram poucas escritas. Um nó se identifica
+// pelo host:porta do seu enlace (-Dchat.cluster.host), que deve ser o mesmo que os outros listam.
+//
+// A porta entre nós escuta só em -Dchat.cluster.endereco e só aceita pares da lista que provem saber o
+// segredo do cluster (-Dchat.cluster.segredo): quem aceita manda um desafio aleatório, quem discou
+// responde no OLA com um HMAC-SHA256 dele e do seu id, e só então recebe o HMAC do desafio que mandou
+// no OLA, provando que do outro lado também está um nó do cluster. O conteúdo segue sem cifrar; numa
+// rede não confiável os enlaces devem passar por uma VPN ou túnel TLS.
+final class Cluster {
+    private static final int PORTA = Integer.getInteger("chat.cluster.porta", 0);
+    private static final String HOST = System.getProperty("chat.cluster.host", "127.0.0.1");
+    private static final String ENDERECO = System.getProperty("chat.cluster.endereco", HOST);
+    private static final String PARES = System.getProperty("chat.cluster.pares", "");
+    private static final String SEGREDO = System.getProperty("chat.cluster.segredo",
+            Objects.requireNonNullElse(System.getenv("CHAT_CLUSTER_SEGREDO"), ""));
+    private static final int TAMANHO_DESAFIO = 32;
+    private static final int IDENTIFICACAO_MS = 10_000;
+    private static final long RECONEXAO_MAX_MS = 5000;
+
+    // Quadros entre nós: [tipo:1][tamanho:4][conteúdo], codificados como no ProtocoloV2. Antes do
+    // primeiro, quem aceitou a conexão manda [desafio:32] e, depois do OLA conferido, [HMAC:32].
+    // [id do nó que abriu a conexão][desafio:32][HMAC do desafio recebido e do id:32]
+    private static final byte OLA = 1;
+    // [usuário]
+    private static final byte ENTROU = 2;
+    // [usuário]
+    private static final byte SAIU = 3;
+    // [grupo][quantidade][membros...]: somados ao que o nó já sabe do grupo
+    private static final byte MEMBROS = 4;
+    // [remetente][destino][texto]
+    private static final byte MSG = 5;
+    // [grupo][remetente][texto]
+    private static final byte MSG_GRUPO = 6;
+    // [fluxo][remetente][grupo ou ""][destino ou ""][nome][tamanho:8]
+    private static final byte ARQUIVO = 7;
+    // [fluxo][bytes...] até completar o tamanho
+    private static final byte ARQUIVO_DADOS = 8;
+    // [fluxo]: o remetente caiu no meio do arquivo
+    private static final byte ARQUIVO_ABORTAR = 9;
+
+    private static volatile String id;
+    // ids (host:porta) dos outros nós da lista: os únicos aceitos no OLA
+    private static final Set<String> conhecidos = new HashSet<>();
+    // Usuário conectado em outro nó → id desse nó
+    private static final Map<String, String> remotos = new ConcurrentHashMap<>();
+    private static final Map<String, Enlace> enlaces = new ConcurrentHashMap<>();
+    // Conexão de entrada em uso por par; uma mais antiga que caia não apaga o estado da nova
+    private static final Map<String, SocketChannel> entradas = new ConcurrentHashMap<>();
+    // Serializa os eventos de presença e de grupos com o estado inteiro enviado a um enlace que acabou
+    // de conectar, para que o par nunca veja uma entrada depois da saída correspondente
+    private static final Lock trava = new ReentrantLock();
+    private static final AtomicInteger fluxos = new AtomicInteger();
+    static final LongAdder quadrosEnviados = new LongAdder(), quadrosRecebidos = new LongAdder();
+    static final LongAdder mensagensEncaminhadas = new LongAdder(), bytesArquivos = new LongAdder();
+
+    private Cluster() {
+    }
+
+    // Chamado uma vez na partida; sem chat.cluster.porta o nó trabalha sozinho
+    static void abrir() throws IOException {
+        if (PORTA <= 0)
+            return;
+        if (SEGREDO.isEmpty())
+            throw new IOException("O cluster exige -Dchat.cluster.segredo (ou CHAT_CLUSTER_SEGREDO)");
+        String proprio = HOST + ":" + PORTA;
+        for (String par : PARES.split(",")) {
+            par = par.trim();
+            if (!par.isEmpty() && !par.equals(proprio))
+                conhecidos.add(par);
+        }
+        ServerSocketChannel servidor = ServerSocketChannel.open();
+        servidor.bind(new InetSocketAddress(ENDERECO, PORTA));
+        id = proprio;
+        Thread.ofPlatform().daemon().name("cluster").start(() -> aceitar(servidor));
+        for (String par : conhecidos) {
+            int sep = par.lastIndexOf(':');
+            Enlace enlace = new Enlace(par, par.substring(0, sep), Integer.parseInt(par.substring(sep + 1)));
+            enlaces.put(par, enlace);
+            enlace.thread = Thread.ofPlatform().daemon().name("enlace-" + par).start(enlace);
+        }
+        ChatServer.log("Cluster: nó " + id + " em " + servidor.getLocalAddress() + ", pares " + enlaces.keySet());
+    }
+
+    // HMAC-SHA256 com o segredo do cluster; o rótulo separa a prova de quem disca da de quem aceita
+    private static byte[] assinar(String rotulo, byte[] desafio, String no) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SEGREDO.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(rotulo.getBytes(StandardCharsets.UTF_8));
+            mac.update(desafio);
+            return mac.doFinal(no.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] desafio() {
+        byte[] d = new byte[TAMANHO_DESAFIO];
+        new SecureRandom().nextBytes(d);
+        return d;
+    }
+
+    private static void escreverTudo(SocketChannel c, ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            c.write(b);
+    }
+
+    private static byte[] lerTudo(SocketChannel c, int n) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(n);
+        while (b.hasRemaining()) {
+            if (c.read(b) < 0)
+                throw new EOFException("Par fechou a conexão na identificação");
+        }
+        return b.array();
+    }
+
+    static boolean ativo() {
+        return id != null;
+    }
+
+    // Nó em que o usuário está conectado, ou null se não está em nenhum outro
+    static String no(String usuario) {
+        return remotos.get(usuario);
+    }
+
+    static int usuariosRemotos() {
+        return remotos.size();
+    }
+
+    static int enlacesConectados() {
+        int n = 0;
+        for (Enlace e : enlaces.values()) {
+            if (e.fila != null)
+                n++;
+        }
+        return n;
+    }
+
+    static long bytesPendentes() {
+        long n = 0;
+        for (Enlace e : enlaces.values()) {
+            FilaSaida f = e.fila;
+            if (f != null)
+                n += f.bytesPendentes();
+        }
+        return n;
+    }
+
+    // ---- eventos deste nó, avisados a todos os pares ----
+
+    static void entrou(String usuario) {
+        if (ativo())
+            difundirEvento(quadro(ENTROU).texto(usuario));
+    }
+
+    static void saiu(String usuario) {
+        if (ativo())
+            difundirEvento(quadro(SAIU).texto(usuario));
+    }
+
+    static void membro(String grupo, String membro) {
+        if (ativo())
+            difundirEvento(quadro(MEMBROS).texto(grupo).i32(1).texto(membro));
+    }
+
+    private static void difundirEvento(ProtocoloV2.Escritor e) {
+        byte[] q = e.fim().copia();
+        trava.lock();
+        try {
+            for (Enlace enlace : enlaces.values())
+                enlace.enviar(q);
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    // Retorna false se o destino não está em nenhum par alcançável
+    static boolean mensagem(String remetente, String destino, String texto) {
+        Enlace enlace = enlaceDe(destino);
+        if (enlace == null || !enlace.enviar(quadro(MSG).texto(remetente).texto(destino).texto(texto).fim().copia()))
+            return false;
+        mensagensEncaminhadas.increment();
+        return true;
+    }
+
+    static void mensagemGrupo(String grupo, String remetente, String texto) {
+        if (!ativo())
+            return;
+        byte[] q = quadro(MSG_GRUPO).texto(grupo).texto(remetente).texto(texto).fim().copia();
+        for (Enlace enlace : enlaces.values()) {
+            if (enlace.enviar(q))
+                mensagensEncaminhadas.increment();
+        }
+    }
+
+    // Arquivo para um usuário de outro nó (destino) ou para os membros de um grupo que estão em outros
+    // nós; null se não há ninguém fora deste nó
+    static Arquivo arquivo(String remetente, String grupo, String destino, String nome, long tamanho,
+            Collection<String> membros) {
+        if (!ativo())
+            return null;
+        Set<Enlace> pares = new HashSet<>();
+        if (grupo == null) {
+            Enlace enlace = enlaceDe(destino);
+            if (enlace != null)
+                pares.add(enlace);
+        } else {
+            for (String membro : membros) {
+                Enlace enlace = membro.equals(remetente) ? null : enlaceDe(membro);
+                if (enlace != null)
+                    pares.add(enlace);
+            }
+        }
+        if (pares.isEmpty())
+            return null;
+        Arquivo arquivo = new Arquivo(pares);
+        arquivo.enviar(quadro(ARQUIVO).i32(arquivo.fluxo).texto(remetente).texto(grupo == null ? "" : grupo)
+                .texto(destino == null ? "" : destino).texto(nome).i64(tamanho));
+        return arquivo;
+    }
+
+    private static Enlace enlaceDe(String usuario) {
+        String no = remotos.get(usuario);
+        return no == null ? null : enlaces.get(no);
+    }
+
+    private static ProtocoloV2.Escritor quadro(byte tipo) {
+        return new ProtocoloV2.Escritor().inicio(tipo);
+    }
+
+    // Corpo de um arquivo a caminho de outros nós, repassado à medida que chega do remetente
+    static final class Arquivo {
+        final int fluxo = fluxos.incrementAndGet();
+        private final Collection<Enlace> pares;
+        private final ProtocoloV2.Escritor escritor = new ProtocoloV2.Escritor();
+
+        private Arquivo(Collection<Enlace> pares) {
+            this.pares = pares;
+        }
+
+        void dados(byte[] buffer, int off, int len) {
+            for (int i = 0; i < len; i += ProtocoloV2.TAMANHO_DADOS_ARQUIVO) {
+                int n = Math.min(ProtocoloV2.TAMANHO_DADOS_ARQUIVO, len - i);
+                enviar(escritor.inicio(ARQUIVO_DADOS).i32(fluxo).bytes(buffer, off + i, n));
+            }
+            bytesArquivos.add(len);
+        }
+
+        void abortar() {
+            enviar(escritor.inicio(ARQUIVO_ABORTAR).i32(fluxo));
+        }
+
+        private void enviar(ProtocoloV2.Escritor e) {
+            byte[] q = e.fim().copia();
+            for (Enlace enlace : pares)
+                enlace.enviar(q);
+        }
+    }
+
+    // ---- enlace de saída: conecta ao par, manda o estado inteiro e depois os eventos ----
+
+    private static final class Enlace implements Runnable {
+        final String par;
+        private final String host;
+        private final int porta;
+        // null enquanto desconectado: o que for enviado nesse meio tempo se perde, como para um cliente
+        volatile FilaSaida fila;
+        volatile Thread thread;
+        private volatile boolean dormindo;
+
+        Enlace(String par, String host, int porta) {
+            this.par = par;
+            this.host = host;
+            this.porta = porta;
+        }
+
+        boolean enviar(byte[] quadro) {
+            FilaSaida f = fila;
+            if (f == null)
+                return false;
+            f.oferecer(ByteBuffer.wrap(quadro), false);
+            quadrosEnviados.increment();
+            if (dormindo)
+                LockSupport.unpark(thread);
+            return true;
+        }
+
+        void tentarJa() {
+            LockSupport.unpark(thread);
+        }
+
+        // O par nunca escreve nesta conexão: o fim da leitura quer dizer que ele caiu ou a fechou, e
+        // o enlace é refeito (mandando o estado inteiro de novo) sem esperar a próxima escrita falhar
+        private void vigiar(SocketChannel c) {
+            ByteBuffer b = ByteBuffer.allocate(64);
+            try {
+                while (c.read(b) >= 0)
+                    b.clear();
+            } catch (IOException e) {
+            } finally {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                }
+                LockSupport.unpark(thread);
+            }
+        }
+
+        public void run() {
+            long espera = 100;
+            while (true) {
+                try (SocketChannel c = SocketChannel.open(new InetSocketAddress(host, porta))) {
+                    c.socket().setTcpNoDelay(true);
+                    identificar(c);
+                    Thread.ofVirtual().name("enlace-vigia-" + par).start(() -> vigiar(c));
+                    FilaSaida f = new FilaSaida(ChatServer.capacidadeFila, FilaSaida.Politica.DISCO);
+                    trava.lock();
+                    try {
+                        enfileirarEstado(f);
+                        fila = f;
+                    } finally {
+                        trava.unlock();
+                    }
+                    ChatServer.log("Cluster: enlace com " + par + " conectado");
+                    espera = 100;
+                    while (true) {
+                        if (!f.escreverEm(c))
+                            continue;
+                        dormindo = true;
+                        if (f.vazia() && c.isOpen())
+                            LockSupport.park(this);
+                        dormindo = false;
+                        if (!c.isOpen())
+                            break;
+                    }
+                } catch (IOException e) {
+                    if (fila != null)
+                        Registro.aviso("Cluster: enlace com " + par + " caiu: " + e.getMessage());
+                } finally {
+                    FilaSaida f = fila;
+                    fila = null;
+                    if (f != null)
+                        f.fechar();
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(espera));
+                espera = Math.min(espera * 2, RECONEXAO_MAX_MS);
+            }
+        }
+
+        // Responde ao desafio do par com o OLA e confere a prova de que o par também conhece o segredo
+        private void identificar(SocketChannel c) throws IOException {
+            byte[] recebido = lerTudo(c, TAMANHO_DESAFIO);
+            byte[] enviado = desafio();
+            byte[] prova = assinar("ola", recebido, id);
+            escreverTudo(c, ByteBuffer.wrap(quadro(OLA).texto(id).bytes(enviado, 0, enviado.length)
+                    .bytes(prova, 0, prova.length).fim().copia()));
+            if (!MessageDigest.isEqual(lerTudo(c, TAMANHO_DESAFIO), assinar("aceito", enviado, par)))
+                throw new IOException("par não provou conhecer o segredo do cluster");
+        }
+
+        private static void enfileirarEstado(FilaSaida f) {
+            ProtocoloV2.Escritor e = new ProtocoloV2.Escritor();
+            for (String usuario : ChatServer.usuariosConectados.keySet())
+                f.oferecer(ByteBuffer.wrap(e.inicio(ENTROU).texto(usuario).fim().copia()), false);
+            for (Map.Entry<String, Set<String>> g : ChatServer.grupos.entrySet()) {
+                List<String> membros = new ArrayList<>(g.getValue());
+                e.inicio(MEMBROS).texto(g.getKey()).i32(membros.size());
+                for (String membro : membros)
+                    e.texto(membro);
+                f.oferecer(ByteBuffer.wrap(e.fim().copia()), false);
+            }
+        }
+    }
+
+    // ---- conexões de entrada: o que os pares contam e encaminham ----
+
+    private static void aceitar(ServerSocketChannel servidor) {
+        while (true) {
+            try {
+                SocketChannel canal = servidor.accept();
+                Thread.ofVirtual().name("cluster-entrada").start(() -> atender(canal));
+            } catch (IOException e) {
+                Registro.aviso("Cluster: falha ao aceitar par: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void atender(SocketChannel canal) {
+        String par = null;
+        Map<Integer, Entrega> arquivos = new HashMap<>();
+        try (canal) {
+            LineReader entrada = new LineReader(canal.socket().getInputStream());
+            ProtocoloV2.Leitor q = new ProtocoloV2.Leitor();
+            byte[] desafio = desafio();
+            // Quem não se identifica logo não prende a conexão
+            canal.socket().setSoTimeout(IDENTIFICACAO_MS);
+            escreverTudo(canal, ByteBuffer.wrap(desafio));
+            int tipo;
+            while ((tipo = entrada.lerQuadro(q)) != -1) {
+                quadrosRecebidos.increment();
+                if (tipo == OLA && par == null) {
+                    String no = q.texto();
+                    byte[] dele = q.bytes(TAMANHO_DESAFIO);
+                    byte[] prova = q.bytes(TAMANHO_DESAFIO);
+                    if (!conhecidos.contains(no) || !MessageDigest.isEqual(prova, assinar("ola", desafio, no))) {
+                        Registro.aviso("Cluster: recusada conexão de " + canal.getRemoteAddress() + " como " + no);
+                        return;
+                    }
+                    escreverTudo(canal, ByteBuffer.wrap(assinar("aceito", dele, id)));
+                    canal.socket().setSoTimeout(0);
+                    par = no;
+                    // Um par que volta manda o estado inteiro de novo; o que se sabia dele é esquecido
+                    SocketChannel anterior = entradas.put(par, canal);
+                    if (anterior != null)
+                        anterior.close();
+                    esquecer(par);
+                    // Se o nosso enlace com ele está esperando para tentar de novo, tenta já
+                    Enlace enlace = enlaces.get(par);
+                    if (enlace != null && enlace.fila == null)
+                        enlace.tentarJa();
+                    ChatServer.log("Cluster: par " + par + " conectou");
+                    continue;
+                }
+                if (par == null)
+                    throw new IOException("Par não se identificou");
+                processar(par, tipo, q, arquivos);
+            }
+        } catch (IOException e) {
+            if (par != null)
+                Registro.aviso("Cluster: conexão de " + par + " caiu: " + e.getMessage());
+            else
+                Registro.aviso("Cluster: conexão recusada antes da identificação: " + e.getMessage());
+        } finally {
+            for (Entrega a : arquivos.values())
+                a.abortar();
+            if (par != null && entradas.remove(par, canal)) {
+                esquecer(par);
+                ChatServer.log("Cluster: par " + par + " desconectou");
+            }
+        }
+    }
+
+    private static void processar(String par, int tipo, ProtocoloV2.Leitor q, Map<Integer, Entrega> arquivos)
+            throws IOException {
+        switch (tipo) {
+            case ENTROU -> {
+                String usuario = q.texto();
+                remotos.put(usuario, par);
+                Presenca.alterado(usuario);
+            }
+            case SAIU -> {
+                String usuario = q.texto();
+                if (remotos.remove(usuario, par))
+                    Presenca.alterado(usuario);
+            }
+            case MEMBROS -> {
+                String grupo = q.texto();
+                boolean mudou = false;
+                for (int n = q.i32(); n > 0; n--) {
+                    String membro = q.texto();
+                    if (ChatServer.adicionarMembro(grupo, membro)) {
+                        DiarioGrupos.adicionado(grupo, membro);
+                        mudou = true;
+                    }
+                }
+                if (mudou)
+                    ChatServer.atualizarGrupos(grupo);
+            }
+            case MSG -> {
+                String remetente = q.texto();
+                String destino = q.texto();
+                String texto = q.texto();
+                Sessao ch = ChatServer.usuariosConectados.get(destino);
+                if (ch != null) {
+                    ch.entregarMensagem(remetente, texto);
+                    Armazem.direta(remetente, destino, texto);
+                } else {
+                    Armazem.Guarda guarda = Armazem.guardarParaDepois(remetente, destino, texto);
+                    if (guarda != Armazem.Guarda.GUARDADA)
+                        Registro.aviso("Cluster: mensagem de " + remetente + " para " + destino + " não guardada: "
+                                + guarda);
+                }
+            }
+            case MSG_GRUPO -> {
+                String grupo = q.texto();
+                String remetente = q.texto();
+                String texto = q.texto();
+                Rotas.Grupo rota = Rotas.grupo(grupo);
+                if (rota == null)
+                    return;
+                long posicao = Armazem.grupo(remetente, grupo, texto);
+                Difusao.mensagemGrupo(rota, remetente, texto, null, posicao);
+            }
+            case ARQUIVO -> {
+                int fluxo = q.i32();
+                String remetente = q.texto();
+                String grupo = q.texto();
+                String destino = q.texto();
+                Entrega entrega = new Entrega(remetente, grupo.isEmpty() ? null : grupo, destino, q.texto(), q.i64());
+                if (entrega.restante > 0)
+                    arquivos.put(fluxo, entrega);
+            }
+            case ARQUIVO_DADOS -> {
+                int fluxo = q.i32();
+                Entrega entrega = arquivos.get(fluxo);
+                if (entrega != null && entrega.dados(q.buf, q.pos, q.restantes()))
+                    arquivos.remove(fluxo);
+            }
+            case ARQUIVO_ABORTAR -> {
+                Entrega entrega = arquivos.remove(q.i32());
+                if (entrega != null)
+                    entrega.abortar();
+            }
+            default -> throw new IOException("Quadro de cluster desconhecido: " + tipo);
+        }
+    }
+
+    // Um par saiu ou voltou do zero: seus usuários deixam de estar conectados
+    private static void esquecer(String par) {
+        for (Iterator<Map.Entry<String, String>> it = remotos.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, String> r = it.next();
+            if (r.getValue().equals(par)) {
+                it.remove();
+                Presenca.alterado(r.getKey());
+            }
+        }
+    }
+
+    // Arquivo vindo de outro nó, entregue às sessões deste nó. O enlace não pode esperar por um
+    // destinatário lento, então o excedente vai para o disco (como no arquivo de grupo).
+    private static final class Entrega {
+        private final List<Sessao> destinos = new ArrayList<>();
+        private final List<Integer> ids = new ArrayList<>();
+        long restante;
+
+        Entrega(String remetente, String grupo, String destino, String nome, long tamanho) {
+            restante = tamanho;
+            Sessao[] sessoes;
+            if (grupo == null) {
+                Sessao ch = ChatServer.usuariosConectados.get(destino);
+                sessoes = ch == null ? new Sessao[0] : new Sessao[] { ch };
+            } else {
+                Rotas.Grupo rota = Rotas.grupo(grupo);
+                sessoes = rota == null ? new Sessao[0] : rota.conectadas;
+            }
+            for (Sessao ch : sessoes) {
+                int transferencia = ChatServer.novaTransferencia();
+                if (!ch.entregarInicioArquivo(transferencia, grupo, remetente, nome, tamanho)) {
+                    Registro.aviso("Arquivo não entregue a " + ch.getUsuario() + ": ocupado com outro arquivo");
+                    continue;
+                }
+                destinos.add(ch);
+                ids.add(transferencia);
+            }
+        }
+
+        // Retorna true quando o arquivo terminou
+        boolean dados(byte[] buffer, int off, int len) {
+            for (int i = 0; i < destinos.size(); i++)
+                destinos.get(i).entregarDadosArquivo(ids.get(i), buffer, off, len, true);
+            restante -= len;
+            return restante <= 0;
+        }
+
+        void abortar() {
+            for (int i = 0; i < destinos.size(); i++)
+                destinos.get(i).abortarArquivo(ids.get(i));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+// Compressão da capacidade "deflate" (só com v2), usada pelo servidor e pelo cliente.
+//
+// Quadros de controle e de chat passam por um contexto deflate por conexão e sentido: cada quadro
+// (ou grupo de quadros) vira um COMPRIMIDO com o trecho do fluxo até um SYNC_FLUSH, de modo que o
+// dicionário acumulado entre mensagens parecidas é aproveitado sem esperar pelas seguintes.
+// Blocos de arquivo são comprimidos um a um, independentes, para que o servidor possa repassá-los
+// ou guardá-los como chegaram; o remetente só manda a forma comprimida quando ela é menor.
+final class Compressao {
+    static final String CAPACIDADE = "deflate";
+    // Quadros menores que isso não compensam o cabeçalho do COMPRIMIDO
+    static final int MINIMO = Integer.getInteger("chat.compressao.minimo", 48);
+    static final int NIVEL = Integer.getInteger("chat.compressao.nivel", Deflater.BEST_SPEED);
+    // Um COMPRIMIDO não pode expandir além disso (proteção contra bombas de descompressão)
+    static final int MAX_DESCOMPRIMIDO = 4 * ProtocoloV2.TAMANHO_MAX_QUADRO;
+    // Depois de tantos blocos seguidos sem ganho, o resto do arquivo vai sem tentar
+    private static final int SEM_GANHO_MAX = 4;
+
+    // Totais do processo, expostos por Metricas (no cliente só não são lidos)
+    static final LongAdder originaisSaida = new LongAdder(), comprimidosSaida = new LongAdder();
+    static final LongAdder nanosCompressao = new LongAdder();
+    static final LongAdder comprimidosEntrada = new LongAdder(), originaisEntrada = new LongAdder();
+    static final LongAdder nanosDescompressao = new LongAdder();
+    static final LongAdder blocosRepassados = new LongAdder(), blocosInflados = new LongAdder();
+
+    private Compressao() {
+    }
+
+    // Contexto de saída de uma conexão; quem usa serializa as chamadas
+    static final class Fluxo {
+        private final Deflater deflater = new Deflater(NIVEL, true);
+        private byte[] saida = new byte[1024];
+
+        // Retorna o quadro COMPRIMIDO com os bytes dados (um ou mais quadros inteiros)
+        byte[] comprimir(byte[] dados, int off, int len) {
+            long t0 = System.nanoTime();
+            deflater.setInput(dados, off, len);
+            int n = ProtocoloV2.CABECALHO;
+            while (true) {
+                n += deflater.deflate(saida, n, saida.length - n, Deflater.SYNC_FLUSH);
+                // Com SYNC_FLUSH, saída cheia quer dizer que pode haver mais
+                if (n < saida.length)
+                    break;
+                saida = Arrays.copyOf(saida, saida.length * 2);
+            }
+            int conteudo = n - ProtocoloV2.CABECALHO;
+            saida[0] = ProtocoloV2.COMPRIMIDO;
+            saida[1] = (byte) (conteudo >>> 24);
+            saida[2] = (byte) (conteudo >>> 16);
+            saida[3] = (byte) (conteudo >>> 8);
+            saida[4] = (byte) conteudo;
+            originaisSaida.add(len);
+            comprimidosSaida.add(n);
+            nanosCompressao.add(System.nanoTime() - t0);
+            return Arrays.copyOf(saida, n);
+        }
+
+        // Libera a memória nativa do contexto (cerca de 256 KiB)
+        void fim() {
+            deflater.end();
+        }
+    }
+
+    // Contexto de entrada de uma conexão: desfaz os COMPRIMIDO, na ordem em que chegam
+    static final class Descompressor {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buf = new byte[4096];
+        private int tamanho;
+        private int lido;
+
+        // Descomprime o conteúdo de um COMPRIMIDO; os quadros saem depois por proximoQuadro()
+        void descomprimir(byte[] dados, int off, int len) throws IOException {
+            long t0 = System.nanoTime();
+            inflater.setInput(dados, off, len);
+            int n = 0;
+            try {
+                while (true) {
+                    if (n == buf.length) {
+                        if (buf.length >= MAX_DESCOMPRIMIDO)
+                            throw new IOException("Quadro comprimido grande demais");
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                    }
+                    int k = inflater.inflate(buf, n, buf.length - n);
+                    n += k;
+                    if (k == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+                        break;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Fluxo comprimido inválido: " + e.getMessage());
+            }
+            if (inflater.getRemaining() > 0)
+                throw new IOException("Fluxo comprimido inválido");
+            comprimidosEntrada.add(len);
+            originaisEntrada.add(n);
+            nanosDescompressao.add(System.nanoTime() - t0);
+            tamanho = n;
+            lido = 0;
+        }
+
+        // Aponta q para o próximo quadro descomprimido e retorna o tipo, ou -1 quando acabaram
+        int proximoQuadro(ProtocoloV2.Leitor q) throws IOException {
+            if (lido == tamanho)
+                return -1;
+            if (tamanho - lido < ProtocoloV2.CABECALHO)
+                throw new IOException("Quadro comprimido truncado");
+            int p = lido;
+            int tipo = buf[p] & 0xFF;
+            int len = ((buf[p + 1] & 0xFF) << 24) | ((buf[p + 2] & 0xFF) << 16) | ((buf[p + 3] & 0xFF) << 8)
+                    | (buf[p + 4] & 0xFF);
+            p += ProtocoloV2.CABECALHO;
+            if (tipo == ProtocoloV2.COMPRIMIDO || len < 0 || len > tamanho - p)
+                throw new IOException("Quadro comprimido malformado");
+            q.apontar(buf, p, p + len);
+            lido = p + len;
+            return tipo;
+        }
+
+        void fim() {
+            inflater.end();
+        }
+    }
+
+    // Compressor de blocos de arquivo de uma transferência; cada bloco sai independente
+    static final class Blocos {
+        private final Deflater deflater = new Deflater(NIVEL, true);
+        private byte[] saida = new byte[ProtocoloV2.TAMANHO_BLOCO];
+        private int semGanho;
+
+        // Retorna quantos bytes comprimidos ficaram em saida(), ou -1 se o bloco deve ir como está
+        int comprimir(byte[] dados, int off, int len) {
+            if (semGanho >= SEM_GANHO_MAX || len < MINIMO)
+                return -1;
+            if (saida.length < len)
+                saida = new byte[len];
+            deflater.reset();
+            deflater.setInput(dados, off, len);
+            deflater.finish();
+            // Só interessa se couber em menos que o original
+            int n = deflater.deflate(saida, 0, len - 1);
+            if (!deflater.finished()) {
+                semGanho++;
+                return -1;
+            }
+            semGanho = 0;
+            return n;
+        }
+
+        byte[] saida() {
+            return saida;
+        }
+
+        void fim() {
+            deflater.end();
+        }
+    }
+
+    // Descomprime um bloco de arquivo independente cujo tamanho original é conhecido
+    static byte[] inflar(byte[] dados, int off, int len, int original) throws IOException {
+        if (original < 0 || original > ProtocoloV2.TAMANHO_MAX_QUADRO)
+            throw new IOException("Tamanho original inválido: " + original);
+        long t0 = System.nanoTime();
+        byte[] b = new byte[original];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(dados, off, len);
+            int n = 0;
+            while (!inflater.finished()) {
+                // Cheio: só pode faltar o fim do fluxo, sem mais nenhum byte
+                int k = n < original ? inflater.inflate(b, n, original - n) : inflater.inflate(new byte[1]);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += k;
+            }
+            if (n != original || !inflater.finished())
+                throw new IOException("Bloco comprimido inválido");
+        } catch (DataFormatException e) {
+            throw new IOException("Bloco comprimido inválido: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        comprimidosEntrada.add(len);
+        originaisEntrada.add(original);
+        nanosDescompressao.add(System.nanoTime() - t0);
+        return b;
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.*;
+import java.util.zip.*;
+
+// Grupos duráveis: um snapshot binário (grupos-<g>.snap) com todos os grupos e membros, mais um
+// diário só de acréscimos (grupos-<g>.diario) com o que mudou depois dele, no diretório do armazém.
+// Cada registro do diário é [tamanho:4][crc32:4][tipo:1][grupo][membro], com textos como
+// [bytes:2][UTF-8]. Na abertura carrega o snapshot válido mais novo e reaplica os diários da mesma
+// geração em diante, parando no primeiro registro com CRC errado.
+//
+// Uma thread de manutenção sincroniza o diário logo depois de cada rajada de mudanças e, quando ele
+// passa de -Dchat.grupos.compactacao bytes (e do tamanho do snapshot), compacta: troca para o diário
+// da geração seguinte e grava o snapshot dessa geração a partir do mapa em memória, sem parar quem
+// está mudando grupos. As operações são idempotentes (criar se não existe, acrescentar membro), então
+// o que entrar nos dois lados durante a troca não faz diferença.
+final class DiarioGrupos {
+    private static final byte CRIAR = 1;
+    private static final byte ADICIONAR = 2;
+    private static final int MAGICO = 0x47525031;
+    private static final int CABECALHO = 8;
+    private static final long COMPACTAR = Long.getLong("chat.grupos.compactacao", 4L << 20);
+    private static final Pattern ARQUIVO = Pattern.compile("grupos-(\\d+)\\.(snap|diario)");
+
+    // Diário atual e sua geração, protegidos pelo monitor da classe
+    private static Path diretorio;
+    private static long geracao;
+    private static FileChannel diario;
+    private static long tamanhoDiario;
+    private static long tamanhoSnapshot;
+    private static volatile boolean sujo;
+    private static Thread manutencao;
+
+    private DiarioGrupos() {
+    }
+
+    static void abrir() throws IOException {
+        Path dir = Paths.get(System.getProperty("chat.armazem.dir", "dados"));
+        Files.createDirectories(dir);
+        long inicio = System.nanoTime();
+        TreeSet<Long> snapshots = new TreeSet<>(), diarios = new TreeSet<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                Matcher m = ARQUIVO.matcher(p.getFileName().toString());
+                if (m.matches())
+                    (m.group(2).equals("snap") ? snapshots : diarios).add(Long.parseLong(m.group(1)));
+            }
+        }
+        // Um snapshot pela metade (queda durante a compactação) é ignorado: o anterior e os diários
+        // dele continuam no disco
+        long base = 0;
+        for (long g : snapshots.descendingSet()) {
+            ChatServer.grupos.clear();
+            if (carregarSnapshot(snapshot(dir, g))) {
+                base = g;
+                tamanhoSnapshot = Files.size(snapshot(dir, g));
+                break;
+            }
+            Registro.aviso("Snapshot de grupos inválido, ignorado: " + snapshot(dir, g).getFileName());
+            ChatServer.grupos.clear();
+        }
+        int grupos = ChatServer.grupos.size();
+        long reaplicados = 0;
+        long atual = base;
+        for (long g : diarios.tailSet(base, true)) {
+            reaplicados += reaplicar(diario(dir, g));
+            atual = g;
+        }
+        synchronized (DiarioGrupos.class) {
+            diretorio = dir;
+            geracao = atual;
+            diario = FileChannel.open(diario(dir, atual), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            tamanhoDiario = diario.size();
+            diario.position(tamanhoDiario);
+        }
+        manutencao = Thread.ofPlatform().daemon().name("diario-grupos").start(DiarioGrupos::manter);
+        Runtime.getRuntime().addShutdownHook(new Thread(DiarioGrupos::sincronizar));
+        ChatServer.log("Grupos carregados: " + ChatServer.grupos.size() + " (" + grupos + " do snapshot "
+                + base + ", " + reaplicados + " mudanças do diário) em " + (System.nanoTime() - inicio) / 1_000_000
+                + " ms");
+    }
+
+    static void criado(String grupo, String criador) {
+        anotar(CRIAR, grupo, criador);
+    }
+
+    static void adicionado(String grupo, String membro) {
+        anotar(ADICIONAR, grupo, membro);
+    }
+
+    private static void anotar(byte tipo, String grupo, String membro) {
+        byte[] g = grupo.getBytes(StandardCharsets.UTF_8);
+        byte[] m = membro.getBytes(StandardCharsets.UTF_8);
+        int corpo = 1 + 2 + g.length + 2 + m.length;
+        ByteBuffer b = ByteBuffer.allocate(CABECALHO + corpo);
+        b.putInt(corpo).putInt(0).put(tipo).putShort((short) g.length).put(g).putShort((short) m.length).put(m);
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), CABECALHO, corpo);
+        b.putInt(4, (int) crc.getValue()).flip();
+        synchronized (DiarioGrupos.class) {
+            if (diario == null)
+                return;
+            try {
+                while (b.hasRemaining())
+                    tamanhoDiario += diario.write(b);
+            } catch (IOException e) {
+                Registro.erro("Falha ao gravar no diário de grupos", e);
+                return;
+            }
+        }
+        sujo = true;
+        LockSupport.unpark(manutencao);
+    }
+
+    // Sincroniza o que foi escrito desde a última volta e compacta quando o diário cresce demais
+    private static void manter() {
+        while (true) {
+            LockSupport.parkNanos(1_000_000_000L);
+            sincronizar();
+            boolean compactar;
+            synchronized (DiarioGrupos.class) {
+                compactar = tamanhoDiario >= COMPACTAR && tamanhoDiario >= tamanhoSnapshot;
+            }
+            if (compactar) {
+                try {
+                    compactar();
+                } catch (IOException e) {
+                    Registro.erro("Falha ao compactar os grupos", e);
+                }
+            }
+        }
+    }
+
+    private static void sincronizar() {
+        if (!sujo)
+            return;
+        sujo = false;
+        FileChannel c;
+        synchronized (DiarioGrupos.class) {
+            c = diario;
+        }
+        try {
+            c.force(false);
+        } catch (ClosedChannelException e) {
+            // trocado pela compactação, que já o sincronizou
+        } catch (IOException e) {
+            Registro.erro("Falha ao sincronizar o diário de grupos", e);
+        }
+    }
+
+    private static void compactar() throws IOException {
+        long inicio = System.nanoTime();
+        long g;
+        Path dir;
+        synchronized (DiarioGrupos.class) {
+            dir = diretorio;
+            g = geracao + 1;
+            FileChannel novo = FileChannel.open(diario(dir, g), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            diario.force(false);
+            diario.close();
+            diario = novo;
+            geracao = g;
+            tamanhoDiario = 0;
+        }
+        Path temporario = dir.resolve("grupos-" + g + ".snap.tmp");
+        int n = gravarSnapshot(temporario);
+        Files.move(temporario, snapshot(dir, g), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // nem todo sistema deixa sincronizar um diretório
+        }
+        long tamanho = Files.size(snapshot(dir, g));
+        synchronized (DiarioGrupos.class) {
+            tamanhoSnapshot = tamanho;
+        }
+        // O novo snapshot já cobre os arquivos das gerações anteriores
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                Matcher m = ARQUIVO.matcher(p.getFileName().toString());
+                if (m.matches() && Long.parseLong(m.group(1)) < g)
+                    Files.deleteIfExists(p);
+            }
+        }
+        ChatServer.log("Grupos compactados: " + n + " grupos, " + tamanho + " bytes (geração " + g + ") em "
+                + (System.nanoTime() - inicio) / 1_000_000 + " ms");
+    }
+
+    // [mágico:4], então para cada grupo [nome][membros:4][nomes...], um nome vazio no fim e o CRC32
+    // de tudo antes dele
+    private static int gravarSnapshot(Path caminho) throws IOException {
+        int n = 0;
+        try (FileOutputStream arquivo = new FileOutputStream(caminho.toFile())) {
+            BufferedOutputStream buf = new BufferedOutputStream(arquivo, 1 << 20);
+            CheckedOutputStream verificado = new CheckedOutputStream(buf, new CRC32());
+            DataOutputStream out = new DataOutputStream(verificado);
+            out.writeInt(MAGICO);
+            for (Map.Entry<String, Set<String>> grupo : ChatServer.grupos.entrySet()) {
+                List<String> membros = new ArrayList<>(grupo.getValue());
+                out.writeUTF(grupo.getKey());
+                out.writeInt(membros.size());
+                for (String membro : membros)
+                    out.writeUTF(membro);
+                n++;
+            }
+            out.writeUTF("");
+            out.flush();
+            new DataOutputStream(buf).writeInt((int) verificado.getChecksum().getValue());
+            buf.flush();
+            arquivo.getChannel().force(true);
+        }
+        return n;
+    }
+
+    private static boolean carregarSnapshot(Path caminho) {
+        // Nomes de membros se repetem entre grupos: uma instância de cada
+        Map<String, String> nomes = new HashMap<>();
+        try (InputStream arquivo = Files.newInputStream(caminho)) {
+            BufferedInputStream buf = new BufferedInputStream(arquivo, 1 << 20);
+            CheckedInputStream verificado = new CheckedInputStream(buf, new CRC32());
+            DataInputStream in = new DataInputStream(verificado);
+            if (in.readInt() != MAGICO)
+                return false;
+            String grupo;
+            while (!(grupo = in.readUTF()).isEmpty()) {
+                int n = in.readInt();
+                Set<String> membros = ConcurrentHashMap.newKeySet(n);
+                for (int i = 0; i < n; i++) {
+                    String membro = in.readUTF();
+                    String unico = nomes.putIfAbsent(membro, membro);
+                    membros.add(unico == null ? membro : unico);
+                }
+                ChatServer.grupos.put(grupo, membros);
+            }
+            int crc = (int) verificado.getChecksum().getValue();
+            return new DataInputStream(buf).readInt() == crc;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Reaplica um diário e corta a cauda rasgada, se houver; retorna quantas mudanças leu
+    private static long reaplicar(Path caminho) throws IOException {
+        long n = 0;
+        try (FileChannel c = FileChannel.open(caminho, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long tamanho = c.size();
+            ByteBuffer b = c.map(FileChannel.MapMode.READ_ONLY, 0, tamanho);
+            CRC32 crc = new CRC32();
+            int pos = 0;
+            while (pos + CABECALHO <= tamanho) {
+                int corpo = b.getInt(pos);
+                if (corpo < 1 + 2 + 2 || pos + CABECALHO + corpo > tamanho)
+                    break;
+                ByteBuffer r = b.slice(pos + CABECALHO, corpo);
+                crc.reset();
+                crc.update(r.duplicate());
+                if ((int) crc.getValue() != b.getInt(pos + 4))
+                    break;
+                byte tipo = r.get();
+                String grupo = texto(r);
+                String membro = texto(r);
+                if (grupo == null || membro == null)
+                    break;
+                Set<String> membros = ChatServer.grupos.computeIfAbsent(grupo, k -> ConcurrentHashMap.newKeySet());
+                if (tipo == CRIAR || tipo == ADICIONAR)
+                    membros.add(membro);
+                pos += CABECALHO + corpo;
+                n++;
+            }
+            if (pos < tamanho) {
+                Registro.aviso("Diário de grupos " + caminho.getFileName() + ": cauda inválida descartada a partir de "
+                        + pos);
+                c.truncate(pos);
+            }
+        }
+        return n;
+    }
+
+    private static String texto(ByteBuffer b) {
+        if (b.remaining() < 2)
+            return null;
+        int n = b.getShort() & 0xFFFF;
+        if (n > b.remaining())
+            return null;
+        byte[] t = new byte[n];
+        b.get(t);
+        return new String(t, StandardCharsets.UTF_8);
+    }
+
+    private static Path snapshot(Path dir, long g) {
+        return dir.resolve("grupos-" + g + ".snap");
+    }
+
+    private static Path diario(Path dir, long g) {
+        return dir.resolve("grupos-" + g + ".diario");
+    }
+}
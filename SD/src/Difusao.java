@@ -0,0 +1,84 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Entrega de uma mensagem de grupo a todos os membros conectados, tirados do array de sessões do
+// grupo em Rotas. O quadro é codificado uma única vez por protocolo num buffer somente leitura; cada
+// destinatário enfileira uma visão própria (duplicate) do mesmo conteúdo. Grupos grandes são
+// divididos em partes entregues em paralelo, e a chamada só retorna quando todas terminam, para que
+// mensagens seguidas do mesmo remetente cheguem em ordem.
+final class Difusao {
+    private static final int LIMIAR_PARALELO = Integer.getInteger("chat.difusao.paralela", 256);
+    private static final int PARTE = 128;
+
+    // Mensagem já codificada no v1 e no v2
+    static final class Quadro {
+        final String grupo;
+        final String remetente;
+        final int idGrupo;
+        final int idRemetente;
+        // Posição no Armazem (-1 se não foi gravada), para a sessão em reenvio descartar repetidas
+        final long posicao;
+        final ByteBuffer v1;
+        final ByteBuffer v2;
+
+        Quadro(String grupo, String remetente, String texto, long posicao) {
+            this(grupo, ChatServer.idsGrupos.id(grupo), remetente, ChatServer.idsUsuarios.id(remetente), texto,
+                    posicao);
+        }
+
+        Quadro(String grupo, int idGrupo, String remetente, int idRemetente, String texto, long posicao) {
+            this.grupo = grupo;
+            this.remetente = remetente;
+            this.idGrupo = idGrupo;
+            this.idRemetente = idRemetente;
+            this.posicao = posicao;
+            v1 = ByteBuffer.wrap(("GRUPO_MSG:" + grupo + ":" + remetente + ":" + texto + "\n")
+                    .getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            ProtocoloV2.Escritor escritor = new ProtocoloV2.Escritor();
+            escritor.inicio(ProtocoloV2.MSG_GRUPO).i32(idGrupo).i32(idRemetente).texto(texto);
+            v2 = ByteBuffer.wrap(escritor.fim().copia()).asReadOnlyBuffer();
+        }
+    }
+
+    private Difusao() {
+    }
+
+    // origem é a sessão do remetente, que não recebe a própria mensagem (null se veio de outro nó)
+    static void mensagemGrupo(Rotas.Grupo grupo, String remetente, String texto, Sessao origem) {
+        mensagemGrupo(grupo, remetente, texto, origem, -1);
+    }
+
+    // posicao é a do registro já gravado no Armazem (-1 se não foi)
+    static void mensagemGrupo(Rotas.Grupo grupo, String remetente, String texto, Sessao origem, long posicao) {
+        // O array de conectadas é só trocado, nunca alterado: percorrê-lo dispensa cópia e trava
+        Sessao[] destinos = grupo.conectadas;
+        int n = destinos.length;
+        if (n == 0 || n == 1 && destinos[0] == origem)
+            return;
+        int idRemetente = origem != null ? origem.idUsuario : ChatServer.idsUsuarios.id(remetente);
+        Quadro quadro = new Quadro(grupo.nome, grupo.id, remetente, idRemetente, texto, posicao);
+        // Com um só processador o pool comum não tem workers e runAsync criaria uma thread por parte
+        if (n < LIMIAR_PARALELO || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            entregar(quadro, destinos, 0, n, origem);
+            return;
+        }
+        List<CompletableFuture<Void>> partes = new ArrayList<>();
+        for (int i = PARTE; i < n; i += PARTE) {
+            int de = i, ate = Math.min(i + PARTE, n);
+            partes.add(CompletableFuture.runAsync(() -> entregar(quadro, destinos, de, ate, origem),
+                    ForkJoinPool.commonPool()));
+        }
+        entregar(quadro, destinos, 0, PARTE, origem);
+        for (CompletableFuture<Void> parte : partes)
+            parte.join();
+    }
+
+    private static void entregar(Quadro quadro, Sessao[] destinos, int de, int ate, Sessao origem) {
+        for (int i = de; i < ate; i++) {
+            if (destinos[i] != origem)
+                destinos[i].entregarMensagemGrupo(quadro);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// Fila de saída de uma conexão: qualquer thread enfileira (sem trava), um único escritor drena.
+// A capacidade é em bytes; ao estourar, quadros descartáveis (mensagens de chat) seguem a
+// política configurada. Quadros essenciais (handshake, IDs, listas, arquivos) nunca são descartados:
+// o remetente de um arquivo espera por espaço (precisaEsperar/aoLiberar), exceto na política DISCO,
+// em que tudo o que excede a capacidade vai para um arquivo temporário, preservando a ordem.
+//
+// Há duas classes de quadros: interativos (chat e controle) e de volume (dados de arquivo do v2).
+// Cada classe sai na ordem em que entrou, e o escritor alterna entre elas por déficit round robin
+// ponderado em bytes, de modo que mensagens passam entre os blocos de um arquivo grande em vez de
+// esperar a fila inteira. Um quadro de volume nunca passa na frente de um interativo mais antigo (o
+// cabeçalho do arquivo e os anúncios de ID que os dados pressupõem); o contrário é permitido.
+final class FilaSaida {
+    enum Politica {
+        DESCARTAR, DESCONECTAR, DISCO
+    }
+
+    // Política de descarga: o escritor junta até QUADROS_LOTE quadros (ou BYTES_LOTE bytes) numa
+    // escrita vetorizada e escreve assim que a fila esvazia, sem esperar por mais quadros
+    static final int QUADROS_LOTE = Integer.getInteger("chat.escrita.lote", 64);
+    static final int BYTES_LOTE = 256 * 1024;
+    // Uma ação de acordar por thread, reaproveitada a cada espera (ver aguardarEspaco)
+    private static final ThreadLocal<Runnable> despertador = ThreadLocal.withInitial(() -> {
+        Thread atual = Thread.currentThread();
+        return () -> LockSupport.unpark(atual);
+    });
+    // Crédito por rodada do escalonamento, em bytes: QUANTUM para o volume, PESO vezes isso para os
+    // interativos
+    static final int QUANTUM = Integer.getInteger("chat.fila.quantum", 64 * 1024);
+    static final int PESO_INTERATIVO = Integer.getInteger("chat.fila.peso", 4);
+    // Tamanho, instante, sequência e classe de cada quadro derramado
+    private static final int CABECALHO_DISCO = 21;
+
+    private final long capacidade;
+    private final Politica politica;
+    private final Queue<Pendente> memoria = new ConcurrentLinkedQueue<>();
+    private final Queue<Pendente> volume = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sequencia = new AtomicLong();
+    private final AtomicLong bytesPendentes = new AtomicLong();
+    // A capacidade para quadros interativos conta só os deles: um arquivo na fila não faz descartar chat
+    private final AtomicLong bytesInterativos = new AtomicLong();
+    private final AtomicInteger interativosNoDisco = new AtomicInteger();
+    private final AtomicInteger profundidade = new AtomicInteger();
+    private final LongAdder descartados = new LongAdder();
+    private final LongAdder derramados = new LongAdder();
+    private final AtomicInteger profundidadeMaxima = new AtomicInteger();
+    // Um conjunto, para que a mesma ação registrada de novo não se acumule nem custe uma busca linear
+    private final Set<Runnable> aoLiberar = ConcurrentHashMap.newKeySet();
+    // Só o escritor usa. O lote são os próximos quadros em memória, escritos juntos numa escrita
+    // vetorizada; quando a memória está vazia, a cabeça é um trecho do arquivo de derramamento
+    private final ByteBuffer[] lote = new ByteBuffer[QUADROS_LOTE];
+    private final int[] tamanhosLote = new int[QUADROS_LOTE];
+    private final long[] instantesLote = new long[QUADROS_LOTE];
+    private final boolean[] interativosLote = new boolean[QUADROS_LOTE];
+    private int inicioLote;
+    private int fimLote;
+    private long creditoInterativo;
+    private long creditoVolume;
+    private boolean discoNaVez;
+    private int tamanhoCabeca;
+    private long instanteCabeca;
+    private boolean cabecaInterativa;
+    private FileChannel arquivoCabeca;
+    private long posCabeca;
+    private long restanteCabeca;
+
+    // Estado do derramamento em disco, protegido por disco; só é usado com a fila cheia
+    private final Lock disco = new ReentrantLock();
+    private volatile boolean derramando;
+    private FileChannel arquivo;
+    private Path caminho;
+    private long posLeitura;
+    private long posEscrita;
+    private volatile boolean fechada;
+
+    // Quadro em memória e o instante em que entrou na fila (a latência vai para Metricas)
+    private static final class Pendente {
+        final ByteBuffer quadro;
+        // Corpo do mesmo quadro num segundo buffer (dados de arquivo depois do cabeçalho), ou null
+        final ByteBuffer resto;
+        final int tamanho;
+        final long instante = System.nanoTime();
+        final long sequencia;
+        final boolean interativo;
+
+        Pendente(ByteBuffer quadro, ByteBuffer resto, int tamanho, long sequencia, boolean interativo) {
+            this.quadro = quadro;
+            this.resto = resto;
+            this.tamanho = tamanho;
+            this.sequencia = sequencia;
+            this.interativo = interativo;
+        }
+    }
+
+    FilaSaida(long capacidade, Politica politica) {
+        this.capacidade = capacidade;
+        this.politica = politica;
+    }
+
+    // Quadro interativo; retorna false se a política manda desconectar o destinatário
+    boolean oferecer(ByteBuffer quadro, boolean descartavel) {
+        if (fechada)
+            return true;
+        int n = quadro.remaining();
+        // Só vai para o disco atrás de outro interativo que já está lá: dados de arquivo derramados
+        // não seguram as mensagens
+        if (interativosNoDisco.get() > 0)
+            return derramar(quadro, null, true);
+        if (bytesInterativos.get() + n > capacidade) {
+            if (politica == Politica.DISCO)
+                return derramar(quadro, null, true);
+            if (descartavel) {
+                descartados.increment();
+                if (politica == Politica.DESCONECTAR)
+                    return false;
+                return true;
+            }
+        }
+        adicionar(memoria, new Pendente(quadro, null, n, sequencia.incrementAndGet(), true));
+        return true;
+    }
+
+    // Se um quadro descartável de n bytes oferecido agora seria descartado (ou desconectaria o cliente)
+    boolean descartaria(int n) {
+        return politica != Politica.DISCO && interativosNoDisco.get() == 0
+                && bytesInterativos.get() + n > capacidade;
+    }
+
+    // Para dados que não podem ser descartados nem esperar o escritor (arquivo de grupo com um membro
+    // lento): com a fila cheia o excedente vai para o disco, qualquer que seja a política
+    boolean oferecerOuDerramar(ByteBuffer quadro) {
+        if (!fechada && (interativosNoDisco.get() > 0 || bytesPendentes.get() + quadro.remaining() > capacidade))
+            return derramar(quadro, null, true);
+        return oferecer(quadro, false);
+    }
+
+    // Quadro de volume, inteiro ou em dois buffers (cabeçalho e corpo) que saem juntos. Nunca é
+    // descartado; derramavel: com a fila cheia o excedente vai para o disco, qualquer que seja a política
+    boolean oferecerVolume(ByteBuffer quadro, ByteBuffer resto, boolean derramavel) {
+        if (fechada)
+            return true;
+        int n = quadro.remaining() + (resto == null ? 0 : resto.remaining());
+        // Com algo no disco, o volume vai atrás, para não passar na frente de nada mais antigo
+        if (derramando || (bytesPendentes.get() + n > capacidade && (derramavel || politica == Politica.DISCO)))
+            return derramar(quadro, resto, false);
+        adicionar(volume, new Pendente(quadro, resto, n, sequencia.incrementAndGet(), false));
+        return true;
+    }
+
+    private void adicionar(Queue<Pendente> classe, Pendente pendente) {
+        bytesPendentes.addAndGet(pendente.tamanho);
+        if (pendente.interativo)
+            bytesInterativos.addAndGet(pendente.tamanho);
+        int p = profundidade.incrementAndGet();
+        classe.add(pendente);
+        if (p > profundidadeMaxima.get())
+            profundidadeMaxima.accumulateAndGet(p, Math::max);
+    }
+
+    // Escreve no canal o que houver na fila; retorna true se a fila esvaziou, false se o canal não
+    // aceita mais nada agora (só acontece com canais não bloqueantes). Quadros em memória saem em
+    // lotes por escrita vetorizada; trechos derramados em disco vão para o socket por transferTo, sem
+    // passar pelo heap. Só o escritor chama.
+    boolean escreverEm(GatheringByteChannel canal) throws IOException {
+        while (true) {
+            if (inicioLote == fimLote && restanteCabeca == 0 && !avancar())
+                return true;
+            if (inicioLote < fimLote) {
+                canal.write(lote, inicioLote, fimLote - inicioLote);
+                long agora = System.nanoTime();
+                while (inicioLote < fimLote && !lote[inicioLote].hasRemaining()) {
+                    ByteBuffer escrito = lote[inicioLote];
+                    if (tamanhosLote[inicioLote] >= 0)
+                        Metricas.latenciaFila.registrar(agora - instantesLote[inicioLote]);
+                    remover();
+                    ReservaBuffers.devolver(escrito);
+                }
+                if (inicioLote < fimLote)
+                    return false;
+            } else {
+                long n = arquivoCabeca.transferTo(posCabeca, restanteCabeca, canal);
+                if (n == 0)
+                    return false;
+                posCabeca += n;
+                restanteCabeca -= n;
+                if (restanteCabeca == 0) {
+                    Metricas.latenciaFila.registrar(System.nanoTime() - instanteCabeca);
+                    remover();
+                }
+            }
+        }
+    }
+
+    // Próximo quadro a escrever, sem removê-lo, sempre em memória (para quem repassa os quadros a
+    // outra fila, como os adiados do v1)
+    ByteBuffer espiar() throws IOException {
+        if (inicioLote == fimLote && restanteCabeca == 0)
+            avancar();
+        if (inicioLote == fimLote && restanteCabeca > 0) {
+            ByteBuffer quadro = ByteBuffer.allocate((int) restanteCabeca);
+            lerTudo(arquivoCabeca, quadro, posCabeca);
+            inicioLote = 0;
+            fimLote = 1;
+            lote[0] = quadro.flip();
+            tamanhosLote[0] = tamanhoCabeca;
+            instantesLote[0] = instanteCabeca;
+            interativosLote[0] = cabecaInterativa;
+            arquivoCabeca = null;
+            restanteCabeca = 0;
+        }
+        return inicioLote < fimLote ? lote[inicioLote] : null;
+    }
+
+    // Descarta o primeiro quadro, já escrito por inteiro
+    void remover() {
+        int n;
+        boolean interativo;
+        if (inicioLote < fimLote) {
+            n = tamanhosLote[inicioLote];
+            interativo = interativosLote[inicioLote];
+            lote[inicioLote++] = null;
+            if (inicioLote == fimLote)
+                inicioLote = fimLote = 0;
+            // Cabeçalho de um quadro em dois buffers: a contagem fica para o corpo
+            if (n < 0)
+                return;
+        } else if (arquivoCabeca != null) {
+            n = tamanhoCabeca;
+            interativo = cabecaInterativa;
+            arquivoCabeca = null;
+            restanteCabeca = 0;
+        } else {
+            return;
+        }
+        if (interativo)
+            bytesInterativos.addAndGet(-n);
+        long restantes = bytesPendentes.addAndGet(-n);
+        profundidade.decrementAndGet();
+        if (restantes <= capacidade / 2 && !aoLiberar.isEmpty())
+            liberar();
+    }
+
+    boolean vazia() {
+        return inicioLote == fimLote && restanteCabeca == 0 && profundidade.get() == 0;
+    }
+
+    // Verdadeiro se quem produz dados de arquivo para esta fila deve esperar o escritor
+    boolean precisaEsperar() {
+        return politica != Politica.DISCO && cheia();
+    }
+
+    // Capacidade atingida, em memória ou em disco, qualquer que seja a política
+    boolean cheia() {
+        return !fechada && bytesPendentes.get() >= capacidade;
+    }
+
+    boolean fechada() {
+        return fechada;
+    }
+
+    // Executa a ação uma vez, quando a fila voltar abaixo da metade da capacidade (ou for fechada). A
+    // mesma ação registrada de novo antes disso não se repete.
+    void aoLiberar(Runnable acao) {
+        aoLiberar.add(acao);
+        if (!cheia())
+            liberar();
+    }
+
+    // Bloqueia a thread atual enquanto a fila estiver cheia
+    void aguardarEspaco() {
+        Runnable acordar = despertador.get();
+        while (cheia()) {
+            aoLiberar(acordar);
+            LockSupport.parkNanos(100_000_000L);
+        }
+    }
+
+    void fechar() {
+        fechada = true;
+        for (Queue<Pendente> classe : List.of(memoria, volume)) {
+            Pendente pendente;
+            while ((pendente = classe.poll()) != null) {
+                ReservaBuffers.devolver(pendente.quadro);
+                if (pendente.resto != null)
+                    ReservaBuffers.devolver(pendente.resto);
+            }
+        }
+        liberar();
+        disco.lock();
+        try {
+            if (arquivo != null) {
+                arquivo.close();
+                Files.deleteIfExists(caminho);
+                arquivo = null;
+            }
+        } catch (IOException e) {
+        } finally {
+            disco.unlock();
+        }
+    }
+
+    long bytesPendentes() {
+        return bytesPendentes.get();
+    }
+
+    int profundidade() {
+        return profundidade.get();
+    }
+
+    int profundidadeMaxima() {
+        return profundidadeMaxima.get();
+    }
+
+    long descartados() {
+        return descartados.sum();
+    }
+
+    long derramados() {
+        return derramados.sum();
+    }
+
+    // Quem remove a ação é quem a executa, mesmo que o escritor e fechar() liberem ao mesmo tempo
+    private void liberar() {
+        for (Runnable acao : aoLiberar) {
+            if (aoLiberar.remove(acao))
+                acao.run();
+        }
+    }
+
+    private boolean derramar(ByteBuffer quadro, ByteBuffer resto, boolean interativo) {
+        disco.lock();
+        try {
+            if (fechada)
+                return true;
+            if (arquivo == null) {
+                caminho = Files.createTempFile("chat-fila-", ".spill");
+                arquivo = FileChannel.open(caminho, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            int n = quadro.remaining() + (resto == null ? 0 : resto.remaining());
+            ByteBuffer cabecalho = ByteBuffer.allocate(CABECALHO_DISCO).putInt(0, n).putLong(4, System.nanoTime())
+                    .putLong(12, sequencia.incrementAndGet()).put(20, (byte) (interativo ? 1 : 0));
+            posEscrita += escreverTudo(cabecalho, posEscrita);
+            posEscrita += escreverTudo(quadro, posEscrita);
+            ReservaBuffers.devolver(quadro);
+            if (resto != null) {
+                posEscrita += escreverTudo(resto, posEscrita);
+                ReservaBuffers.devolver(resto);
+            }
+            bytesPendentes.addAndGet(n);
+            if (interativo) {
+                bytesInterativos.addAndGet(n);
+                interativosNoDisco.incrementAndGet();
+            }
+            profundidade.incrementAndGet();
+            derramados.increment();
+            derramando = true;
+            return true;
+        } catch (IOException e) {
+            Registro.aviso("Falha ao derramar fila de saída em disco: " + e.getMessage());
+            return false;
+        } finally {
+            disco.unlock();
+        }
+    }
+
+    // Monta o próximo lote com uma rodada do escalonamento entre as classes em memória ou põe na
+    // cabeça o próximo trecho do disco; false se não há nada. Enquanto houver volume no disco e não
+    // em memória, o disco e as rodadas se alternam.
+    private boolean avancar() throws IOException {
+        while (true) {
+            boolean emMemoria = !memoria.isEmpty() || !volume.isEmpty();
+            if (discoNaVez || !emMemoria) {
+                discoNaVez = false;
+                long seq = proximoNoDisco();
+                Pendente interativo = memoria.peek();
+                if (seq >= 0 && (interativo == null || interativo.sequencia > seq))
+                    return carregarDisco();
+                if (seq < 0 && !emMemoria)
+                    return false;
+            }
+            boolean tomouVolume = rodada();
+            if (fimLote > 0) {
+                discoNaVez = derramando && !tomouVolume;
+                return true;
+            }
+        }
+    }
+
+    // Déficit round robin: interativos até o crédito deles, depois volume até o dele, que só anda
+    // enquanto não houver interativo mais antigo esperando. Retorna se tirou algo do volume.
+    private boolean rodada() {
+        int bytes = 0;
+        Pendente p;
+        if (!memoria.isEmpty()) {
+            creditoInterativo += (long) QUANTUM * PESO_INTERATIVO;
+            while ((p = memoria.peek()) != null && p.tamanho <= creditoInterativo && cabe(p, bytes)) {
+                memoria.poll();
+                creditoInterativo -= p.tamanho;
+                bytes += p.tamanho;
+                porNoLote(p);
+            }
+        }
+        if (memoria.isEmpty())
+            creditoInterativo = 0;
+        boolean tomou = false;
+        if (!volume.isEmpty()) {
+            creditoVolume += QUANTUM;
+            while ((p = volume.peek()) != null && p.tamanho <= creditoVolume && cabe(p, bytes)) {
+                Pendente interativo = memoria.peek();
+                if (interativo != null && interativo.sequencia < p.sequencia)
+                    break;
+                volume.poll();
+                creditoVolume -= p.tamanho;
+                bytes += p.tamanho;
+                porNoLote(p);
+                tomou = true;
+            }
+        }
+        if (volume.isEmpty())
+            creditoVolume = 0;
+        return tomou;
+    }
+
+    private boolean cabe(Pendente p, int bytes) {
+        return fimLote + (p.resto == null ? 1 : 2) <= lote.length && bytes < BYTES_LOTE;
+    }
+
+    private void porNoLote(Pendente p) {
+        if (p.resto != null) {
+            lote[fimLote] = p.quadro;
+            instantesLote[fimLote] = p.instante;
+            interativosLote[fimLote] = p.interativo;
+            tamanhosLote[fimLote++] = -1;
+        }
+        lote[fimLote] = p.resto != null ? p.resto : p.quadro;
+        instantesLote[fimLote] = p.instante;
+        interativosLote[fimLote] = p.interativo;
+        tamanhosLote[fimLote++] = p.tamanho;
+    }
+
+    // Sequência do próximo quadro no disco, sem tirá-lo; -1 se não há nada lá
+    private long proximoNoDisco() throws IOException {
+        if (!derramando)
+            return -1;
+        disco.lock();
+        try {
+            if (arquivo == null || posLeitura >= posEscrita) {
+                // Tudo o que foi para o disco já saiu: volta a usar só a memória
+                derramando = false;
+                posLeitura = posEscrita = 0;
+                if (arquivo != null)
+                    arquivo.truncate(0);
+                return -1;
+            }
+            ByteBuffer cabecalho = ByteBuffer.allocate(CABECALHO_DISCO);
+            lerTudo(arquivo, cabecalho, posLeitura);
+            return cabecalho.getLong(12);
+        } finally {
+            disco.unlock();
+        }
+    }
+
+    // Põe na cabeça o próximo trecho do disco, que proximoNoDisco() viu que existe
+    private boolean carregarDisco() throws IOException {
+        disco.lock();
+        try {
+            ByteBuffer cabecalho = ByteBuffer.allocate(CABECALHO_DISCO);
+            posLeitura += lerTudo(arquivo, cabecalho, posLeitura);
+            tamanhoCabeca = cabecalho.getInt(0);
+            instanteCabeca = cabecalho.getLong(4);
+            cabecaInterativa = cabecalho.get(20) != 0;
+            if (cabecaInterativa)
+                interativosNoDisco.decrementAndGet();
+            arquivoCabeca = arquivo;
+            posCabeca = posLeitura;
+            restanteCabeca = tamanhoCabeca;
+            posLeitura += tamanhoCabeca;
+            return true;
+        } finally {
+            disco.unlock();
+        }
+    }
+
+    private int escreverTudo(ByteBuffer buf, long pos) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining())
+            total += arquivo.write(buf, pos + total);
+        return total;
+    }
+
+    private static int lerTudo(FileChannel arquivo, ByteBuffer buf, long pos) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = arquivo.read(buf, pos + total);
+            if (n < 0)
+                throw new EOFException();
+            total += n;
+        }
+        return total;
+    }
+}
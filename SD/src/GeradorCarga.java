@@ -0,0 +1,347 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Gerador de carga: abre usuários simulados com o ClienteChat, monta grupos e envia mensagens e
+// arquivos em taxas fixas (laço aberto: um envio atrasado não empurra os seguintes) contra um
+// servidor já em execução. Cada mensagem leva o instante do envio no texto e cada arquivo no nome,
+// de modo que quem recebe mede a latência de entrega; como todos os usuários vivem nesta JVM, os
+// relógios são o mesmo. No fim relata vazão, percentis de latência e erros.
+//
+//   java GeradorCarga
+//
+// Parâmetros por propriedades do sistema (padrões entre parênteses):
+//   carga.host (localhost), carga.porta (8080), carga.usuarios (50), carga.prefixo (carga),
+//   carga.capacidades (as do ChatClient; "" para v1), carga.grupos (5), carga.membros (10),
+//   carga.mensagens (mensagens por segundo, 200), carga.mensagem.tamanho (64 caracteres),
+//   carga.grupo.fracao (fração dos envios para grupos, 0.2), carga.arquivos (arquivos por segundo, 1),
+//   carga.arquivo.tamanho (65536 bytes), carga.duracao (30 s), carga.dreno (10 s),
+//   carga.arquivo.repetido (false)
+//
+// Cada arquivo tem conteúdo próprio, gerado a partir do seu número, para que a carga meça o envio e
+// não o depósito do servidor (Blobs) nem a cópia que o destinatário já tem. Com
+// carga.arquivo.repetido=true todos têm o mesmo conteúdo, o que mede justamente esses atalhos.
+public class GeradorCarga {
+    private static final String HOST = System.getProperty("carga.host", "localhost");
+    private static final int PORTA = Integer.getInteger("carga.porta", 8080);
+    private static final int USUARIOS = Integer.getInteger("carga.usuarios", 50);
+    private static final String PREFIXO = System.getProperty("carga.prefixo", "carga");
+    private static final String CAPACIDADES = System.getProperty("carga.capacidades", ClienteChat.CAPACIDADES);
+    private static final int GRUPOS = Integer.getInteger("carga.grupos", 5);
+    private static final int MEMBROS = Math.min(Integer.getInteger("carga.membros", 10), USUARIOS);
+    private static final double MENSAGENS = Double.parseDouble(System.getProperty("carga.mensagens", "200"));
+    private static final int TAMANHO_MENSAGEM = Integer.getInteger("carga.mensagem.tamanho", 64);
+    private static final double FRACAO_GRUPO = Double.parseDouble(System.getProperty("carga.grupo.fracao", "0.2"));
+    private static final double ARQUIVOS = Double.parseDouble(System.getProperty("carga.arquivos", "1"));
+    private static final int TAMANHO_ARQUIVO = Integer.getInteger("carga.arquivo.tamanho", 65536);
+    private static final boolean REPETIDO = Boolean.getBoolean("carga.arquivo.repetido");
+    private static final int DURACAO = Integer.getInteger("carga.duracao", 30);
+    private static final int DRENO = Integer.getInteger("carga.dreno", 10);
+
+    private final List<Usuario> usuarios = new ArrayList<>();
+    private final Map<String, List<Usuario>> grupos = new LinkedHashMap<>();
+    private final Path diretorio;
+    // Só a thread que envia os arquivos usa
+    private final byte[] conteudo = new byte[TAMANHO_ARQUIVO];
+    private volatile boolean encerrando;
+
+    private final Histograma latenciaMensagens = new Histograma();
+    private final Histograma latenciaArquivos = new Histograma();
+    private final LongAdder mensagensEnviadas = new LongAdder();
+    private final LongAdder mensagensEsperadas = new LongAdder();
+    private final LongAdder mensagensEntregues = new LongAdder();
+    private final LongAdder arquivosEnviados = new LongAdder();
+    private final LongAdder arquivosEsperados = new LongAdder();
+    private final LongAdder arquivosEntregues = new LongAdder();
+    private final LongAdder bytesArquivos = new LongAdder();
+    private final Map<String, LongAdder> erros = new ConcurrentSkipListMap<>();
+    private final AtomicLong sequenciaArquivos = new AtomicLong();
+
+    // Um usuário simulado: o cliente e os eventos que interessam à medição
+    private final class Usuario implements ClienteChat.Ouvinte {
+        final String nome;
+        final ClienteChat cliente;
+        final Set<String> grupos = ConcurrentHashMap.newKeySet();
+
+        Usuario(String nome) throws IOException {
+            this.nome = nome;
+            cliente = new ClienteChat(HOST, PORTA, CAPACIDADES, this);
+            Path dir = Files.createDirectories(diretorio.resolve(nome));
+            cliente.setDiretorio(dir.toFile());
+        }
+
+        public void grupo(String grupo) {
+            grupos.add(grupo);
+        }
+
+        public void mensagem(String remetente, String texto) {
+            entregue(texto);
+        }
+
+        public void mensagemGrupo(String grupo, String remetente, String texto) {
+            entregue(texto);
+        }
+
+        public void arquivoRecebido(String remetente, String grupo, File arquivo) {
+            long enviado = instante(arquivo.getName(), 6);
+            if (enviado >= 0) {
+                latenciaArquivos.registrar((System.nanoTime() - enviado) / 1000);
+                arquivosEntregues.increment();
+                bytesArquivos.add(arquivo.length());
+            }
+            arquivo.delete();
+        }
+
+        public void arquivoEnviado(String destino, File arquivo, boolean ok, String resultado) {
+            if (!ok)
+                erro("arquivo: " + resultado);
+            arquivo.delete();
+        }
+
+        public void erro(String texto) {
+            GeradorCarga.this.erro("servidor: " + texto);
+        }
+
+        public void conexaoPerdida() {
+            GeradorCarga.this.erro("conexão perdida");
+        }
+
+        public void desconectado() {
+            if (!encerrando)
+                GeradorCarga.this.erro("desconectado");
+        }
+    }
+
+    private GeradorCarga() throws IOException {
+        diretorio = Files.createTempDirectory("carga");
+        new Random(1).nextBytes(conteudo);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new GeradorCarga().executar();
+    }
+
+    private void executar() throws Exception {
+        System.out.printf("%d usuários em %s:%d, %d grupos de %d, %.0f mensagens/s, %.1f arquivos/s de %d bytes%s, "
+                + "%d s%n", USUARIOS, HOST, PORTA, GRUPOS, MEMBROS, MENSAGENS, ARQUIVOS, TAMANHO_ARQUIVO,
+                REPETIDO ? " (repetidos)" : "", DURACAO);
+        long inicio = System.nanoTime();
+        for (int i = 0; i < USUARIOS; i++) {
+            Usuario u = new Usuario(PREFIXO + i);
+            try {
+                if (u.cliente.conectar(u.nome))
+                    usuarios.add(u);
+                else
+                    erro("nome recusado");
+            } catch (IOException e) {
+                erro("conexão: " + e.getMessage());
+            }
+        }
+        System.out.printf("%d usuários conectados em %.2f s%n", usuarios.size(), (System.nanoTime() - inicio) / 1e9);
+        if (usuarios.size() < 2) {
+            relatar(0);
+            return;
+        }
+        // Espera a presença assentar para que todos conheçam os IDs de todos no v2
+        Thread.sleep(500);
+        montarGrupos();
+
+        Thread mensagens = pacer("mensagens", MENSAGENS, this::enviarMensagem);
+        Thread arquivos = pacer("arquivos", ARQUIVOS, this::enviarArquivo);
+        inicio = System.nanoTime();
+        long fim = inicio + DURACAO * 1_000_000_000L;
+        while (System.nanoTime() < fim) {
+            Thread.sleep(Math.min(5000, Math.max(1, (fim - System.nanoTime()) / 1_000_000)));
+            System.out.printf("%5.1f s: %d/%d mensagens entregues, p99 %.2f ms; %d/%d arquivos%n",
+                    (System.nanoTime() - inicio) / 1e9, mensagensEntregues.sum(), mensagensEsperadas.sum(),
+                    latenciaMensagens.quantil(0.99) / 1000.0, arquivosEntregues.sum(), arquivosEsperados.sum());
+        }
+        mensagens.interrupt();
+        arquivos.interrupt();
+        mensagens.join();
+        arquivos.join();
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        long limite = System.nanoTime() + DRENO * 1_000_000_000L;
+        while (System.nanoTime() < limite && (mensagensEntregues.sum() < mensagensEsperadas.sum()
+                || arquivosEntregues.sum() < arquivosEsperados.sum()))
+            Thread.sleep(50);
+        relatar(segundos);
+        encerrando = true;
+        for (Usuario u : usuarios)
+            u.cliente.sair();
+        apagar(diretorio.toFile());
+    }
+
+    // O primeiro membro cria o grupo e adiciona os demais, que são os seguintes na lista de usuários
+    private void montarGrupos() throws InterruptedException {
+        long inicio = System.nanoTime();
+        int membros = Math.min(MEMBROS, usuarios.size());
+        for (int g = 0; g < GRUPOS; g++) {
+            String nome = PREFIXO + "_g" + g;
+            List<Usuario> lista = new ArrayList<>();
+            for (int k = 0; k < membros; k++)
+                lista.add(usuarios.get((g * membros + k) % usuarios.size()));
+            Usuario dono = lista.get(0);
+            dono.cliente.criarGrupo(nome);
+            if (!esperar(() -> dono.grupos.contains(nome))) {
+                erro("grupo não criado");
+                continue;
+            }
+            for (Usuario u : lista.subList(1, lista.size())) {
+                if (!esperar(() -> dono.cliente.adicionarMembro(nome, u.nome)))
+                    erro("membro não adicionado");
+            }
+            grupos.put(nome, lista);
+        }
+        for (Map.Entry<String, List<Usuario>> g : grupos.entrySet()) {
+            for (Usuario u : g.getValue()) {
+                if (!esperar(() -> u.grupos.contains(g.getKey())))
+                    erro("membro não avisado do grupo");
+            }
+        }
+        System.out.printf("%d grupos montados em %.2f s%n", grupos.size(), (System.nanoTime() - inicio) / 1e9);
+    }
+
+    private static boolean esperar(java.util.function.BooleanSupplier condicao) throws InterruptedException {
+        long limite = System.nanoTime() + 10_000_000_000L;
+        while (!condicao.getAsBoolean()) {
+            if (System.nanoTime() > limite)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    // Chama envio a cada 1/taxa segundos contados do início, até ser interrompida
+    private Thread pacer(String nome, double taxa, Runnable envio) {
+        Thread t = new Thread(() -> {
+            if (taxa <= 0)
+                return;
+            long intervalo = (long) (1_000_000_000L / taxa);
+            long proximo = System.nanoTime();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long espera = proximo - System.nanoTime();
+                    if (espera > 0)
+                        Thread.sleep(espera / 1_000_000, (int) (espera % 1_000_000));
+                    envio.run();
+                    proximo += intervalo;
+                }
+            } catch (InterruptedException e) {
+            }
+        }, "carga-" + nome);
+        t.start();
+        return t;
+    }
+
+    private void enviarMensagem() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        StringBuilder texto = new StringBuilder(TAMANHO_MENSAGEM + 24).append('t').append(System.nanoTime()).append(' ');
+        while (texto.length() < TAMANHO_MENSAGEM)
+            texto.append((char) ('a' + r.nextInt(26)));
+        Envio envio = sortear(r);
+        if (envio.remetente.cliente.enviarMensagem(envio.destino, texto.toString())) {
+            mensagensEnviadas.increment();
+            mensagensEsperadas.add(envio.destinatarios);
+        } else {
+            erro("mensagem: destino desconhecido");
+        }
+    }
+
+    private void enviarArquivo() {
+        Envio envio = sortear(ThreadLocalRandom.current());
+        long numero = sequenciaArquivos.incrementAndGet();
+        File arquivo = diretorio.resolve("carga-" + System.nanoTime() + "-" + numero + ".bin").toFile();
+        if (!REPETIDO)
+            new Random(numero).nextBytes(conteudo);
+        try {
+            Files.write(arquivo.toPath(), conteudo);
+            arquivosEsperados.add(envio.destinatarios);
+            arquivosEnviados.increment();
+            // Apagado em arquivoEnviado, quando o envio em segundo plano termina
+            envio.remetente.cliente.enviarArquivo(envio.destino, arquivo);
+        } catch (IOException e) {
+            erro("arquivo: " + e.getMessage());
+            arquivo.delete();
+        }
+    }
+
+    private record Envio(Usuario remetente, String destino, int destinatarios) {
+    }
+
+    private Envio sortear(ThreadLocalRandom r) {
+        if (!grupos.isEmpty() && r.nextDouble() < FRACAO_GRUPO) {
+            List<String> nomes = new ArrayList<>(grupos.keySet());
+            String grupo = nomes.get(r.nextInt(nomes.size()));
+            List<Usuario> membros = grupos.get(grupo);
+            return new Envio(membros.get(r.nextInt(membros.size())), grupo, membros.size() - 1);
+        }
+        int de = r.nextInt(usuarios.size());
+        int para = (de + 1 + r.nextInt(usuarios.size() - 1)) % usuarios.size();
+        return new Envio(usuarios.get(de), usuarios.get(para).nome, 1);
+    }
+
+    // Instante de envio no formato "<letra><nanos><separador>..." a partir de inicio; -1 se não for da carga
+    private static long instante(String texto, int inicio) {
+        int fim = inicio;
+        while (fim < texto.length() && Character.isDigit(texto.charAt(fim)))
+            fim++;
+        return fim == inicio ? -1 : Long.parseLong(texto, inicio, fim, 10);
+    }
+
+    private void entregue(String texto) {
+        if (!texto.startsWith("t"))
+            return;
+        long enviado = instante(texto, 1);
+        if (enviado >= 0) {
+            latenciaMensagens.registrar((System.nanoTime() - enviado) / 1000);
+            mensagensEntregues.increment();
+        }
+    }
+
+    private void erro(String tipo) {
+        erros.computeIfAbsent(tipo, k -> new LongAdder()).increment();
+    }
+
+    private void relatar(double segundos) {
+        System.out.println();
+        System.out.printf("Mensagens: %d enviadas, %d de %d entregas (%.1f%%)%n", mensagensEnviadas.sum(),
+                mensagensEntregues.sum(), mensagensEsperadas.sum(),
+                100.0 * mensagensEntregues.sum() / Math.max(1, mensagensEsperadas.sum()));
+        if (segundos > 0)
+            System.out.printf("  vazão: %.0f enviadas/s, %.0f entregas/s%n", mensagensEnviadas.sum() / segundos,
+                    mensagensEntregues.sum() / segundos);
+        percentis("  latência de entrega", latenciaMensagens);
+        System.out.printf("Arquivos: %d enviados, %d de %d entregas (%.1f%%)%n", arquivosEnviados.sum(),
+                arquivosEntregues.sum(), arquivosEsperados.sum(),
+                100.0 * arquivosEntregues.sum() / Math.max(1, arquivosEsperados.sum()));
+        if (segundos > 0)
+            System.out.printf("  vazão: %.2f MB/s entregues%n", bytesArquivos.sum() / segundos / (1 << 20));
+        percentis("  latência de entrega", latenciaArquivos);
+        long total = 0;
+        for (LongAdder n : erros.values())
+            total += n.sum();
+        System.out.println("Erros: " + total);
+        for (Map.Entry<String, LongAdder> e : erros.entrySet())
+            System.out.println("  " + e.getKey() + ": " + e.getValue().sum());
+    }
+
+    private static void percentis(String rotulo, Histograma h) {
+        if (h.quantidade() == 0)
+            return;
+        System.out.printf("%s (ms): p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, máx %.2f%n", rotulo,
+                h.quantil(0.5) / 1000.0, h.quantil(0.9) / 1000.0, h.quantil(0.99) / 1000.0,
+                h.quantil(0.999) / 1000.0, h.maximo() / 1000.0);
+    }
+
+    private static void apagar(File f) {
+        File[] filhos = f.listFiles();
+        if (filhos != null) {
+            for (File filho : filhos)
+                apagar(filho);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.*;
+
+// Histograma log-linear no estilo HDR: valores até 2^BITS são contados exatamente e, acima disso,
+// cada potência de 2 é dividida em 2^(BITS-1) faixas, o que dá erro relativo abaixo de 2^-(BITS-1).
+// Registrar é só um incremento atômico numa das faixas de uma listra escolhida pela thread, sem
+// travas; a leitura soma as listras e é aproximada enquanto houver registros concorrentes.
+final class Histograma {
+    private static final int BITS = 5;
+    private static final int SUB = 1 << BITS;
+    private static final int METADE = SUB >> 1;
+    private static final int FAIXAS = (64 - BITS + 2) * METADE;
+    private static final int LISTRAS = 8;
+
+    private final AtomicLongArray[] listras = new AtomicLongArray[LISTRAS];
+    private final LongAdder quantidade = new LongAdder();
+    private final LongAdder soma = new LongAdder();
+    private final AtomicLong maximo = new AtomicLong();
+
+    Histograma() {
+        for (int i = 0; i < LISTRAS; i++)
+            listras[i] = new AtomicLongArray(FAIXAS);
+    }
+
+    void registrar(long valor) {
+        if (valor < 0)
+            valor = 0;
+        listras[(int) Thread.currentThread().threadId() & (LISTRAS - 1)].incrementAndGet(faixa(valor));
+        quantidade.increment();
+        soma.add(valor);
+        if (valor > maximo.get())
+            maximo.accumulateAndGet(valor, Math::max);
+    }
+
+    long quantidade() {
+        return quantidade.sum();
+    }
+
+    long media() {
+        long n = quantidade.sum();
+        return n == 0 ? 0 : soma.sum() / n;
+    }
+
+    long maximo() {
+        return maximo.get();
+    }
+
+    // Maior valor da faixa que contém o quantil q (0 < q <= 1)
+    long quantil(double q) {
+        long[] contagens = new long[FAIXAS];
+        long total = 0;
+        for (AtomicLongArray listra : listras) {
+            for (int i = 0; i < FAIXAS; i++) {
+                long c = listra.get(i);
+                contagens[i] += c;
+                total += c;
+            }
+        }
+        if (total == 0)
+            return 0;
+        long alvo = (long) Math.ceil(q * total);
+        long acumulado = 0;
+        for (int i = 0; i < FAIXAS; i++) {
+            acumulado += contagens[i];
+            if (acumulado >= alvo)
+                return Math.min(limiteSuperior(i), maximo.get());
+        }
+        return maximo.get();
+    }
+
+    private static int faixa(long valor) {
+        if (valor < SUB)
+            return (int) valor;
+        int expoente = 64 - Long.numberOfLeadingZeros(valor) - BITS;
+        return expoente * METADE + (int) (valor >>> expoente);
+    }
+
+    private static long limiteSuperior(int faixa) {
+        if (faixa < SUB)
+            return faixa;
+        int expoente = faixa / METADE - 1;
+        long sub = faixa % METADE + METADE;
+        return ((sub + 1) << expoente) - 1;
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Detecção de conexões mortas ou meio abertas, que de outro modo só seriam notadas quando uma escrita
+// falhasse. Cada sessão tem uma vigia numa roda de tempo só: sem login em HANDSHAKE, a conexão é
+// fechada; depois, quem negociou a capacidade "ping" recebe um PING após INTERVALO sem mandar nada e
+// é encerrado (e anunciado como saída à presença) se continuar calado até LIMITE. Qualquer quadro ou
+// linha conta como sinal de vida, inclusive o PONG. Clientes sem "ping" só são encerrados por
+// inatividade se -Dchat.inativo.limite for dado, já que não têm como provar que estão vivos.
+final class Inatividade {
+    static final String CAPACIDADE = "ping";
+    static final long HANDSHAKE = segundos("chat.handshake.limite", 10);
+    static final long INTERVALO = segundos("chat.ping.intervalo", 30);
+    static final long LIMITE = segundos("chat.ping.limite", 90);
+    static final long LIMITE_SEM_PING = segundos("chat.inativo.limite", 0);
+
+    // Ticks de 100 ms e 512 casas: uma volta a cada 51 s, prazos de até alguns minutos em poucas voltas
+    static final RodaTempo roda = new RodaTempo("inatividade",
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.roda.tick", 100)),
+            Integer.getInteger("chat.roda.casas", 512));
+
+    // Totais do processo, expostos por Metricas
+    static final LongAdder pings = new LongAdder();
+    static final LongAdder handshakesExpirados = new LongAdder(), inativasEncerradas = new LongAdder();
+
+    private Inatividade() {
+    }
+
+    private static long segundos(String propriedade, long padrao) {
+        return TimeUnit.SECONDS.toNanos(Long.getLong(propriedade, padrao));
+    }
+}
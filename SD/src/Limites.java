@@ -0,0 +1,65 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Limites por usuário, cada um um balde de fichas da sessão: a taxa de mensagens de chat (o excesso é
+// recusado com um ERRO) e a banda de upload de arquivos (o excesso espera: a leitura da conexão pára
+// até a cota repor e o TCP freia o remetente). Taxa 0 desliga o limite.
+final class Limites {
+    // Mensagens por segundo e quantas podem sair de uma vez depois de um tempo parado
+    static final int MENSAGENS = Integer.getInteger("chat.limite.mensagens", 0);
+    static final int RAJADA_MENSAGENS = Integer.getInteger("chat.limite.mensagens.rajada", 2 * MENSAGENS);
+    // Bytes por segundo de corpo de arquivo, na forma em que chegam (comprimidos ou não)
+    static final long UPLOAD = Long.getLong("chat.limite.upload", 0);
+    static final long RAJADA_UPLOAD = Long.getLong("chat.limite.upload.rajada", UPLOAD);
+
+    // Totais do processo, expostos por Metricas
+    static final LongAdder mensagensRecusadas = new LongAdder();
+    static final LongAdder esperasUpload = new LongAdder(), nanosEsperaUpload = new LongAdder();
+
+    private Limites() {
+    }
+
+    // null se o limite está desligado
+    static Balde mensagens() {
+        return MENSAGENS > 0 ? new Balde(MENSAGENS, Math.max(1, RAJADA_MENSAGENS)) : null;
+    }
+
+    static Balde upload() {
+        return UPLOAD > 0 ? new Balde(UPLOAD, Math.max(1, RAJADA_UPLOAD)) : null;
+    }
+
+    // Balde de uma sessão; só a thread que lê a conexão usa
+    static final class Balde {
+        private final double porNano;
+        private final double capacidade;
+        private double fichas;
+        private long ultimo = System.nanoTime();
+
+        Balde(double porSegundo, double capacidade) {
+            this.porNano = porSegundo / 1e9;
+            this.capacidade = capacidade;
+            this.fichas = capacidade;
+        }
+
+        // Tira uma ficha, se houver
+        boolean tirar() {
+            repor();
+            if (fichas < 1)
+                return false;
+            fichas--;
+            return true;
+        }
+
+        // Tira n fichas, mesmo que fique devendo; retorna quantos nanossegundos faltam para quitar
+        long tirar(long n) {
+            repor();
+            fichas -= n;
+            return fichas >= 0 ? 0 : (long) (-fichas / porNano);
+        }
+
+        private void repor() {
+            long agora = System.nanoTime();
+            fichas = Math.min(capacidade, fichas + (agora - ultimo) * porNano);
+            ultimo = agora;
+        }
+    }
+}
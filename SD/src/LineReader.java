@@ -0,0 +1,149 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Decodificador de linhas com buffer reaproveitado, usado pelo cliente e pelos dois motores do servidor.
+// Lê do socket em blocos em vez de um byte por chamada. Bytes que chegam junto com um cabeçalho
+// ARQUIVO:/arquivo e já pertencem ao corpo binário ficam no buffer e são entregues por read(),
+// nunca interpretados como texto.
+class LineReader {
+    private static final int TAMANHO_INICIAL = 8 * 1024;
+    private static final int TAMANHO_MAX_LINHA = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] buf = new byte[TAMANHO_INICIAL];
+    private int inicio;
+    private int fim;
+    // Posição até onde já se procurou '\n', para não reexaminar bytes a cada leitura parcial
+    private int varrido;
+
+    LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    // Modo sem InputStream: os bytes são entregues por alimentar() (motor NIO)
+    LineReader() {
+        this(null);
+    }
+
+    // Retorna a próxima linha sem o terminador, ou null no fim do fluxo
+    String readLine() throws IOException {
+        while (true) {
+            String linha = proximaLinha();
+            if (linha != null)
+                return linha;
+            if (!preencher()) {
+                if (fim == inicio)
+                    return null;
+                return extrair(fim, fim);
+            }
+        }
+    }
+
+    // Retorna a próxima linha completa já no buffer, ou null se ainda falta o '\n'
+    String proximaLinha() throws IOException {
+        for (int i = Math.max(inicio, varrido); i < fim; i++) {
+            if (buf[i] == '\n')
+                return extrair(i, i + 1);
+        }
+        varrido = fim;
+        if (fim - inicio > TAMANHO_MAX_LINHA)
+            throw new IOException("Linha excede " + TAMANHO_MAX_LINHA + " bytes");
+        return null;
+    }
+
+    // Lê um quadro v2 inteiro e aponta o leitor para o conteúdo; retorna o tipo ou -1 no fim do fluxo
+    int lerQuadro(ProtocoloV2.Leitor leitor) throws IOException {
+        int tipo;
+        while ((tipo = proximoQuadro(leitor)) == -1) {
+            if (!preencher()) {
+                if (fim != inicio)
+                    throw new EOFException("Quadro v2 incompleto");
+                return -1;
+            }
+        }
+        return tipo;
+    }
+
+    // Retorna o tipo do próximo quadro v2 já completo no buffer, ou -1 se ainda faltam bytes.
+    // O conteúdo fica no próprio buffer e o leitor vale até a próxima leitura do fluxo.
+    int proximoQuadro(ProtocoloV2.Leitor leitor) throws IOException {
+        int disponiveis = fim - inicio;
+        if (disponiveis < ProtocoloV2.CABECALHO)
+            return -1;
+        int n = ((buf[inicio + 1] & 0xFF) << 24) | ((buf[inicio + 2] & 0xFF) << 16) | ((buf[inicio + 3] & 0xFF) << 8)
+                | (buf[inicio + 4] & 0xFF);
+        if (n < 0 || n > ProtocoloV2.TAMANHO_MAX_QUADRO)
+            throw new IOException("Quadro v2 com tamanho inválido: " + n);
+        int total = ProtocoloV2.CABECALHO + n;
+        if (disponiveis < total) {
+            garantirEspaco(total - disponiveis);
+            return -1;
+        }
+        int tipo = buf[inicio];
+        leitor.apontar(buf, inicio + ProtocoloV2.CABECALHO, inicio + total);
+        inicio += total;
+        varrido = inicio;
+        return tipo;
+    }
+
+    // Lê bytes crus (corpo de arquivo), consumindo primeiro o que já estiver no buffer
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (fim > inicio)
+            return drenar(b, off, len);
+        return in.read(b, off, len);
+    }
+
+    int disponiveis() {
+        return fim - inicio;
+    }
+
+    int drenar(byte[] b, int off, int len) {
+        int n = Math.min(len, fim - inicio);
+        System.arraycopy(buf, inicio, b, off, n);
+        inicio += n;
+        return n;
+    }
+
+    void alimentar(ByteBuffer origem) {
+        garantirEspaco(origem.remaining());
+        int n = origem.remaining();
+        origem.get(buf, fim, n);
+        fim += n;
+    }
+
+    private boolean preencher() throws IOException {
+        garantirEspaco(1);
+        int n = in.read(buf, fim, buf.length - fim);
+        if (n == -1)
+            return false;
+        fim += n;
+        return true;
+    }
+
+    private String extrair(int fimLinha, int proximo) {
+        int fimTexto = fimLinha;
+        if (fimTexto > inicio && buf[fimTexto - 1] == '\r')
+            fimTexto--;
+        String linha = new String(buf, inicio, fimTexto - inicio, StandardCharsets.UTF_8);
+        inicio = proximo;
+        if (inicio == fim)
+            inicio = fim = 0;
+        varrido = inicio;
+        return linha;
+    }
+
+    private void garantirEspaco(int n) {
+        if (buf.length - fim >= n)
+            return;
+        int usados = fim - inicio;
+        byte[] destino = buf.length - usados < n ? new byte[Math.max(buf.length * 2, usados + n)] : buf;
+        System.arraycopy(buf, inicio, destino, 0, usados);
+        buf = destino;
+        varrido = Math.max(varrido, inicio) - inicio;
+        inicio = 0;
+        fim = usados;
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Contadores e histogramas dos caminhos quentes do servidor. Registrar é sempre um LongAdder ou um
+// Histograma, sem travas; o texto só é montado quando alguém lê. A leitura é feita por um
+// listener local (-Dchat.admin.porta, padrão 8081, só em 127.0.0.1; 0 desliga) que responde em
+// texto puro no formato de exposição do Prometheus, tanto a um GET HTTP quanto a um `nc`.
+final class Metricas {
+    enum Comando {
+        MSG, MSG_GRUPO, ARQUIVO, GRUPO, PRESENCA, HISTORICO, CONTROLE;
+
+        final String rotulo = name().toLowerCase();
+
+        // Linha do v1, nos dois sentidos
+        static Comando deLinha(String linha) {
+            if (linha.startsWith("/msg ") || linha.startsWith("MSG:"))
+                return MSG;
+            if (linha.startsWith("GRUPO_MSG:"))
+                return MSG_GRUPO;
+            if (linha.startsWith("/arquivo ") || linha.startsWith("ARQUIVO:") || linha.startsWith("GRUPO_ARQUIVO:"))
+                return ARQUIVO;
+            if (linha.startsWith("/grupo_") || linha.startsWith("GRUPO:"))
+                return GRUPO;
+            if (linha.startsWith("/presenca") || linha.startsWith("USERLIST|") || linha.startsWith("PRESENCA|")
+                    || linha.startsWith("JOIN|") || linha.startsWith("LEAVE|"))
+                return PRESENCA;
+            if (linha.startsWith("/historico ") || linha.startsWith("HISTORICO"))
+                return HISTORICO;
+            return CONTROLE;
+        }
+
+        // Quadro do v2, nos dois sentidos
+        static Comando deQuadro(int tipo) {
+            return switch (tipo) {
+                case ProtocoloV2.MSG -> MSG;
+                case ProtocoloV2.MSG_GRUPO -> MSG_GRUPO;
+                case ProtocoloV2.ARQUIVO, ProtocoloV2.ARQUIVO_DADOS, ProtocoloV2.ARQUIVO_DADOS_Z,
+                        ProtocoloV2.TRANSF_INICIO, ProtocoloV2.TRANSF_ACEITA, ProtocoloV2.TRANSF_OFERTA,
+                        ProtocoloV2.TRANSF_PEDIR, ProtocoloV2.TRANSF_BLOCO, ProtocoloV2.TRANSF_BLOCO_Z,
+                        ProtocoloV2.TRANSF_ACK, ProtocoloV2.TRANSF_CANCELAR, ProtocoloV2.TRANSF_DESAFIO,
+                        ProtocoloV2.TRANSF_PROVA -> ARQUIVO;
+                case ProtocoloV2.GRUPO_CRIAR, ProtocoloV2.GRUPO_ADD, ProtocoloV2.GRUPO_MEMBROS -> GRUPO;
+                case ProtocoloV2.LISTA_USUARIOS, ProtocoloV2.PRESENCA_LISTA, ProtocoloV2.PRESENCA_ENTROU,
+                        ProtocoloV2.PRESENCA_SAIU, ProtocoloV2.PRESENCA_PEDIR -> PRESENCA;
+                case ProtocoloV2.HISTORICO_PEDIR, ProtocoloV2.HISTORICO, ProtocoloV2.HISTORICO_FIM -> HISTORICO;
+                default -> CONTROLE;
+            };
+        }
+    }
+
+    private static final Comando[] COMANDOS = Comando.values();
+    private static final LongAdder[] quadrosEntrada = adders(), bytesEntrada = adders();
+    private static final LongAdder[] quadrosSaida = adders(), bytesSaida = adders();
+    // Do enfileiramento até o último byte do quadro sair pelo socket
+    static final Histograma latenciaFila = new Histograma();
+    // Bytes de corpo de arquivo recebidos dos remetentes, e a vazão de cada arquivo concluído
+    private static final LongAdder bytesArquivos = new LongAdder();
+    private static final LongAdder arquivosConcluidos = new LongAdder();
+    static final Histograma vazaoArquivos = new Histograma();
+    private static final int MAIORES = 20;
+    private static final double[] QUANTIS = { 0.5, 0.9, 0.99, 0.999 };
+
+    // Estado da última leitura, para a vazão recente (só o listener usa)
+    private static long leituraAnterior = System.nanoTime();
+    private static long bytesArquivosAnterior;
+
+    private Metricas() {
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] a = new LongAdder[Comando.values().length];
+        for (int i = 0; i < a.length; i++)
+            a[i] = new LongAdder();
+        return a;
+    }
+
+    static void entrada(Comando comando, int bytes) {
+        quadrosEntrada[comando.ordinal()].increment();
+        bytesEntrada[comando.ordinal()].add(bytes);
+    }
+
+    // Bytes que não formam quadros, como o corpo de um /arquivo do v1
+    static void bytesEntrada(Comando comando, int bytes) {
+        bytesEntrada[comando.ordinal()].add(bytes);
+    }
+
+    static void saida(Comando comando, int bytes) {
+        quadrosSaida[comando.ordinal()].increment();
+        bytesSaida[comando.ordinal()].add(bytes);
+    }
+
+    static void dadosArquivo(int bytes) {
+        bytesArquivos.add(bytes);
+    }
+
+    static void arquivoConcluido(long tamanho, long nanos) {
+        arquivosConcluidos.increment();
+        if (nanos > 0)
+            vazaoArquivos.registrar(tamanho * 1_000_000_000L / nanos / 1024);
+    }
+
+    static void iniciarAdmin() {
+        int porta = Integer.getInteger("chat.admin.porta", 8081);
+        if (porta == 0)
+            return;
+        ServerSocket servidor;
+        try {
+            servidor = new ServerSocket(porta, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            Registro.aviso("Listener de métricas não iniciado na porta " + porta + ": " + e.getMessage());
+            return;
+        }
+        Registro.info("Métricas em http://127.0.0.1:" + porta + "/");
+        Thread.ofVirtual().name("metricas").start(() -> {
+            while (true) {
+                try (Socket s = servidor.accept()) {
+                    s.setSoTimeout(500);
+                    responder(s);
+                } catch (IOException e) {
+                    Registro.debug("Falha ao responder métricas: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static void responder(Socket s) throws IOException {
+        LineReader entrada = new LineReader(s.getInputStream());
+        String linha;
+        try {
+            linha = entrada.readLine();
+        } catch (SocketTimeoutException e) {
+            // `nc` sem enviar nada
+            linha = null;
+        }
+        boolean http = linha != null && linha.startsWith("GET ");
+        // Descarta os cabeçalhos do pedido HTTP
+        while (http && linha != null && !linha.isEmpty())
+            linha = entrada.readLine();
+        byte[] corpo = texto().getBytes(StandardCharsets.UTF_8);
+        OutputStream saida = s.getOutputStream();
+        if (http)
+            saida.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                    + "Content-Length: " + corpo.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        saida.write(corpo);
+        saida.flush();
+    }
+
+    // Só o listener chama
+    static String texto() {
+        StringBuilder t = new StringBuilder(4096);
+        for (Comando c : COMANDOS) {
+            int i = c.ordinal();
+            metrica(t, "chat_quadros_entrada_total", "comando", c.rotulo, quadrosEntrada[i].sum());
+            metrica(t, "chat_bytes_entrada_total", "comando", c.rotulo, bytesEntrada[i].sum());
+            metrica(t, "chat_quadros_saida_total", "comando", c.rotulo, quadrosSaida[i].sum());
+            metrica(t, "chat_bytes_saida_total", "comando", c.rotulo, bytesSaida[i].sum());
+        }
+        histograma(t, "chat_fila_latencia_ns", latenciaFila);
+
+        long agora = System.nanoTime();
+        long bytes = bytesArquivos.sum();
+        double segundos = (agora - leituraAnterior) / 1e9;
+        metrica(t, "chat_arquivos_bytes_total", null, null, bytes);
+        metrica(t, "chat_arquivos_concluidos_total", null, null, arquivosConcluidos.sum());
+        metrica(t, "chat_arquivos_bytes_por_segundo", null, null,
+                segundos > 0 ? Math.round((bytes - bytesArquivosAnterior) / segundos) : 0);
+        leituraAnterior = agora;
+        bytesArquivosAnterior = bytes;
+        histograma(t, "chat_arquivo_vazao_kib_por_segundo", vazaoArquivos);
+
+        metrica(t, "chat_usuarios_conectados", null, null, ChatServer.usuariosConectados.size());
+        List<Map.Entry<String, Integer>> grupos = new ArrayList<>();
+        long membros = 0;
+        for (Map.Entry<String, Set<String>> g : ChatServer.grupos.entrySet()) {
+            grupos.add(Map.entry(g.getKey(), g.getValue().size()));
+            membros += g.getValue().size();
+        }
+        metrica(t, "chat_grupos", null, null, grupos.size());
+        metrica(t, "chat_grupo_membros_total", null, null, membros);
+        grupos.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        for (Map.Entry<String, Integer> g : grupos.subList(0, Math.min(MAIORES, grupos.size())))
+            metrica(t, "chat_grupo_membros", "grupo", g.getKey(), g.getValue());
+
+        List<Sessao> sessoes = new ArrayList<>(ChatServer.usuariosConectados.values());
+        long pendentes = 0, quadros = 0, descartados = 0, derramados = 0;
+        for (Sessao s : sessoes) {
+            pendentes += s.fila.bytesPendentes();
+            quadros += s.fila.profundidade();
+            descartados += s.fila.descartados();
+            derramados += s.fila.derramados();
+        }
+        metrica(t, "chat_fila_bytes_pendentes_total", null, null, pendentes);
+        metrica(t, "chat_fila_quadros_pendentes_total", null, null, quadros);
+        metrica(t, "chat_fila_descartados_conectados_total", null, null, descartados);
+        metrica(t, "chat_fila_derramados_conectados_total", null, null, derramados);
+        sessoes.sort(Comparator.comparingLong((Sessao s) -> s.fila.bytesPendentes()).reversed());
+        for (Sessao s : sessoes.subList(0, Math.min(MAIORES, sessoes.size()))) {
+            if (s.fila.bytesPendentes() == 0)
+                break;
+            metrica(t, "chat_fila_bytes_pendentes", "usuario", s.getUsuario(), s.fila.bytesPendentes());
+            metrica(t, "chat_fila_quadros_pendentes", "usuario", s.getUsuario(), s.fila.profundidade());
+        }
+        metrica(t, "chat_log_descartados_total", null, null, Registro.descartados());
+        // Quadros de controle e chat: bytes antes e depois do deflate, razão em milésimos e tempo gasto
+        long originais = Compressao.originaisSaida.sum(), comprimidos = Compressao.comprimidosSaida.sum();
+        metrica(t, "chat_compressao_saida_bytes_originais_total", null, null, originais);
+        metrica(t, "chat_compressao_saida_bytes_comprimidos_total", null, null, comprimidos);
+        metrica(t, "chat_compressao_saida_razao_permil", null, null,
+                originais > 0 ? comprimidos * 1000 / originais : 1000);
+        metrica(t, "chat_compressao_saida_ns_total", null, null, Compressao.nanosCompressao.sum());
+        metrica(t, "chat_compressao_entrada_bytes_comprimidos_total", null, null,
+                Compressao.comprimidosEntrada.sum());
+        metrica(t, "chat_compressao_entrada_bytes_originais_total", null, null, Compressao.originaisEntrada.sum());
+        metrica(t, "chat_compressao_entrada_ns_total", null, null, Compressao.nanosDescompressao.sum());
+        // Blocos de arquivo comprimidos pelo remetente: repassados como vieram ou descomprimidos aqui
+        metrica(t, "chat_compressao_blocos_repassados_total", null, null, Compressao.blocosRepassados.sum());
+        metrica(t, "chat_compressao_blocos_inflados_total", null, null, Compressao.blocosInflados.sum());
+        // Limites por usuário: mensagens recusadas e esperas da leitura por cota de upload
+        metrica(t, "chat_limite_mensagens_recusadas_total", null, null, Limites.mensagensRecusadas.sum());
+        metrica(t, "chat_limite_upload_esperas_total", null, null, Limites.esperasUpload.sum());
+        metrica(t, "chat_limite_upload_espera_ns_total", null, null, Limites.nanosEsperaUpload.sum());
+        // Conexões encerradas sem login no prazo ou caladas além do limite, e PINGs mandados
+        metrica(t, "chat_inatividade_handshakes_expirados_total", null, null, Inatividade.handshakesExpirados.sum());
+        metrica(t, "chat_inatividade_encerradas_total", null, null, Inatividade.inativasEncerradas.sum());
+        metrica(t, "chat_inatividade_pings_total", null, null, Inatividade.pings.sum());
+        // Depósito de arquivos por conteúdo: uploads evitados (e seus bytes), downloads que o destinatário
+        // já tinha, despejos e ocupação atual
+        metrica(t, "chat_blobs_acertos_total", null, null, Blobs.acertos.sum());
+        metrica(t, "chat_blobs_faltas_total", null, null, Blobs.faltas.sum());
+        metrica(t, "chat_blobs_bytes_evitados_total", null, null, Blobs.bytesEvitados.sum());
+        metrica(t, "chat_blobs_downloads_evitados_total", null, null, Blobs.downloadsEvitados.sum());
+        metrica(t, "chat_blobs_despejados_total", null, null, Blobs.despejados.sum());
+        metrica(t, "chat_blobs_provas_recusadas_total", null, null, Blobs.provasRecusadas.sum());
+        metrica(t, "chat_blobs_arquivos", null, null, Blobs.quantidade());
+        metrica(t, "chat_blobs_bytes", null, null, Blobs.bytes());
+        if (Cluster.ativo()) {
+            metrica(t, "chat_cluster_enlaces_conectados", null, null, Cluster.enlacesConectados());
+            metrica(t, "chat_cluster_usuarios_remotos", null, null, Cluster.usuariosRemotos());
+            metrica(t, "chat_cluster_quadros_enviados_total", null, null, Cluster.quadrosEnviados.sum());
+            metrica(t, "chat_cluster_quadros_recebidos_total", null, null, Cluster.quadrosRecebidos.sum());
+            metrica(t, "chat_cluster_mensagens_encaminhadas_total", null, null, Cluster.mensagensEncaminhadas.sum());
+            metrica(t, "chat_cluster_arquivos_bytes_total", null, null, Cluster.bytesArquivos.sum());
+            metrica(t, "chat_cluster_bytes_pendentes", null, null, Cluster.bytesPendentes());
+        }
+        if (Armazem.ativo()) {
+            metrica(t, "chat_armazem_registros_total", null, null, Armazem.registros.sum());
+            metrica(t, "chat_armazem_bytes_total", null, null, Armazem.bytes.sum());
+            metrica(t, "chat_armazem_lotes_total", null, null, Armazem.lotes.sum());
+            metrica(t, "chat_armazem_caixas_cheias_total", null, null, Armazem.caixasCheias.sum());
+            metrica(t, "chat_armazem_posicao", null, null, Armazem.posicao());
+            histograma(t, "chat_armazem_sincronizacao_ns", Armazem.sincronizacao);
+        }
+        return t.toString();
+    }
+
+    private static void histograma(StringBuilder t, String nome, Histograma h) {
+        for (double q : QUANTIS)
+            metrica(t, nome, "quantile", Double.toString(q), h.quantil(q));
+        metrica(t, nome + "_max", null, null, h.maximo());
+        metrica(t, nome + "_media", null, null, h.media());
+        metrica(t, nome + "_count", null, null, h.quantidade());
+    }
+
+    private static void metrica(StringBuilder t, String nome, String rotulo, String valorRotulo, long valor) {
+        t.append(nome);
+        if (rotulo != null)
+            t.append('{').append(rotulo).append("=\"").append(valorRotulo).append("\"}");
+        t.append(' ').append(valor).append('\n');
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Motor alternativo do servidor: um Selector para aceitar conexões e um número fixo de
+// loops de eventos, cada um com seu próprio Selector, atendendo muitas conexões sem bloquear.
+// Fala o mesmo protocolo de texto do ChatServer, portanto os ChatClient existentes não mudam.
+public class NioChatServer {
+    private final int porta;
+    private final LoopEventos[] loops;
+    private final AtomicInteger proximo = new AtomicInteger();
+
+    public NioChatServer(int porta, int numLoops) throws IOException {
+        this.porta = porta;
+        this.loops = new LoopEventos[Math.max(1, numLoops)];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new LoopEventos(i);
+    }
+
+    public void executar() throws IOException {
+        for (LoopEventos loop : loops)
+            loop.start();
+
+        try (ServerSocketChannel servidor = ServerSocketChannel.open();
+                Selector aceitador = Selector.open()) {
+            servidor.bind(new InetSocketAddress(porta));
+            servidor.configureBlocking(false);
+            servidor.register(aceitador, SelectionKey.OP_ACCEPT);
+            ChatServer.log("Servidor NIO iniciado na porta " + porta + " com " + loops.length + " loops");
+
+            while (true) {
+                aceitador.select();
+                aceitador.selectedKeys().clear();
+                SocketChannel canal;
+                while ((canal = servidor.accept()) != null) {
+                    canal.configureBlocking(false);
+                    canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    ChatServer.ajustarSocket(canal);
+                    loops[Math.floorMod(proximo.getAndIncrement(), loops.length)].adicionar(canal);
+                }
+            }
+        }
+    }
+
+    static class LoopEventos extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tarefas = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer leitura = ByteBuffer.allocateDirect(16 * 1024);
+
+        LoopEventos(int id) throws IOException {
+            super("nio-loop-" + id);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void adicionar(SocketChannel canal) {
+            executarNoLoop(() -> {
+                try {
+                    NioClientHandler h = new NioClientHandler(this, canal);
+                    h.chave = canal.register(selector, SelectionKey.OP_READ, h);
+                    // Solicita nome do usuário
+                    h.enviar("NOME?");
+                    h.vigiar();
+                } catch (IOException e) {
+                    try {
+                        canal.close();
+                    } catch (IOException ex) {
+                    }
+                }
+            });
+        }
+
+        void executarNoLoop(Runnable tarefa) {
+            tarefas.add(tarefa);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable tarefa;
+                    while ((tarefa = tarefas.poll()) != null)
+                        tarefa.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey chave = it.next();
+                        it.remove();
+                        NioClientHandler h = (NioClientHandler) chave.attachment();
+                        if (!chave.isValid()) {
+                            h.fechar();
+                            continue;
+                        }
+                        try {
+                            if (chave.isWritable())
+                                h.escreverPendentes();
+                            if (chave.isValid() && chave.isReadable())
+                                h.ler(leitura);
+                        } catch (IOException | CancelledKeyException e) {
+                            h.fechar();
+                        }
+                    }
+                } catch (IOException e) {
+                    Registro.aviso("Erro no loop " + getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private enum Pausa {
+        NENHUMA, DESTINO, COTA
+    }
+
+    static class NioClientHandler extends Sessao {
+        private final LoopEventos loop;
+        private final SocketChannel canal;
+        private final AtomicBoolean escritaAgendada = new AtomicBoolean();
+        private final LineReader entrada = new LineReader();
+        private final byte[] trecho = new byte[16 * 1024];
+        private SelectionKey chave;
+        private volatile boolean fechado;
+        // Por que a leitura está suspensa: fila de um destinatário de arquivo cheia ou cota de upload
+        // estourada. Cada causa tem a sua ação de retomada, que só encerra uma pausa da mesma causa:
+        // uma retomada por destino que ficou registrada numa fila não antecipa o fim da espera da cota.
+        private Pausa pausa = Pausa.NENHUMA;
+        private final Runnable retomarDestino;
+        private final Runnable retomarCota;
+
+        NioClientHandler(LoopEventos loop, SocketChannel canal) {
+            this.loop = loop;
+            this.canal = canal;
+            this.retomarDestino = () -> loop.executarNoLoop(() -> retomarLeitura(Pausa.DESTINO));
+            this.retomarCota = () -> loop.executarNoLoop(() -> retomarLeitura(Pausa.COTA));
+        }
+
+        // O loop dono do canal é o único escritor; outras threads só agendam a escrita
+        void despertarEscritor() {
+            if (escritaAgendada.compareAndSet(false, true)) {
+                if (Thread.currentThread() == loop) {
+                    escreverAgendado();
+                } else {
+                    loop.executarNoLoop(this::escreverAgendado);
+                }
+            }
+        }
+
+        // Uma ação só, para não se acumular na fila de um destinatário que não drena
+        void aguardarDestino(Sessao destino) {
+            if (pausar(Pausa.DESTINO))
+                destino.fila.aoLiberar(retomarDestino);
+        }
+
+        void aguardarDestinos(List<Sessao> destinos) {
+            if (!pausar(Pausa.DESTINO))
+                return;
+            for (Sessao destino : destinos)
+                destino.fila.aoLiberar(retomarDestino);
+        }
+
+        // Cota de upload estourada: a leitura pára até a cota repor, sem segurar o loop
+        void aguardarCota(long nanos) {
+            if (pausar(Pausa.COTA))
+                CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS).execute(retomarCota);
+        }
+
+        private boolean pausar(Pausa causa) {
+            if (pausa != Pausa.NENHUMA)
+                return false;
+            pausa = causa;
+            chave.interestOps(chave.interestOps() & ~SelectionKey.OP_READ);
+            return true;
+        }
+
+        private void retomarLeitura(Pausa causa) {
+            if (pausa != causa || fechado)
+                return;
+            pausa = Pausa.NENHUMA;
+            try {
+                chave.interestOps(chave.interestOps() | SelectionKey.OP_READ);
+                processarEntrada();
+            } catch (IOException | CancelledKeyException e) {
+                fechar();
+            }
+        }
+
+        private void escreverAgendado() {
+            try {
+                escreverPendentes();
+            } catch (IOException | CancelledKeyException e) {
+                fechar();
+            }
+        }
+
+        void escreverPendentes() throws IOException {
+            escritaAgendada.set(false);
+            if (!fila.escreverEm(canal)) {
+                chave.interestOps(chave.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (chave.isValid())
+                chave.interestOps(chave.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        void ler(ByteBuffer leitura) throws IOException {
+            if (ChatServer.repasseDireto && recebendoArquivo() && entrada.disponiveis() == 0) {
+                lerArquivo();
+                return;
+            }
+            leitura.clear();
+            int n = canal.read(leitura);
+            if (n == -1) {
+                fechar();
+                return;
+            }
+            leitura.flip();
+            entrada.alimentar(leitura);
+            processarEntrada();
+        }
+
+        // Corpo de arquivo lido direto num buffer da reserva, que segue sem cópia para o destinatário
+        private void lerArquivo() throws IOException {
+            ByteBuffer dados = ReservaBuffers.obter();
+            dados.limit((int) Math.min(dados.capacity(), bytesArquivoPendentes()));
+            int n = canal.read(dados);
+            if (n <= 0) {
+                ReservaBuffers.devolver(dados);
+                if (n == -1)
+                    fechar();
+                return;
+            }
+            receberArquivo(dados.flip());
+        }
+
+        private void processarEntrada() throws IOException {
+            while (!fechado && pausa == Pausa.NENHUMA) {
+                if (v2) {
+                    int tipo = entrada.proximoQuadro(quadro);
+                    if (tipo == -1)
+                        return;
+                    if (tipo == ProtocoloV2.FECHAR) {
+                        fecharAposEscrita();
+                        return;
+                    }
+                    processarQuadro(tipo, quadro);
+                    continue;
+                }
+                if (recebendoArquivo()) {
+                    if (entrada.disponiveis() == 0)
+                        return;
+                    int len = entrada.drenar(trecho, 0, (int) Math.min(trecho.length, bytesArquivoPendentes()));
+                    receberArquivo(trecho, 0, len);
+                    continue;
+                }
+                String linha = entrada.proximaLinha();
+                if (linha == null)
+                    return;
+                processarLinha(linha);
+            }
+        }
+
+        private void processarLinha(String linha) {
+            if (usuario == null) {
+                if (!autenticar(linha))
+                    fecharAposEscrita();
+                return;
+            }
+            if (linha.equalsIgnoreCase("close")) {
+                fecharAposEscrita();
+                return;
+            }
+            processarMensagem(linha);
+        }
+
+        private void fecharAposEscrita() {
+            try {
+                escreverPendentes();
+            } catch (IOException | CancelledKeyException e) {
+            }
+            fechar();
+        }
+
+        void fechar() {
+            if (Thread.currentThread() != loop) {
+                loop.executarNoLoop(this::fechar);
+                return;
+            }
+            if (fechado)
+                return;
+            fechado = true;
+            encerrar();
+            fecharFila();
+            try {
+                canal.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// Publica quem está conectado. Entradas e saídas são acumuladas por uma janela curta
+// (-Dchat.presenca.janela, em ms) e só o efeito líquido de cada nome vai para os clientes, o que
+// absorve tempestades de reconexão. Sessões com a capacidade "delta" recebem a lista completa só ao
+// entrar, ou quando pedem por ter visto um buraco na numeração, e depois apenas JOIN/LEAVE
+// numerados; as demais recebem a lista completa, no máximo uma vez por janela.
+final class Presenca {
+    static final String CAPACIDADE = "delta";
+    private static final long JANELA_MS = Long.getLong("chat.presenca.janela", 50);
+
+    // Tudo abaixo é protegido por trava. Deltas e listas são enfileirados sob a trava, então cada
+    // sessão os recebe na ordem da numeração.
+    private static final Lock trava = new ReentrantLock();
+    // Nomes conectados como os clientes os conhecem, e o número do último evento publicado
+    private static final Set<String> publicados = new LinkedHashSet<>();
+    private static long sequencia;
+    private static final Set<String> alterados = new HashSet<>();
+    private static final Set<Sessao> inscritos = new HashSet<>();
+    // Sessões sem "delta" que ainda não receberam nenhuma lista
+    private static final Set<Sessao> semLista = new HashSet<>();
+    private static boolean agendado;
+
+    private Presenca() {
+    }
+
+    // A sessão acabou de ser registrada em usuariosConectados
+    static void entrar(Sessao sessao) {
+        trava.lock();
+        try {
+            inscritos.add(sessao);
+            if (sessao.delta)
+                sessao.entregarPresencas(sequencia, publicados);
+            else
+                semLista.add(sessao);
+            alterados.add(sessao.getUsuario());
+            agendar();
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    // A sessão acabou de sair de usuariosConectados
+    static void sair(Sessao sessao) {
+        trava.lock();
+        try {
+            inscritos.remove(sessao);
+            semLista.remove(sessao);
+            alterados.add(sessao.getUsuario());
+            agendar();
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    // Um usuário de outro nó do cluster entrou ou saiu
+    static void alterado(String nome) {
+        trava.lock();
+        try {
+            alterados.add(nome);
+            agendar();
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    // O cliente viu um buraco na numeração e pediu a lista completa
+    static void reenviar(Sessao sessao) {
+        trava.lock();
+        try {
+            if (!inscritos.contains(sessao))
+                return;
+            if (sessao.delta)
+                sessao.entregarPresencas(sequencia, publicados);
+            else
+                sessao.entregarListaUsuarios(publicados);
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    private static void agendar() {
+        if (agendado)
+            return;
+        agendado = true;
+        CompletableFuture.delayedExecutor(JANELA_MS, TimeUnit.MILLISECONDS).execute(Presenca::publicar);
+    }
+
+    private static void publicar() {
+        trava.lock();
+        try {
+            agendado = false;
+            List<String> entraram = new ArrayList<>();
+            List<String> sairam = new ArrayList<>();
+            for (String nome : alterados) {
+                boolean conectado = ChatServer.online(nome);
+                if (conectado && publicados.add(nome))
+                    entraram.add(nome);
+                else if (!conectado && publicados.remove(nome))
+                    sairam.add(nome);
+            }
+            alterados.clear();
+            boolean mudou = !entraram.isEmpty() || !sairam.isEmpty();
+            long primeiro = sequencia + 1;
+            sequencia += entraram.size() + sairam.size();
+            for (Sessao s : inscritos) {
+                if (s.delta) {
+                    if (mudou)
+                        s.entregarDeltas(primeiro, sairam, entraram);
+                } else if (mudou || semLista.contains(s)) {
+                    s.entregarListaUsuarios(publicados);
+                }
+            }
+            semLista.clear();
+        } finally {
+            trava.unlock();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+// Protocolo binário v2, negociado no handshake: o cliente responde ao NOME? com
+// "NOME:<nome>:v2" e o servidor confirma com "OK:v2"; a partir daí os dois lados trocam quadros
+//
+//   [tipo:1][tamanho do conteúdo:4][conteúdo]
+//
+// com inteiros big-endian e textos como [bytes:2][UTF-8]. Usuários e grupos são referenciados por
+// IDs numéricos; o servidor anuncia USUARIO_ID/GRUPO_ID antes do primeiro uso de cada ID.
+//
+// Com a capacidade "retomar" (NOME:<nome>:v2,retomar), arquivos podem ir pelos quadros TRANSF_*:
+// o corpo é dividido em blocos numerados de TAMANHO_BLOCO bytes, cada um com seu CRC32, confirmados
+// por TRANSF_ACK com o próximo bloco esperado. O servidor guarda o corpo em disco, de modo que
+// remetente e destinatários podem cair e, ao voltar, continuar do último bloco confirmado; o SHA-256
+// do arquivo inteiro, anunciado no início, é conferido no fim.
+//
+// Com a capacidade "deposito" (ver Blobs), o servidor responde a todo TRANSF_INICIO novo com um
+// TRANSF_DESAFIO, tenha ou não o arquivo, e só manda o TRANSF_ACEITA depois do TRANSF_PROVA: um
+// arquivo já guardado só dispensa o envio se o remetente provar que tem os blocos sorteados.
+//
+// Com a capacidade "delta", a presença chega como PRESENCA_LISTA no login e depois como
+// PRESENCA_ENTROU/PRESENCA_SAIU numerados em sequência; um buraco na numeração pede nova lista.
+//
+// Com a capacidade "deflate" (ver Compressao), cada lado pode embrulhar quadros inteiros num
+// COMPRIMIDO, trecho de um fluxo deflate por conexão e sentido, e mandar blocos de arquivo
+// comprimidos um a um como ARQUIVO_DADOS_Z/TRANSF_BLOCO_Z. Quem não negociou nunca os recebe.
+//
+// Com a capacidade "ping" (ver Inatividade), o servidor manda PING a quem ficou calado e encerra quem
+// não responder; no v1 são as linhas PING e /pong, e qualquer lado pode pedir com /ping ou PING.
+final class ProtocoloV2 {
+    static final String CAPACIDADE = "v2";
+    static final String CAPACIDADE_RETOMAR = "retomar";
+    static final int CABECALHO = 5;
+    static final int TAMANHO_MAX_QUADRO = 1024 * 1024;
+    static final int TAMANHO_DADOS_ARQUIVO = 64 * 1024;
+    static final int TAMANHO_BLOCO = 64 * 1024;
+    static final int TAMANHO_DIGEST = 32;
+
+    // servidor → cliente: [id][nome]
+    static final byte USUARIO_ID = 1;
+    // servidor → cliente: [id][nome]
+    static final byte GRUPO_ID = 2;
+    // servidor → cliente: [quantidade][ids...]
+    static final byte LISTA_USUARIOS = 3;
+    // servidor → cliente: [grupo][quantidade][ids...]
+    static final byte GRUPO_MEMBROS = 4;
+    // cliente → servidor: [destino][texto]; servidor → cliente: [remetente][texto]
+    static final byte MSG = 5;
+    // cliente → servidor: [grupo][texto]; servidor → cliente: [grupo][remetente][texto]
+    static final byte MSG_GRUPO = 6;
+    // cliente → servidor: [transferência][usuário destino ou -1][grupo destino ou -1][nome][tamanho:8]
+    // servidor → cliente: [transferência][remetente][grupo ou -1][nome][tamanho:8]
+    static final byte ARQUIVO = 7;
+    // nos dois sentidos: [transferência][bytes...] até completar o tamanho anunciado
+    static final byte ARQUIVO_DADOS = 8;
+    // servidor → cliente: [texto]
+    static final byte ERRO = 9;
+    // cliente → servidor: [nome]
+    static final byte GRUPO_CRIAR = 10;
+    // cliente → servidor: [grupo][usuário]
+    static final byte GRUPO_ADD = 11;
+    // cliente → servidor: sem conteúdo
+    static final byte FECHAR = 12;
+    // cliente → servidor: [local][usuário destino ou -1][grupo destino ou -1][nome][tamanho:8][sha256:32]
+    static final byte TRANSF_INICIO = 13;
+    // servidor → cliente: [local][transferência ou -1 se recusada][próximo bloco a enviar]
+    static final byte TRANSF_ACEITA = 14;
+    // servidor → cliente: [transferência][remetente][grupo ou -1][nome][tamanho:8][sha256:32]
+    static final byte TRANSF_OFERTA = 15;
+    // cliente → servidor: [transferência][bloco a partir do qual quer receber]
+    static final byte TRANSF_PEDIR = 16;
+    // nos dois sentidos: [transferência][bloco][crc32][bytes...]
+    static final byte TRANSF_BLOCO = 17;
+    // nos dois sentidos: [transferência][próximo bloco esperado]; repetir o último valor pede reenvio
+    static final byte TRANSF_ACK = 18;
+    // nos dois sentidos: [transferência][motivo]; vindo do remetente cancela para todos, vindo de um
+    // destinatário só para ele
+    static final byte TRANSF_CANCELAR = 19;
+    // servidor → cliente, com a capacidade "delta": [sequência:8][quantidade][ids...]
+    static final byte PRESENCA_LISTA = 20;
+    // servidor → cliente: [sequência:8][usuário]
+    static final byte PRESENCA_ENTROU = 21;
+    // servidor → cliente: [sequência:8][usuário]
+    static final byte PRESENCA_SAIU = 22;
+    // cliente → servidor: sem conteúdo; pede PRESENCA_LISTA depois de um buraco na sequência
+    static final byte PRESENCA_PEDIR = 23;
+    // cliente → servidor: [usuário ou -1][grupo ou -1][quantidade][antes:8, -1 para as mais recentes]
+    static final byte HISTORICO_PEDIR = 24;
+    // servidor → cliente, uma por mensagem, da mais antiga para a mais recente:
+    // [usuário ou -1][grupo ou -1][instante em ms:8][remetente][texto]
+    static final byte HISTORICO = 25;
+    // servidor → cliente: [usuário ou -1][grupo ou -1][antes:8 para a página anterior, -1 se acabou]
+    static final byte HISTORICO_FIM = 26;
+    // nos dois sentidos, com a capacidade "deflate": [fluxo deflate até um SYNC_FLUSH] que
+    // descomprime em um ou mais quadros inteiros (nunca outro COMPRIMIDO)
+    static final byte COMPRIMIDO = 27;
+    // nos dois sentidos: [transferência][tamanho original:4][bloco em deflate puro]
+    static final byte ARQUIVO_DADOS_Z = 28;
+    // nos dois sentidos: [transferência][bloco][crc32 do original][tamanho original:4][deflate puro]
+    static final byte TRANSF_BLOCO_Z = 29;
+    // nos dois sentidos, com a capacidade "ping": [] pede um PONG, que só prova que a conexão está viva
+    static final byte PING = 30;
+    // nos dois sentidos: []
+    static final byte PONG = 31;
+    // servidor → cliente, com a capacidade "deposito": [local][nonce:16][quantidade][blocos...]
+    static final byte TRANSF_DESAFIO = 32;
+    // cliente → servidor: [local][prova:32, ver prova()]
+    static final byte TRANSF_PROVA = 33;
+    static final int TAMANHO_NONCE = 16;
+
+    private ProtocoloV2() {
+    }
+
+    // Procura uma capacidade na lista separada por vírgulas do handshake
+    static boolean temCapacidade(String lista, String capacidade) {
+        int n = capacidade.length();
+        for (int inicio = 0; inicio <= lista.length();) {
+            int fim = lista.indexOf(',', inicio);
+            if (fim < 0)
+                fim = lista.length();
+            if (fim - inicio == n && lista.regionMatches(inicio, capacidade, 0, n))
+                return true;
+            inicio = fim + 1;
+        }
+        return false;
+    }
+
+    static int blocos(long tamanho) {
+        return (int) ((tamanho + TAMANHO_BLOCO - 1) / TAMANHO_BLOCO);
+    }
+
+    // Resposta a um TRANSF_DESAFIO: SHA-256 do nonce seguido dos blocos pedidos, na ordem do pedido
+    static byte[] prova(FileChannel arquivo, long tamanho, byte[] nonce, int[] blocos) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        sha.update(nonce);
+        ByteBuffer b = ByteBuffer.allocate(TAMANHO_BLOCO);
+        for (int bloco : blocos) {
+            long inicio = (long) bloco * TAMANHO_BLOCO;
+            if (bloco < 0 || inicio >= tamanho)
+                throw new IOException("Bloco fora do arquivo: " + bloco);
+            b.clear().limit((int) Math.min(TAMANHO_BLOCO, tamanho - inicio));
+            while (b.hasRemaining()) {
+                if (arquivo.read(b, inicio + b.position()) < 0)
+                    throw new EOFException("Arquivo menor que o anunciado");
+            }
+            sha.update(b.flip());
+        }
+        return sha.digest();
+    }
+
+    // Monta um quadro num buffer reaproveitado; o tamanho é preenchido em fim()
+    static final class Escritor {
+        private byte[] buf = new byte[256];
+        private int pos;
+
+        Escritor inicio(byte tipo) {
+            pos = CABECALHO;
+            buf[0] = tipo;
+            return this;
+        }
+
+        Escritor i32(int v) {
+            garantir(4);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+            return this;
+        }
+
+        Escritor i64(long v) {
+            i32((int) (v >>> 32));
+            return i32((int) v);
+        }
+
+        Escritor texto(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            if (b.length > 0xFFFF)
+                throw new IllegalArgumentException("Texto excede 65535 bytes");
+            garantir(2 + b.length);
+            buf[pos++] = (byte) (b.length >>> 8);
+            buf[pos++] = (byte) b.length;
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+            return this;
+        }
+
+        Escritor bytes(byte[] b, int off, int len) {
+            garantir(len);
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+            return this;
+        }
+
+        // Fecha o quadro; o resultado vale até o próximo inicio()
+        Escritor fim() {
+            int n = pos - CABECALHO;
+            buf[1] = (byte) (n >>> 24);
+            buf[2] = (byte) (n >>> 16);
+            buf[3] = (byte) (n >>> 8);
+            buf[4] = (byte) n;
+            return this;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int tamanho() {
+            return pos;
+        }
+
+        byte[] copia() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        void escreverEm(OutputStream out) throws IOException {
+            out.write(buf, 0, pos);
+        }
+
+        private void garantir(int n) {
+            if (pos + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+
+    // Visão sobre o conteúdo de um quadro recebido; válida até a próxima leitura do LineReader
+    static final class Leitor {
+        byte[] buf;
+        int pos;
+        int fim;
+
+        void apontar(byte[] buf, int inicio, int fim) {
+            this.buf = buf;
+            this.pos = inicio;
+            this.fim = fim;
+        }
+
+        int i32() throws IOException {
+            exigir(4);
+            int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8)
+                    | (buf[pos + 3] & 0xFF);
+            pos += 4;
+            return v;
+        }
+
+        long i64() throws IOException {
+            return ((long) i32() << 32) | (i32() & 0xFFFFFFFFL);
+        }
+
+        String texto() throws IOException {
+            exigir(2);
+            int n = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+            pos += 2;
+            exigir(n);
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        byte[] bytes(int n) throws IOException {
+            exigir(n);
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return b;
+        }
+
+        int restantes() {
+            return fim - pos;
+        }
+
+        private void exigir(int n) throws IOException {
+            if (fim - pos < n)
+                throw new IOException("Quadro v2 truncado");
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Log assíncrono do servidor. Quem registra só preenche um evento num anel pré-alocado e segue; uma
+// thread escritora formata os eventos em lote e os grava no console ou, com -Dchat.log.arquivo, num
+// arquivo que é rotacionado ao passar de -Dchat.log.tamanho bytes. Com o anel cheio o evento é
+// descartado e contado, nunca bloqueia quem registra.
+//
+//   -Dchat.log.nivel=DEBUG|INFO|AVISO|ERRO (padrão: INFO)
+//   -Dchat.log.conteudo=true para incluir o texto das mensagens (padrão: só o tamanho)
+final class Registro {
+    enum Nivel {
+        DEBUG, INFO, AVISO, ERRO
+    }
+
+    static final Nivel NIVEL = Nivel.valueOf(System.getProperty("chat.log.nivel", "INFO").toUpperCase());
+    static final boolean CONTEUDO = Boolean.getBoolean("chat.log.conteudo");
+    private static final String ARQUIVO = System.getProperty("chat.log.arquivo");
+    private static final long TAMANHO_ARQUIVO = Long.getLong("chat.log.tamanho", 10L << 20);
+    private static final int ARQUIVOS = Integer.getInteger("chat.log.arquivos", 5);
+    private static final int LOTE = 256;
+    private static final DateTimeFormatter FORMATO = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private static final class Evento {
+        // Número do evento guardado; o escritor só lê o slot quando ele é o próximo esperado
+        volatile long publicado = -1;
+        long instante;
+        Nivel nivel;
+        String mensagem;
+        Throwable erro;
+    }
+
+    private static final Evento[] anel;
+    private static final int mascara;
+    // Próximo número a reservar (produtores) e próximo a escrever (escritor)
+    private static final AtomicLong reservados = new AtomicLong();
+    private static volatile long escritos;
+    private static final LongAdder descartados = new LongAdder();
+    private static final Thread escritor;
+    private static volatile boolean escritorDormindo;
+    private static volatile boolean encerrando;
+
+    static {
+        int capacidade = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.capacidade", 8192) - 1) << 1);
+        anel = new Evento[capacidade];
+        for (int i = 0; i < capacidade; i++)
+            anel[i] = new Evento();
+        mascara = capacidade - 1;
+        escritor = Thread.ofPlatform().daemon().name("registro").start(Registro::escrever);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            encerrando = true;
+            LockSupport.unpark(escritor);
+            try {
+                escritor.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }));
+    }
+
+    private Registro() {
+    }
+
+    static boolean ativo(Nivel nivel) {
+        return nivel.compareTo(NIVEL) >= 0;
+    }
+
+    static void debug(String mensagem) {
+        registrar(Nivel.DEBUG, mensagem, null);
+    }
+
+    static void info(String mensagem) {
+        registrar(Nivel.INFO, mensagem, null);
+    }
+
+    static void aviso(String mensagem) {
+        registrar(Nivel.AVISO, mensagem, null);
+    }
+
+    static void erro(String mensagem, Throwable erro) {
+        registrar(Nivel.ERRO, mensagem, erro);
+    }
+
+    // Trecho de log para o corpo de uma mensagem de chat, que por padrão não é registrado
+    static String conteudo(String texto) {
+        return CONTEUDO ? ": " + texto : " (" + texto.length() + " caracteres)";
+    }
+
+    static long descartados() {
+        return descartados.sum();
+    }
+
+    static void registrar(Nivel nivel, String mensagem, Throwable erro) {
+        if (!ativo(nivel))
+            return;
+        long seq;
+        do {
+            seq = reservados.get();
+            if (seq - escritos >= anel.length) {
+                descartados.increment();
+                return;
+            }
+        } while (!reservados.compareAndSet(seq, seq + 1));
+        Evento e = anel[(int) seq & mascara];
+        e.instante = System.currentTimeMillis();
+        e.nivel = nivel;
+        e.mensagem = mensagem;
+        e.erro = erro;
+        e.publicado = seq;
+        if (escritorDormindo)
+            LockSupport.unpark(escritor);
+    }
+
+    private static void escrever() {
+        Saida saida = new Saida();
+        StringBuilder linha = new StringBuilder(256);
+        long descartadosInformados = 0;
+        while (true) {
+            int n = 0;
+            Evento e;
+            while (n < LOTE && (e = anel[(int) escritos & mascara]).publicado == escritos) {
+                formatar(linha, e.instante, e.nivel, e.mensagem, e.erro);
+                e.mensagem = null;
+                e.erro = null;
+                escritos++;
+                n++;
+                saida.escrever(linha);
+            }
+            long perdidos = descartados.sum();
+            if (perdidos > descartadosInformados) {
+                formatar(linha, System.currentTimeMillis(), Nivel.AVISO,
+                        (perdidos - descartadosInformados) + " eventos de log descartados (anel cheio)", null);
+                saida.escrever(linha);
+                descartadosInformados = perdidos;
+            }
+            if (n == LOTE)
+                continue;
+            saida.descarregar();
+            if (encerrando && anel[(int) escritos & mascara].publicado != escritos)
+                return;
+            escritorDormindo = true;
+            if (anel[(int) escritos & mascara].publicado != escritos)
+                LockSupport.parkNanos(100_000_000L);
+            escritorDormindo = false;
+        }
+    }
+
+    private static void formatar(StringBuilder linha, long instante, Nivel nivel, String mensagem, Throwable erro) {
+        linha.setLength(0);
+        linha.append('[').append(FORMATO.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(instante),
+                ZoneId.systemDefault()))).append("] ");
+        if (nivel != Nivel.INFO)
+            linha.append(nivel).append(' ');
+        linha.append(mensagem).append(System.lineSeparator());
+        if (erro != null) {
+            StringWriter pilha = new StringWriter();
+            erro.printStackTrace(new PrintWriter(pilha));
+            linha.append(pilha);
+        }
+    }
+
+    // Destino das linhas: console ou arquivo com rotação (chat.log, chat.log.1, ...)
+    private static final class Saida {
+        private Writer destino;
+        private long tamanho;
+
+        Saida() {
+            if (ARQUIVO == null)
+                destino = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                        StandardCharsets.UTF_8), 64 * 1024);
+            else
+                abrir();
+        }
+
+        void escrever(CharSequence linha) {
+            if (destino == null)
+                return;
+            try {
+                destino.append(linha);
+                tamanho += linha.length();
+                if (ARQUIVO != null && tamanho >= TAMANHO_ARQUIVO)
+                    rotacionar();
+            } catch (IOException e) {
+                System.err.println("Falha ao gravar log: " + e.getMessage());
+            }
+        }
+
+        void descarregar() {
+            try {
+                if (destino != null)
+                    destino.flush();
+            } catch (IOException e) {
+                System.err.println("Falha ao gravar log: " + e.getMessage());
+            }
+        }
+
+        private void abrir() {
+            try {
+                Path caminho = Path.of(ARQUIVO);
+                destino = Files.newBufferedWriter(caminho, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+                tamanho = Files.size(caminho);
+            } catch (IOException e) {
+                System.err.println("Falha ao abrir log " + ARQUIVO + ": " + e.getMessage());
+                destino = null;
+            }
+        }
+
+        private void rotacionar() throws IOException {
+            destino.close();
+            if (ARQUIVOS <= 1)
+                Files.deleteIfExists(Path.of(ARQUIVO));
+            for (int i = ARQUIVOS - 1; i >= 1; i--) {
+                Path anterior = Path.of(i == 1 ? ARQUIVO : ARQUIVO + "." + (i - 1));
+                if (Files.exists(anterior))
+                    Files.move(anterior, Path.of(ARQUIVO + "." + i), StandardCopyOption.REPLACE_EXISTING);
+            }
+            abrir();
+        }
+    }
+}
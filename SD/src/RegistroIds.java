@@ -0,0 +1,41 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Atribui IDs numéricos estáveis a nomes (usuários ou grupos) durante a vida do servidor.
+// Um nome que reconecta recebe o mesmo ID; os IDs começam em 1 e nunca são reaproveitados.
+final class RegistroIds {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] nomes = new String[64];
+    private int proximo = 1;
+
+    int id(String nome) {
+        Integer id = ids.get(nome);
+        return id != null ? id : registrar(nome);
+    }
+
+    // -1 se o nome nunca foi registrado
+    int buscar(String nome) {
+        Integer id = ids.get(nome);
+        return id != null ? id : -1;
+    }
+
+    // null se o ID não existe
+    String nome(int id) {
+        String[] atual = nomes;
+        return id > 0 && id < atual.length ? atual[id] : null;
+    }
+
+    private synchronized int registrar(String nome) {
+        Integer existente = ids.get(nome);
+        if (existente != null)
+            return existente;
+        int id = proximo++;
+        String[] atual = nomes;
+        if (id >= atual.length)
+            atual = Arrays.copyOf(atual, atual.length * 2);
+        atual[id] = nome;
+        nomes = atual;
+        ids.put(nome, id);
+        return id;
+    }
+}
@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Buffers diretos reaproveitados para repassar corpos de arquivo do socket de origem ao de destino
+// sem passar pelo heap. Quem obtém um buffer é dono dele até entregá-lo a uma FilaSaida, que o
+// devolve depois de escrito (ou derramado em disco).
+final class ReservaBuffers {
+    static final int TAMANHO = ProtocoloV2.TAMANHO_DADOS_ARQUIVO;
+    private static final int MAXIMO = Integer.getInteger("chat.buffers.max", 1024);
+    private static final Queue<ByteBuffer> livres = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger quantidade = new AtomicInteger();
+
+    private ReservaBuffers() {
+    }
+
+    static ByteBuffer obter() {
+        ByteBuffer buf = livres.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(TAMANHO);
+        quantidade.decrementAndGet();
+        return buf.clear();
+    }
+
+    // Ignora buffers que não vieram da reserva; acima do máximo, o buffer fica para o GC
+    static void devolver(ByteBuffer buf) {
+        if (!buf.isDirect() || buf.capacity() != TAMANHO)
+            return;
+        if (quantidade.incrementAndGet() > MAXIMO) {
+            quantidade.decrementAndGet();
+            return;
+        }
+        livres.add(buf.clear());
+    }
+}
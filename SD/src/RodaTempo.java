@@ -0,0 +1,105 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// Roda de tempo com hash (Varghese e Lauck): um anel de casas de um tick cada, percorrido por uma
+// única thread. Uma tarefa vai para a casa do seu vencimento, com o número de voltas inteiras que ainda
+// faltam; a cada tick a thread visita só a casa da vez. Agendar e reagendar custam O(1), qualquer que
+// seja o número de tarefas, e uma thread dá conta de centenas de milhares delas.
+//
+// Quem precisa adiar o vencimento a cada evento (a inatividade de uma conexão a cada quadro) não
+// reagenda: anota o relógio da roda e, quando a tarefa vence, ela confere a anotação e volta para a
+// casa do novo vencimento.
+final class RodaTempo {
+    abstract static class Tarefa {
+        private long vencimento;
+        private long voltas;
+        private volatile boolean cancelada;
+
+        // Chamado pela thread da roda no vencimento: retorna em quantos nanossegundos vencer de novo,
+        // ou 0 para sair da roda
+        abstract long vencer(long agora);
+
+        void cancelar() {
+            cancelada = true;
+        }
+    }
+
+    private final long tick;
+    private final ArrayDeque<Tarefa>[] casas;
+    private final int mascara;
+    // Agendadas por outras threads, postas nas casas pela thread da roda no próximo tick
+    private final Queue<Tarefa> novas = new ConcurrentLinkedQueue<>();
+    private volatile long agora = System.nanoTime();
+    private long posicao;
+
+    // casas é arredondado para uma potência de 2
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    RodaTempo(String nome, long tickNanos, int casas) {
+        this.tick = tickNanos;
+        this.casas = new ArrayDeque[Integer.highestOneBit(Math.max(1, casas - 1)) << 1];
+        for (int i = 0; i < this.casas.length; i++)
+            this.casas[i] = new ArrayDeque<>();
+        this.mascara = this.casas.length - 1;
+        Thread.ofPlatform().name(nome).daemon().start(this::girar);
+    }
+
+    // Relógio grosso (em nanossegundos, como System.nanoTime), atualizado a cada tick: barato o bastante
+    // para ser lido a cada quadro
+    long agora() {
+        return agora;
+    }
+
+    void agendar(Tarefa tarefa, long atrasoNanos) {
+        tarefa.vencimento = agora + atrasoNanos;
+        novas.add(tarefa);
+    }
+
+    private void girar() {
+        long proximo = System.nanoTime() + tick;
+        while (true) {
+            long espera;
+            while ((espera = proximo - System.nanoTime()) > 0)
+                LockSupport.parkNanos(espera);
+            agora = System.nanoTime();
+            Tarefa nova;
+            while ((nova = novas.poll()) != null)
+                colocar(nova, nova.vencimento - agora);
+            // Atrasada (GC, máquina carregada), a roda visita as casas que ficaram para trás
+            while (proximo <= agora) {
+                visitar(casas[(int) (posicao++ & mascara)]);
+                proximo += tick;
+            }
+        }
+    }
+
+    private void visitar(ArrayDeque<Tarefa> casa) {
+        for (int n = casa.size(); n > 0; n--) {
+            Tarefa tarefa = casa.poll();
+            if (tarefa.cancelada)
+                continue;
+            if (tarefa.voltas > 0) {
+                tarefa.voltas--;
+                casa.add(tarefa);
+                continue;
+            }
+            long atraso;
+            try {
+                atraso = tarefa.vencer(agora);
+            } catch (RuntimeException e) {
+                Registro.erro("Falha numa tarefa da roda de tempo", e);
+                continue;
+            }
+            if (atraso > 0)
+                colocar(tarefa, atraso);
+        }
+    }
+
+    // Só a thread da roda; a casa atual já foi visitada, então o mínimo é o próximo tick
+    private void colocar(Tarefa tarefa, long atraso) {
+        long ticks = Math.max(1, (atraso + tick - 1) / tick);
+        tarefa.voltas = (ticks - 1) / casas.length;
+        casas[(int) ((posicao - 1 + ticks) & mascara)].add(tarefa);
+    }
+}
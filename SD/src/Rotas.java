@@ -0,0 +1,209 @@
+import java.util.*;
+
+// Tabela de roteamento dos grupos, indexada pelos IDs de ChatServer.idsGrupos e ChatServer.idsUsuarios.
+// Cada grupo guarda os IDs dos membros, em ordem, e um array com as sessões deles conectadas neste nó.
+// Os arrays são trocados inteiros (cópia na escrita) quando alguém entra no grupo, conecta ou
+// desconecta, sob uma trava só; a difusão lê o array do momento e o percorre, sem hash nem comparação
+// de nomes. ChatServer.grupos continua com os nomes, para o diário, o cluster e as listas de membros.
+final class Rotas {
+    private static final Sessao[] NENHUMA = new Sessao[0];
+    private static final int[] NENHUM = new int[0];
+
+    static final class Grupo {
+        final int id;
+        final String nome;
+        // IDs dos membros, em ordem crescente
+        volatile int[] membros = NENHUM;
+        // Sessões dos membros conectadas neste nó
+        volatile Sessao[] conectadas = NENHUMA;
+
+        private Grupo(int id, String nome) {
+            this.id = id;
+            this.nome = nome;
+        }
+
+        boolean membro(int usuario) {
+            return Arrays.binarySearch(membros, usuario) >= 0;
+        }
+    }
+
+    private static final Object trava = new Object();
+    // Por ID de grupo; lido sem a trava
+    private static volatile Grupo[] grupos = new Grupo[64];
+    // Por ID de usuário, só sob a trava: os grupos de que é membro e a sessão conectada neste nó
+    private static int[][] gruposDoUsuario = new int[64][];
+    private static Sessao[] sessoes = new Sessao[64];
+
+    private Rotas() {
+    }
+
+    // null se o grupo não existe
+    static Grupo grupo(int id) {
+        Grupo[] atual = grupos;
+        return id > 0 && id < atual.length ? atual[id] : null;
+    }
+
+    static Grupo grupo(String nome) {
+        return nome == null ? null : grupo(ChatServer.idsGrupos.buscar(nome));
+    }
+
+    // Monta a tabela a partir de ChatServer.grupos, na partida (depois do diário carregado)
+    static void carregar() {
+        synchronized (trava) {
+            int[] contagem = new int[64];
+            List<Grupo> carregados = new ArrayList<>(ChatServer.grupos.size());
+            for (Map.Entry<String, Set<String>> g : ChatServer.grupos.entrySet()) {
+                Grupo rota = criar(g.getKey());
+                int[] membros = new int[g.getValue().size()];
+                int n = 0;
+                for (String membro : g.getValue()) {
+                    int u = ChatServer.idsUsuarios.id(membro);
+                    if (u >= contagem.length)
+                        contagem = Arrays.copyOf(contagem, Math.max(u + 1, contagem.length * 2));
+                    contagem[u]++;
+                    membros[n++] = u;
+                }
+                Arrays.sort(membros);
+                rota.membros = membros;
+                carregados.add(rota);
+            }
+            garantir(contagem.length - 1);
+            for (int u = 0; u < contagem.length; u++) {
+                if (contagem[u] > 0) {
+                    gruposDoUsuario[u] = new int[contagem[u]];
+                    contagem[u] = 0;
+                }
+            }
+            for (Grupo rota : carregados) {
+                for (int u : rota.membros)
+                    gruposDoUsuario[u][contagem[u]++] = rota.id;
+            }
+        }
+    }
+
+    // Retorna false se já era membro
+    static boolean adicionar(String grupo, String membro) {
+        int u = ChatServer.idsUsuarios.id(membro);
+        synchronized (trava) {
+            Grupo rota = criar(grupo);
+            int[] membros = rota.membros;
+            int i = Arrays.binarySearch(membros, u);
+            if (i >= 0)
+                return false;
+            i = -i - 1;
+            int[] novos = new int[membros.length + 1];
+            System.arraycopy(membros, 0, novos, 0, i);
+            novos[i] = u;
+            System.arraycopy(membros, i, novos, i + 1, membros.length - i);
+            rota.membros = novos;
+            garantir(u);
+            int[] seus = gruposDoUsuario[u];
+            if (seus == null) {
+                seus = new int[] { rota.id };
+            } else {
+                seus = Arrays.copyOf(seus, seus.length + 1);
+                seus[seus.length - 1] = rota.id;
+            }
+            gruposDoUsuario[u] = seus;
+            Sessao sessao = sessoes[u];
+            if (sessao != null)
+                rota.conectadas = mais(rota.conectadas, sessao);
+            return true;
+        }
+    }
+
+    // A sessão acabou de ser registrada em usuariosConectados
+    static void conectou(Sessao sessao) {
+        int u = sessao.idUsuario;
+        synchronized (trava) {
+            garantir(u);
+            sessoes[u] = sessao;
+            int[] seus = gruposDoUsuario[u];
+            if (seus != null) {
+                Grupo[] atual = grupos;
+                for (int g : seus)
+                    atual[g].conectadas = mais(atual[g].conectadas, sessao);
+            }
+        }
+    }
+
+    // A sessão acabou de sair de usuariosConectados. O usuário pode já ter voltado numa sessão nova
+    // nesse meio tempo: a antiga sai dos grupos mesmo assim, mas a nova continua registrada.
+    static void desconectou(Sessao sessao) {
+        int u = sessao.idUsuario;
+        synchronized (trava) {
+            if (u >= sessoes.length)
+                return;
+            if (sessoes[u] == sessao)
+                sessoes[u] = null;
+            int[] seus = gruposDoUsuario[u];
+            if (seus != null) {
+                Grupo[] atual = grupos;
+                for (int g : seus)
+                    atual[g].conectadas = menos(atual[g].conectadas, sessao);
+            }
+        }
+    }
+
+    // Grupos de que o usuário é membro
+    static List<String> gruposDe(int usuario) {
+        synchronized (trava) {
+            int[] seus = usuario > 0 && usuario < gruposDoUsuario.length ? gruposDoUsuario[usuario] : null;
+            if (seus == null)
+                return new ArrayList<>();
+            List<String> nomes = new ArrayList<>(seus.length);
+            Grupo[] atual = grupos;
+            for (int g : seus)
+                nomes.add(atual[g].nome);
+            return nomes;
+        }
+    }
+
+    // Esquece todos os grupos e sessões (benchmarks)
+    static void limpar() {
+        synchronized (trava) {
+            grupos = new Grupo[64];
+            gruposDoUsuario = new int[64][];
+            sessoes = new Sessao[64];
+        }
+    }
+
+    private static Grupo criar(String nome) {
+        int id = ChatServer.idsGrupos.id(nome);
+        Grupo[] atual = grupos;
+        if (id < atual.length && atual[id] != null)
+            return atual[id];
+        if (id >= atual.length)
+            atual = Arrays.copyOf(atual, Math.max(id + 1, atual.length * 2));
+        Grupo rota = new Grupo(id, nome);
+        atual[id] = rota;
+        grupos = atual;
+        return rota;
+    }
+
+    private static void garantir(int usuario) {
+        if (usuario >= sessoes.length) {
+            int n = Math.max(usuario + 1, sessoes.length * 2);
+            sessoes = Arrays.copyOf(sessoes, n);
+            gruposDoUsuario = Arrays.copyOf(gruposDoUsuario, n);
+        }
+    }
+
+    private static Sessao[] mais(Sessao[] atual, Sessao sessao) {
+        Sessao[] novas = Arrays.copyOf(atual, atual.length + 1);
+        novas[atual.length] = sessao;
+        return novas;
+    }
+
+    private static Sessao[] menos(Sessao[] atual, Sessao sessao) {
+        for (int i = 0; i < atual.length; i++) {
+            if (atual[i] == sessao) {
+                Sessao[] novas = new Sessao[atual.length - 1];
+                System.arraycopy(atual, 0, novas, 0, i);
+                System.arraycopy(atual, i + 1, novas, i, atual.length - i - 1);
+                return novas;
+            }
+        }
+        return atual;
+    }
+}
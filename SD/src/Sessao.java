@@ -0,0 +1,1489 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// Estado e regras de protocolo comuns a qualquer motor de conexões (threads ou NIO).
+// O motor só precisa entregar linhas/quadros e bytes de arquivo e saber escrever na saída.
+// Os métodos entregar* codificam cada evento no protocolo negociado pelo destinatário (v1 ou v2)
+// e o colocam na fila de saída, que só o escritor da conexão drena.
+abstract class Sessao {
+    protected String usuario;
+    protected int idUsuario;
+    protected volatile boolean v2;
+    // Capacidade "retomar": recebe arquivos pelos quadros TRANSF_* (só com v2)
+    protected volatile boolean retomar;
+    // Capacidade "delta": presença como JOIN/LEAVE numerados em vez da lista completa (v1 ou v2)
+    protected volatile boolean delta;
+    // Capacidade "deflate": quadros de controle e chat comprimidos num fluxo por sentido, blocos de
+    // arquivo comprimidos um a um (só com v2)
+    protected volatile boolean deflate;
+    // Capacidade "ping": recebe PING quando fica calado e responde com PONG (ver Inatividade)
+    protected volatile boolean ping;
+    // Capacidade "deposito": responde a TRANSF_DESAFIO e pode pular o envio de um arquivo já no
+    // depósito (ver Blobs)
+    protected volatile boolean deposito;
+    private volatile boolean autenticada;
+    // Relógio da roda de Inatividade na última linha ou quadro recebido
+    private volatile long ultimaAtividade = Inatividade.roda.agora();
+    private final Vigia vigia = new Vigia();
+    protected final ProtocoloV2.Leitor quadro = new ProtocoloV2.Leitor();
+    // v1: corpo do /arquivo em andamento; v2: transferências abertas por ID (só a thread de leitura usa)
+    private ReceptorArquivo arquivo;
+    private final Map<Integer, ReceptorArquivo> transferencias = new HashMap<>();
+    // Anúncios de transferência à espera do TRANSF_PROVA, pelo número local (só a thread de leitura usa);
+    // além de MAX_DESAFIOS pendentes, os novos seguem sem desafio e sem o depósito
+    private static final int MAX_DESAFIOS = 64;
+    private final Map<Integer, Desafio> desafios = new HashMap<>();
+    // Serializa a codificação dos quadros e garante que um ID é anunciado antes do primeiro uso
+    private final Lock saida = new ReentrantLock();
+    private final ProtocoloV2.Escritor escritor = new ProtocoloV2.Escritor();
+    private final BitSet usuariosAnunciados = new BitSet();
+    private final BitSet gruposAnunciados = new BitSet();
+    // Contexto deflate de saída (protegido por saida) e de entrada (só a thread de leitura), criados no
+    // primeiro uso: cada um ocupa memória nativa enquanto a conexão durar
+    private Compressao.Fluxo compressor;
+    private Compressao.Descompressor descompressor;
+    private final ProtocoloV2.Leitor quadroComprimido = new ProtocoloV2.Leitor();
+    protected final FilaSaida fila = new FilaSaida(ChatServer.capacidadeFila, ChatServer.politicaFila);
+    // v1 não multiplexa: enquanto o corpo de um arquivo está indo para o cliente, os demais
+    // quadros esperam em adiados (protegido por saida) para não se misturarem aos bytes do arquivo
+    private int arquivoV1;
+    private long restanteArquivoV1;
+    private FilaSaida adiados;
+    // Mensagens ao vivo que chegam enquanto o Armazem reenvia as guardadas no login (protegido por
+    // saida); null fora disso
+    private List<Retida> retidas;
+    // Limites do usuário (null se desligados); só a thread que lê a conexão usa
+    private final Limites.Balde cotaMensagens = Limites.mensagens();
+    private final Limites.Balde cotaUpload = Limites.upload();
+    private boolean avisadoLimite;
+    // Registrada nas filas dos destinatários de um arquivo de grupo cheias (ver aguardarDestinos)
+    private Runnable acordarLeitor;
+
+    // O motor chama quando a conexão é aceita: a partir daí corre o prazo do login
+    void vigiar() {
+        Inatividade.roda.agendar(vigia, Inatividade.HANDSHAKE);
+    }
+
+    // Avisa o escritor da conexão que há quadros na fila
+    abstract void despertarEscritor();
+
+    abstract void fechar();
+
+    // Controle de fluxo de arquivos: chamado quando a fila do destinatário está cheia.
+    // Nos motores bloqueantes a thread do remetente espera o escritor do destinatário drenar.
+    void aguardarDestino(Sessao destino) {
+        destino.fila.aguardarEspaco();
+    }
+
+    // Arquivo para grupo: espera até algum dos destinatários ter espaço, e não um membro escolhido, que
+    // pode ser justamente o que parou de ler
+    void aguardarDestinos(List<Sessao> destinos) {
+        if (acordarLeitor == null) {
+            Thread atual = Thread.currentThread();
+            acordarLeitor = () -> LockSupport.unpark(atual);
+        }
+        while (todosCheios(destinos)) {
+            for (Sessao destino : destinos)
+                destino.fila.aoLiberar(acordarLeitor);
+            LockSupport.parkNanos(100_000_000L);
+        }
+    }
+
+    static boolean todosCheios(List<Sessao> destinos) {
+        for (Sessao destino : destinos)
+            if (!destino.fila.precisaEsperar())
+                return false;
+        return !destinos.isEmpty();
+    }
+
+    // Cota de upload estourada: a leitura da conexão espera tantos nanossegundos. Nos motores
+    // bloqueantes a própria thread dorme.
+    void aguardarCota(long nanos) {
+        long fim = System.nanoTime() + nanos;
+        while ((nanos = fim - System.nanoTime()) > 0)
+            LockSupport.parkNanos(nanos);
+    }
+
+    String getUsuario() {
+        return usuario;
+    }
+
+    // Linha de texto crua (protocolo v1 ou handshake)
+    void enviar(String msg) {
+        enviar(msg, false);
+    }
+
+    private void enviar(String msg, boolean descartavel) {
+        enfileirar(Metricas.Comando.deLinha(msg), ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8)),
+                descartavel);
+    }
+
+    void enviarBytes(byte[] dados, int off, int len) {
+        enfileirar(Metricas.Comando.ARQUIVO, ByteBuffer.wrap(Arrays.copyOfRange(dados, off, off + len)), false);
+    }
+
+    private void enfileirar(Metricas.Comando comando, ByteBuffer quadro, boolean descartavel) {
+        Metricas.saida(comando, quadro.remaining());
+        // Um quadro comprimido não pode mais ser descartado sem dessincronizar o fluxo do cliente:
+        // o que seria descartado é descartado antes, como está
+        if (deflate && quadro.remaining() >= Compressao.MINIMO && !fila.fechada()
+                && !(descartavel && fila.descartaria(quadro.remaining()))) {
+            quadro = comprimir(quadro);
+            descartavel = false;
+        }
+        boolean aceito;
+        if (arquivoV1 != 0) {
+            if (adiados == null)
+                adiados = new FilaSaida(ChatServer.capacidadeFila, FilaSaida.Politica.DISCO);
+            aceito = adiados.oferecer(quadro, descartavel);
+        } else {
+            aceito = fila.oferecer(quadro, descartavel);
+        }
+        if (!aceito) {
+            Registro.aviso("Fila de saída cheia, desconectando " + usuario);
+            fechar();
+            return;
+        }
+        despertarEscritor();
+    }
+
+    private ByteBuffer comprimir(ByteBuffer quadro) {
+        if (compressor == null)
+            compressor = new Compressao.Fluxo();
+        byte[] b;
+        int off;
+        if (quadro.hasArray()) {
+            b = quadro.array();
+            off = quadro.arrayOffset() + quadro.position();
+        } else {
+            b = new byte[quadro.remaining()];
+            quadro.duplicate().get(b);
+            off = 0;
+        }
+        return ByteBuffer.wrap(compressor.comprimir(b, off, quadro.remaining()));
+    }
+
+    void fecharFila() {
+        fila.fechar();
+        saida.lock();
+        try {
+            if (adiados != null)
+                adiados.fechar();
+            if (compressor != null)
+                compressor.fim();
+            compressor = null;
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Valida a resposta ao NOME? e registra a sessão. Clientes antigos respondem só o nome;
+    // clientes novos respondem NOME:<nome>:<capacidades> e recebem OK:<capacidades aceitas>.
+    boolean autenticar(String linha) {
+        String nome = linha;
+        String capacidades = null;
+        if (linha != null && linha.startsWith("NOME:")) {
+            int sep = linha.indexOf(':', 5);
+            nome = sep < 0 ? linha.substring(5) : linha.substring(5, sep);
+            capacidades = sep < 0 ? "" : linha.substring(sep + 1);
+        }
+        if (nome == null || nome.trim().isEmpty() || nome.equalsIgnoreCase("null") || !ChatServer.nomeValido(nome)) {
+            recusar(nome);
+            return false;
+        }
+        saida.lock();
+        try {
+            // Registra e confirma as capacidades sob a trava de saída, para que nenhuma outra
+            // thread escreva nesta sessão antes do OK ou no protocolo errado. Um nome já conectado em
+            // outro nó do cluster também é recusado.
+            if (Cluster.no(nome) != null || ChatServer.usuariosConectados.putIfAbsent(nome, this) != null) {
+                recusar(nome);
+                return false;
+            }
+            usuario = nome;
+            idUsuario = ChatServer.idsUsuarios.id(nome);
+            // Até o Armazem terminar de reenviar as guardadas, o que chega ao vivo fica retido
+            if (Armazem.ativo())
+                retidas = new ArrayList<>();
+            Rotas.conectou(this);
+            if (capacidades != null) {
+                boolean querV2 = ProtocoloV2.temCapacidade(capacidades, ProtocoloV2.CAPACIDADE);
+                boolean querRetomar = querV2
+                        && ProtocoloV2.temCapacidade(capacidades, ProtocoloV2.CAPACIDADE_RETOMAR);
+                boolean querDelta = ProtocoloV2.temCapacidade(capacidades, Presenca.CAPACIDADE);
+                boolean querDeflate = querV2 && ProtocoloV2.temCapacidade(capacidades, Compressao.CAPACIDADE);
+                boolean querPing = ProtocoloV2.temCapacidade(capacidades, Inatividade.CAPACIDADE);
+                boolean querDeposito = querRetomar
+                        && ProtocoloV2.temCapacidade(capacidades, Blobs.CAPACIDADE_PROTOCOLO);
+                StringJoiner aceitas = new StringJoiner(",", "OK:", "");
+                if (querV2)
+                    aceitas.add(ProtocoloV2.CAPACIDADE);
+                if (querRetomar)
+                    aceitas.add(ProtocoloV2.CAPACIDADE_RETOMAR);
+                if (querDelta)
+                    aceitas.add(Presenca.CAPACIDADE);
+                if (querDeflate)
+                    aceitas.add(Compressao.CAPACIDADE);
+                if (querPing)
+                    aceitas.add(Inatividade.CAPACIDADE);
+                if (querDeposito)
+                    aceitas.add(Blobs.CAPACIDADE_PROTOCOLO);
+                enviar(aceitas.toString());
+                v2 = querV2;
+                retomar = querRetomar;
+                delta = querDelta;
+                deflate = querDeflate;
+                ping = querPing;
+                deposito = querDeposito;
+            }
+            autenticada = true;
+        } finally {
+            saida.unlock();
+        }
+        ChatServer.log("Usuário conectado: " + usuario + (v2 ? " (v2)" : ""));
+        // Lista completa para o novo usuário; os demais recebem a entrada na próxima publicação
+        Presenca.entrar(this);
+        Cluster.entrou(usuario);
+        // Grupos sobrevivem a reinícios e reconexões: o cliente recebe os seus de novo
+        List<String> grupos = Rotas.gruposDe(idUsuario);
+        for (String grupo : grupos) {
+            Set<String> membros = ChatServer.grupos.get(grupo);
+            if (membros != null)
+                entregarGrupo(grupo, membros);
+        }
+        // Arquivos retomáveis que ficaram pendentes para este usuário
+        Transferencia.aoEntrar(this);
+        // Mensagens guardadas enquanto estava fora
+        Armazem.aoEntrar(this, grupos);
+        return true;
+    }
+
+    private void recusar(String nome) {
+        ChatServer.log("Tentativa de conexão falha: " + nome);
+        enviar("ERRO:Nome inválido ou já em uso.");
+    }
+
+    void encerrar() {
+        vigia.cancelar();
+        if (arquivo != null)
+            arquivo.abortar();
+        for (ReceptorArquivo r : transferencias.values())
+            r.abortar();
+        Transferencia.aoSair(this);
+        if (descompressor != null)
+            descompressor.fim();
+        descompressor = null;
+        if (usuario != null && ChatServer.usuariosConectados.remove(usuario, this)) {
+            Rotas.desconectou(this);
+            ChatServer.log("Usuário desconectado: " + usuario + " (fila de saída: máx. " + fila.profundidadeMaxima()
+                    + " quadros, " + fila.descartados() + " descartados, " + fila.derramados() + " em disco)");
+            Presenca.sair(this);
+            Cluster.saiu(usuario);
+            Armazem.aoSair(usuario);
+        }
+    }
+
+    // ---- saída: um método por evento, codificado conforme o protocolo da sessão ----
+
+    void entregarListaUsuarios(Collection<String> nomes) {
+        saida.lock();
+        try {
+            if (!v2) {
+                enviar("USERLIST|" + String.join(",", nomes));
+                return;
+            }
+            int[] ids = new int[nomes.size()];
+            int n = 0;
+            for (String nome : nomes) {
+                if (n < ids.length)
+                    ids[n++] = anunciarUsuario(nome);
+            }
+            escritor.inicio(ProtocoloV2.LISTA_USUARIOS).i32(n);
+            for (int i = 0; i < n; i++)
+                escritor.i32(ids[i]);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Lista completa com o número do último evento de presença que ela já reflete
+    void entregarPresencas(long sequencia, Collection<String> nomes) {
+        saida.lock();
+        try {
+            if (!v2) {
+                enviar("PRESENCA|" + sequencia + "|" + String.join(",", nomes));
+                return;
+            }
+            int[] ids = new int[nomes.size()];
+            int n = 0;
+            for (String nome : nomes) {
+                if (n < ids.length)
+                    ids[n++] = anunciarUsuario(nome);
+            }
+            escritor.inicio(ProtocoloV2.PRESENCA_LISTA).i64(sequencia).i32(n);
+            for (int i = 0; i < n; i++)
+                escritor.i32(ids[i]);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Eventos numerados a partir de primeiro: as saídas, depois as entradas
+    void entregarDeltas(long primeiro, List<String> sairam, List<String> entraram) {
+        saida.lock();
+        try {
+            long seq = primeiro;
+            for (String nome : sairam)
+                entregarDelta(seq++, nome, false);
+            for (String nome : entraram)
+                entregarDelta(seq++, nome, true);
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    private void entregarDelta(long seq, String nome, boolean entrou) {
+        if (!v2) {
+            enviar((entrou ? "JOIN|" : "LEAVE|") + seq + "|" + nome);
+            return;
+        }
+        int id = anunciarUsuario(nome);
+        escritor.inicio(entrou ? ProtocoloV2.PRESENCA_ENTROU : ProtocoloV2.PRESENCA_SAIU).i64(seq).i32(id);
+        escreverQuadro();
+    }
+
+    void entregarGrupo(String grupo, Collection<String> membros) {
+        saida.lock();
+        try {
+            if (!v2) {
+                enviar("GRUPO:" + grupo + ":" + String.join(",", membros));
+                return;
+            }
+            int idGrupo = anunciarGrupo(grupo);
+            int[] ids = new int[membros.size()];
+            int n = 0;
+            for (String membro : membros) {
+                if (n < ids.length)
+                    ids[n++] = anunciarUsuario(membro);
+            }
+            escritor.inicio(ProtocoloV2.GRUPO_MEMBROS).i32(idGrupo).i32(n);
+            for (int i = 0; i < n; i++)
+                escritor.i32(ids[i]);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarMensagem(String remetente, String texto) {
+        saida.lock();
+        try {
+            if (retidas != null)
+                retidas.add(new Retida(remetente, texto, null));
+            else
+                escreverMensagem(remetente, texto, true);
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // O quadro já vem codificado (Difusao); só os anúncios de ID são desta sessão
+    void entregarMensagemGrupo(Difusao.Quadro quadro) {
+        saida.lock();
+        try {
+            if (retidas != null)
+                retidas.add(new Retida(null, null, quadro));
+            else
+                escreverMensagemGrupo(quadro, true);
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Um lote das mensagens guardadas, na ordem do log. Não são descartáveis: a fila cheia derrama
+    // ou desconecta, mas não some com elas em silêncio.
+    void reproduzir(List<Armazem.Mensagem> lote) {
+        saida.lock();
+        try {
+            for (Armazem.Mensagem m : lote) {
+                if (m.grupo())
+                    escreverMensagemGrupo(new Difusao.Quadro(m.destino, m.remetente, m.texto, m.posicao), false);
+                else
+                    escreverMensagem(m.remetente, m.texto, false);
+            }
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Fim do reenvio: sai o que chegou ao vivo nesse meio tempo, menos as mensagens de grupo cujas
+    // posições (ordenadas) já foram reenviadas
+    void terminarReproducao(long[] reenviadas) {
+        saida.lock();
+        try {
+            List<Retida> pendentes = retidas;
+            retidas = null;
+            for (Retida d : pendentes) {
+                if (d.quadro == null)
+                    escreverMensagem(d.remetente, d.texto, true);
+                else if (d.quadro.posicao < 0 || Arrays.binarySearch(reenviadas, d.quadro.posicao) < 0)
+                    escreverMensagemGrupo(d.quadro, true);
+            }
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    private void escreverMensagem(String remetente, String texto, boolean descartavel) {
+        if (!v2) {
+            enviar("MSG:" + remetente + ":" + texto, descartavel);
+            return;
+        }
+        int id = anunciarUsuario(remetente);
+        escritor.inicio(ProtocoloV2.MSG).i32(id).texto(texto);
+        escreverQuadro(descartavel);
+    }
+
+    private void escreverMensagemGrupo(Difusao.Quadro quadro, boolean descartavel) {
+        if (!v2) {
+            enfileirar(Metricas.Comando.MSG_GRUPO, quadro.v1.duplicate(), descartavel);
+            return;
+        }
+        anunciarGrupo(quadro.idGrupo, quadro.grupo);
+        anunciarUsuario(quadro.idRemetente, quadro.remetente);
+        enfileirar(Metricas.Comando.MSG_GRUPO, quadro.v2.duplicate(), descartavel);
+    }
+
+    // Uma linha/quadro por mensagem, da mais antiga para a mais recente, e o fim com a posição da
+    // página anterior (-1 se não há mais)
+    void entregarHistorico(String destino, String grupo, List<Armazem.Mensagem> mensagens, long anterior) {
+        saida.lock();
+        try {
+            if (!v2) {
+                String alvo = grupo != null ? grupo : destino;
+                for (Armazem.Mensagem m : mensagens)
+                    enviar("HISTORICO:" + alvo + ":" + m.instante + ":" + m.remetente + ":" + m.texto);
+                enviar("HISTORICO_FIM:" + alvo + ":" + anterior);
+                return;
+            }
+            int idDestino = grupo != null ? -1 : anunciarUsuario(destino);
+            int idGrupo = grupo != null ? anunciarGrupo(grupo) : -1;
+            for (Armazem.Mensagem m : mensagens) {
+                int remetente = anunciarUsuario(m.remetente);
+                escritor.inicio(ProtocoloV2.HISTORICO).i32(idDestino).i32(idGrupo).i64(m.instante).i32(remetente)
+                        .texto(m.texto);
+                escreverQuadro();
+            }
+            escritor.inicio(ProtocoloV2.HISTORICO_FIM).i32(idDestino).i32(idGrupo).i64(anterior);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarPing(boolean resposta) {
+        saida.lock();
+        try {
+            if (!v2) {
+                enviar(resposta ? "PONG" : "PING");
+                return;
+            }
+            escritor.inicio(resposta ? ProtocoloV2.PONG : ProtocoloV2.PING);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarErro(String texto) {
+        saida.lock();
+        try {
+            if (!v2) {
+                enviar("ERRO:" + texto, true);
+                return;
+            }
+            escritor.inicio(ProtocoloV2.ERRO).texto(texto);
+            escreverQuadro(true);
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // grupo é null para arquivos diretos. Retorna false se o destinatário v1 já está recebendo
+    // outro arquivo, pois o protocolo de texto não tem como intercalar dois corpos.
+    boolean entregarInicioArquivo(int transferencia, String grupo, String remetente, String nomeArquivo,
+            long tamanho) {
+        saida.lock();
+        try {
+            if (!v2) {
+                if (arquivoV1 != 0)
+                    return false;
+                enviar((grupo == null ? "ARQUIVO:" : "GRUPO_ARQUIVO:" + grupo + ":") + remetente + ":" + nomeArquivo
+                        + ":" + tamanho);
+                if (tamanho > 0) {
+                    arquivoV1 = transferencia;
+                    restanteArquivoV1 = tamanho;
+                }
+                return true;
+            }
+            int idGrupo = grupo == null ? -1 : anunciarGrupo(grupo);
+            int id = anunciarUsuario(remetente);
+            escritor.inicio(ProtocoloV2.ARQUIVO).i32(transferencia).i32(id).i32(idGrupo).texto(nomeArquivo)
+                    .i64(tamanho);
+            escreverQuadro();
+            return true;
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarDadosArquivo(int transferencia, byte[] dados, int off, int len) {
+        entregarDadosArquivo(transferencia, dados, off, len, false);
+    }
+
+    // derramavel: com a fila cheia, o excedente vai para o disco em vez de o remetente esperar
+    void entregarDadosArquivo(int transferencia, byte[] dados, int off, int len, boolean derramavel) {
+        saida.lock();
+        try {
+            if (!v2) {
+                if (transferencia != arquivoV1)
+                    return;
+                oferecerDados(ByteBuffer.wrap(Arrays.copyOfRange(dados, off, off + len)), null, derramavel);
+                restanteArquivoV1 -= len;
+                if (restanteArquivoV1 <= 0)
+                    liberarAdiados();
+                despertarEscritor();
+                return;
+            }
+            for (int i = 0; i < len; i += ProtocoloV2.TAMANHO_DADOS_ARQUIVO) {
+                int n = Math.min(ProtocoloV2.TAMANHO_DADOS_ARQUIVO, len - i);
+                escritor.inicio(ProtocoloV2.ARQUIVO_DADOS).i32(transferencia).bytes(dados, off + i, n);
+                oferecerDados(ByteBuffer.wrap(escritor.fim().copia()), null, derramavel);
+            }
+            despertarEscritor();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Repasse sem cópia: o buffer direto da ReservaBuffers vai para a fila como está (no v2, depois de
+    // um cabeçalho ARQUIVO_DADOS próprio) e volta à reserva quando o escritor terminar de escrevê-lo
+    void entregarDadosArquivo(int transferencia, ByteBuffer dados) {
+        saida.lock();
+        try {
+            int n = dados.remaining();
+            if (!v2) {
+                if (transferencia != arquivoV1) {
+                    ReservaBuffers.devolver(dados);
+                    return;
+                }
+                oferecerDados(dados, null, false);
+                restanteArquivoV1 -= n;
+                if (restanteArquivoV1 <= 0)
+                    liberarAdiados();
+                despertarEscritor();
+                return;
+            }
+            ByteBuffer cabecalho = ByteBuffer.allocate(ProtocoloV2.CABECALHO + 4);
+            cabecalho.put(ProtocoloV2.ARQUIVO_DADOS).putInt(4 + n).putInt(transferencia).flip();
+            oferecerDados(cabecalho, dados, false);
+            despertarEscritor();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Bloco que o remetente comprimiu, repassado como veio a um destinatário com "deflate"
+    void entregarDadosComprimidos(int transferencia, byte[] dados, int off, int len, int original,
+            boolean derramavel) {
+        saida.lock();
+        try {
+            escritor.inicio(ProtocoloV2.ARQUIVO_DADOS_Z).i32(transferencia).i32(original).bytes(dados, off, len);
+            oferecerDados(ByteBuffer.wrap(escritor.fim().copia()), null, derramavel);
+            despertarEscritor();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // O mesmo, com um buffer da ReservaBuffers lido do arquivo .z de uma transferência retomável
+    void entregarDadosComprimidos(int transferencia, int original, ByteBuffer dados) {
+        saida.lock();
+        try {
+            ByteBuffer cabecalho = ByteBuffer.allocate(ProtocoloV2.CABECALHO + 8);
+            cabecalho.put(ProtocoloV2.ARQUIVO_DADOS_Z).putInt(8 + dados.remaining()).putInt(transferencia)
+                    .putInt(original).flip();
+            oferecerDados(cabecalho, dados, false);
+            despertarEscritor();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Dados de arquivo vão direto para a fila (nunca para adiados) e nunca são descartados. No v2 vão na
+    // classe de volume, para que o chat passe entre os blocos; resto é o corpo depois do cabeçalho. No
+    // v1 o corpo é o próprio fluxo de texto e segue na ordem dos demais quadros.
+    private void oferecerDados(ByteBuffer quadro, ByteBuffer resto, boolean derramavel) {
+        Metricas.saida(Metricas.Comando.ARQUIVO, quadro.remaining() + (resto == null ? 0 : resto.remaining()));
+        boolean aceito;
+        if (v2)
+            aceito = fila.oferecerVolume(quadro, resto, derramavel);
+        else
+            aceito = derramavel ? fila.oferecerOuDerramar(quadro) : fila.oferecer(quadro, false);
+        if (!aceito)
+            fechar();
+    }
+
+    // Arquivo v1 terminou (ou foi abortado): o que ficou esperando vai para a fila, em ordem
+    private void liberarAdiados() {
+        arquivoV1 = 0;
+        if (adiados == null)
+            return;
+        try {
+            ByteBuffer quadro;
+            while ((quadro = adiados.espiar()) != null) {
+                if (!fila.oferecer(quadro, false)) {
+                    fechar();
+                    return;
+                }
+                adiados.remover();
+            }
+        } catch (IOException e) {
+            Registro.aviso("Falha ao liberar quadros adiados de " + usuario + ": " + e.getMessage());
+            fechar();
+        }
+    }
+
+    // O remetente caiu no meio do arquivo: um destinatário v1 não tem como se recuperar
+    void abortarArquivo(int transferencia) {
+        saida.lock();
+        try {
+            if (!v2 && transferencia == arquivoV1)
+                fechar();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // ---- transferências retomáveis (só v2 com a capacidade "retomar") ----
+
+    void entregarTransferenciaAceita(int local, int transferencia, int proximoBloco) {
+        saida.lock();
+        try {
+            escritor.inicio(ProtocoloV2.TRANSF_ACEITA).i32(local).i32(transferencia).i32(proximoBloco);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarDesafio(int local, byte[] nonce, int[] blocos) {
+        saida.lock();
+        try {
+            escritor.inicio(ProtocoloV2.TRANSF_DESAFIO).i32(local).bytes(nonce, 0, nonce.length).i32(blocos.length);
+            for (int bloco : blocos)
+                escritor.i32(bloco);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarOferta(Transferencia t) {
+        saida.lock();
+        try {
+            int idGrupo = t.grupo == null ? -1 : anunciarGrupo(t.grupo);
+            int id = anunciarUsuario(t.remetente);
+            escritor.inicio(ProtocoloV2.TRANSF_OFERTA).i32(t.id).i32(id).i32(idGrupo).texto(t.nome).i64(t.tamanho)
+                    .bytes(t.digest, 0, t.digest.length);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // O bloco é um buffer da ReservaBuffers lido do arquivo da transferência e vai para a fila sem cópia
+    void entregarBloco(int transferencia, int bloco, int crc, ByteBuffer dados) {
+        saida.lock();
+        try {
+            ByteBuffer cabecalho = ByteBuffer.allocate(ProtocoloV2.CABECALHO + 12);
+            cabecalho.put(ProtocoloV2.TRANSF_BLOCO).putInt(12 + dados.remaining()).putInt(transferencia).putInt(bloco)
+                    .putInt(crc).flip();
+            oferecerDados(cabecalho, dados, false);
+            despertarEscritor();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    // Bloco guardado na forma comprimida em que o remetente o mandou: vai sem recomprimir
+    void entregarBlocoComprimido(int transferencia, int bloco, int crc, int original, ByteBuffer dados) {
+        saida.lock();
+        try {
+            ByteBuffer cabecalho = ByteBuffer.allocate(ProtocoloV2.CABECALHO + 16);
+            cabecalho.put(ProtocoloV2.TRANSF_BLOCO_Z).putInt(16 + dados.remaining()).putInt(transferencia)
+                    .putInt(bloco).putInt(crc).putInt(original).flip();
+            oferecerDados(cabecalho, dados, false);
+            despertarEscritor();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarConfirmacao(int transferencia, int proximoBloco) {
+        saida.lock();
+        try {
+            escritor.inicio(ProtocoloV2.TRANSF_ACK).i32(transferencia).i32(proximoBloco);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    void entregarCancelamento(int transferencia, String motivo) {
+        saida.lock();
+        try {
+            escritor.inicio(ProtocoloV2.TRANSF_CANCELAR).i32(transferencia).texto(motivo);
+            escreverQuadro();
+        } finally {
+            saida.unlock();
+        }
+    }
+
+    private int anunciarUsuario(String nome) {
+        return anunciarUsuario(ChatServer.idsUsuarios.id(nome), nome);
+    }
+
+    private int anunciarUsuario(int id, String nome) {
+        if (!usuariosAnunciados.get(id)) {
+            usuariosAnunciados.set(id);
+            escritor.inicio(ProtocoloV2.USUARIO_ID).i32(id).texto(nome);
+            escreverQuadro();
+        }
+        return id;
+    }
+
+    private int anunciarGrupo(String grupo) {
+        return anunciarGrupo(ChatServer.idsGrupos.id(grupo), grupo);
+    }
+
+    private int anunciarGrupo(int id, String grupo) {
+        if (!gruposAnunciados.get(id)) {
+            gruposAnunciados.set(id);
+            escritor.inicio(ProtocoloV2.GRUPO_ID).i32(id).texto(grupo);
+            escreverQuadro();
+        }
+        return id;
+    }
+
+    private void escreverQuadro() {
+        escreverQuadro(false);
+    }
+
+    private void escreverQuadro(boolean descartavel) {
+        byte[] quadro = escritor.fim().copia();
+        enfileirar(Metricas.Comando.deQuadro(quadro[0]), ByteBuffer.wrap(quadro), descartavel);
+    }
+
+    // ---- entrada ----
+
+    boolean recebendoArquivo() {
+        return arquivo != null;
+    }
+
+    long bytesArquivoPendentes() {
+        return arquivo == null ? 0 : arquivo.tamanho - arquivo.total;
+    }
+
+    // Repassa bytes do corpo de um /arquivo em andamento; len nunca passa de bytesArquivoPendentes()
+    void receberArquivo(byte[] buffer, int off, int len) throws IOException {
+        Metricas.bytesEntrada(Metricas.Comando.ARQUIVO, len);
+        ultimaAtividade = Inatividade.roda.agora();
+        limitarUpload(len);
+        if (receberDados(arquivo, buffer, off, len))
+            arquivo = null;
+    }
+
+    // Mesmo que o anterior, com um buffer direto da ReservaBuffers cuja posse passa ao receptor
+    void receberArquivo(ByteBuffer dados) throws IOException {
+        int len = dados.remaining();
+        Metricas.bytesEntrada(Metricas.Comando.ARQUIVO, len);
+        ultimaAtividade = Inatividade.roda.agora();
+        limitarUpload(len);
+        arquivo.receber(dados);
+        if (contabilizar(arquivo, len))
+            arquivo = null;
+    }
+
+    private void limitarUpload(int n) {
+        if (cotaUpload == null)
+            return;
+        long espera = cotaUpload.tirar(n);
+        if (espera > 0) {
+            Limites.esperasUpload.increment();
+            Limites.nanosEsperaUpload.add(espera);
+            aguardarCota(espera);
+        }
+    }
+
+    private boolean receberDados(ReceptorArquivo receptor, byte[] buffer, int off, int len) throws IOException {
+        receptor.receber(buffer, off, len);
+        return contabilizar(receptor, len);
+    }
+
+    private static boolean contabilizar(ReceptorArquivo receptor, int len) throws IOException {
+        receptor.total += len;
+        Metricas.dadosArquivo(len);
+        if (receptor.total < receptor.tamanho)
+            return false;
+        Metricas.arquivoConcluido(receptor.tamanho, System.nanoTime() - receptor.inicio);
+        receptor.concluir();
+        return true;
+    }
+
+    // Comando de texto do protocolo v1
+    void processarMensagem(String linha) {
+        Metricas.entrada(Metricas.Comando.deLinha(linha), linha.length() + 1);
+        ultimaAtividade = Inatividade.roda.agora();
+        try {
+            if (linha.startsWith("/grupo_criar ")) {
+                criarGrupo(linha.substring(13).trim());
+
+            } else if (linha.startsWith("/grupo_add ")) {
+                int espaco = linha.indexOf(' ', 11);
+                if (espaco <= 11 || espaco == linha.length() - 1 || linha.indexOf(' ', espaco + 1) >= 0) {
+                    entregarErro("Uso: /grupo_add grupo usuario");
+                    return;
+                }
+                adicionarMembro(linha.substring(11, espaco), linha.substring(espaco + 1));
+
+            } else if (linha.startsWith("/msg ")) {
+                int espaco = linha.indexOf(' ', 5);
+                if (espaco < 0) {
+                    entregarErro("Uso: /msg destino mensagem");
+                    return;
+                }
+                String destino = linha.substring(5, espaco), mensagem = linha.substring(espaco + 1);
+                // Usuário conectado (aqui ou em outro nó), senão grupo, senão usuário desconectado
+                // (guardada para depois)
+                Rotas.Grupo grupo;
+                if (ChatServer.online(destino) || (grupo = Rotas.grupo(destino)) == null)
+                    mensagemUsuario(destino, mensagem);
+                else
+                    mensagemGrupo(grupo, mensagem);
+
+            } else if (linha.startsWith("/historico ")) {
+                // /historico alvo n [antes]: alvo é um grupo do usuário ou outro usuário
+                String[] partes = linha.substring(11).trim().split(" +");
+                if (partes.length < 2 || partes.length > 3) {
+                    entregarErro("Uso: /historico destino quantidade [antes]");
+                    return;
+                }
+                Set<String> membros = ChatServer.grupos.get(partes[0]);
+                boolean grupo = membros != null && membros.contains(usuario);
+                historico(grupo ? null : partes[0], grupo ? partes[0] : null, Integer.parseInt(partes[1]),
+                        partes.length == 3 ? Long.parseLong(partes[2]) : -1);
+
+            } else if (linha.startsWith("/arquivo ")) {
+                Registro.debug("Recebido comando /arquivo: " + linha);
+
+                // /arquivo destino nome do arquivo tamanho: o nome pode conter espaços
+                int fimDestino = linha.indexOf(' ', 9);
+                int inicioTamanho = linha.lastIndexOf(' ') + 1;
+                if (fimDestino < 0 || inicioTamanho <= fimDestino + 1) {
+                    entregarErro("Uso: /arquivo destino nomeArquivo tamanho");
+                    return;
+                }
+
+                String destino = linha.substring(9, fimDestino);
+                long tamanho = Long.parseLong(linha, inicioTamanho, linha.length(), 10);
+                String nomeArquivo = linha.substring(fimDestino + 1, inicioTamanho - 1);
+
+                boolean direto = ChatServer.online(destino);
+                ReceptorArquivo receptor = abrirArquivo(direto ? destino : null, direto ? null : destino, nomeArquivo,
+                        tamanho);
+                if (tamanho > 0)
+                    arquivo = receptor;
+                else
+                    receptor.concluir();
+
+            } else if (linha.equals("/presenca")) {
+                Presenca.reenviar(this);
+
+            } else if (linha.equals("/ping")) {
+                entregarPing(true);
+
+            } else if (linha.equals("/pong")) {
+                // Só o sinal de vida, já anotado
+
+            } else {
+                entregarErro("Comando desconhecido.");
+            }
+        } catch (Exception e) {
+            entregarErro("Falha ao processar comando.");
+            Registro.erro("Falha ao processar comando de " + usuario, e);
+        }
+    }
+
+    // Quadro do protocolo v2. IOException indica quadro malformado e encerra a conexão.
+    void processarQuadro(int tipo, ProtocoloV2.Leitor q) throws IOException {
+        if (tipo == ProtocoloV2.COMPRIMIDO) {
+            processarComprimido(q);
+            return;
+        }
+        Metricas.entrada(Metricas.Comando.deQuadro(tipo), ProtocoloV2.CABECALHO + q.restantes());
+        ultimaAtividade = Inatividade.roda.agora();
+        try {
+            switch (tipo) {
+                case ProtocoloV2.MSG -> {
+                    String destino = ChatServer.idsUsuarios.nome(q.i32());
+                    mensagemUsuario(destino, q.texto());
+                }
+                case ProtocoloV2.MSG_GRUPO -> {
+                    Rotas.Grupo grupo = Rotas.grupo(q.i32());
+                    mensagemGrupo(grupo, q.texto());
+                }
+                case ProtocoloV2.GRUPO_CRIAR -> criarGrupo(q.texto());
+                case ProtocoloV2.GRUPO_ADD -> {
+                    String grupo = ChatServer.idsGrupos.nome(q.i32());
+                    String membro = ChatServer.idsUsuarios.nome(q.i32());
+                    adicionarMembro(grupo, membro);
+                }
+                case ProtocoloV2.ARQUIVO -> {
+                    int transferencia = q.i32();
+                    String destino = ChatServer.idsUsuarios.nome(q.i32());
+                    String grupo = ChatServer.idsGrupos.nome(q.i32());
+                    String nomeArquivo = q.texto();
+                    long tamanho = q.i64();
+                    Registro.debug("Recebido arquivo v2: " + usuario + " → " + (destino != null ? destino : grupo)
+                            + ": " + nomeArquivo + " (" + tamanho + " bytes)");
+                    ReceptorArquivo receptor = abrirArquivo(destino, grupo, nomeArquivo, tamanho);
+                    if (tamanho > 0)
+                        transferencias.put(transferencia, receptor);
+                    else
+                        receptor.concluir();
+                }
+                case ProtocoloV2.ARQUIVO_DADOS -> {
+                    limitarUpload(q.restantes());
+                    int transferencia = q.i32();
+                    ReceptorArquivo receptor = transferencias.get(transferencia);
+                    int n = q.restantes();
+                    if (receptor == null || n > receptor.tamanho - receptor.total)
+                        throw new IOException("Dados de arquivo fora de uma transferência: " + transferencia);
+                    if (receberDados(receptor, q.buf, q.pos, n))
+                        transferencias.remove(transferencia);
+                }
+                case ProtocoloV2.ARQUIVO_DADOS_Z -> {
+                    limitarUpload(q.restantes());
+                    int transferencia = q.i32();
+                    int original = q.i32();
+                    ReceptorArquivo receptor = transferencias.get(transferencia);
+                    if (!deflate || receptor == null || original <= 0 || original > receptor.tamanho - receptor.total)
+                        throw new IOException("Dados de arquivo fora de uma transferência: " + transferencia);
+                    receptor.receberComprimido(q.buf, q.pos, q.restantes(), original);
+                    if (contabilizar(receptor, original))
+                        transferencias.remove(transferencia);
+                }
+                case ProtocoloV2.TRANSF_INICIO -> {
+                    int local = q.i32();
+                    String destino = ChatServer.idsUsuarios.nome(q.i32());
+                    String grupo = ChatServer.idsGrupos.nome(q.i32());
+                    String nomeArquivo = q.texto();
+                    long tamanho = q.i64();
+                    byte[] digest = q.bytes(ProtocoloV2.TAMANHO_DIGEST);
+                    iniciarTransferencia(local, destino, grupo, nomeArquivo, tamanho, digest);
+                }
+                case ProtocoloV2.TRANSF_PROVA -> {
+                    int local = q.i32();
+                    byte[] prova = q.bytes(ProtocoloV2.TAMANHO_DIGEST);
+                    Desafio d = desafios.remove(local);
+                    if (d != null)
+                        abrirTransferencia(local, d.destino(), d.grupo(), d.destinatarios(), d.nome(), d.tamanho(),
+                                d.digest(), Blobs.abrir(d.digest(), d.tamanho(), d.nonce(), d.blocos(), prova));
+                }
+                case ProtocoloV2.TRANSF_BLOCO -> {
+                    limitarUpload(q.restantes());
+                    Transferencia t = Transferencia.buscar(q.i32());
+                    int bloco = q.i32();
+                    int crc = q.i32();
+                    if (t != null)
+                        t.receberBloco(this, bloco, crc, q.buf, q.pos, q.restantes());
+                }
+                case ProtocoloV2.TRANSF_BLOCO_Z -> {
+                    limitarUpload(q.restantes());
+                    Transferencia t = Transferencia.buscar(q.i32());
+                    int bloco = q.i32();
+                    int crc = q.i32();
+                    int original = q.i32();
+                    if (!deflate)
+                        throw new IOException("Bloco comprimido sem a capacidade deflate");
+                    if (t != null)
+                        t.receberBlocoComprimido(this, bloco, crc, q.buf, q.pos, q.restantes(), original);
+                }
+                case ProtocoloV2.TRANSF_PEDIR -> {
+                    Transferencia t = Transferencia.buscar(q.i32());
+                    int bloco = q.i32();
+                    if (t != null)
+                        t.pedir(this, bloco);
+                }
+                case ProtocoloV2.TRANSF_ACK -> {
+                    Transferencia t = Transferencia.buscar(q.i32());
+                    int proximo = q.i32();
+                    if (t != null)
+                        t.confirmar(this, proximo);
+                }
+                case ProtocoloV2.TRANSF_CANCELAR -> {
+                    Transferencia t = Transferencia.buscar(q.i32());
+                    String motivo = q.texto();
+                    if (t != null)
+                        t.cancelarPor(this, motivo);
+                }
+                case ProtocoloV2.PRESENCA_PEDIR -> Presenca.reenviar(this);
+                case ProtocoloV2.PING -> entregarPing(true);
+                case ProtocoloV2.PONG -> {
+                }
+                case ProtocoloV2.HISTORICO_PEDIR -> {
+                    String destino = ChatServer.idsUsuarios.nome(q.i32());
+                    String grupo = ChatServer.idsGrupos.nome(q.i32());
+                    int n = q.i32();
+                    historico(destino, grupo, n, q.i64());
+                }
+                default -> entregarErro("Comando desconhecido.");
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            entregarErro("Falha ao processar comando.");
+            Registro.erro("Falha ao processar comando de " + usuario, e);
+        }
+    }
+
+    // Quadros que o cliente juntou num COMPRIMIDO: cada um é tratado como se tivesse chegado sozinho
+    private void processarComprimido(ProtocoloV2.Leitor q) throws IOException {
+        if (!deflate)
+            throw new IOException("Quadro comprimido sem a capacidade deflate");
+        if (descompressor == null)
+            descompressor = new Compressao.Descompressor();
+        descompressor.descomprimir(q.buf, q.pos, q.restantes());
+        int tipo;
+        while ((tipo = descompressor.proximoQuadro(quadroComprimido)) != -1)
+            processarQuadro(tipo, quadroComprimido);
+    }
+
+    // ---- regras de negócio, independentes do protocolo de origem ----
+
+    private void criarGrupo(String nomeGrupo) {
+        if (!ChatServer.nomeValido(nomeGrupo) || !ChatServer.criarGrupo(nomeGrupo, usuario)) {
+            entregarErro("Nome de grupo inválido ou já existe.");
+            return;
+        }
+        DiarioGrupos.criado(nomeGrupo, usuario);
+        Cluster.membro(nomeGrupo, usuario);
+        ChatServer.log("Grupo criado: " + nomeGrupo + " por " + usuario);
+        ChatServer.atualizarGrupos(nomeGrupo);
+    }
+
+    private void adicionarMembro(String grupo, String membro) {
+        if (grupo == null || membro == null || !ChatServer.grupos.containsKey(grupo)
+                || !ChatServer.online(membro)) {
+            entregarErro("Grupo ou usuário não existe.");
+            return;
+        }
+        if (ChatServer.adicionarMembro(grupo, membro)) {
+            DiarioGrupos.adicionado(grupo, membro);
+            Cluster.membro(grupo, membro);
+        }
+        ChatServer.log("Membro adicionado: " + membro + " ao grupo " + grupo + " por " + usuario);
+        ChatServer.atualizarGrupos(grupo);
+    }
+
+    // Cota de mensagens: o excesso é recusado, com um aviso só por sequência de recusas
+    private boolean dentroDoLimite() {
+        if (cotaMensagens == null || cotaMensagens.tirar()) {
+            avisadoLimite = false;
+            return true;
+        }
+        Limites.mensagensRecusadas.increment();
+        if (!avisadoLimite) {
+            avisadoLimite = true;
+            entregarErro("Limite de mensagens excedido; aguarde.");
+        }
+        return false;
+    }
+
+    private void mensagemUsuario(String destino, String mensagem) {
+        if (!dentroDoLimite())
+            return;
+        Sessao ch = destino == null ? null : ChatServer.usuariosConectados.get(destino);
+        if (ch == null && destino != null && Cluster.mensagem(usuario, destino, mensagem)) {
+            // Conectado em outro nó: aquele nó entrega e também guarda no seu Armazem
+            Armazem.direta(usuario, destino, mensagem);
+            Registro.debug("Mensagem encaminhada: " + usuario + " → " + destino + Registro.conteudo(mensagem));
+            return;
+        }
+        if (ch == null) {
+            // Quem já entrou alguma vez recebe no próximo login
+            Armazem.Guarda guarda = destino == null ? Armazem.Guarda.DESCONHECIDO
+                    : Armazem.guardarParaDepois(usuario, destino, mensagem);
+            if (guarda == Armazem.Guarda.CAIXA_CHEIA) {
+                entregarErro("Caixa de " + destino + " cheia; tente quando estiver conectado.");
+                return;
+            }
+            if (guarda != Armazem.Guarda.GUARDADA) {
+                entregarErro("Destino não encontrado ou sem permissão.");
+                return;
+            }
+            Registro.debug("Mensagem guardada: " + usuario + " → " + destino + Registro.conteudo(mensagem));
+            return;
+        }
+        ch.entregarMensagem(usuario, mensagem);
+        Armazem.direta(usuario, destino, mensagem);
+        Registro.debug("Mensagem: " + usuario + " → " + destino + Registro.conteudo(mensagem));
+    }
+
+    private void mensagemGrupo(Rotas.Grupo grupo, String mensagem) {
+        if (!dentroDoLimite())
+            return;
+        if (grupo == null || !grupo.membro(idUsuario)) {
+            entregarErro("Destino não encontrado ou sem permissão.");
+            return;
+        }
+        String destino = grupo.nome;
+        // Grava antes de difundir: a posição deixa quem está recebendo o reenvio do Armazem
+        // descartar a cópia ao vivo
+        long posicao = Armazem.grupo(usuario, destino, mensagem);
+        Difusao.mensagemGrupo(grupo, usuario, mensagem, this, posicao);
+        Cluster.mensagemGrupo(destino, usuario, mensagem);
+        Registro.debug("Mensagem grupo: " + usuario + " → " + destino + Registro.conteudo(mensagem));
+    }
+
+    // Página do histórico de uma conversa com outro usuário (destino) ou de um grupo do usuário
+    private void historico(String destino, String grupo, int n, long antes) {
+        String conversa;
+        if (grupo != null) {
+            Set<String> membros = ChatServer.grupos.get(grupo);
+            if (membros == null || !membros.contains(usuario)) {
+                entregarErro("Destino não encontrado ou sem permissão.");
+                return;
+            }
+            conversa = "#" + grupo;
+        } else if (destino != null && ChatServer.nomeValido(destino)) {
+            conversa = Armazem.conversa(usuario, destino);
+        } else {
+            entregarErro("Destino não encontrado ou sem permissão.");
+            return;
+        }
+        if (!Armazem.ativo()) {
+            entregarErro("Histórico indisponível.");
+            return;
+        }
+        List<Armazem.Mensagem> mensagens = new ArrayList<>();
+        long anterior = Armazem.historico(conversa, Math.max(1, Math.min(n, Armazem.MAX_HISTORICO)), antes,
+                mensagens);
+        entregarHistorico(destino, grupo, mensagens, anterior);
+    }
+
+    // Abre (ou retoma, se o mesmo arquivo já estava a caminho do mesmo destino) uma transferência
+    // retomável e diz ao remetente a partir de qual bloco enviar
+    private void iniciarTransferencia(int local, String destino, String grupo, String nomeArquivo, long tamanho,
+            byte[] digest) {
+        Set<String> membros = grupo == null ? null : ChatServer.grupos.get(grupo);
+        Set<String> destinatarios;
+        if (destino != null && grupo == null) {
+            destinatarios = Set.of(destino);
+        } else if (membros != null && membros.contains(usuario)) {
+            destinatarios = new HashSet<>(membros);
+            destinatarios.remove(usuario);
+        } else {
+            destinatarios = null;
+        }
+        if (!retomar || destinatarios == null || tamanho < 0) {
+            entregarErro("Destino não encontrado ou sem permissão.");
+            entregarTransferenciaAceita(local, -1, 0);
+            return;
+        }
+        // Só quem prova ter o arquivo aproveita o depósito; o desafio vai esteja o arquivo lá ou não
+        if (deposito && tamanho > 0 && Blobs.ativo() && desafios.size() < MAX_DESAFIOS) {
+            Desafio d = new Desafio(destino, grupo, destinatarios, nomeArquivo, tamanho, digest, Blobs.nonce(),
+                    Blobs.sortearBlocos(tamanho));
+            desafios.put(local, d);
+            entregarDesafio(local, d.nonce(), d.blocos());
+            return;
+        }
+        abrirTransferencia(local, destino, grupo, destinatarios, nomeArquivo, tamanho, digest, null);
+    }
+
+    private record Retida(String remetente, String texto, Difusao.Quadro quadro) {
+    }
+
+    private record Desafio(String destino, String grupo, Set<String> destinatarios, String nome, long tamanho,
+            byte[] digest, byte[] nonce, int[] blocos) {
+    }
+
+    // blob: o arquivo do depósito que o remetente provou ter, ou null
+    private void abrirTransferencia(int local, String destino, String grupo, Set<String> destinatarios,
+            String nomeArquivo, long tamanho, byte[] digest, Blobs.Blob blob) {
+        try {
+            Transferencia t = Transferencia.abrir(this, destino, grupo, destinatarios, nomeArquivo, tamanho, digest,
+                    blob);
+            entregarTransferenciaAceita(local, t.id, t.proximoBloco());
+        } catch (IOException e) {
+            Registro.aviso("Falha ao abrir transferência de " + usuario + ": " + e.getMessage());
+            entregarErro("Falha ao abrir transferência.");
+            entregarTransferenciaAceita(local, -1, 0);
+        }
+    }
+
+    // Escolhe para onde vai o corpo do arquivo: um usuário conectado, um grupo do remetente ou descarte
+    private ReceptorArquivo abrirArquivo(String destino, String grupo, String nomeArquivo, long tamanho) {
+        Sessao ch = destino == null ? null : ChatServer.usuariosConectados.get(destino);
+        Rotas.Grupo rota = Rotas.grupo(grupo);
+        Cluster.Arquivo remoto;
+        ReceptorArquivo receptor;
+        if (ch != null) {
+            ArquivoDireto direto = new ArquivoDireto(ch, destino);
+            if (!ch.entregarInicioArquivo(direto.transferencia, null, usuario, nomeArquivo, tamanho)) {
+                receptor = new ArquivoDescartado("Destinatário ocupado recebendo outro arquivo.");
+                receptor.tamanho = tamanho;
+                return receptor;
+            }
+            receptor = direto;
+        } else if (destino != null
+                && (remoto = Cluster.arquivo(usuario, null, destino, nomeArquivo, tamanho, null)) != null) {
+            receptor = new ArquivoRemoto(remoto, destino);
+        } else if (rota != null && rota.membro(idUsuario)) {
+            receptor = new ArquivoGrupo(rota, nomeArquivo, tamanho);
+        } else {
+            receptor = new ArquivoDescartado("Destino não encontrado ou sem permissão.");
+        }
+        receptor.tamanho = tamanho;
+        return receptor;
+    }
+
+    // Prazo do login e inatividade da sessão, conferidos pela roda de Inatividade
+    private class Vigia extends RodaTempo.Tarefa {
+        @Override
+        long vencer(long agora) {
+            if (!autenticada) {
+                Inatividade.handshakesExpirados.increment();
+                Registro.info("Conexão sem login no prazo, fechando");
+                fechar();
+                return 0;
+            }
+            long limite = ping ? Inatividade.LIMITE : Inatividade.LIMITE_SEM_PING;
+            if (limite <= 0)
+                return 0;
+            long ocioso = agora - ultimaAtividade;
+            if (ocioso >= limite) {
+                Inatividade.inativasEncerradas.increment();
+                ChatServer.log("Usuário " + usuario + " calado há " + TimeUnit.NANOSECONDS.toSeconds(ocioso)
+                        + "s, encerrando");
+                fechar();
+                return 0;
+            }
+            if (ping && ocioso >= Inatividade.INTERVALO) {
+                Inatividade.pings.increment();
+                entregarPing(false);
+                return limite - ocioso;
+            }
+            return (ping ? Math.min(Inatividade.INTERVALO, limite) : limite) - ocioso;
+        }
+    }
+
+    private abstract static class ReceptorArquivo {
+        final long inicio = System.nanoTime();
+        long tamanho;
+        long total;
+
+        abstract void receber(byte[] buffer, int off, int len) throws IOException;
+
+        // Recebe um buffer da ReservaBuffers e passa a ser responsável por devolvê-lo
+        void receber(ByteBuffer dados) throws IOException {
+            byte[] copia = new byte[dados.remaining()];
+            dados.get(copia);
+            ReservaBuffers.devolver(dados);
+            receber(copia, 0, copia.length);
+        }
+
+        // Bloco que o remetente comprimiu (ARQUIVO_DADOS_Z); quem não sabe repassá-lo assim descomprime
+        void receberComprimido(byte[] buffer, int off, int len, int original) throws IOException {
+            Compressao.blocosInflados.increment();
+            receber(Compressao.inflar(buffer, off, len, original), 0, original);
+        }
+
+        abstract void concluir() throws IOException;
+
+        void abortar() {
+        }
+    }
+
+    private class ArquivoDireto extends ReceptorArquivo {
+        private final Sessao ch;
+        private final String destino;
+        private final int transferencia = ChatServer.novaTransferencia();
+
+        ArquivoDireto(Sessao ch, String destino) {
+            this.ch = ch;
+            this.destino = destino;
+        }
+
+        void receber(byte[] buffer, int off, int len) {
+            ch.entregarDadosArquivo(transferencia, buffer, off, len);
+            if (ch.fila.precisaEsperar())
+                aguardarDestino(ch);
+        }
+
+        void receber(ByteBuffer dados) {
+            ch.entregarDadosArquivo(transferencia, dados);
+            if (ch.fila.precisaEsperar())
+                aguardarDestino(ch);
+        }
+
+        void receberComprimido(byte[] buffer, int off, int len, int original) throws IOException {
+            if (!ch.deflate) {
+                super.receberComprimido(buffer, off, len, original);
+                return;
+            }
+            Compressao.blocosRepassados.increment();
+            ch.entregarDadosComprimidos(transferencia, buffer, off, len, original, false);
+            if (ch.fila.precisaEsperar())
+                aguardarDestino(ch);
+        }
+
+        void abortar() {
+            ch.abortarArquivo(transferencia);
+        }
+
+        void concluir() {
+            ChatServer.log("[OK] Arquivo enviado para " + destino + " (" + total + " bytes)");
+        }
+    }
+
+    // Arquivo para um usuário conectado em outro nó do cluster: o corpo segue pelo enlace com aquele nó
+    private class ArquivoRemoto extends ReceptorArquivo {
+        private final Cluster.Arquivo remoto;
+        private final String destino;
+
+        ArquivoRemoto(Cluster.Arquivo remoto, String destino) {
+            this.remoto = remoto;
+            this.destino = destino;
+        }
+
+        void receber(byte[] buffer, int off, int len) {
+            remoto.dados(buffer, off, len);
+        }
+
+        void abortar() {
+            remoto.abortar();
+        }
+
+        void concluir() {
+            ChatServer.log("[OK] Arquivo encaminhado para " + destino + " em outro nó (" + total + " bytes)");
+        }
+    }
+
+    // Repassa o corpo a todos os membros conectados à medida que chega, sem guardar o arquivo.
+    // O remetente só espera quando nenhum membro tem espaço na fila; quem ficar para trás recebe o
+    // excedente pelo disco (FilaSaida.oferecerOuDerramar), sem segurar os demais. Membros em outros
+    // nós recebem pelo enlace com o nó deles, uma cópia por nó.
+    private class ArquivoGrupo extends ReceptorArquivo {
+        private final String destino;
+        private final String nomeArquivo;
+        private final List<Sessao> membros = new ArrayList<>();
+        private final List<Integer> ids = new ArrayList<>();
+        private final Cluster.Arquivo remoto;
+
+        ArquivoGrupo(Rotas.Grupo grupo, String nomeArquivo, long tamanho) {
+            this.destino = grupo.nome;
+            this.nomeArquivo = nomeArquivo;
+            this.remoto = Cluster.arquivo(usuario, destino, null, nomeArquivo, tamanho,
+                    ChatServer.grupos.getOrDefault(destino, Set.of()));
+            for (Sessao ch : grupo.conectadas) {
+                if (ch == Sessao.this)
+                    continue;
+                int transferencia = ChatServer.novaTransferencia();
+                if (!ch.entregarInicioArquivo(transferencia, destino, usuario, nomeArquivo, tamanho)) {
+                    Registro.aviso("Arquivo não entregue a " + ch.usuario + ": ocupado com outro arquivo");
+                    continue;
+                }
+                membros.add(ch);
+                ids.add(transferencia);
+            }
+        }
+
+        void receber(byte[] buffer, int off, int len) {
+            if (remoto != null)
+                remoto.dados(buffer, off, len);
+            for (int i = 0; i < membros.size(); i++)
+                membros.get(i).entregarDadosArquivo(ids.get(i), buffer, off, len, true);
+            if (todosCheios(membros))
+                aguardarDestinos(membros);
+        }
+
+        // Membros com "deflate" recebem o bloco como veio; para os demais ele é descomprimido uma vez
+        void receberComprimido(byte[] buffer, int off, int len, int original) throws IOException {
+            byte[] dados = null;
+            for (int i = 0; i < membros.size(); i++) {
+                Sessao ch = membros.get(i);
+                if (ch.deflate) {
+                    Compressao.blocosRepassados.increment();
+                    ch.entregarDadosComprimidos(ids.get(i), buffer, off, len, original, true);
+                } else {
+                    if (dados == null) {
+                        Compressao.blocosInflados.increment();
+                        dados = Compressao.inflar(buffer, off, len, original);
+                    }
+                    ch.entregarDadosArquivo(ids.get(i), dados, 0, original, true);
+                }
+            }
+            if (remoto != null) {
+                if (dados == null)
+                    dados = Compressao.inflar(buffer, off, len, original);
+                remoto.dados(dados, 0, original);
+            }
+            if (todosCheios(membros))
+                aguardarDestinos(membros);
+        }
+
+        void abortar() {
+            if (remoto != null)
+                remoto.abortar();
+            for (int i = 0; i < membros.size(); i++)
+                membros.get(i).abortarArquivo(ids.get(i));
+        }
+
+        void concluir() {
+            ChatServer.log("[OK] Arquivo grupo: " + usuario + " → " + destino + ": " + nomeArquivo + " (" + total
+                    + " bytes para " + membros.size() + " membros)");
+        }
+    }
+
+    private class ArquivoDescartado extends ReceptorArquivo {
+        private final String motivo;
+
+        ArquivoDescartado(String motivo) {
+            this.motivo = motivo;
+        }
+
+        void receber(byte[] buffer, int off, int len) {
+        }
+
+        void receber(ByteBuffer dados) {
+            ReservaBuffers.devolver(dados);
+        }
+
+        void receberComprimido(byte[] buffer, int off, int len, int original) {
+        }
+
+        void concluir() {
+            entregarErro(motivo);
+            Registro.aviso("Destino não encontrado ou sem permissão para arquivo de " + usuario);
+        }
+    }
+}
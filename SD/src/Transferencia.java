@@ -0,0 +1,540 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Transferência retomável (capacidade "retomar" do v2). O corpo chega em blocos numerados com CRC32
+// e é gravado num arquivo do servidor; cada destinatário conectado é servido desse arquivo por uma
+// thread virtual própria, no seu ritmo, a partir do bloco que pedir. Remetente e destinatários podem
+// cair e continuar de onde pararam; destinatários sem a capacidade recebem pelo caminho antigo
+// (ARQUIVO/ARQUIVO_DADOS ou ARQUIVO: no v1), do início, enquanto o remetente estiver enviando.
+// Blocos que chegam comprimidos (TRANSF_BLOCO_Z) são gravados descomprimidos, para conferir CRC e
+// SHA-256, e também como vieram num arquivo .z ao lado, de onde vão para quem negociou "deflate".
+// Um arquivo já no depósito (Blobs) não é enviado de novo: a transferência nasce completa, lendo dele.
+final class Transferencia {
+    private static final Map<Integer, Transferencia> porId = new ConcurrentHashMap<>();
+    private static final Map<String, Transferencia> porChave = new ConcurrentHashMap<>();
+    private static final long EXPIRACAO_SEGUNDOS = Long.getLong("chat.transferencias.expiracao", 3600);
+    private static volatile Path diretorio;
+
+    final int id;
+    final String remetente;
+    final String grupo;
+    final String nome;
+    final long tamanho;
+    final byte[] digest;
+    private final String chave;
+    private final int blocos;
+    private final FileChannel arquivo;
+    private final Path caminho;
+    // Arquivo do depósito de onde a transferência é servida, ou null se ela grava o seu
+    private final Blobs.Blob blob;
+    // Destinatários que ainda não confirmaram o arquivo inteiro
+    private final Set<String> pendentes = ConcurrentHashMap.newKeySet();
+    private final Map<Sessao, Envio> envios = new ConcurrentHashMap<>();
+    // Forma comprimida dos blocos que vieram assim, criada no primeiro deles; tamanhoComprimido[b] é 0
+    // para blocos que vieram crus. Escrita sob o monitor antes de recebido avançar sobre o bloco.
+    private FileChannel comprimidos;
+    private long fimComprimidos;
+    private long[] posicaoComprimido;
+    private int[] tamanhoComprimido;
+    private int[] crcComprimido;
+
+    // Estado do recebimento, protegido pelo monitor da transferência (só a sessão do remetente escreve)
+    private final MessageDigest sha;
+    private Sessao enviando;
+    private int proximoBloco;
+    private boolean pediuReenvio;
+    private volatile long recebido;
+    private volatile boolean verificada;
+    private volatile boolean cancelada;
+    private volatile long expiraEm;
+    private final long criada = System.nanoTime();
+
+    private Transferencia(int id, String chave, String remetente, String grupo, Set<String> destinatarios, String nome,
+            long tamanho, byte[] digest, Blobs.Blob blob) throws IOException {
+        this.id = id;
+        this.chave = chave;
+        this.remetente = remetente;
+        this.grupo = grupo;
+        this.nome = nome;
+        this.tamanho = tamanho;
+        this.digest = digest;
+        this.blocos = ProtocoloV2.blocos(tamanho);
+        this.pendentes.addAll(destinatarios);
+        try {
+            this.sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        this.blob = blob;
+        if (blob != null) {
+            this.caminho = blob.caminho;
+            this.arquivo = FileChannel.open(caminho, StandardOpenOption.READ);
+            this.proximoBloco = blocos;
+            this.recebido = tamanho;
+        } else {
+            this.caminho = Files.createTempFile(diretorio(), "transf-" + id + "-", ".parte");
+            this.arquivo = FileChannel.open(caminho, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    // Abre uma transferência ou, se o mesmo remetente já estava enviando o mesmo arquivo para o mesmo
+    // destino, reata a existente; em ambos os casos o remetente continua de proximoBloco(), que para um
+    // arquivo servido do depósito (blob, já reservado e provado pelo remetente) é o fim
+    static Transferencia abrir(Sessao remetente, String destino, String grupo, Set<String> destinatarios,
+            String nome, long tamanho, byte[] digest, Blobs.Blob blob) throws IOException {
+        String chave = remetente.getUsuario() + "\0" + destino + "\0" + grupo + "\0" + nome + "\0" + tamanho + "\0"
+                + HexFormat.of().formatHex(digest);
+        Transferencia t;
+        boolean nova = false;
+        synchronized (porChave) {
+            t = porChave.get(chave);
+            if (t == null) {
+                t = nova(chave, remetente.getUsuario(), grupo, destinatarios, nome, tamanho, digest, blob);
+                porChave.put(chave, t);
+                porId.put(t.id, t);
+                nova = true;
+            }
+        }
+        if (!nova && blob != null)
+            Blobs.liberar(blob);
+        ChatServer.log((nova ? "Transferência " : "Transferência retomada ") + t.id + ": " + t.remetente + " → "
+                + (grupo != null ? grupo : destino) + ": " + nome + " (" + tamanho + " bytes, "
+                + (nova && t.blob != null ? "já no depósito" : "a partir do bloco " + t.proximoBloco()) + ")");
+        if (nova && (tamanho == 0 || t.blob != null))
+            t.verificarFim();
+        t.reatar(remetente);
+        return t;
+    }
+
+    private static Transferencia nova(String chave, String remetente, String grupo, Set<String> destinatarios,
+            String nome, long tamanho, byte[] digest, Blobs.Blob blob) throws IOException {
+        if (blob != null) {
+            try {
+                return new Transferencia(ChatServer.novaTransferencia(), chave, remetente, grupo, destinatarios,
+                        nome, tamanho, digest, blob);
+            } catch (IOException e) {
+                Registro.aviso("Arquivo do depósito ilegível, recebendo de novo: " + e.getMessage());
+                Blobs.esquecer(blob);
+            }
+        }
+        return new Transferencia(ChatServer.novaTransferencia(), chave, remetente, grupo, destinatarios, nome,
+                tamanho, digest, null);
+    }
+
+    static Transferencia buscar(int id) {
+        return porId.get(id);
+    }
+
+    // Um usuário entrou: oferece o que estava pendente para ele
+    static void aoEntrar(Sessao sessao) {
+        for (Transferencia t : porId.values()) {
+            if (t.pendentes.contains(sessao.getUsuario()))
+                t.oferecer(sessao);
+        }
+    }
+
+    static void aoSair(Sessao sessao) {
+        for (Transferencia t : porId.values()) {
+            Envio envio = t.envios.remove(sessao);
+            if (envio != null)
+                envio.parar();
+            t.remetenteSaiu(sessao);
+        }
+    }
+
+    synchronized int proximoBloco() {
+        return proximoBloco;
+    }
+
+    // Recebida por inteiro e com o SHA-256 conferido
+    private boolean concluida() {
+        return verificada;
+    }
+
+    private void reatar(Sessao remetente) {
+        synchronized (this) {
+            enviando = remetente;
+            pediuReenvio = false;
+        }
+        // Quem ficou sem receber enquanto o remetente estava fora volta a ser atendido
+        for (String usuario : pendentes) {
+            Sessao s = ChatServer.usuariosConectados.get(usuario);
+            if (s != null && !envios.containsKey(s))
+                oferecer(s);
+        }
+    }
+
+    private void remetenteSaiu(Sessao sessao) {
+        synchronized (this) {
+            if (enviando != sessao)
+                return;
+            enviando = null;
+        }
+        if (concluida())
+            return;
+        // Quem recebe pelo caminho antigo não tem como continuar depois: aborta como antes
+        for (Envio envio : envios.values()) {
+            if (envio.legado != 0) {
+                envios.remove(envio.destino, envio);
+                envio.parar();
+                envio.destino.abortarArquivo(envio.legado);
+            }
+        }
+        agendarExpiracao();
+    }
+
+    // Grava um bloco vindo do remetente e confirma; bloco fora de ordem ou com CRC errado pede
+    // reenvio a partir do esperado (uma vez só, até ele chegar)
+    void receberBloco(Sessao sessao, int bloco, int crc, byte[] buf, int off, int len) throws IOException {
+        receberBloco(sessao, bloco, crc, buf, off, len, null, 0, 0);
+    }
+
+    // Bloco comprimido pelo remetente; um bloco que não descomprime é tratado como CRC errado
+    void receberBlocoComprimido(Sessao sessao, int bloco, int crc, byte[] buf, int off, int len, int original)
+            throws IOException {
+        byte[] dados;
+        try {
+            dados = Compressao.inflar(buf, off, len, original);
+        } catch (IOException e) {
+            dados = new byte[0];
+        }
+        Compressao.blocosInflados.increment();
+        receberBloco(sessao, bloco, crc, dados, 0, dados.length, buf, off, len);
+    }
+
+    private void receberBloco(Sessao sessao, int bloco, int crc, byte[] buf, int off, int len, byte[] z, int zOff,
+            int zLen) throws IOException {
+        int confirmar;
+        synchronized (this) {
+            if (sessao != enviando || cancelada)
+                return;
+            long inicio = (long) bloco * ProtocoloV2.TAMANHO_BLOCO;
+            boolean valido = bloco == proximoBloco && len == Math.min(ProtocoloV2.TAMANHO_BLOCO, tamanho - inicio)
+                    && crc32(buf, off, len) == crc;
+            if (!valido) {
+                if (bloco < proximoBloco || pediuReenvio)
+                    return;
+                pediuReenvio = true;
+                Registro.aviso("Transferência " + id + ": bloco " + bloco + " inválido, pedindo reenvio de "
+                        + proximoBloco);
+                confirmar = proximoBloco;
+            } else {
+                ByteBuffer dados = ByteBuffer.wrap(buf, off, len);
+                while (dados.hasRemaining())
+                    arquivo.write(dados, inicio + dados.position() - off);
+                sha.update(buf, off, len);
+                if (z != null)
+                    guardarComprimido(bloco, crc, z, zOff, zLen);
+                proximoBloco++;
+                pediuReenvio = false;
+                recebido = inicio + len;
+                confirmar = proximoBloco;
+                Metricas.dadosArquivo(len);
+            }
+        }
+        for (Envio envio : envios.values())
+            LockSupport.unpark(envio.thread);
+        sessao.entregarConfirmacao(id, confirmar);
+        if (confirmar == blocos)
+            verificarFim();
+    }
+
+    private void guardarComprimido(int bloco, int crc, byte[] z, int off, int len) throws IOException {
+        if (comprimidos == null) {
+            comprimidos = FileChannel.open(caminhoComprimidos(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            posicaoComprimido = new long[blocos];
+            tamanhoComprimido = new int[blocos];
+            crcComprimido = new int[blocos];
+        }
+        ByteBuffer dados = ByteBuffer.wrap(z, off, len);
+        while (dados.hasRemaining())
+            comprimidos.write(dados, fimComprimidos + dados.position() - off);
+        posicaoComprimido[bloco] = fimComprimidos;
+        tamanhoComprimido[bloco] = len;
+        crcComprimido[bloco] = crc;
+        fimComprimidos += len;
+    }
+
+    private Path caminhoComprimidos() {
+        return caminho.resolveSibling(caminho.getFileName() + ".z");
+    }
+
+    // Chamado uma única vez, quando o último bloco é gravado (ou na abertura, vindo do depósito)
+    private void verificarFim() {
+        boolean confere;
+        synchronized (this) {
+            confere = blob != null || Arrays.equals(sha.digest(), digest);
+            verificada = confere;
+        }
+        if (!confere) {
+            cancelar("SHA-256 do arquivo recebido não confere");
+            return;
+        }
+        if (blob == null) {
+            Blobs.guardar(digest, caminho, tamanho);
+            Metricas.arquivoConcluido(tamanho, System.nanoTime() - criada);
+            ChatServer.log("[OK] Transferência " + id + " recebida por inteiro: " + nome + " (" + tamanho
+                    + " bytes)");
+        }
+        if (pendentes.isEmpty())
+            descartar();
+        else
+            agendarExpiracao();
+    }
+
+    // Anuncia a transferência a um destinatário conectado; quem tem a capacidade escolhe o bloco
+    // inicial com TRANSF_PEDIR, os demais começam já, do início
+    private void oferecer(Sessao destino) {
+        if (cancelada)
+            return;
+        if (destino.retomar) {
+            destino.entregarOferta(this);
+            return;
+        }
+        if (!concluida() && enviando == null)
+            return;
+        int legado = ChatServer.novaTransferencia();
+        if (!destino.entregarInicioArquivo(legado, grupo, remetente, nome, tamanho)) {
+            Registro.aviso("Arquivo não entregue a " + destino.getUsuario() + ": ocupado com outro arquivo");
+            return;
+        }
+        iniciarEnvio(destino, 0, legado);
+    }
+
+    void pedir(Sessao destino, int bloco) {
+        if (cancelada || !pendentes.contains(destino.getUsuario()))
+            return;
+        Envio envio = envios.get(destino);
+        if (envio != null) {
+            envio.recomecar(bloco);
+            return;
+        }
+        iniciarEnvio(destino, bloco, 0);
+    }
+
+    void confirmar(Sessao destino, int proximo) {
+        if (proximo < blocos || !pendentes.remove(destino.getUsuario()))
+            return;
+        // Confirmado sem envio em andamento: o destinatário já tinha o arquivo e não pediu blocos
+        Envio envio = envios.remove(destino);
+        if (envio != null)
+            envio.parar();
+        else
+            Blobs.downloadsEvitados.increment();
+        ChatServer.log("[OK] Transferência " + id + " entregue a " + destino.getUsuario());
+        if (pendentes.isEmpty() && concluida())
+            descartar();
+    }
+
+    // Cancelamento pedido por um cliente: o remetente desiste do arquivo para todos; um destinatário
+    // só para si, e sem mais ninguém à espera o arquivo é descartado
+    void cancelarPor(Sessao sessao, String motivo) {
+        if (sessao.getUsuario().equals(remetente)) {
+            cancelar("cancelada pelo remetente" + (motivo.isEmpty() ? "" : " (" + motivo + ")"));
+            return;
+        }
+        if (!pendentes.remove(sessao.getUsuario()))
+            return;
+        Envio envio = envios.remove(sessao);
+        if (envio != null)
+            envio.parar();
+        ChatServer.log("Transferência " + id + " recusada por " + sessao.getUsuario());
+        if (!pendentes.isEmpty())
+            return;
+        if (concluida())
+            descartar();
+        else
+            cancelar("nenhum destinatário restante");
+    }
+
+    private void iniciarEnvio(Sessao destino, int bloco, int legado) {
+        Envio envio = new Envio(destino, bloco, legado);
+        Envio anterior = envios.put(destino, envio);
+        if (anterior != null)
+            anterior.parar();
+        envio.thread = Thread.ofVirtual().name("transf-" + id + "-" + destino.getUsuario()).start(envio);
+    }
+
+    private void cancelar(String motivo) {
+        ChatServer.log("Transferência " + id + " cancelada: " + motivo);
+        cancelada = true;
+        Sessao s;
+        synchronized (this) {
+            s = enviando;
+        }
+        if (s != null)
+            s.entregarCancelamento(id, motivo);
+        for (Envio envio : envios.values()) {
+            envio.parar();
+            if (envio.legado != 0)
+                envio.destino.abortarArquivo(envio.legado);
+        }
+        for (String usuario : pendentes) {
+            Sessao d = ChatServer.usuariosConectados.get(usuario);
+            if (d != null && d.retomar)
+                d.entregarCancelamento(id, motivo);
+        }
+        descartar();
+    }
+
+    private void descartar() {
+        cancelada = true;
+        boolean primeira = porId.remove(id) != null;
+        porChave.remove(chave, this);
+        for (Envio envio : envios.values())
+            envio.parar();
+        envios.clear();
+        try {
+            arquivo.close();
+            if (blob == null)
+                Files.deleteIfExists(caminho);
+            else if (primeira)
+                Blobs.liberar(blob);
+            synchronized (this) {
+                if (comprimidos != null) {
+                    comprimidos.close();
+                    Files.deleteIfExists(caminhoComprimidos());
+                }
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    // Sem remetente (incompleta) ou à espera de destinatários desconectados (completa), a transferência
+    // é descartada depois de chat.transferencias.expiracao segundos; envios em andamento adiam o prazo
+    private void agendarExpiracao() {
+        expiraEm = System.nanoTime() + TimeUnit.SECONDS.toNanos(EXPIRACAO_SEGUNDOS);
+        CompletableFuture.delayedExecutor(EXPIRACAO_SEGUNDOS, TimeUnit.SECONDS).execute(() -> {
+            boolean parada;
+            synchronized (this) {
+                parada = enviando == null || concluida();
+            }
+            if (cancelada || !parada || System.nanoTime() - expiraEm < 0)
+                return;
+            if (envios.isEmpty())
+                cancelar("expirada");
+            else
+                agendarExpiracao();
+        });
+    }
+
+    private static int crc32(byte[] buf, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(buf, off, len);
+        return (int) crc.getValue();
+    }
+
+    static Path diretorio() throws IOException {
+        if (diretorio == null) {
+            synchronized (Transferencia.class) {
+                if (diretorio == null) {
+                    String configurado = System.getProperty("chat.transferencias.dir");
+                    diretorio = configurado != null ? Files.createDirectories(Path.of(configurado))
+                            : Files.createTempDirectory("chat-transferencias");
+                }
+            }
+        }
+        return diretorio;
+    }
+
+    // Envia o arquivo gravado a um destinatário, bloco a bloco, esperando quando a fila dele enche ou
+    // quando alcança o que o remetente já mandou
+    private final class Envio implements Runnable {
+        final Sessao destino;
+        // ID do caminho antigo (ARQUIVO/ARQUIVO_DADOS) ou 0 para TRANSF_BLOCO
+        final int legado;
+        private final AtomicInteger proximo;
+        private volatile boolean parado;
+        volatile Thread thread;
+
+        Envio(Sessao destino, int bloco, int legado) {
+            this.destino = destino;
+            this.legado = legado;
+            this.proximo = new AtomicInteger(Math.max(0, bloco));
+        }
+
+        void recomecar(int bloco) {
+            proximo.set(Math.max(0, bloco));
+            LockSupport.unpark(thread);
+        }
+
+        void parar() {
+            parado = true;
+            LockSupport.unpark(thread);
+        }
+
+        public void run() {
+            CRC32 crc = new CRC32();
+            try {
+                while (!parado && !cancelada && !destino.fila.fechada()) {
+                    int bloco = proximo.get();
+                    long inicio = (long) bloco * ProtocoloV2.TAMANHO_BLOCO;
+                    if (bloco >= blocos) {
+                        if (legado != 0) {
+                            // Sem confirmação no caminho antigo: entregue é o que foi escrito
+                            confirmar(destino, blocos);
+                            return;
+                        }
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    int n = (int) Math.min(ProtocoloV2.TAMANHO_BLOCO, tamanho - inicio);
+                    if (recebido < inicio + n) {
+                        LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                        continue;
+                    }
+                    ByteBuffer dados = ReservaBuffers.obter();
+                    // recebido (volátil) já cobre o bloco, então o índice do .z está visível
+                    int[] tamanhos = tamanhoComprimido;
+                    int z = destino.deflate && tamanhos != null ? tamanhos[bloco] : 0;
+                    if (z > 0) {
+                        dados.limit(z);
+                        long pos = posicaoComprimido[bloco];
+                        while (dados.hasRemaining()) {
+                            if (comprimidos.read(dados, pos + dados.position()) < 0)
+                                throw new EOFException();
+                        }
+                        dados.flip();
+                        Compressao.blocosRepassados.increment();
+                        if (legado != 0)
+                            destino.entregarDadosComprimidos(legado, n, dados);
+                        else
+                            destino.entregarBlocoComprimido(id, bloco, crcComprimido[bloco], n, dados);
+                        proximo.compareAndSet(bloco, bloco + 1);
+                        destino.fila.aguardarEspaco();
+                        continue;
+                    }
+                    dados.limit(n);
+                    while (dados.hasRemaining()) {
+                        if (arquivo.read(dados, inicio + dados.position()) < 0)
+                            throw new EOFException();
+                    }
+                    dados.flip();
+                    if (legado != 0) {
+                        destino.entregarDadosArquivo(legado, dados);
+                    } else {
+                        crc.reset();
+                        crc.update(dados.duplicate());
+                        destino.entregarBloco(id, bloco, (int) crc.getValue(), dados);
+                    }
+                    proximo.compareAndSet(bloco, bloco + 1);
+                    destino.fila.aguardarEspaco();
+                }
+            } catch (IOException e) {
+                if (!cancelada)
+                    Registro.aviso("Falha ao ler transferência " + id + ": " + e.getMessage());
+            } finally {
+                envios.remove(destino, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Armazem no login: caixa de quem estava fora, grupos desde a última saída, limites, e a passagem do
+// reenvio para a entrega ao vivo sem repetir nem inverter mensagens. As sessões não têm socket (como
+// em AlvoBench) e o que escrevem é lido de volta como linhas v1.
+class ArmazemTest {
+    private static final long PRAZO = 5_000;
+
+    @TempDir
+    static Path dir;
+
+    @BeforeAll
+    static void abrir() throws IOException {
+        System.setProperty("chat.armazem.dir", dir.toString());
+        System.setProperty("chat.armazem.caixa", "3");
+        System.setProperty("chat.armazem.pendentes", "2");
+        Armazem.abrir();
+    }
+
+    private static class SessaoTeste extends Sessao {
+        private final ByteArrayOutputStream saida = new ByteArrayOutputStream();
+        private final GatheringByteChannel canal = new GatheringByteChannel() {
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                long n = 0;
+                for (int i = offset; i < offset + length; i++)
+                    n += write(srcs[i]);
+                return n;
+            }
+
+            public long write(ByteBuffer[] srcs) {
+                return write(srcs, 0, srcs.length);
+            }
+
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                byte[] b = new byte[n];
+                src.get(b);
+                saida.write(b, 0, n);
+                return n;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+
+        void despertarEscritor() {
+        }
+
+        void fechar() {
+        }
+
+        // Linhas de chat escritas até agora (sem presença nem confirmações)
+        synchronized List<String> linhas() throws IOException {
+            fila.escreverEm(canal);
+            List<String> r = new ArrayList<>();
+            for (String l : saida.toString(StandardCharsets.UTF_8).split("\n")) {
+                if (l.startsWith("MSG:") || l.startsWith("GRUPO_MSG:") || l.startsWith("ERRO:"))
+                    r.add(l);
+            }
+            return r;
+        }
+
+        List<String> esperar(int n) throws Exception {
+            long fim = System.currentTimeMillis() + PRAZO;
+            List<String> r;
+            while ((r = linhas()).size() < n && System.currentTimeMillis() < fim)
+                Thread.sleep(10);
+            return r;
+        }
+    }
+
+    private static SessaoTeste entrar(String nome) {
+        SessaoTeste s = new SessaoTeste();
+        assertTrue(s.autenticar("NOME:" + nome + ":"));
+        return s;
+    }
+
+    private static SessaoTeste entrar(SessaoTeste s, String nome) {
+        assertTrue(s.autenticar("NOME:" + nome + ":"));
+        return s;
+    }
+
+    private static void sair(Sessao s) {
+        s.encerrar();
+        s.fecharFila();
+    }
+
+    @Test
+    void caixaEntregueUmaVezNoLogin() throws Exception {
+        SessaoTeste ana = entrar("ana_cx");
+        sair(entrar("bia_cx"));
+        ana.processarMensagem("/msg bia_cx um");
+        ana.processarMensagem("/msg bia_cx dois");
+        SessaoTeste bia = entrar("bia_cx");
+        assertEquals(List.of("MSG:ana_cx:um", "MSG:ana_cx:dois"), bia.esperar(2));
+        sair(bia);
+        bia = entrar("bia_cx");
+        Thread.sleep(200);
+        assertEquals(List.of(), bia.linhas());
+        sair(bia);
+        sair(ana);
+    }
+
+    @Test
+    void caixaCheiaRecusada() throws Exception {
+        SessaoTeste ana = entrar("ana_ch");
+        sair(entrar("bia_ch"));
+        long antes = Armazem.caixasCheias.sum();
+        for (int i = 0; i < 4; i++)
+            ana.processarMensagem("/msg bia_ch m" + i);
+        List<String> erros = ana.esperar(1);
+        assertEquals(1, erros.size());
+        assertTrue(erros.get(0).startsWith("ERRO:Caixa de bia_ch cheia"), erros.get(0));
+        assertEquals(antes + 1, Armazem.caixasCheias.sum());
+        SessaoTeste bia = entrar("bia_ch");
+        assertEquals(List.of("MSG:ana_ch:m0", "MSG:ana_ch:m1", "MSG:ana_ch:m2"), bia.esperar(3));
+        sair(bia);
+        sair(ana);
+    }
+
+    @Test
+    void gruposDesdeASaidaComAvisoDoCorte() throws Exception {
+        SessaoTeste ana = entrar("ana_gr");
+        SessaoTeste bia = entrar("bia_gr");
+        ana.processarMensagem("/grupo_criar grupo_gr");
+        ana.processarMensagem("/grupo_add grupo_gr bia_gr");
+        ana.processarMensagem("/msg grupo_gr antes");
+        assertEquals(List.of("GRUPO_MSG:grupo_gr:ana_gr:antes"), bia.esperar(1));
+        sair(bia);
+        for (int i = 0; i < 3; i++)
+            ana.processarMensagem("/msg grupo_gr g" + i);
+        bia = entrar("bia_gr");
+        List<String> linhas = bia.esperar(3);
+        assertEquals(List.of("GRUPO_MSG:grupo_gr:ana_gr:g1", "GRUPO_MSG:grupo_gr:ana_gr:g2"), linhas.subList(0, 2));
+        assertTrue(linhas.get(2).startsWith("ERRO:") && linhas.get(2).contains("grupo_gr"), linhas.get(2));
+        sair(bia);
+        sair(ana);
+    }
+
+    @Test
+    void aoVivoDuranteOReenvioSaiDepoisESemRepetir() throws Exception {
+        SessaoTeste ana = entrar("ana_rv");
+        SessaoTeste bia = entrar("bia_rv");
+        ana.processarMensagem("/grupo_criar grupo_rv");
+        ana.processarMensagem("/grupo_add grupo_rv bia_rv");
+        sair(bia);
+        ana.processarMensagem("/msg grupo_rv r0");
+        ana.processarMensagem("/msg bia_rv direta");
+
+        // O reenvio para no primeiro lote até a mensagem ao vivo chegar
+        CountDownLatch aoVivo = new CountDownLatch(1);
+        SessaoTeste nova = new SessaoTeste() {
+            @Override
+            void reproduzir(List<Armazem.Mensagem> lote) {
+                try {
+                    assertTrue(aoVivo.await(PRAZO, TimeUnit.MILLISECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.reproduzir(lote);
+            }
+        };
+        entrar(nova, "bia_rv");
+        ana.processarMensagem("/msg grupo_rv r1");
+        Thread.sleep(100);
+        assertEquals(List.of(), nova.linhas());
+        aoVivo.countDown();
+        nova.esperar(3);
+        Thread.sleep(200);
+        assertEquals(List.of("GRUPO_MSG:grupo_rv:ana_rv:r0", "MSG:ana_rv:direta", "GRUPO_MSG:grupo_rv:ana_rv:r1"),
+                nova.linhas());
+        sair(nova);
+        sair(ana);
+    }
+
+    @Test
+    void copiaAoVivoDeMensagemReenviadaDescartada() throws Exception {
+        SessaoTeste ana = entrar("ana_dp");
+        SessaoTeste bia = entrar("bia_dp");
+        ana.processarMensagem("/grupo_criar grupo_dp");
+        ana.processarMensagem("/grupo_add grupo_dp bia_dp");
+        sair(bia);
+        ana.processarMensagem("/msg grupo_dp d0");
+
+        CountDownLatch liberar = new CountDownLatch(1);
+        CompletableFuture<Armazem.Mensagem> primeira = new CompletableFuture<>();
+        SessaoTeste nova = new SessaoTeste() {
+            @Override
+            void reproduzir(List<Armazem.Mensagem> lote) {
+                primeira.complete(lote.get(0));
+                try {
+                    assertTrue(liberar.await(PRAZO, TimeUnit.MILLISECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.reproduzir(lote);
+            }
+        };
+        entrar(nova, "bia_dp");
+        Armazem.Mensagem m = primeira.get(PRAZO, TimeUnit.MILLISECONDS);
+        // A difusão de d0 chegando depois do registro da sessão: mesma posição, já no reenvio
+        nova.entregarMensagemGrupo(new Difusao.Quadro(m.destino, m.remetente, m.texto, m.posicao));
+        liberar.countDown();
+        nova.esperar(1);
+        Thread.sleep(200);
+        assertEquals(List.of("GRUPO_MSG:grupo_dp:ana_dp:d0"), nova.linhas());
+        sair(nova);
+        sair(ana);
+    }
+}
@@ -0,0 +1,100 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Desafio do depósito: só quem tem os blocos sorteados abre um arquivo guardado; saber o hash e o
+// tamanho não basta, nem repetir a prova de outro desafio
+class BlobsTest {
+    private static final int TAMANHO = 3 * ProtocoloV2.TAMANHO_BLOCO + 1234;
+
+    @TempDir
+    static Path dir;
+    private static Path original;
+    private static byte[] digest;
+
+    @BeforeAll
+    static void guardar() throws Exception {
+        System.setProperty("chat.blobs.dir", dir.resolve("blobs").toString());
+        byte[] dados = new byte[TAMANHO];
+        new Random(42).nextBytes(dados);
+        original = Files.write(dir.resolve("original"), dados);
+        digest = MessageDigest.getInstance("SHA-256").digest(dados);
+        Blobs.guardar(digest, original, TAMANHO);
+        long fim = System.currentTimeMillis() + 5_000;
+        while (Blobs.quantidade() == 0 && System.currentTimeMillis() < fim)
+            Thread.sleep(10);
+        assertEquals(1, Blobs.quantidade());
+    }
+
+    private static byte[] prova(Path arquivo, byte[] nonce, int[] blocos) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+            return ProtocoloV2.prova(canal, TAMANHO, nonce, blocos);
+        }
+    }
+
+    @Test
+    void blocosSorteados() {
+        int blocos = ProtocoloV2.blocos(TAMANHO);
+        for (int i = 0; i < 100; i++) {
+            int[] sorteados = Blobs.sortearBlocos(TAMANHO);
+            assertEquals(Math.min(Blobs.PROVA_BLOCOS, blocos), sorteados.length);
+            assertEquals(blocos - 1, sorteados[0]);
+            assertEquals(sorteados.length, Arrays.stream(sorteados).distinct().count());
+            assertTrue(Arrays.stream(sorteados).allMatch(b -> b >= 0 && b < blocos));
+        }
+        assertArrayEquals(new int[] { 0 }, Blobs.sortearBlocos(10));
+    }
+
+    @Test
+    void provaCertaAbre() throws IOException {
+        byte[] nonce = Blobs.nonce();
+        int[] blocos = Blobs.sortearBlocos(TAMANHO);
+        long acertos = Blobs.acertos.sum();
+        Blobs.Blob blob = Blobs.abrir(digest, TAMANHO, nonce, blocos, prova(original, nonce, blocos));
+        assertNotNull(blob);
+        assertEquals(acertos + 1, Blobs.acertos.sum());
+        assertEquals(TAMANHO, blob.tamanho);
+        Blobs.liberar(blob);
+    }
+
+    @Test
+    void semOConteudoNaoAbre() throws IOException {
+        byte[] outro = new byte[TAMANHO];
+        new Random(7).nextBytes(outro);
+        Path falso = Files.write(dir.resolve("falso"), outro);
+        byte[] nonce = Blobs.nonce();
+        int[] blocos = Blobs.sortearBlocos(TAMANHO);
+        long recusadas = Blobs.provasRecusadas.sum();
+        assertNull(Blobs.abrir(digest, TAMANHO, nonce, blocos, prova(falso, nonce, blocos)));
+        assertNull(Blobs.abrir(digest, TAMANHO, nonce, blocos, new byte[ProtocoloV2.TAMANHO_DIGEST]));
+        assertEquals(recusadas + 2, Blobs.provasRecusadas.sum());
+    }
+
+    @Test
+    void provaDeOutroDesafioNaoAbre() throws IOException {
+        int[] blocos = Blobs.sortearBlocos(TAMANHO);
+        byte[] antiga = prova(original, Blobs.nonce(), blocos);
+        assertNull(Blobs.abrir(digest, TAMANHO, Blobs.nonce(), blocos, antiga));
+    }
+
+    @Test
+    void tamanhoOuHashDiferenteEFalta() throws IOException {
+        byte[] nonce = Blobs.nonce();
+        int[] blocos = Blobs.sortearBlocos(TAMANHO);
+        byte[] certa = prova(original, nonce, blocos);
+        long faltas = Blobs.faltas.sum();
+        assertNull(Blobs.abrir(digest, TAMANHO + 1, nonce, blocos, certa));
+        byte[] outroHash = digest.clone();
+        outroHash[0] ^= 1;
+        assertNull(Blobs.abrir(outroHash, TAMANHO, nonce, blocos, certa));
+        assertEquals(faltas + 2, Blobs.faltas.sum());
+    }
+}
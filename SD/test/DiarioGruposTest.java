@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Grupos duráveis: depois de uma compactação, reabrir traz de volta o snapshot mais as mudanças do
+// diário novo, mesmo com um snapshot mais novo pela metade ou a cauda do diário rasgada
+class DiarioGruposTest {
+    private static final long PRAZO = 10_000;
+
+    @TempDir
+    static Path dir;
+
+    @BeforeAll
+    static void configurar() {
+        System.setProperty("chat.armazem.dir", dir.toString());
+        System.setProperty("chat.grupos.compactacao", "512");
+    }
+
+    private static void adicionar(String grupo, String membro) {
+        ChatServer.adicionarMembro(grupo, membro);
+        DiarioGrupos.adicionado(grupo, membro);
+    }
+
+    // Como num reinício: o mapa em memória some e volta só do disco
+    private static Map<String, Set<String>> reabrir() throws IOException {
+        ChatServer.grupos.clear();
+        DiarioGrupos.abrir();
+        Map<String, Set<String>> r = new TreeMap<>();
+        ChatServer.grupos.forEach((g, membros) -> r.put(g, new TreeSet<>(membros)));
+        return r;
+    }
+
+    private static void esperarCompactacao() throws InterruptedException {
+        long fim = System.currentTimeMillis() + PRAZO;
+        while (!(Files.exists(dir.resolve("grupos-1.snap")) && !Files.exists(dir.resolve("grupos-0.diario")))) {
+            assertTrue(System.currentTimeMillis() < fim, "compactação não aconteceu");
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void recuperaDepoisDaCompactacao() throws Exception {
+        DiarioGrupos.abrir();
+        Map<String, Set<String>> esperado = new TreeMap<>();
+        for (int i = 0; i < 40; i++) {
+            String grupo = "grupo" + (i % 4), membro = "membro" + i;
+            adicionar(grupo, membro);
+            esperado.computeIfAbsent(grupo, g -> new TreeSet<>()).add(membro);
+        }
+        esperarCompactacao();
+        // Mudanças depois da troca ficam só no diário da geração nova
+        adicionar("grupo0", "tardio");
+        adicionar("novo", "ana");
+        esperado.get("grupo0").add("tardio");
+        esperado.put("novo", new TreeSet<>(Set.of("ana")));
+        assertTrue(Files.size(dir.resolve("grupos-1.diario")) > 0);
+        assertEquals(esperado, reabrir());
+
+        // Queda durante a próxima compactação: snapshot da geração 2 incompleto é ignorado
+        Files.write(dir.resolve("grupos-2.snap"), new byte[] { 0x47, 0x52, 0x50 });
+        assertEquals(esperado, reabrir());
+        Files.delete(dir.resolve("grupos-2.snap"));
+
+        // Cauda rasgada: o registro pela metade é descartado e o resto continua valendo
+        try (OutputStream out = Files.newOutputStream(dir.resolve("grupos-1.diario"), StandardOpenOption.APPEND)) {
+            out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+        }
+        assertEquals(esperado, reabrir());
+        adicionar("novo", "bia");
+        esperado.get("novo").add("bia");
+        assertEquals(esperado, reabrir());
+    }
+}
@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Fila de saída cheia sob cada política: o que é descartado, quando o cliente é desconectado e a
+// ordem do que passa pelo disco
+class FilaSaidaTest {
+    private static final int CAPACIDADE = 10;
+
+    @TempDir
+    Path dir;
+
+    private static ByteBuffer quadro(String texto) {
+        return ByteBuffer.wrap(texto.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // Drena a fila num arquivo (um GatheringByteChannel que também aceita transferTo do disco)
+    private String escrever(FilaSaida fila) throws IOException {
+        Path saida = dir.resolve("saida");
+        try (FileChannel canal = FileChannel.open(saida, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            assertTrue(fila.escreverEm(canal));
+        }
+        return Files.readString(saida, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void descartarPerdeSoMensagensDeChat() throws IOException {
+        FilaSaida fila = new FilaSaida(CAPACIDADE, FilaSaida.Politica.DESCARTAR);
+        assertTrue(fila.oferecer(quadro("aaaaaaaa"), true));
+        assertTrue(fila.descartaria(8));
+        assertTrue(fila.oferecer(quadro("bbbbbbbb"), true));
+        // Essencial: entra mesmo acima da capacidade
+        assertTrue(fila.oferecer(quadro("cccccccc"), false));
+        assertEquals(1, fila.descartados());
+        assertEquals(0, fila.derramados());
+        assertEquals("aaaaaaaacccccccc", escrever(fila));
+        assertTrue(fila.vazia());
+        assertEquals(0, fila.bytesPendentes());
+    }
+
+    @Test
+    void desconectarAvisaQuemEnfileira() throws IOException {
+        FilaSaida fila = new FilaSaida(CAPACIDADE, FilaSaida.Politica.DESCONECTAR);
+        assertTrue(fila.oferecer(quadro("aaaaaaaa"), true));
+        assertFalse(fila.oferecer(quadro("bbbbbbbb"), true));
+        assertTrue(fila.oferecer(quadro("cccccccc"), false));
+        assertEquals(1, fila.descartados());
+        assertEquals("aaaaaaaacccccccc", escrever(fila));
+    }
+
+    @Test
+    void discoGuardaOExcedenteEmOrdem() throws IOException {
+        FilaSaida fila = new FilaSaida(CAPACIDADE, FilaSaida.Politica.DISCO);
+        assertFalse(fila.descartaria(8));
+        assertTrue(fila.oferecer(quadro("aaaaaaaa"), true));
+        assertTrue(fila.oferecer(quadro("bbbbbbbb"), true));
+        assertTrue(fila.oferecer(quadro("cccccccc"), false));
+        assertTrue(fila.cheia());
+        assertEquals(0, fila.descartados());
+        assertEquals(2, fila.derramados());
+        assertEquals(3, fila.profundidade());
+        assertEquals("aaaaaaaabbbbbbbbcccccccc", escrever(fila));
+        assertTrue(fila.vazia());
+        assertEquals(0, fila.bytesPendentes());
+        // De volta à memória: o próximo quadro não vai para o disco
+        assertTrue(fila.oferecer(quadro("dd"), true));
+        assertEquals(2, fila.derramados());
+        assertEquals("dd", escrever(fila));
+    }
+
+    @Test
+    void volumeNaoPassaNaFrenteDeInterativoMaisAntigo() throws IOException {
+        FilaSaida fila = new FilaSaida(1 << 20, FilaSaida.Politica.DESCARTAR);
+        assertTrue(fila.oferecer(quadro("cabecalho;"), false));
+        assertTrue(fila.oferecerVolume(quadro("dados1;"), quadro("resto1;"), false));
+        assertTrue(fila.oferecer(quadro("msg;"), true));
+        String escrito = escrever(fila);
+        assertTrue(escrito.startsWith("cabecalho;"), escrito);
+        assertTrue(escrito.contains("dados1;resto1;"), escrito);
+        assertEquals("cabecalho;".length() + "dados1;resto1;msg;".length(), escrito.length());
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+// Enquadramento v2: o que o Escritor monta o LineReader separa, pelos dois caminhos (fluxo bloqueante
+// e bytes alimentados pelo motor NIO)
+class ProtocoloV2Test {
+
+    private static byte[] quadros() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtocoloV2.Escritor escritor = new ProtocoloV2.Escritor();
+        escritor.inicio(ProtocoloV2.MSG).i32(7).texto("olá, mundo").fim().escreverEm(out);
+        escritor.inicio(ProtocoloV2.HISTORICO_FIM).i32(3).i64(1L << 40).fim().escreverEm(out);
+        escritor.inicio(ProtocoloV2.PING).fim().escreverEm(out);
+        return out.toByteArray();
+    }
+
+    private static void conferir(LineReader leitor, ProtocoloV2.Leitor q) throws IOException {
+        assertEquals(ProtocoloV2.MSG, leitor.lerQuadro(q));
+        assertEquals(7, q.i32());
+        assertEquals("olá, mundo", q.texto());
+        assertEquals(0, q.restantes());
+        assertEquals(ProtocoloV2.HISTORICO_FIM, leitor.lerQuadro(q));
+        assertEquals(3, q.i32());
+        assertEquals(1L << 40, q.i64());
+        assertEquals(ProtocoloV2.PING, leitor.lerQuadro(q));
+        assertEquals(0, q.restantes());
+    }
+
+    @Test
+    void quadrosSeguidosNumFluxo() throws IOException {
+        LineReader leitor = new LineReader(new ByteArrayInputStream(quadros()));
+        ProtocoloV2.Leitor q = new ProtocoloV2.Leitor();
+        conferir(leitor, q);
+        assertEquals(-1, leitor.lerQuadro(q));
+    }
+
+    @Test
+    void quadroAlimentadoByteAByte() throws IOException {
+        byte[] bytes = quadros();
+        LineReader leitor = new LineReader();
+        ProtocoloV2.Leitor q = new ProtocoloV2.Leitor();
+        int tipos = 0;
+        for (byte b : bytes) {
+            leitor.alimentar(ByteBuffer.wrap(new byte[] { b }));
+            int tipo;
+            while ((tipo = leitor.proximoQuadro(q)) != -1) {
+                tipos++;
+                if (tipo == ProtocoloV2.MSG) {
+                    assertEquals(7, q.i32());
+                    assertEquals("olá, mundo", q.texto());
+                }
+            }
+        }
+        assertEquals(3, tipos);
+        assertEquals(0, leitor.disponiveis());
+    }
+
+    @Test
+    void linhaDoHandshakeSeguidaDeQuadro() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("NOME:ana:v2\n".getBytes(StandardCharsets.UTF_8));
+        out.write(quadros());
+        LineReader leitor = new LineReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("NOME:ana:v2", leitor.readLine());
+        conferir(leitor, new ProtocoloV2.Leitor());
+    }
+
+    @Test
+    void conteudoTruncado() throws IOException {
+        ProtocoloV2.Escritor escritor = new ProtocoloV2.Escritor();
+        byte[] quadro = escritor.inicio(ProtocoloV2.MSG).i32(1).fim().copia();
+        LineReader leitor = new LineReader(new ByteArrayInputStream(quadro));
+        ProtocoloV2.Leitor q = new ProtocoloV2.Leitor();
+        assertEquals(ProtocoloV2.MSG, leitor.lerQuadro(q));
+        assertEquals(1, q.i32());
+        assertThrows(IOException.class, q::texto);
+    }
+
+    @Test
+    void tamanhoInvalido() {
+        byte[] quadro = { ProtocoloV2.MSG, 0x7F, 0, 0, 0 };
+        LineReader leitor = new LineReader(new ByteArrayInputStream(quadro));
+        assertThrows(IOException.class, () -> leitor.lerQuadro(new ProtocoloV2.Leitor()));
+    }
+
+    @Test
+    void fluxoAcabaNoMeioDoQuadro() throws IOException {
+        byte[] bytes = quadros();
+        LineReader leitor = new LineReader(new ByteArrayInputStream(bytes, 0, 8));
+        assertThrows(EOFException.class, () -> leitor.lerQuadro(new ProtocoloV2.Leitor()));
+    }
+
+    @Test
+    void textoAcimaDoLimite() {
+        String longo = "x".repeat(0x10000);
+        ProtocoloV2.Escritor escritor = new ProtocoloV2.Escritor().inicio(ProtocoloV2.MSG);
+        assertThrows(IllegalArgumentException.class, () -> escritor.texto(longo));
+    }
+
+    @Test
+    void capacidades() {
+        assertTrue(ProtocoloV2.temCapacidade("v2,retomar,delta", "retomar"));
+        assertTrue(ProtocoloV2.temCapacidade("v2", "v2"));
+        assertFalse(ProtocoloV2.temCapacidade("v2,retomarx", "retomar"));
+        assertFalse(ProtocoloV2.temCapacidade("", "v2"));
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.*;
+
+// Implementação de desempenho.Alvo no pacote do servidor: sessões sem socket, cujas filas de saída
+// são drenadas para um canal que só conta os bytes.
+public class AlvoBench implements desempenho.Alvo {
+    private final List<SessaoBench> sessoes = new ArrayList<>();
+    private final Ralo ralo = new Ralo();
+
+    private static final class SessaoBench extends Sessao {
+        SessaoBench(String nome) {
+            usuario = nome;
+            idUsuario = ChatServer.idsUsuarios.id(nome);
+        }
+
+        void despertarEscritor() {
+        }
+
+        void fechar() {
+        }
+    }
+
+    // Canal que aceita tudo e descarta
+    private static final class Ralo implements GatheringByteChannel {
+        long bytes;
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; i++)
+                n += write(srcs[i]);
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    public int lerLinhas(byte[] dados) throws IOException {
+        LineReader leitor = new LineReader(new ByteArrayInputStream(dados));
+        int n = 0;
+        while (leitor.readLine() != null)
+            n++;
+        return n;
+    }
+
+    public void registrarUsuarios(String prefixo, int n) {
+        for (int i = 0; i < n; i++) {
+            SessaoBench s = new SessaoBench(prefixo + i);
+            ChatServer.usuariosConectados.put(s.getUsuario(), s);
+            Rotas.conectou(s);
+            sessoes.add(s);
+        }
+    }
+
+    public void criarGrupo(String grupo, String prefixo, int membros) {
+        for (int i = 0; i < membros; i++)
+            ChatServer.adicionarMembro(grupo, prefixo + i);
+    }
+
+    public void processar(String usuario, String linha) {
+        ChatServer.usuariosConectados.get(usuario).processarMensagem(linha);
+    }
+
+    public void entregarListaUsuarios(String usuario) {
+        ChatServer.usuariosConectados.get(usuario).entregarListaUsuarios(ChatServer.usuariosConectados.keySet());
+    }
+
+    public void difundirGrupo(String grupo, String remetente, String texto) {
+        Difusao.mensagemGrupo(Rotas.grupo(grupo), remetente, texto, ChatServer.usuariosConectados.get(remetente));
+    }
+
+    // Como era antes de Rotas: o conjunto de nomes do grupo e um hash por membro
+    public int destinosPorNome(String grupo, String remetente) {
+        if (!ChatServer.grupos.containsKey(grupo) || !ChatServer.grupos.get(grupo).contains(remetente))
+            return -1;
+        int n = 0;
+        for (String membro : ChatServer.grupos.get(grupo)) {
+            if (!membro.equals(remetente) && ChatServer.usuariosConectados.get(membro) != null)
+                n++;
+        }
+        return n;
+    }
+
+    public int destinosPorRota(String grupo, String remetente) {
+        Sessao origem = ChatServer.usuariosConectados.get(remetente);
+        Rotas.Grupo rota = Rotas.grupo(grupo);
+        if (rota == null || !rota.membro(origem.idUsuario))
+            return -1;
+        int n = 0;
+        for (Sessao s : rota.conectadas) {
+            if (s != origem)
+                n++;
+        }
+        return n;
+    }
+
+    public long drenar() throws IOException {
+        ralo.bytes = 0;
+        for (SessaoBench s : sessoes)
+            s.fila.escreverEm(ralo);
+        return ralo.bytes;
+    }
+
+    public void limpar() {
+        for (SessaoBench s : sessoes) {
+            ChatServer.usuariosConectados.remove(s.getUsuario(), s);
+            Rotas.desconectou(s);
+            s.fecharFila();
+        }
+        sessoes.clear();
+        ChatServer.grupos.clear();
+        Rotas.limpar();
+    }
+
+    public void iniciarServidor(int porta, int loops) {
+        Thread servidor = new Thread(() -> {
+            try {
+                new NioChatServer(porta, loops).executar();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "servidor-bench");
+        servidor.setDaemon(true);
+        servidor.start();
+    }
+}
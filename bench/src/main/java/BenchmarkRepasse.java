@@ -0,0 +1,67 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+// Mede a vazão do repasse de /arquivo 1:1 num servidor já em execução: um remetente envia o corpo
+// e um destinatário o consome, os dois pelo protocolo v1. Para comparar com o laço antigo, rode o
+// servidor com e sem -Dchat.repasse=copia. Fica no pacote do servidor, como AlvoBench, para usar o
+// LineReader.
+//
+//   java -cp bench/target/benchmarks.jar BenchmarkRepasse [megabytes] [rodadas] [host]
+public class BenchmarkRepasse {
+    private static final int PORT = 8080;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int rodadas = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String host = args.length > 2 ? args[2] : "localhost";
+        long tamanho = (long) megabytes << 20;
+
+        try (Socket remetente = conectar(host, "bench_rem"); Socket destinatario = conectar(host, "bench_dst")) {
+            OutputStream out = remetente.getOutputStream();
+            LineReader in = new LineReader(destinatario.getInputStream());
+            byte[] bloco = new byte[256 * 1024];
+            byte[] leitura = new byte[256 * 1024];
+            for (int r = 1; r <= rodadas; r++) {
+                long inicio = System.nanoTime();
+                Thread envio = new Thread(() -> {
+                    try {
+                        out.write(("/arquivo bench_dst bench.bin " + tamanho + "\n").getBytes(StandardCharsets.UTF_8));
+                        for (long enviados = 0; enviados < tamanho; enviados += bloco.length)
+                            out.write(bloco, 0, (int) Math.min(bloco.length, tamanho - enviados));
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                envio.start();
+                String linha;
+                while ((linha = in.readLine()) != null && !linha.startsWith("ARQUIVO:"))
+                    ;
+                if (linha == null)
+                    throw new EOFException("Servidor fechou a conexão");
+                for (long recebidos = 0; recebidos < tamanho;) {
+                    int n = in.read(leitura, 0, (int) Math.min(leitura.length, tamanho - recebidos));
+                    if (n == -1)
+                        throw new EOFException("Servidor fechou a conexão no meio do arquivo");
+                    recebidos += n;
+                }
+                envio.join();
+                double segundos = (System.nanoTime() - inicio) / 1e9;
+                System.out.printf("Rodada %d: %d MB em %.2f s (%.0f MB/s)%n", r, megabytes, segundos,
+                        megabytes / segundos);
+            }
+        }
+    }
+
+    private static Socket conectar(String host, String nome) throws IOException {
+        Socket socket = new Socket(host, PORT);
+        LineReader in = new LineReader(socket.getInputStream());
+        in.readLine();
+        socket.getOutputStream().write(("NOME:" + nome + "\n").getBytes(StandardCharsets.UTF_8));
+        String resposta = in.readLine();
+        if (resposta == null || !resposta.startsWith("OK"))
+            throw new IOException("Login recusado para " + nome + ": " + resposta);
+        return socket;
+    }
+}
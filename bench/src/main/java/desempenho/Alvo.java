@@ -0,0 +1,46 @@
+package desempenho;
+
+import java.io.IOException;
+
+// O servidor vive no pacote padrão, que um pacote com nome não pode importar, e o JMH exige que os
+// benchmarks tenham pacote. AlvoBench, no pacote padrão, implementa esta interface com acesso às
+// classes do servidor; os benchmarks o obtêm uma vez por reflexão em alvo().
+public interface Alvo {
+    static Alvo alvo() {
+        try {
+            return (Alvo) Class.forName("AlvoBench").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Lê todas as linhas de dados com o LineReader do servidor; retorna quantas leu
+    int lerLinhas(byte[] dados) throws IOException;
+
+    // Registra n sessões v1 sem socket (prefixo0, prefixo1, ...), cujas filas são drenadas por drenar()
+    void registrarUsuarios(String prefixo, int n);
+
+    void criarGrupo(String grupo, String prefixo, int membros);
+
+    // Comando v1 como se tivesse chegado do usuário
+    void processar(String usuario, String linha);
+
+    // Monta a USERLIST com todos os conectados na fila do usuário
+    void entregarListaUsuarios(String usuario);
+
+    void difundirGrupo(String grupo, String remetente, String texto);
+
+    // Quantos membros conectados receberiam uma mensagem do remetente, resolvidos pelos nomes (como
+    // antes da tabela de rotas) ou pela tabela; -1 se o remetente não é membro
+    int destinosPorNome(String grupo, String remetente);
+
+    int destinosPorRota(String grupo, String remetente);
+
+    // Esvazia as filas de saída das sessões registradas; retorna os bytes escritos
+    long drenar() throws IOException;
+
+    void limpar();
+
+    // Sobe o motor NIO na porta dada, numa thread daemon
+    void iniciarServidor(int porta, int loops);
+}
@@ -0,0 +1,38 @@
+package desempenho;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Sessao.processarMensagem: do texto do comando até o quadro na fila do destinatário
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dchat.log.nivel=AVISO", "-Dchat.limite.mensagens=0" })
+public class BenchDespacho {
+    @Param({ "/msg bench1 ola, tudo bem?", "/msg grupo ola, tudo bem?", "/grupo_add grupo bench1",
+            "/comando_desconhecido" })
+    String linha;
+
+    private Alvo alvo;
+
+    @Setup
+    public void preparar() {
+        alvo = Alvo.alvo();
+        alvo.registrarUsuarios("bench", 8);
+        alvo.criarGrupo("grupo", "bench", 8);
+    }
+
+    @TearDown
+    public void limpar() {
+        alvo.limpar();
+    }
+
+    @Benchmark
+    public long processarMensagem() throws IOException {
+        alvo.processar("bench0", linha);
+        return alvo.drenar();
+    }
+}
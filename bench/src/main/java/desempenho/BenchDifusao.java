@@ -0,0 +1,37 @@
+package desempenho;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Mensagem de grupo: codificação única e entrega na fila de cada membro, até as filas esvaziarem
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.nivel=AVISO")
+public class BenchDifusao {
+    @Param({ "10", "100", "1000" })
+    int membros;
+
+    private Alvo alvo;
+
+    @Setup
+    public void preparar() {
+        alvo = Alvo.alvo();
+        alvo.registrarUsuarios("membro", membros);
+        alvo.criarGrupo("grupo", "membro", membros);
+    }
+
+    @TearDown
+    public void limpar() {
+        alvo.limpar();
+    }
+
+    @Benchmark
+    public long mensagemGrupo() throws IOException {
+        alvo.difundirGrupo("grupo", "membro0", "mensagem para o grupo inteiro");
+        return alvo.drenar();
+    }
+}
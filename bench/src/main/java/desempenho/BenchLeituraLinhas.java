@@ -0,0 +1,45 @@
+package desempenho;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// LineReader.readLine sobre um lote de comandos v1 típicos já em memória
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.nivel=AVISO")
+public class BenchLeituraLinhas {
+    private static final int LINHAS = 10_000;
+
+    @Param({ "40", "400" })
+    int tamanhoMensagem;
+
+    private Alvo alvo;
+    private byte[] dados;
+
+    @Setup
+    public void preparar() {
+        alvo = Alvo.alvo();
+        String texto = "x".repeat(tamanhoMensagem);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINHAS; i++) {
+            switch (i % 4) {
+                case 0 -> sb.append("/msg usuario").append(i % 100).append(' ').append(texto).append('\n');
+                case 1 -> sb.append("/msg grupo").append(i % 10).append(' ').append(texto).append("\r\n");
+                case 2 -> sb.append("/grupo_add grupo").append(i % 10).append(" usuario").append(i % 100).append('\n');
+                default -> sb.append("/arquivo usuario").append(i % 100).append(" foto ").append(i).append(".jpg 1024\n");
+            }
+        }
+        dados = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINHAS)
+    public int readLine() throws IOException {
+        return alvo.lerLinhas(dados);
+    }
+}
@@ -0,0 +1,36 @@
+package desempenho;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Montagem e enfileiramento da USERLIST completa para um cliente v1
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.nivel=AVISO")
+public class BenchListaUsuarios {
+    @Param({ "1000", "10000" })
+    int usuarios;
+
+    private Alvo alvo;
+
+    @Setup
+    public void preparar() {
+        alvo = Alvo.alvo();
+        alvo.registrarUsuarios("usuario", usuarios);
+    }
+
+    @TearDown
+    public void limpar() {
+        alvo.limpar();
+    }
+
+    @Benchmark
+    public long userlist() throws IOException {
+        alvo.entregarListaUsuarios("usuario0");
+        return alvo.drenar();
+    }
+}
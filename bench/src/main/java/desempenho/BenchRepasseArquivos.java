@@ -0,0 +1,144 @@
+package desempenho;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Repasse de /arquivo pelo servidor NIO em loopback: um remetente v1 envia o corpo e cada
+// destinatário (um usuário, ou os membros de um grupo) o lê inteiro em sua própria thread. Cada
+// operação é um arquivo completo; MB/s = tamanhoMb / tempo médio.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.nivel=AVISO")
+public class BenchRepasseArquivos {
+    private static final int PORTA = Integer.getInteger("bench.porta", 18080);
+
+    @Param({ "usuario", "grupo" })
+    String destino;
+
+    @Param({ "4" })
+    int membros;
+
+    @Param({ "8" })
+    int tamanhoMb;
+
+    private Socket remetente;
+    private OutputStream saidaRemetente;
+    private final List<Socket> destinatarios = new ArrayList<>();
+    private final List<Thread> leitores = new ArrayList<>();
+    private volatile CountDownLatch recebidos;
+    private byte[] bloco;
+    private String cabecalho;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        Alvo.alvo().iniciarServidor(PORTA, 2);
+        remetente = conectar("bench_rem");
+        saidaRemetente = new BufferedOutputStream(remetente.getOutputStream(), 256 * 1024);
+        int n = destino.equals("grupo") ? membros : 1;
+        for (int i = 0; i < n; i++)
+            destinatarios.add(conectar("bench_dst" + i));
+        long tamanho = (long) tamanhoMb << 20;
+        if (destino.equals("grupo")) {
+            escreverLinha("/grupo_criar bench_grp");
+            for (int i = 0; i < n; i++)
+                escreverLinha("/grupo_add bench_grp bench_dst" + i);
+            cabecalho = "/arquivo bench_grp bench.bin " + tamanho;
+        } else {
+            cabecalho = "/arquivo bench_dst0 bench.bin " + tamanho;
+        }
+        // Deixa o servidor processar os comandos de grupo antes de começar a medir
+        Thread.sleep(500);
+        bloco = new byte[256 * 1024];
+        for (Socket s : destinatarios) {
+            Thread t = new Thread(() -> ler(s), "leitor-bench");
+            t.setDaemon(true);
+            t.start();
+            leitores.add(t);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void encerrar() throws IOException {
+        remetente.close();
+        for (Socket s : destinatarios)
+            s.close();
+    }
+
+    @Benchmark
+    public void repassarArquivo() throws Exception {
+        CountDownLatch fim = new CountDownLatch(destinatarios.size());
+        recebidos = fim;
+        long tamanho = (long) tamanhoMb << 20;
+        escreverLinha(cabecalho);
+        for (long enviados = 0; enviados < tamanho; enviados += bloco.length)
+            saidaRemetente.write(bloco, 0, (int) Math.min(bloco.length, tamanho - enviados));
+        saidaRemetente.flush();
+        if (!fim.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException("Arquivo não chegou a todos os destinatários");
+    }
+
+    private void escreverLinha(String linha) throws IOException {
+        saidaRemetente.write((linha + "\n").getBytes(StandardCharsets.UTF_8));
+        saidaRemetente.flush();
+    }
+
+    // Consome linhas até um cabeçalho ARQUIVO/GRUPO_ARQUIVO, lê o corpo e avisa o benchmark
+    private void ler(Socket s) {
+        try {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 256 * 1024);
+            byte[] buf = new byte[256 * 1024];
+            while (true) {
+                String linha = lerLinha(in);
+                if (linha == null)
+                    return;
+                if (!linha.startsWith("ARQUIVO:") && !linha.startsWith("GRUPO_ARQUIVO:"))
+                    continue;
+                long restante = Long.parseLong(linha.substring(linha.lastIndexOf(':') + 1));
+                while (restante > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, restante));
+                    if (n < 0)
+                        return;
+                    restante -= n;
+                }
+                recebidos.countDown();
+            }
+        } catch (IOException e) {
+            // Socket fechado no TearDown
+        }
+    }
+
+    private static String lerLinha(InputStream in) throws IOException {
+        ByteArrayOutputStream linha = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                return null;
+            linha.write(b);
+        }
+        return linha.toString(StandardCharsets.UTF_8);
+    }
+
+    private static Socket conectar(String nome) throws Exception {
+        for (int tentativa = 0;; tentativa++) {
+            try {
+                Socket s = new Socket("localhost", PORTA);
+                InputStream in = s.getInputStream();
+                lerLinha(in);
+                s.getOutputStream().write((nome + "\n").getBytes(StandardCharsets.UTF_8));
+                return s;
+            } catch (IOException e) {
+                // O servidor ainda está subindo
+                if (tentativa == 50)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+}
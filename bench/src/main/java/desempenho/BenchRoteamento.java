@@ -0,0 +1,52 @@
+package desempenho;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Resolução dos destinatários de uma mensagem de grupo de 1.000 membros, com todos ou só parte deles
+// conectados: pelos nomes (um hash por membro, como antes) ou pelo array de sessões da tabela de rotas.
+// mensagemGrupo mede o caminho inteiro do /msg, até as filas esvaziarem.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dchat.log.nivel=AVISO", "-Dchat.limite.mensagens=0" })
+public class BenchRoteamento {
+    @Param({ "1000" })
+    int membros;
+
+    @Param({ "1000", "100" })
+    int conectados;
+
+    private Alvo alvo;
+
+    @Setup
+    public void preparar() {
+        alvo = Alvo.alvo();
+        alvo.registrarUsuarios("membro", conectados);
+        alvo.criarGrupo("grupo", "membro", membros);
+    }
+
+    @TearDown
+    public void limpar() {
+        alvo.limpar();
+    }
+
+    @Benchmark
+    public int destinosPorNome() {
+        return alvo.destinosPorNome("grupo", "membro0");
+    }
+
+    @Benchmark
+    public int destinosPorRota() {
+        return alvo.destinosPorRota("grupo", "membro0");
+    }
+
+    @Benchmark
+    public long mensagemGrupo() throws IOException {
+        alvo.processar("membro0", "/msg grupo mensagem para o grupo inteiro");
+        return alvo.drenar();
+    }
+}